@@ -5,15 +5,9 @@ import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.TreeMultimap;
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TObjectLongMap;
-import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
 import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
@@ -31,6 +25,11 @@ import java.io.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class tracks incoming requests from workers to consume Analyst tasks, and attempts to match those
@@ -60,12 +59,22 @@ public class Broker implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(Broker.class);
 
-    /* How often we should check for delivered tasks that have timed out. */
+    /* How often we should check for delivered tasks that have timed out, and update the metrics. */
     private static final int REDELIVERY_INTERVAL_SEC = 10;
 
-    public final CircularList<Job> jobs = new CircularList<>();
+    /** The key of the single GraphQueue used when working offline, where graph affinity is not respected. */
+    private static final String ALL_GRAPHS = "*";
 
-    /** the most tasks to deliver to a worker at a time */
+    /** All the jobs, keyed on their IDs. */
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * The jobs keyed on the first of each range of task IDs allocated to them. The tasks enqueued together are given
+     * consecutive IDs, so the job holding a task is found without keeping an entry for every task.
+     */
+    private final ConcurrentSkipListMap<Integer, Job> jobsByFirstTaskId = new ConcurrentSkipListMap<>();
+
+    /** the most tasks to deliver to a worker at a time, unless the worker asks for a different number */
     public final int MAX_TASKS_PER_WORKER = 8;
 
     /**
@@ -74,19 +83,13 @@ public class Broker implements Runnable {
      */
     public static final long WORKER_STARTUP_TIME = 60 * 60 * 1000;
 
-    private int nUndeliveredTasks = 0; // Including normal priority jobs and high-priority tasks.
-
-    private int nWaitingConsumers = 0; // including some that might be closed
-
-    private int nextTaskId = 0;
+    private final AtomicInteger nextTaskId = new AtomicInteger();
 
     /** Maximum number of workers allowed */
     private int maxWorkers;
 
     private static final ObjectMapper mapper = new ObjectMapper();
 
-    private long nextRedeliveryCheckTime = System.currentTimeMillis();
-
     static {
         mapper.registerModule(AgencyAndIdSerializer.makeModule());
         mapper.registerModule(QualifiedModeSetSerializer.makeModule());
@@ -102,39 +105,34 @@ public class Broker implements Runnable {
 
     private WorkerCatalog workerCatalog = new WorkerCatalog();
 
-    /** The time at which each task was delivered to a worker, to allow re-delivery. */
-    TIntIntMap deliveryTimes = new TIntIntHashMap();
-
-    /**
-     * Requests that are not part of a job and can "cut in line" in front of jobs for immediate execution.
-     * When a high priority task is first received, we attempt to send it to a worker right away via
-     * the side channels. If that doesn't work, we put them here to be picked up the next time a worker
-     * is available via normal task distribution channels.
-     */
-    private ArrayListMultimap<String, AnalystClusterRequest> stalledHighPriorityTasks = ArrayListMultimap.create();
-
     /**
      * High priority requests that have just come and are about to be sent down a single point channel.
      * They put here for just 100 ms so that any that arrive together are batched to the same worker.
      * If we didn't do this, two requests arriving at basically the same time could get fanned out to
      * two different workers because the second came in in between closing the side channel and the worker
-     * reopening it.
+     * reopening it. Those that cannot be sent down a side channel are handed to the GraphQueue, where they
+     * "cut in line" in front of jobs for immediate execution.
      */
-    private Multimap<String, AnalystClusterRequest> newHighPriorityTasks = ArrayListMultimap.create();
+    private final Map<String, Queue<AnalystClusterRequest>> newHighPriorityTasks = new ConcurrentHashMap<>();
 
     /** Priority requests that have already been farmed out to workers, and are awaiting a response. */
-    private TIntObjectMap<Response> highPriorityResponses = new TIntObjectHashMap<>();
+    private final Map<Integer, Response> highPriorityResponses = new ConcurrentHashMap<>();
 
-    /** Outstanding requests from workers for tasks, grouped by worker graph affinity. */
-    Map<String, Deque<Response>> consumersByGraph = new HashMap<>();
+    /**
+     * Tasks awaiting delivery and outstanding requests from workers for tasks, grouped by graph. Each GraphQueue
+     * matches them without locking, so workers polling for different graphs never wait on each other.
+     */
+    private final Map<String, GraphQueue> queues = new ConcurrentHashMap<>();
 
     /**
      * Side channels used to send single point requests to workers, cutting in front of any other work on said workers.
-     * We use a TreeMultimap because it is ordered, and the wrapped response defines an order based on
+     * We use sorted sets because the wrapped response defines an order based on
      * machine ID. This way, the same machine will tend to get all single point work for a graph,
      * so multiple machines won't stay alive to do single point work.
      */
-    private Multimap<String, WrappedResponse> singlePointChannels = TreeMultimap.create();
+    private final Map<String, NavigableSet<WrappedResponse>> singlePointChannels = new ConcurrentHashMap<>();
+
+    private final BrokerMetrics metrics = new BrokerMetrics();
 
     /** should we work offline */
     private boolean workOffline;
@@ -151,7 +149,6 @@ public class Broker implements Runnable {
      */
     private TObjectLongMap<String> recentlyRequestedWorkers = new TObjectLongHashMap<>();
 
-    // Queue of tasks to complete Delete, Enqueue etc. to avoid synchronizing all the functions ?
     public Broker (Properties brokerConfig, String addr, int port) {
         // print out date on startup so that CloudWatch logs has a unique fingerprint
         LOG.info("Analyst worker starting at {}", LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME));
@@ -207,7 +204,7 @@ public class Broker implements Runnable {
      * Enqueue a task for execution ASAP, planning to return the response over the same HTTP connection.
      * Low-reliability, no re-delivery.
      */
-    public synchronized void enqueuePriorityTask (AnalystClusterRequest task, Response response) {
+    public void enqueuePriorityTask (AnalystClusterRequest task, Response response) {
         boolean workersAvailable = workersAvailableForGraph(task.graphId);
 
         if (!workersAvailable) {
@@ -226,8 +223,8 @@ public class Broker implements Runnable {
         // note that this will mean that requests get delivered multiple times in offline mode,
         // so some unnecessary computation takes place
         if (workersAvailable || workOffline) {
-            task.taskId = nextTaskId++;
-            newHighPriorityTasks.put(task.graphId, task);
+            task.taskId = nextTaskId.getAndIncrement();
+            newHighPriorityTasks.computeIfAbsent(task.graphId, g -> new ConcurrentLinkedQueue<>()).add(task);
             highPriorityResponses.put(task.taskId, response);
 
             // wait 100ms to deliver to workers in case another request comes in almost simultaneously
@@ -239,84 +236,84 @@ public class Broker implements Runnable {
             }, 100);
         }
 
-        // do not notify task delivery thread just yet as we haven't put anything in the task delivery queue yet.
     }
 
     /** attempt to deliver high priority tasks via side channels, or move them into normal channels if need be */
-    public synchronized void deliverHighPriorityTasks (String graphId) {
-        Collection<AnalystClusterRequest> tasks = newHighPriorityTasks.get(graphId);
+    public void deliverHighPriorityTasks (String graphId) {
+        List<AnalystClusterRequest> tasks = new ArrayList<>();
+        Queue<AnalystClusterRequest> newTasks = newHighPriorityTasks.get(graphId);
+        AnalystClusterRequest task;
+        while (newTasks != null && (task = newTasks.poll()) != null) tasks.add(task);
 
         if (tasks.isEmpty())
             // someone got here first
             return;
 
         // try to deliver via side channels
-        Collection<WrappedResponse> wrs = singlePointChannels.get(graphId);
+        NavigableSet<WrappedResponse> wrs = singlePointChannels.get(graphId);
+        // remove responses whether they are dead or alive
+        WrappedResponse wr = wrs == null ? null : wrs.pollFirst();
 
-        if (!wrs.isEmpty()) {
+        if (wr != null) {
             // there is (probably) a single point machine waiting to receive this
-            WrappedResponse wr = wrs.iterator().next();
-
             try {
                 wr.response.setContentType("application/json");
                 OutputStream os = wr.response.getOutputStream();
                 mapper.writeValue(os, tasks);
                 os.close();
                 wr.response.resume();
-
-                newHighPriorityTasks.removeAll(graphId);
-
                 return;
             } catch (Exception e) {
                 LOG.info("Failed to deliver single point job via side channel, reverting to normal channel", e);
-            } finally {
-                // remove responses whether they are dead or alive
-                removeSinglePointChannel(graphId, wr);
             }
         }
 
         // if we got here we didn't manage to send it via side channel, put it in the rotation for normal channels
-        // not using putAll as it retains a link to the original collection and then we get a concurrent modification exception later.
-        tasks.forEach(t -> stalledHighPriorityTasks.put(graphId, t));
         LOG.info("No side channel available for graph {}, delivering {} tasks via normal channel",
                 graphId, tasks.size());
-        nUndeliveredTasks += tasks.size();
-        newHighPriorityTasks.removeAll(graphId);
-
-        // wake up delivery thread
-        notify();
+        metrics.tasksEnqueued.add(tasks.size());
+        queueFor(graphId).addPriorityTasks(tasks);
     }
 
     /** Enqueue some tasks for queued execution possibly much later. Results will be saved to S3. */
-    public synchronized void enqueueTasks (List<AnalystClusterRequest> tasks) {
+    public void enqueueTasks (List<AnalystClusterRequest> tasks) {
         Job job = findJob(tasks.get(0)); // creates one if it doesn't exist
 
         if (!workersAvailableForGraph(job.graphId))
             createWorkersForGraph(job.graphId);
 
+        int firstTaskId = nextTaskId.getAndAdd(tasks.size());
+        int taskId = firstTaskId;
         for (AnalystClusterRequest task : tasks) {
-            task.taskId = nextTaskId++;
+            task.taskId = taskId++;
             job.addTask(task);
-            nUndeliveredTasks += 1;
             LOG.debug("Enqueued task id {} in job {}", task.taskId, job.jobId);
             if ( ! task.graphId.equals(job.graphId)) {
                 LOG.warn("Task graph ID {} does not match job graph ID {}.", task.graphId, job.graphId);
             }
         }
-        // Wake up the delivery thread if it's waiting on input.
-        // This wakes whatever thread called wait() while holding the monitor for this Broker object.
-        notify();
+        jobsByFirstTaskId.put(firstTaskId, job);
+        metrics.tasksEnqueued.add(tasks.size());
+        // This delivers the tasks right away if some workers are waiting for them.
+        queueFor(job.graphId).addTasks(job, tasks);
+    }
+
+    /** @return the queue for the given graph, or the single queue for all graphs when working offline. */
+    private GraphQueue queueFor (String graphId) {
+        // don't respect graph affinity when working offline; we can't arbitrarily start more workers
+        String key = workOffline ? ALL_GRAPHS : graphId;
+        return queues.computeIfAbsent(key, k -> new GraphQueue(k, mapper, metrics));
     }
 
     public boolean workersAvailableForGraph (String graphId) {
         // make sure that we don't assign work to dead workers
         workerCatalog.purgeDeadWorkers();
 
-        return !workerCatalog.workersByGraph.get(graphId).isEmpty();
+        return workerCatalog.hasWorkers(graphId);
     }
 
-    /** Create workers for a given job, if need be */
-    public void createWorkersForGraph (String graphId) {
+    /** Create workers for a given job, if need be. This is synchronized as it is not on the task delivery path. */
+    public synchronized void createWorkersForGraph (String graphId) {
         String clientToken = UUID.randomUUID().toString().replaceAll("-", "");
 
         if (workOffline) {
@@ -390,7 +387,15 @@ public class Broker implements Runnable {
     }
 
     /** Consumer long-poll operations are enqueued here. */
-    public synchronized void registerSuspendedResponse(String graphId, Response response) {
+    public void registerSuspendedResponse(String graphId, Response response) {
+        registerSuspendedResponse(graphId, response, 0);
+    }
+
+    /**
+     * Consumer long-poll operations are enqueued here.
+     * @param maxTasks the number of tasks the worker asked for, or 0 to send up to MAX_TASKS_PER_WORKER tasks.
+     */
+    public void registerSuspendedResponse(String graphId, Response response, int maxTasks) {
         // Add this worker to our catalog, tracking its graph affinity and the last time it was seen.
         String workerId = response.getRequest().getHeader(AnalystWorker.WORKER_ID_HEADER);
         if (workerId != null && !workerId.isEmpty()) {
@@ -399,29 +404,15 @@ public class Broker implements Runnable {
             LOG.error("Worker did not supply a unique ID for itself . Ignoring it.");
             return;
         }
-        // Shelf this suspended response in a queue grouped by graph affinity.
-        Deque<Response> deque = consumersByGraph.get(graphId);
-        if (deque == null) {
-            deque = new ArrayDeque<>();
-            consumersByGraph.put(graphId, deque);
-        }
-        deque.addLast(response);
-        nWaitingConsumers += 1;
-        // Wake up the delivery thread if it's waiting on consumers.
-        // This is whatever thread called wait() while holding the monitor for this Broker object.
-        notify();
+        // Shelf this suspended response in a queue grouped by graph affinity, unless there are tasks for it already.
+        maxTasks = maxTasks > 0 ? Math.min(maxTasks, AnalystWorker.MAX_TASKS_PER_POLL) : MAX_TASKS_PER_WORKER;
+        queueFor(graphId).addConsumer(response, maxTasks);
     }
 
     /** When we notice that a long poll connection has closed, we remove it here. */
-    public synchronized boolean removeSuspendedResponse(String graphId, Response response) {
-        Deque<Response> deque = consumersByGraph.get(graphId);
-        if (deque == null) {
-            return false;
-        }
-        if (deque.remove(response)) {
-            nWaitingConsumers -= 1;
+    public boolean removeSuspendedResponse(String graphId, Response response) {
+        if (queueFor(graphId).removeConsumer(response)) {
             LOG.debug("Removed closed connection from queue.");
-            logQueueStatus();
             return true;
         }
         return false;
@@ -431,23 +422,31 @@ public class Broker implements Runnable {
      * Register an HTTP connection that can be used to send single point requests directly to
      * workers, bypassing normal task distribution channels.
      */
-    public synchronized void registerSinglePointChannel (String graphAffinity,WrappedResponse response) {
-        singlePointChannels.put(graphAffinity, response);
-        // no need to notify as the side channels are not used by the normal task delivery loop
+    public void registerSinglePointChannel (String graphAffinity,WrappedResponse response) {
+        singlePointChannels.computeIfAbsent(graphAffinity, g -> new ConcurrentSkipListSet<>()).add(response);
     }
 
     /**
      * Remove a single point channel because the connection was closed.
      */
-    public synchronized boolean removeSinglePointChannel (String graphAffinity, WrappedResponse response) {
-        return singlePointChannels.remove(graphAffinity, response);
+    public boolean removeSinglePointChannel (String graphAffinity, WrappedResponse response) {
+        NavigableSet<WrappedResponse> wrs = singlePointChannels.get(graphAffinity);
+        return wrs != null && wrs.remove(response);
     }
 
     private void logQueueStatus() {
-        LOG.info("{} undelivered, of which {} high-priority", nUndeliveredTasks,
-                stalledHighPriorityTasks.size());
-        LOG.info("{} producers waiting, {} consumers waiting", highPriorityResponses.size(), nWaitingConsumers);
-        LOG.info("{} total workers", workerCatalog.size());
+        BrokerMetrics.Snapshot snapshot = getMetrics();
+        LOG.info("{} tasks/s enqueued, {} tasks/s delivered, {} tasks/s completed, mean poll latency {} ms",
+                (int) snapshot.enqueuedPerSecond, (int) snapshot.deliveredPerSecond,
+                (int) snapshot.completedPerSecond, (int) snapshot.meanPollLatencyMs);
+        LOG.info("undelivered tasks by graph: {}, consumers waiting by graph: {}",
+                snapshot.undeliveredTasksByGraph, snapshot.waitingConsumersByGraph);
+        LOG.info("{} producers waiting, {} total workers", highPriorityResponses.size(), workerCatalog.size());
+    }
+
+    /** @return the throughput over the last few seconds and the current queue depths. */
+    public BrokerMetrics.Snapshot getMetrics () {
+        return metrics.snapshot(queues.values());
     }
 
     /**
@@ -455,202 +454,46 @@ public class Broker implements Runnable {
      *  marked complete. Enqueue those tasks for redelivery.
      */
     private void redeliver() {
-        if (System.currentTimeMillis() > nextRedeliveryCheckTime) {
-            nextRedeliveryCheckTime += REDELIVERY_INTERVAL_SEC * 1000;
-            LOG.info("Scanning for redelivery...");
-            int nRedelivered = 0;
-            int nInvisible = 0;
-            for (Job job : jobs) {
-                nInvisible += job.invisibleUntil.size();
-                nRedelivered += job.redeliver();
+        LOG.info("Scanning for redelivery...");
+        long now = System.currentTimeMillis();
+        int nRedelivered = 0;
+        int nInvisible = 0;
+        for (Job job : jobs.values()) {
+            nInvisible += job.invisibleUntil.size();
+            List<AnalystClusterRequest> tasks = job.redeliver(now);
+            if (!tasks.isEmpty()) {
+                nRedelivered += tasks.size();
+                queueFor(job.graphId).addTasks(job, tasks);
             }
-            LOG.info("{} tasks enqueued for redelivery out of {} invisible tasks.", nRedelivered, nInvisible);
-            nUndeliveredTasks += nRedelivered;
         }
+        metrics.tasksRedelivered.add(nRedelivered);
+        LOG.info("{} tasks enqueued for redelivery out of {} invisible tasks.", nRedelivered, nInvisible);
     }
 
-    /**
-     * This method checks whether there are any high-priority tasks or normal job tasks and attempts to match them with
-     * waiting workers. It blocks until there are tasks or workers available.
-     */
-    public synchronized void deliverTasks() throws InterruptedException {
-
-        // Wait until there are some undelivered tasks.
-        while (nUndeliveredTasks == 0) {
-            LOG.debug("Task delivery thread is going to sleep, there are no tasks waiting for delivery.");
-            logQueueStatus();
-            wait();
-            redeliver();
-        }
-        LOG.debug("Task delivery thread is awake and there are some undelivered tasks.");
-        logQueueStatus();
-
-        while (nWaitingConsumers == 0) {
-            LOG.debug("Task delivery thread is going to sleep, there are no consumers waiting.");
-            // Thread will be notified when there are new incoming consumer connections.
-            wait();
-        }
-
-        LOG.debug("Task delivery thread awake; consumers are waiting and tasks are available");
-
-        // Loop over all jobs and send them to consumers
-        // This makes for an as-fair-as-possible allocation: jobs are fairly allocated between
-        // workers on their graph.
-
-        // start with high-priority tasks
-        HIGHPRIORITY: for (Map.Entry<String, Collection<AnalystClusterRequest>> e : stalledHighPriorityTasks
-                .asMap().entrySet()) {
-            // the collection is an arraylist with the most recently added at the end
-            String graphId = e.getKey();
-            Collection<AnalystClusterRequest> tasks = e.getValue();
-
-            // see if there are any consumers for this
-            // don't respect graph affinity when working offline; we can't arbitrarily start more workers
-            Deque<Response> consumers;
-            if (!workOffline)
-                consumers = consumersByGraph.get(graphId);
-            else {
-                Optional<Deque<Response>> opt = consumersByGraph.values().stream().filter(c -> !c.isEmpty()).findFirst();
-                if (opt.isPresent()) consumers = opt.get();
-                else consumers = null;
-            }
-
-            if (consumers == null || consumers.isEmpty()) {
-                LOG.warn("No consumer found for graph {}, needed for {} high-priority tasks", graphId, tasks.size());
-                continue HIGHPRIORITY;
-            }
-
-            Iterator<AnalystClusterRequest> taskIt = tasks.iterator();
-            while (taskIt.hasNext() && !consumers.isEmpty()) {
-                Response consumer = consumers.pop();
-
-                // package tasks into a job
-                Job job = new Job("HIGH PRIORITY");
-                job.graphId = graphId;
-                for (int i = 0; i < MAX_TASKS_PER_WORKER && taskIt.hasNext(); i++) {
-                    job.addTask(taskIt.next());
-                    taskIt.remove();
-                }
-
-                // TODO inefficiency here: we should mix single point and multipoint in the same response
-                deliver(job, consumer);
-                nWaitingConsumers--;
-            }
-        }
-
-        // deliver low priority tasks
-        while (nWaitingConsumers > 0) {
-            // ensure we advance at least one; advanceToElement will not advance if the predicate passes
-            // for the first element.
-            jobs.advance();
-
-            // find a job that both has visible tasks and has available workers
-            // We don't respect graph affinity when working offline, because we can't start more workers
-            Job current;
-            if (!workOffline) {
-                current = jobs.advanceToElement(e -> !e.tasksAwaitingDelivery.isEmpty() &&
-                        consumersByGraph.containsKey(e.graphId) &&
-                        !consumersByGraph.get(e.graphId).isEmpty());
-            }
-            else {
-                current = jobs.advanceToElement(e -> !e.tasksAwaitingDelivery.isEmpty());
-            }
-
-            // nothing to see here
-            if (current == null) break;
-
-            Deque<Response> consumers;
-            if (!workOffline)
-                consumers = consumersByGraph.get(current.graphId);
-            else {
-                Optional<Deque<Response>> opt = consumersByGraph.values().stream().filter(c -> !c.isEmpty()).findFirst();
-                if (opt.isPresent()) consumers = opt.get();
-                else consumers = null;
-            }
-            // deliver this job to only one consumer
-            // This way if there are multiple workers and multiple jobs the jobs will be fairly distributed, more or less
-            deliver(current, consumers.pop());
-            nWaitingConsumers--;
-        }
-
-        // TODO: graph switching
-
-        // we've delivered everything we can, prevent anything else from happening until something changes
-        wait();
-    }
-
-    /**
-     * This uses a linear search through jobs, which should not be problematic unless there are thousands of
-     * simultaneous jobs.
-     * @return a Job object that contains the given task ID.
-     */
+    /** @return the Job object that contains the given task ID, or null if there is none. */
     public Job getJobForTask (int taskId) {
-        for (Job job : jobs) {
-            if (job.containsTask(taskId)) {
-                return job;
-            }
+        Map.Entry<Integer, Job> entry = jobsByFirstTaskId.floorEntry(taskId);
+        if (entry != null && entry.getValue().containsTask(taskId)) {
+            return entry.getValue();
         }
         return null;
     }
 
-    /**
-     * Attempt to hand some tasks from the given job to a waiting consumer connection.
-     * The write will fail if the consumer has closed the connection but it hasn't been removed from the connection
-     * queue yet. This can happen because the Broker methods are synchronized, and the removal action may be waiting
-     * to get the monitor while we are trying to distribute tasks here.
-     * @return whether the handoff succeeded.
-     */
-    public synchronized boolean deliver (Job job, Response response) {
-
-        // Check up-front whether the connection is still open.
-        if (!response.getRequest().getRequest().getConnection().isOpen()) {
-            LOG.debug("Consumer connection was closed. It will be removed.");
-            return false;
-        }
-
-        // Get up to N tasks from the tasksAwaitingDelivery deque
-        List<AnalystClusterRequest> tasks = new ArrayList<>();
-        while (tasks.size() < MAX_TASKS_PER_WORKER && !job.tasksAwaitingDelivery.isEmpty()) {
-            tasks.add(job.tasksAwaitingDelivery.poll());
-        }
-
-        // Attempt to deliver the tasks to the given consumer.
-        try {
-            response.setStatus(HttpStatus.OK_200);
-            OutputStream out = response.getOutputStream();
-            mapper.writeValue(out, tasks);
-            response.resume();
-        } catch (IOException e) {
-            // The connection was probably closed by the consumer, but treat it as a server error.
-            LOG.debug("Consumer connection caused IO error, it will be removed.");
-            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
-            response.resume();
-            // Delivery failed, put tasks back on (the end of) the queue.
-            job.tasksAwaitingDelivery.addAll(tasks);
-            return false;
-        }
-
-        // Delivery succeeded, move tasks from undelivered to delivered status
-        LOG.debug("Delivery of {} tasks succeeded.", tasks.size());
-        nUndeliveredTasks -= tasks.size();
-        job.markTasksDelivered(tasks);
-
-        return true;
-
-    }
-
     /**
      * Take a normal (non-priority) task out of a job queue, marking it as completed so it will not be re-delivered.
      * TODO maybe use unique delivery receipts instead of task IDs to handle redelivered tasks independently
      * @return whether the task was found and removed.
      */
-    public synchronized boolean markTaskCompleted (int taskId) {
+    public boolean markTaskCompleted (int taskId) {
         Job job = getJobForTask(taskId);
         if (job == null) {
-            LOG.error("Could not find a job containing task {}, and therefore could not mark the task as completed.");
+            LOG.error("Could not find a job containing task {}, and therefore could not mark the task as completed.",
+                    taskId);
             return false;
         }
-        job.markTaskCompleted(taskId);
+        if (job.markTaskCompleted(taskId)) {
+            metrics.tasksCompleted.increment();
+        }
         return true;
     }
 
@@ -661,60 +504,58 @@ public class Broker implements Runnable {
      * without blocking the broker thread.
      * TODO rename to "deregisterSuspendedProducer" and "deregisterSuspendedConsumer" ?
      */
-    public synchronized Response deletePriorityTask (int taskId) {
+    public Response deletePriorityTask (int taskId) {
         return highPriorityResponses.remove(taskId);
     }
 
-    // TODO: occasionally purge closed connections from consumersByGraph
     // TODO: worker catalog and graph affinity homeostasis
 
+    /**
+     * Tasks are delivered by the threads enqueueing tasks or registering consumers, as soon as both are available.
+     * This thread only re-delivers tasks that have timed out and keeps the metrics up to date.
+     */
     @Override
     public void run() {
         while (true) {
             try {
-                deliverTasks();
+                Thread.sleep(REDELIVERY_INTERVAL_SEC * 1000);
             } catch (InterruptedException e) {
-                LOG.info("Task pump thread was interrupted.");
+                LOG.info("Broker maintenance thread was interrupted.");
                 return;
             }
+            redeliver();
+            metrics.update();
+            logQueueStatus();
         }
     }
 
     /** find the job for a task, creating it if it does not exist */
     public Job findJob (AnalystClusterRequest task) {
-        Job job = findJob(task.jobId);
-
-        if (job != null)
-            return job;
-
-        job = new Job(task.jobId);
-        job.graphId = task.graphId;
-        jobs.insertAtTail(job);
-        return job;
+        return jobs.computeIfAbsent(task.jobId, jobId -> {
+            Job newJob = new Job(jobId);
+            newJob.graphId = task.graphId;
+            return newJob;
+        });
     }
 
     /** find the job for a jobId, or null if it does not exist */
     public Job findJob (String jobId) {
-        for (Job job : jobs) {
-            if (job.jobId.equals(jobId)) {
-                return job;
-            }
-        }
-        return null;
+        return jobs.get(jobId);
     }
 
     /** delete a job */
-    public synchronized boolean deleteJob (String jobId) {
-        Job job = findJob(jobId);
+    public boolean deleteJob (String jobId) {
+        Job job = jobs.remove(jobId);
         if (job == null) return false;
-        nUndeliveredTasks -= job.tasksAwaitingDelivery.size();
-        return jobs.remove(job);
+        queueFor(job.graphId).removeJob(job);
+        jobsByFirstTaskId.values().removeIf(j -> j == job);
+        return true;
     }
 
     private Multimap<String, String> activeJobsPerGraph = HashMultimap.create();
 
-    public synchronized boolean anyJobsActive() {
-        for (Job job : jobs) {
+    public boolean anyJobsActive() {
+        for (Job job : jobs.values()) {
             if (!job.isComplete()) return true;
         }
         return false;
@@ -97,18 +97,41 @@ class BrokerHttpHandler extends HttpHandler {
                     os.close();
                 }
                 return;
+            } else if (request.getMethod() == Method.GET && "metrics".equals(pathComponents[1])) {
+                /* fetch broker throughput and queue depths */
+                response.setStatus(HttpStatus.OK_200);
+                OutputStream os = response.getOutputStream();
+                mapper.writeValue(os, broker.getMetrics());
+                os.close();
+                return;
             } else if (request.getMethod() == Method.POST) {
                 /* dequeue messages. */
                 String command = pathComponents[1];
 
                 if ("dequeue".equals(command)) {
                     String graphAffinity = pathComponents[2];
+                    // Workers may ask for a number of tasks matching their free capacity.
+                    // Validate it before suspending, so that a bad request is answered rather than left hanging.
+                    String maxTasksParam = request.getParameter("maxTasks");
+                    int maxTasks = 0;
+                    if (maxTasksParam != null) {
+                        try {
+                            maxTasks = Integer.parseInt(maxTasksParam);
+                        } catch (NumberFormatException e) {
+                            maxTasks = -1;
+                        }
+                        if (maxTasks < 0) {
+                            response.setStatus(HttpStatus.BAD_REQUEST_400);
+                            response.setDetailMessage("maxTasks should be a non-negative integer");
+                            return;
+                        }
+                    }
                     request.getRequest().getConnection()
                             .addCloseListener((closeable, iCloseType) -> {
                                 broker.removeSuspendedResponse(graphAffinity, response);
                             });
                     response.suspend(); // The request should survive after the handler function exits.
-                    broker.registerSuspendedResponse(graphAffinity, response);
+                    broker.registerSuspendedResponse(graphAffinity, response, maxTasks);
                 }
 
                 /* not dequeueing, enqueuing */
@@ -161,7 +184,11 @@ class BrokerHttpHandler extends HttpHandler {
                         response.setStatus(HttpStatus.NOT_FOUND_404);
                         return;
                     }
-                    // Copy the result back to the connection that was the source of the task.
+                    // Copy the result back to the connection that was the source of the task, in whatever format
+                    // the worker chose to write it.
+                    if (request.getContentType() != null) {
+                        suspendedProducerResponse.setContentType(request.getContentType());
+                    }
                     try {
                         ByteStreams.copy(request.getInputStream(),
                                 suspendedProducerResponse.getOutputStream());
@@ -0,0 +1,113 @@
+package org.opentripplanner.analyst.broker;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput counters of the broker. They are updated without locking by all the threads handling requests, and turned
+ * into rates over the last interval by the broker maintenance thread calling update(). They cover the tasks going
+ * through the GraphQueues: single point tasks sent straight down a side channel are not counted.
+ */
+public class BrokerMetrics {
+
+    final LongAdder tasksEnqueued = new LongAdder();
+
+    final LongAdder tasksDelivered = new LongAdder();
+
+    final LongAdder tasksCompleted = new LongAdder();
+
+    final LongAdder tasksRedelivered = new LongAdder();
+
+    /** Number of responses sent to workers, each holding a batch of tasks. */
+    final LongAdder deliveries = new LongAdder();
+
+    final LongAdder failedDeliveries = new LongAdder();
+
+    /** Total time workers spent polling before receiving tasks, over all deliveries. */
+    private final LongAdder pollLatencyNanos = new LongAdder();
+
+    private final LongAccumulator maxPollLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    /* Counter values and rates as of the last call to update(). */
+    private long lastUpdateTime = System.currentTimeMillis();
+    private long lastEnqueued, lastDelivered, lastCompleted, lastDeliveries, lastPollLatencyNanos;
+    private volatile double enqueuedPerSecond, deliveredPerSecond, completedPerSecond;
+    private volatile double meanPollLatencyMs, maxPollLatencyMs;
+
+    /** Record the successful delivery of some tasks to a worker that had been waiting for the given time. */
+    void recordDelivery (int nTasks, long pollLatencyNanos) {
+        tasksDelivered.add(nTasks);
+        deliveries.increment();
+        this.pollLatencyNanos.add(pollLatencyNanos);
+        maxPollLatencyNanos.accumulate(pollLatencyNanos);
+    }
+
+    /** Compute the rates since the previous call. */
+    synchronized void update () {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(now - lastUpdateTime, 1) / 1000d;
+        long enqueued = tasksEnqueued.sum();
+        long delivered = tasksDelivered.sum();
+        long completed = tasksCompleted.sum();
+        long nDeliveries = deliveries.sum();
+        long latency = pollLatencyNanos.sum();
+
+        enqueuedPerSecond = (enqueued - lastEnqueued) / seconds;
+        deliveredPerSecond = (delivered - lastDelivered) / seconds;
+        completedPerSecond = (completed - lastCompleted) / seconds;
+        meanPollLatencyMs = nDeliveries == lastDeliveries ? 0 :
+                (latency - lastPollLatencyNanos) / 1e6 / (nDeliveries - lastDeliveries);
+        maxPollLatencyMs = maxPollLatencyNanos.getThenReset() / 1e6;
+
+        lastUpdateTime = now;
+        lastEnqueued = enqueued;
+        lastDelivered = delivered;
+        lastCompleted = completed;
+        lastDeliveries = nDeliveries;
+        lastPollLatencyNanos = latency;
+    }
+
+    /** @return the rates over the last interval, with the current state of the given queues. */
+    Snapshot snapshot (Collection<GraphQueue> queues) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.enqueuedPerSecond = enqueuedPerSecond;
+        snapshot.deliveredPerSecond = deliveredPerSecond;
+        snapshot.completedPerSecond = completedPerSecond;
+        snapshot.meanPollLatencyMs = meanPollLatencyMs;
+        snapshot.maxPollLatencyMs = maxPollLatencyMs;
+        snapshot.totalEnqueued = tasksEnqueued.sum();
+        snapshot.totalDelivered = tasksDelivered.sum();
+        snapshot.totalCompleted = tasksCompleted.sum();
+        snapshot.totalRedelivered = tasksRedelivered.sum();
+        snapshot.failedDeliveries = failedDeliveries.sum();
+        for (GraphQueue queue : queues) {
+            snapshot.undeliveredTasksByGraph.put(queue.graphId, queue.getUndeliveredTaskCount());
+            snapshot.waitingConsumersByGraph.put(queue.graphId, queue.getWaitingConsumerCount());
+        }
+        return snapshot;
+    }
+
+    /** The broker metrics at one point in time, as returned by the broker metrics endpoint. */
+    public static class Snapshot {
+        public double enqueuedPerSecond;
+        public double deliveredPerSecond;
+        public double completedPerSecond;
+
+        /** How long workers waited for tasks on average, and at most, over the last interval. */
+        public double meanPollLatencyMs;
+        public double maxPollLatencyMs;
+
+        public long totalEnqueued;
+        public long totalDelivered;
+        public long totalCompleted;
+        public long totalRedelivered;
+        public long failedDeliveries;
+
+        public Map<String, Integer> undeliveredTasksByGraph = new HashMap<>();
+        public Map<String, Integer> waitingConsumersByGraph = new HashMap<>();
+    }
+
+}
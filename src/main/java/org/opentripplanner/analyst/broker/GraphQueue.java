@@ -0,0 +1,242 @@
+package org.opentripplanner.analyst.broker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.opentripplanner.analyst.cluster.AnalystClusterRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tasks awaiting delivery on one graph, and the worker connections waiting for tasks on that graph.
+ *
+ * Producers (enqueued tasks, redeliveries) and consumers (worker long polls) are added to lock-free queues from any
+ * thread, then dispatch() matches them. Dispatch is serialized per graph without a lock: the thread that finds no
+ * dispatch in progress drains the queues, and keeps draining as long as other threads signalled new work while it was
+ * busy. Since every thread adds its work before signalling, no task or consumer is ever left waiting while the other
+ * side is available.
+ *
+ * Each consumer receives a batch of as many tasks as it asked for: stalled high priority tasks first, then tasks
+ * drawn round robin from the jobs on this graph.
+ */
+class GraphQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphQueue.class);
+
+    final String graphId;
+
+    private final ObjectMapper mapper;
+
+    private final BrokerMetrics metrics;
+
+    /** High priority tasks that could not be sent down a side channel. */
+    private final Queue<AnalystClusterRequest> priorityTasks = new ConcurrentLinkedQueue<>();
+
+    /** Jobs that have tasks awaiting delivery, in round robin order. A job is in here iff its scheduled flag is set. */
+    private final Queue<Job> jobs = new ConcurrentLinkedQueue<>();
+
+    /** Outstanding requests from workers for tasks, oldest first. */
+    private final Deque<Consumer> consumers = new ConcurrentLinkedDeque<>();
+
+    /** Incremented before tasks are added to the queues, so it never underestimates the number of tasks. */
+    private final AtomicInteger nUndeliveredTasks = new AtomicInteger();
+
+    /** Number of dispatch requests not yet handled by the draining thread, nonzero while a thread is draining. */
+    private final AtomicInteger dispatchRequests = new AtomicInteger();
+
+    GraphQueue (String graphId, ObjectMapper mapper, BrokerMetrics metrics) {
+        this.graphId = graphId;
+        this.mapper = mapper;
+        this.metrics = metrics;
+    }
+
+    /** Make the given tasks of the given job available for delivery. */
+    void addTasks (Job job, Collection<AnalystClusterRequest> tasks) {
+        if (tasks.isEmpty()) return;
+        nUndeliveredTasks.addAndGet(tasks.size());
+        job.tasksAwaitingDelivery.addAll(tasks);
+        if (job.deleted) {
+            // the job was deleted concurrently, make sure its tasks are not left counted
+            removeJob(job);
+            return;
+        }
+        schedule(job);
+        dispatch();
+    }
+
+    /** Make the given high priority tasks available for delivery, ahead of all job tasks. */
+    void addPriorityTasks (Collection<AnalystClusterRequest> tasks) {
+        if (tasks.isEmpty()) return;
+        nUndeliveredTasks.addAndGet(tasks.size());
+        priorityTasks.addAll(tasks);
+        dispatch();
+    }
+
+    /** Register a suspended worker long poll, which will be resumed when up to maxTasks tasks are delivered to it. */
+    void addConsumer (Response response, int maxTasks) {
+        consumers.addLast(new Consumer(response, maxTasks, System.nanoTime()));
+        dispatch();
+    }
+
+    /** @return whether the given long poll was still waiting for tasks. */
+    boolean removeConsumer (Response response) {
+        // removeFirstOccurrence atomically competes with the dispatching thread polling the same consumer
+        return consumers.removeFirstOccurrence(new Consumer(response, 0, 0));
+    }
+
+    /** Take the tasks of a deleted job out of this queue. */
+    void removeJob (Job job) {
+        job.deleted = true;
+        int nRemoved = 0;
+        while (job.tasksAwaitingDelivery.poll() != null) nRemoved++;
+        nUndeliveredTasks.addAndGet(-nRemoved);
+    }
+
+    int getUndeliveredTaskCount () {
+        return nUndeliveredTasks.get();
+    }
+
+    /** This traverses the consumer queue, and should not be called on the delivery path. */
+    int getWaitingConsumerCount () {
+        return consumers.size();
+    }
+
+    /** Put the job in the delivery rotation unless it is already there or has nothing to deliver. */
+    private void schedule (Job job) {
+        if (!job.deleted && !job.tasksAwaitingDelivery.isEmpty() && job.scheduled.compareAndSet(false, true)) {
+            jobs.add(job);
+        }
+    }
+
+    /** Match tasks with consumers, or make sure the thread currently doing so will look again. */
+    private void dispatch () {
+        if (dispatchRequests.getAndIncrement() != 0) return;
+        int handled = 1;
+        do {
+            drain();
+            handled = dispatchRequests.addAndGet(-handled);
+        } while (handled != 0);
+    }
+
+    /** Deliver batches of tasks until either tasks or consumers run out. Only one thread at a time runs this. */
+    private void drain () {
+        while (nUndeliveredTasks.get() > 0) {
+            Consumer consumer = consumers.pollFirst();
+            if (consumer == null) return;
+            if (!consumer.response.getRequest().getRequest().getConnection().isOpen()) {
+                LOG.debug("Consumer connection was closed. It will be removed.");
+                continue;
+            }
+            List<AnalystClusterRequest> tasks = new ArrayList<>(consumer.maxTasks);
+            List<Job> taskJobs = new ArrayList<>(consumer.maxTasks);
+            takeTasks(consumer.maxTasks, tasks, taskJobs);
+            if (tasks.isEmpty()) {
+                // the counted tasks are still being added, their producer will dispatch again
+                consumers.addFirst(consumer);
+                return;
+            }
+            deliver(consumer, tasks, taskJobs);
+        }
+    }
+
+    /** Take a batch of tasks, along with their jobs (null for high priority tasks). */
+    private void takeTasks (int maxTasks, List<AnalystClusterRequest> tasks, List<Job> taskJobs) {
+        AnalystClusterRequest task;
+        while (tasks.size() < maxTasks && (task = priorityTasks.poll()) != null) {
+            tasks.add(task);
+            taskJobs.add(null);
+        }
+        while (tasks.size() < maxTasks) {
+            Job job = jobs.poll();
+            if (job == null) break;
+            while (tasks.size() < maxTasks && !job.deleted
+                    && (task = job.tasksAwaitingDelivery.poll()) != null) {
+                tasks.add(task);
+                taskJobs.add(job);
+            }
+            if (!job.deleted && !job.tasksAwaitingDelivery.isEmpty()) {
+                // back to the end of the rotation, so that jobs on the same graph share the workers
+                jobs.add(job);
+            } else {
+                job.scheduled.set(false);
+                // tasks may have been added between the check and clearing the flag
+                schedule(job);
+            }
+        }
+        nUndeliveredTasks.addAndGet(-tasks.size());
+    }
+
+    /**
+     * Hand a batch of tasks to a waiting consumer connection. The write will fail if the consumer has closed the
+     * connection but it hasn't been removed from the consumer queue yet, in which case the tasks are queued again.
+     */
+    private void deliver (Consumer consumer, List<AnalystClusterRequest> tasks, List<Job> taskJobs) {
+        // Mark the tasks delivered up front, as the worker may report them completed before the write returns.
+        long visibleAt = System.currentTimeMillis() + Job.INVISIBLE_DURATION_SEC * 1000;
+        for (int i = 0; i < tasks.size(); i++) {
+            Job job = taskJobs.get(i);
+            if (job != null) job.markTaskDelivered(tasks.get(i), visibleAt);
+        }
+        Response response = consumer.response;
+        try {
+            response.setStatus(HttpStatus.OK_200);
+            OutputStream out = response.getOutputStream();
+            mapper.writeValue(out, tasks);
+            response.resume();
+        } catch (IOException e) {
+            // The connection was probably closed by the consumer, but treat it as a server error.
+            LOG.debug("Consumer connection caused IO error, it will be removed.");
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+            response.resume();
+            metrics.failedDeliveries.increment();
+            // Delivery failed, put tasks back on (the end of) the queues.
+            for (int i = 0; i < tasks.size(); i++) {
+                Job job = taskJobs.get(i);
+                if (job == null) {
+                    addPriorityTasks(tasks.subList(i, i + 1));
+                } else if (job.invisibleUntil.remove(tasks.get(i).taskId, visibleAt)) {
+                    addTasks(job, tasks.subList(i, i + 1));
+                }
+            }
+            return;
+        }
+
+        LOG.debug("Delivery of {} tasks succeeded.", tasks.size());
+        metrics.recordDelivery(tasks.size(), System.nanoTime() - consumer.pollStartNanos);
+    }
+
+    /** A suspended worker long poll. Two consumers are equal when they hold the same response. */
+    private static class Consumer {
+        final Response response;
+        final int maxTasks;
+        final long pollStartNanos;
+
+        Consumer (Response response, int maxTasks, long pollStartNanos) {
+            this.response = response;
+            this.maxTasks = maxTasks;
+            this.pollStartNanos = pollStartNanos;
+        }
+
+        @Override
+        public boolean equals (Object other) {
+            return other instanceof Consumer && ((Consumer) other).response == response;
+        }
+
+        @Override
+        public int hashCode () {
+            return System.identityHashCode(response);
+        }
+    }
+
+}
@@ -1,21 +1,23 @@
 package org.opentripplanner.analyst.broker;
 
-import gnu.trove.iterator.TIntLongIterator;
-import gnu.trove.map.TIntLongMap;
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntLongHashMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 import org.opentripplanner.analyst.cluster.AnalystClusterRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * The tasks of one job and their delivery state. All methods may be called concurrently: tasks are claimed for
+ * delivery by polling tasksAwaitingDelivery, and the completion and the redelivery of a delivered task race on the
+ * removal of its entry in invisibleUntil, so exactly one of them wins.
+ *
  * FIXME delivered tasks map is oblivious to multiple tasks having the same ID.
  * In fact we just generate numeric queue task IDs. Origin point IDs will be handled at the application layer.
  */
@@ -24,7 +26,7 @@ public class Job {
     private static final Logger LOG = LoggerFactory.getLogger(Job.class);
 
     /* How long until tasks are eligible for re-delivery. */
-    private static final int INVISIBLE_DURATION_SEC = 30;
+    static final int INVISIBLE_DURATION_SEC = 30;
 
     /* A unique identifier for this job, usually a random UUID. */
     public final String jobId;
@@ -32,79 +34,81 @@ public class Job {
     /* The graph needed to handle all tasks contained in this job. */
     String graphId;
 
-    /* Tasks in this job that have yet to be delivered, or that will be re-delivered due to completion timeout. */
-    // maybe this should only be a list of IDs.
-    Queue<AnalystClusterRequest> tasksAwaitingDelivery = new ArrayDeque<>();
+    /*
+     * Tasks in this job that have yet to be delivered, or that will be re-delivered due to completion timeout.
+     * Tasks are added by the GraphQueue for the job's graph, which keeps track of how many tasks await delivery.
+     */
+    final Queue<AnalystClusterRequest> tasksAwaitingDelivery = new ConcurrentLinkedQueue<>();
 
     /* The tasks in this job keyed on their task ID. */
-    TIntObjectMap<AnalystClusterRequest> tasksById = new TIntObjectHashMap<>();
+    final Map<Integer, AnalystClusterRequest> tasksById = new ConcurrentHashMap<>();
 
     /*
      * Completion timeouts for tasks that have been delivered.
      * A task whose ID is in this map has been delivered, has not been reported completed,
      * and is not awaiting re-delivery.
      */
-    TIntLongMap invisibleUntil = new TIntLongHashMap();
+    final Map<Integer, Long> invisibleUntil = new ConcurrentHashMap<>();
 
     /* The IDs of all tasks that have been marked completed. */
-    TIntSet completedTasks = new TIntHashSet();
+    final Set<Integer> completedTasks = ConcurrentHashMap.newKeySet();
+
+    /* Whether this job is in the delivery rotation of its GraphQueue. */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /* Set when the job is deleted, its remaining tasks will not be delivered. */
+    volatile boolean deleted = false;
 
     public Job (String jobId) {
         this.jobId = jobId;
     }
 
-    /** Adds a task to this Job, assigning it a task ID number. */
+    /** Adds a task to this Job. The task must then be handed to the GraphQueue for the job's graph for delivery. */
     public void addTask (AnalystClusterRequest task) {
         tasksById.put(task.taskId, task);
-        tasksAwaitingDelivery.add(task);
     }
 
-    public void markTasksDelivered(List<AnalystClusterRequest> tasks) {
-        long deliveryTime = System.currentTimeMillis();
-        long visibleAt = deliveryTime + INVISIBLE_DURATION_SEC * 1000;
-        for (AnalystClusterRequest task : tasks) {
-            invisibleUntil.put(task.taskId, visibleAt);
-        }
+    /** Record that the given task was handed to a worker, which must report its completion before visibleAt. */
+    public void markTaskDelivered (AnalystClusterRequest task, long visibleAt) {
+        invisibleUntil.put(task.taskId, visibleAt);
     }
 
     /**
      * Find all tasks that are currently invisible but have passed their invisibility timeout without being marked
-     * completed, and make all these tasks visible again for delivery.
+     * completed. They are no longer considered delivered, and must be handed to the GraphQueue again.
      * TODO maybe this should only be triggered when the awaiting delivery queue is empty to reduce double-delivery.
+     * @return the tasks to re-deliver.
      */
-    public int redeliver () {
-        long now = System.currentTimeMillis();
-        TIntLongIterator invisibleIterator = invisibleUntil.iterator();
-        int nRedelivered = 0;
-        while (invisibleIterator.hasNext()) {
-            invisibleIterator.advance();
-            int taskId = invisibleIterator.key();
-            long timeout = invisibleIterator.value();
-            if (now > timeout) {
-                invisibleIterator.remove();
-                tasksAwaitingDelivery.add(tasksById.get(taskId));
+    public List<AnalystClusterRequest> redeliver (long now) {
+        List<AnalystClusterRequest> tasks = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : invisibleUntil.entrySet()) {
+            int taskId = entry.getKey();
+            // only remove the entry if the task was not completed or delivered again in the meantime
+            if (now > entry.getValue() && invisibleUntil.remove(taskId, entry.getValue())) {
+                tasks.add(tasksById.get(taskId));
                 LOG.warn("Task {} of job {} was not completed in time, queueing it for re-delivery.", taskId, jobId);
-                nRedelivered += 1;
             }
         }
-        return nRedelivered;
+        return tasks;
     }
 
-    public void markTaskCompleted (int taskId) {
+    /** @return whether the task was in flight, in which case it is now considered completed. */
+    public boolean markTaskCompleted (int taskId) {
         if (tasksById.get(taskId) == null) {
             LOG.error("Tried to mark task {} completed, but it was not in job {}.", taskId, jobId);
-            return;
+            return false;
         }
-        if (invisibleUntil.remove(taskId) != 0) {
+        if (invisibleUntil.remove(taskId) != null) {
             // If the taskId was found in the invisibleUntil map, the task was delivered and has not been slated for
             // re-delivery.
             completedTasks.add(taskId);
+            return true;
         } else {
             // If the taskId was not found in the invisibleUntil map, the task was never delivered, or timed out and was
             // slated for redelivery. We should ignore the completion message and let the re-delivery proceed to avoid
             // problems with redelivered tasks overwriting results in S3 after the job is considered finished.
-            // TODO verify that there are no race conditions here.
-            LOG.warn("Ignoring late task completion message, task {} was queued for re-delivery.");
+            LOG.warn("Ignoring late task completion message, task {} was queued for re-delivery.", taskId);
+            return false;
         }
     }
 
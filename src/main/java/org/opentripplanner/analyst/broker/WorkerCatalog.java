@@ -47,6 +47,10 @@ public class WorkerCatalog {
         });
     }
 
+    public synchronized boolean hasWorkers (String graphId) {
+        return !workersByGraph.get(graphId).isEmpty();
+    }
+
     public synchronized void updateTargetWorkerCounts (Multimap<String, String> activeJobsPerGraph) {
 
         final int activeWorkerCount = observationsByWorkerId.size(); // (plus outstanding instance requests)
@@ -77,7 +81,7 @@ public class WorkerCatalog {
         return null;
     }
 
-    public int size () {
+    public synchronized int size () {
         return workersByGraph.size();
     }
 
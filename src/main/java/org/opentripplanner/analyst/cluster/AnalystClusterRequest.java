@@ -52,6 +52,12 @@ public class AnalystClusterRequest implements Serializable {
 
 	/** Should times be included in the results (i.e. ResultSetWithTimes rather than ResultSet) */
 	public boolean includeTimes = false;
+
+	/**
+	 * Should the results be returned in the compact binary format of ResultEnvelopeFormat rather than as JSON.
+	 * Results saved on S3 are gzipped in either case.
+	 */
+	public boolean binaryResults = false;
 	
 	private AnalystClusterRequest(String destinationPointsetId, String graphId) {
 		this.destinationPointsetId = destinationPointsetId;
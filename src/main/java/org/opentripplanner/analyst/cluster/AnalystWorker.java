@@ -11,8 +11,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -23,6 +21,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
@@ -34,13 +33,14 @@ import org.opentripplanner.api.model.JodaLocalDateSerializer;
 import org.opentripplanner.api.model.QualifiedModeSetSerializer;
 import org.opentripplanner.api.model.TraverseModeSetSerializer;
 import org.opentripplanner.common.MavenVersion;
-import org.opentripplanner.profile.RaptorWorkerData;
+import org.opentripplanner.profile.RaptorWorkerDataCache;
 import org.opentripplanner.profile.RepeatedRaptorProfileRouter;
 import org.opentripplanner.routing.graph.Graph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -57,10 +57,6 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -87,6 +83,9 @@ public class AnalystWorker implements Runnable {
 
     public static final int POLL_TIMEOUT = 10 * 1000;
 
+    /** The most batch tasks a worker may ask the broker for in a single poll. */
+    public static final int MAX_TASKS_PER_POLL = 64;
+
     /**
      * If this value is non-negative, the worker will not actually do any work. It will just report all tasks
      * as completed immediately, but will fail to do so on the given percentage of tasks. This is used in testing task
@@ -113,10 +112,8 @@ public class AnalystWorker implements Runnable {
 
     static final HttpClient httpClient;
 
-    /** Cache RAPTOR data by Job ID */
-    private Cache<String, RaptorWorkerData> workerDataCache = CacheBuilder.newBuilder()
-            .maximumSize(200)
-            .build();
+    /** Cache RAPTOR data by graph, time window and scenario, weighted on memory use */
+    private RaptorWorkerDataCache workerDataCache;
 
     static {
         PoolingHttpClientConnectionManager mgr = new PoolingHttpClientConnectionManager();
@@ -153,11 +150,8 @@ public class AnalystWorker implements Runnable {
 
     long lastHighPriorityRequestProcessed = 0;
 
-    /**
-     * Queue for high-priority tasks. Should be plenty long enough to hold all that have come in -
-     * we don't need to block on polling the manager.
-     */
-    private ThreadPoolExecutor highPriorityExecutor, batchExecutor;
+    /** Runs both high-priority and batch tasks, and sizes the requests for batch tasks. */
+    private WorkerTaskScheduler scheduler;
 
     public AnalystWorker(Properties config) {
         // print out date on startup so that CloudWatch logs has a unique fingerprint
@@ -188,6 +182,9 @@ public class AnalystWorker implements Runnable {
         // graph this machine was intended to analyze.
         this.graphId = config.getProperty("initial-graph-id");
 
+        String workerDataCacheMb = config.getProperty("worker-data-cache-mb");
+        this.workerDataCache = new RaptorWorkerDataCache(workerDataCacheMb == null ? 1024 : Long.parseLong(workerDataCacheMb));
+
         this.pointSetDatastore = new PointSetDatastore(10, null, false, config.getProperty("pointsets-bucket"));
         this.clusterGraphBuilder = new ClusterGraphBuilder(config.getProperty("graphs-bucket"));
 
@@ -234,12 +231,9 @@ public class AnalystWorker implements Runnable {
      */
     @Override
     public void run() {
-        // create executors with up to one thread per processor
+        // one thread per processor, shared by high-priority and batch tasks
         int nP = Runtime.getRuntime().availableProcessors();
-        highPriorityExecutor = new ThreadPoolExecutor(1, nP, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(255));
-        highPriorityExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
-        batchExecutor = new ThreadPoolExecutor(1, nP, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(nP * 2));
-        batchExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        scheduler = new WorkerTaskScheduler(nP, this::handleOneRequest);
 
         // Build a graph on startup, iff a graph ID was provided.
         if (graphId != null) {
@@ -270,42 +264,36 @@ public class AnalystWorker implements Runnable {
                 }
                 nextShutdownCheckTime += 60 * 60 * 1000;
             }
-            LOG.info("Long-polling for work ({} second timeout).", POLL_TIMEOUT / 1000.0);
+            // Wait until some of the tasks already received are started, rather than rejecting tasks.
+            int maxTasks;
+            try {
+                maxTasks = Math.min(scheduler.awaitBatchCapacity(), MAX_TASKS_PER_POLL);
+            } catch (InterruptedException e) {
+                LOG.info("Interrupted while waiting for batch capacity, stopping.");
+                return;
+            }
+            LOG.info("Long-polling for up to {} tasks ({} second timeout).", maxTasks, POLL_TIMEOUT / 1000.0);
             // Long-poll (wait a few seconds for messages to become available)
-            List<AnalystClusterRequest> tasks = getSomeWork(WorkType.BATCH);
+            long fetchStart = System.currentTimeMillis();
+            List<AnalystClusterRequest> tasks = getSomeWork(WorkType.BATCH, maxTasks);
             if (tasks == null) {
                 LOG.info("Didn't get any work. Retrying.");
                 idle = true;
                 continue;
             }
+            if (tasks.size() >= maxTasks) {
+                // the broker had all the tasks we asked for, so this measures the latency of fetching tasks
+                scheduler.recordFetch(System.currentTimeMillis() - fetchStart);
+            }
 
-            // run through high-priority tasks first to ensure they are enqueued even if the batch
-            // queue blocks.
-            tasks.stream().filter(t -> t.outputLocation == null)
-                    .forEach(t -> highPriorityExecutor.execute(() -> {
-                        LOG.warn(
-                                "Handling single point request via normal channel, side channel should open shortly.");
-                        this.handleOneRequest(t);
-                    }));
-
-            logQueueStatus();
-
-            // enqueue low-priority tasks; note that this may block anywhere in the process
-            tasks.stream().filter(t -> t.outputLocation != null)
-                .forEach(t -> {
-                    // attempt to enqueue, waiting if the queue is full
-                    while (true) {
-                        try {
-                            batchExecutor.execute(() -> this.handleOneRequest(t));
-                            break;
-                        } catch (RejectedExecutionException e) {
-                            // queue is full, wait 200ms and try again
-                            try {
-                                Thread.sleep(200);
-                            } catch (InterruptedException e1) { /* nothing */}
-                        }
-                    }
-                });
+            for (AnalystClusterRequest task : tasks) {
+                if (task.outputLocation == null) {
+                    LOG.warn("Handling single point request via normal channel, side channel should open shortly.");
+                    scheduler.submitPriority(task);
+                } else {
+                    scheduler.submitBatch(task);
+                }
+            }
 
             logQueueStatus();
 
@@ -390,17 +378,18 @@ public class AnalystWorker implements Runnable {
                     new RepeatedRaptorProfileRouter(graph, clusterRequest.profileRequest, sampleSet);
             router.ts = ts;
 
-            // Produce RAPTOR data tables, going through a cache where relevant.
-            // This is only used for multi-point requests. Single-point requests are assumed to be continually
-            // changing, so we create throw-away RAPTOR tables for them.
-            // Ideally we'd want this cacheing to happen transparently inside the RepeatedRaptorProfileRouter,
-            // but the RepeatedRaptorProfileRouter doesn't know the job ID or other information from the cluster request.
-            // It would be possible to just supply the cache _key_ as a way of saying that the cache should be used.
-            // But then we'd need to pass in both the cache and the key, which is weird.
-            if (transit && !singlePoint) {
+            // Produce RAPTOR data tables, going through a cache.
+            // The scenarios of single-point requests are assumed to be continually changing, so we create throw-away
+            // RAPTOR tables for them, but derive them from the cached tables of the baseline.
+            if (transit) {
                 long dataStart = System.currentTimeMillis();
-                router.raptorWorkerData = workerDataCache.get(clusterRequest.jobId, () -> RepeatedRaptorProfileRouter
-                        .getRaptorWorkerData(clusterRequest.profileRequest, graph, sampleSet, ts));
+                if (singlePoint) {
+                    router.raptorWorkerData = workerDataCache.derive(clusterRequest.graphId,
+                            clusterRequest.profileRequest, graph, sampleSet, ts);
+                } else {
+                    router.raptorWorkerData = workerDataCache.get(clusterRequest.graphId,
+                            clusterRequest.profileRequest, graph, sampleSet, ts);
+                }
                 ts.raptorData = (int) (System.currentTimeMillis() - dataStart);
             } else {
                 // The worker will generate a one-time throw-away table.
@@ -413,6 +402,8 @@ public class AnalystWorker implements Runnable {
             try {
                 // TODO when router runs, if there are no transit modes defined it should just skip the transit work.
                 router.includeTimes = clusterRequest.includeTimes;
+                // Single point requests are interactive, let each of them use all the cores rather than one.
+                router.parallelDraws = singlePoint;
                 envelope = router.route();
                 envelope.id = clusterRequest.id;
                 ts.success = true;
@@ -429,19 +420,25 @@ public class AnalystWorker implements Runnable {
             envelope.jobId = clusterRequest.jobId;
             envelope.destinationPointsetId = clusterRequest.destinationPointsetId;
             if (clusterRequest.outputLocation != null) {
-                // Convert the result envelope and its contents to JSON and gzip it in this thread.
+                // Convert the result envelope and its contents to JSON or binary and gzip it in this thread.
                 // Transfer the results to Amazon S3 in another thread, piping between the two.
-                String s3key = String.join("/", clusterRequest.jobId, clusterRequest.id + ".json.gz");
+                String extension = clusterRequest.binaryResults ? ResultEnvelopeFormat.FILE_EXTENSION : ".json.gz";
+                String s3key = String.join("/", clusterRequest.jobId, clusterRequest.id + extension);
                 PipedInputStream inPipe = new PipedInputStream();
                 PipedOutputStream outPipe = new PipedOutputStream(inPipe);
                 new Thread(() -> {
                     s3.putObject(clusterRequest.outputLocation, s3key, inPipe, null);
                 }).start();
-                OutputStream gzipOutputStream = new GZIPOutputStream(outPipe);
-                // We could do the writeValue() in a thread instead, in which case both the DELETE and S3 options
-                // could consume it in the same way.
-                objectMapper.writeValue(gzipOutputStream, envelope);
-                gzipOutputStream.close();
+                if (clusterRequest.binaryResults) {
+                    ResultEnvelopeFormat.write(envelope, outPipe, true);
+                    outPipe.close();
+                } else {
+                    OutputStream gzipOutputStream = new GZIPOutputStream(outPipe);
+                    // We could do the writeValue() in a thread instead, in which case both the DELETE and S3 options
+                    // could consume it in the same way.
+                    objectMapper.writeValue(gzipOutputStream, envelope);
+                    gzipOutputStream.close();
+                }
                 // Tell the broker the task has been handled and should not be re-delivered to another worker.
                 deleteRequest(clusterRequest);
             } else {
@@ -475,8 +472,7 @@ public class AnalystWorker implements Runnable {
                     List<AnalystClusterRequest> tasks = getSomeWork(WorkType.HIGH_PRIORITY);
 
                     if (tasks != null)
-                        tasks.stream().forEach(t -> highPriorityExecutor.execute(
-                                () -> this.handleOneRequest(t)));
+                        tasks.forEach(scheduler::submitPriority);
 
                     logQueueStatus();
                 } catch (Exception e) {
@@ -488,6 +484,14 @@ public class AnalystWorker implements Runnable {
     }
 
     public List<AnalystClusterRequest> getSomeWork(WorkType type) {
+        return getSomeWork(type, 0);
+    }
+
+    /**
+     * Long-poll the broker for tasks.
+     * @param maxTasks the most batch tasks to receive at once, or 0 to let the broker decide.
+     */
+    public List<AnalystClusterRequest> getSomeWork(WorkType type, int maxTasks) {
 
         // Run a POST request (long-polling for work) indicating which graph this worker prefers to work on
         String url;
@@ -496,6 +500,7 @@ public class AnalystWorker implements Runnable {
             url = BROKER_BASE_URL + "/single/" + graphId;
         } else {
             url = BROKER_BASE_URL + "/dequeue/" + graphId;
+            if (maxTasks > 0) url += "?maxTasks=" + maxTasks;
         }
         HttpPost httpPost = new HttpPost(url);
         httpPost.setHeader(new BasicHeader(WORKER_ID_HEADER, machineId));
@@ -538,8 +543,15 @@ public class AnalystWorker implements Runnable {
         try {
             // TODO reveal any errors etc. that occurred on the worker.
             // Really this should probably be done with an InputStreamEntity and a JSON writer thread.
-            byte[] serializedResult = objectMapper.writeValueAsBytes(result);
-            httpPost.setEntity(new ByteArrayEntity(serializedResult));
+            if (clusterRequest.binaryResults && result instanceof ResultEnvelope) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ResultEnvelopeFormat.write((ResultEnvelope) result, out, false);
+                httpPost.setEntity(new ByteArrayEntity(out.toByteArray(),
+                        ContentType.create(ResultEnvelopeFormat.CONTENT_TYPE)));
+            } else {
+                byte[] serializedResult = objectMapper.writeValueAsBytes(result);
+                httpPost.setEntity(new ByteArrayEntity(serializedResult, ContentType.APPLICATION_JSON));
+            }
             HttpResponse response = httpClient.execute(httpPost);
             // Signal the http client library that we're done with this response object, allowing connection reuse.
             EntityUtils.consumeQuietly(response.getEntity());
@@ -605,7 +617,7 @@ public class AnalystWorker implements Runnable {
 
     /** log queue status */
     private void logQueueStatus() {
-        LOG.info("Waiting tasks: high priority: {}, batch: {}", highPriorityExecutor.getQueue().size(), batchExecutor.getQueue().size());
+        LOG.info("Tasks: {}", scheduler.getStatus());
     }
 
     /**
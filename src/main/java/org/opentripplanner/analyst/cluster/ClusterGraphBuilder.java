@@ -18,6 +18,8 @@ import java.util.zip.ZipInputStream;
 
 /**
  * Builds and caches graphs as well as the inputs they are built from for use in Analyst Cluster workers.
+ * Built graphs are kept in memory and serialized locally and on S3 by a ClusterGraphCache, so that they are only
+ * built once.
  */
 public class ClusterGraphBuilder {
 
@@ -27,29 +29,38 @@ public class ClusterGraphBuilder {
 
     private static final String GRAPH_CACHE_DIR = "graph_cache";
 
-    private final String graphBucket;
+    /** Workers usually stick to a single graph, keep one more to avoid thrashing when switching back and forth. */
+    private static final int DEFAULT_MAX_GRAPHS = 2;
+
+    /** Don't use more than 60% of the heap to cache graphs. */
+    private static final double MAX_MEMORY_FRACTION = 0.6;
 
-    String currGraphId = null;
+    private final String graphBucket;
 
-    Graph currGraph = null;
+    private final ClusterGraphCache graphCache;
 
     public ClusterGraphBuilder (String graphBucket) {
+        this(graphBucket, DEFAULT_MAX_GRAPHS);
+    }
+
+    public ClusterGraphBuilder (String graphBucket, int maxGraphs) {
         this.graphBucket = graphBucket;
+        this.graphCache = new ClusterGraphCache(new File(GRAPH_CACHE_DIR), s3, graphBucket, maxGraphs,
+                MAX_MEMORY_FRACTION);
     }
 
     /**
      * Return the graph for the given unique identifier for graph builder inputs on S3.
-     * If this is the same as the last graph built, just return the pre-built graph.
+     * If this graph is cached in memory or has already been serialized, locally or on S3, just return or load it.
      * If not, build the graph from the inputs, fetching them from S3 to the local cache as needed.
      */
     public synchronized Graph getGraph(String graphId) {
-
         LOG.info("Finding a graph for ID {}", graphId);
+        return graphCache.getGraph(graphId, () -> buildGraph(graphId));
+    }
 
-        if (graphId.equals(currGraphId)) {
-            LOG.info("GraphID has not changed. Reusing the last graph that was built.");
-            return currGraph;
-        }
+    /** Build the graph for the given ID from its inputs, fetching them from S3 to the local cache as needed. */
+    private Graph buildGraph(String graphId) {
 
         // The location of the inputs that will be used to build this graph
         File graphDataDirectory = new File(GRAPH_CACHE_DIR, graphId);
@@ -93,8 +104,6 @@ public class ClusterGraphBuilder {
         graph.routerId = graphId;
         graph.index(new DefaultStreetVertexIndexFactory());
         graph.index.clusterStopsAsNeeded();
-        this.currGraphId = graphId;
-        this.currGraph = graph;
         return graph;
 
     }
@@ -0,0 +1,230 @@
+package org.opentripplanner.analyst.cluster;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+import org.opentripplanner.common.MavenVersion;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the graphs used by Analyst Cluster workers in memory, and their serialized form on the local disk and on S3.
+ *
+ * Building a graph from its inputs is by far the largest part of the start-up time of a worker. Once a graph has been
+ * built it is serialized in the binary graph format next to its inputs and uploaded to the graph bucket, so the next
+ * worker asking for the same graph loads it instead. Serialized graphs are named after the OTP commit that built them,
+ * as graphs can only be loaded by the version of OTP that wrote them.
+ *
+ * In memory, at most maxGraphs graphs are kept, and the least recently used graphs are evicted as long as the
+ * estimated retained size of all the graphs is above a fraction of the maximum heap size. The graph most recently
+ * requested is never evicted.
+ */
+public class ClusterGraphCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterGraphCache.class);
+
+    /** Rough retained sizes of graph components, in bytes, including their share of the indexes. */
+    private static final long VERTEX_BYTES = 400;
+    private static final long EDGE_BYTES = 250;
+    private static final long TRIP_BYTES = 200;
+    private static final long STOP_TIME_BYTES = 16;
+
+    private final File cacheDir;
+
+    /** The client used to fetch and store serialized graphs, null when working offline. */
+    private final AmazonS3Client s3;
+
+    private final String graphBucket;
+
+    private final int maxGraphs;
+
+    private final double maxMemoryFraction;
+
+    /** The graphs in memory and their estimated retained sizes, in access order. */
+    private final LinkedHashMap<String, CachedGraph> graphs = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ClusterGraphCache (File cacheDir, AmazonS3Client s3, String graphBucket, int maxGraphs,
+                              double maxMemoryFraction) {
+        this.cacheDir = cacheDir;
+        this.s3 = s3;
+        this.graphBucket = graphBucket;
+        this.maxGraphs = maxGraphs;
+        this.maxMemoryFraction = maxMemoryFraction;
+    }
+
+    /**
+     * Return the graph with the given ID, from memory, from a serialized graph on the local disk or on S3, or built
+     * by the given builder as a last resort. A graph built here is serialized for later use.
+     */
+    public synchronized Graph getGraph (String graphId, Supplier<Graph> builder) {
+        CachedGraph cached = graphs.get(graphId);
+        if (cached != null) {
+            LOG.info("Graph {} is cached in memory.", graphId);
+            return cached.graph;
+        }
+
+        File graphFile = getSerializedGraphFile(graphId);
+        File stopTreeFile = new File(cacheDir, graphFile.getName() + ".stc");
+        Graph graph = null;
+        if (graphFile.exists()) {
+            graph = load(graphFile);
+        } else if (download(graphFile)) {
+            // a stop tree cache left next to a previous copy of this graph does not match the downloaded one
+            stopTreeFile.delete();
+            graph = load(graphFile);
+        }
+
+        if (graph == null) {
+            long buildStart = System.currentTimeMillis();
+            graph = builder.get();
+            LOG.info("Built graph {} in {} s.", graphId, (System.currentTimeMillis() - buildStart) / 1000);
+            // a stop tree cache left by a previous build does not match this graph
+            stopTreeFile.delete();
+            save(graph, graphFile);
+            graph.setSerializedFile(graphFile);
+        } else {
+            graph.index.clusterStopsAsNeeded();
+        }
+        graph.routerId = graphId;
+        // the stop tree cache is only valid for the serialized graph, it is built and saved on first use
+        if (graphFile.exists()) {
+            graph.index.setStopTreeCacheFile(stopTreeFile);
+        }
+
+        graphs.put(graphId, new CachedGraph(graph, estimateRetainedBytes(graph)));
+        evict();
+        return graph;
+    }
+
+    /** @return the IDs of the graphs currently held in memory. */
+    public synchronized Collection<String> getGraphIds () {
+        return new ArrayList<>(graphs.keySet());
+    }
+
+    public synchronized void evictAll () {
+        graphs.clear();
+    }
+
+    /** Evict least recently used graphs until both the number and the estimated size of the graphs are in bounds. */
+    private void evict () {
+        long maxBytes = (long) (Runtime.getRuntime().maxMemory() * maxMemoryFraction);
+        long totalBytes = 0;
+        for (CachedGraph cached : graphs.values()) totalBytes += cached.retainedBytes;
+
+        Iterator<Map.Entry<String, CachedGraph>> it = graphs.entrySet().iterator();
+        while (graphs.size() > 1 && (graphs.size() > maxGraphs || totalBytes > maxBytes)) {
+            Map.Entry<String, CachedGraph> eldest = it.next();
+            LOG.info("Evicting graph {} (about {} MB) from memory.", eldest.getKey(),
+                    eldest.getValue().retainedBytes / 1024 / 1024);
+            totalBytes -= eldest.getValue().retainedBytes;
+            it.remove();
+        }
+    }
+
+    /** @return a rough estimate of the heap space used by the given graph, in bytes. */
+    public static long estimateRetainedBytes (Graph graph) {
+        long bytes = graph.countVertices() * VERTEX_BYTES + graph.countEdges() * EDGE_BYTES;
+        if (graph.index != null) {
+            for (TripPattern pattern : graph.index.patternForId.values()) {
+                int nTrips = pattern.scheduledTimetable.tripTimes.size();
+                bytes += nTrips * (TRIP_BYTES + pattern.getStops().size() * STOP_TIME_BYTES);
+            }
+        }
+        return bytes;
+    }
+
+    /** The serialized graph for the given ID, valid only for this version of OTP. */
+    private File getSerializedGraphFile (String graphId) {
+        return new File(cacheDir, String.format("%s-%s.graph", graphId, MavenVersion.VERSION.commit));
+    }
+
+    /** Fetch a serialized graph from S3. @return true if it was found. */
+    private boolean download (File graphFile) {
+        if (s3 == null) return false;
+        S3Object graphObject;
+        try {
+            graphObject = s3.getObject(graphBucket, graphFile.getName());
+        } catch (AmazonClientException e) {
+            // usually, this graph has never been built by this version of OTP, but S3 may also be unreachable
+            LOG.info("Could not fetch serialized graph {} from S3: {}", graphFile.getName(), e.getMessage());
+            return false;
+        }
+        LOG.info("Downloading serialized graph {}.", graphFile.getName());
+        cacheDir.mkdirs();
+        File tempFile = new File(cacheDir, graphFile.getName() + ".tmp");
+        try (InputStream is = graphObject.getObjectContent()) {
+            Files.copy(is, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return tempFile.renameTo(graphFile);
+        } catch (Exception e) {
+            LOG.warn("Error downloading serialized graph {}", graphFile.getName(), e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /** @return the serialized graph, or null if it cannot be read, in which case it is deleted. */
+    private Graph load (File graphFile) {
+        try {
+            long loadStart = System.currentTimeMillis();
+            Graph graph = Graph.load(graphFile, Graph.LoadLevel.FULL, new DefaultStreetVertexIndexFactory(),
+                    Graph.MemoryMode.HEAP);
+            LOG.info("Loaded serialized graph {} in {} s.", graphFile.getName(),
+                    (System.currentTimeMillis() - loadStart) / 1000);
+            return graph;
+        } catch (Exception e) {
+            LOG.warn("Could not load serialized graph {}, rebuilding it.", graphFile.getName(), e);
+            graphFile.delete();
+            return null;
+        }
+    }
+
+    /** Save the graph locally, then upload it to S3. Failures only mean the next worker will build the graph again. */
+    private void save (Graph graph, File graphFile) {
+        File tempFile = new File(cacheDir, graphFile.getName() + ".tmp");
+        try {
+            cacheDir.mkdirs();
+            graph.save(tempFile, Graph.SerializationFormat.BINARY);
+            if (!tempFile.renameTo(graphFile)) {
+                LOG.warn("Could not move serialized graph to {}", graphFile);
+                return;
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not serialize graph to {}", graphFile, e);
+            tempFile.delete();
+            return;
+        }
+        if (s3 != null) {
+            try {
+                s3.putObject(graphBucket, graphFile.getName(), graphFile);
+                LOG.info("Uploaded serialized graph {}.", graphFile.getName());
+            } catch (Exception e) {
+                LOG.warn("Could not upload serialized graph {}", graphFile.getName(), e);
+            }
+        }
+    }
+
+    private static class CachedGraph {
+        final Graph graph;
+        final long retainedBytes;
+
+        CachedGraph (Graph graph, long retainedBytes) {
+            this.graph = graph;
+            this.retainedBytes = retainedBytes;
+        }
+    }
+
+}
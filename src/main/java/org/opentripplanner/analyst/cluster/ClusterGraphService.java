@@ -40,7 +40,16 @@ public class ClusterGraphService extends GraphService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(GraphService.class);
 
-	// don't use more than 60% of free memory to cache graphs
+	/** The number of graphs kept in memory by default. */
+	private static final int DEFAULT_MAX_GRAPHS = 4;
+
+	// don't use more than 60% of the heap to cache graphs
+	private static final double MAX_MEMORY_FRACTION = 0.6;
+
+	/** Built graphs, kept in memory and serialized beside their inputs (and on S3 when online). */
+	private ClusterGraphCache graphCache;
+
+	/** The routers wrapping the graphs held by the graph cache. */
 	private Map<String,Router> graphMap = Maps.newConcurrentMap();
 	
 	@Override
@@ -48,47 +57,53 @@ public class ClusterGraphService extends GraphService {
 		
 		GRAPH_DIR.mkdirs();
 		
-		if(!graphMap.containsKey(graphId)) {
-			
-			try {
-				if (!bucketCached(graphId)) {
-					if(!workOffline) {
-						downloadGraphSourceFiles(graphId, GRAPH_DIR);
-					}
+		Graph g = graphCache.getGraph(graphId, () -> buildGraph(graphId));
+		
+		// forget the routers of the graphs evicted from the cache
+		graphMap.keySet().retainAll(graphCache.getGraphIds());
+		
+		Router r = graphMap.get(graphId);
+		if (r == null || r.graph != g) {
+			r = new Router(graphId, g);
+			graphMap.put(graphId, r);
+		}
+		return r;
+	}
+
+	/** Build a graph from its inputs, fetching them from S3 as needed. */
+	private Graph buildGraph(String graphId) {
+		try {
+			if (!bucketCached(graphId)) {
+				if(!workOffline) {
+					downloadGraphSourceFiles(graphId, GRAPH_DIR);
 				}
-			} catch (IOException e) {
-				LOG.error("exception finding graph {}", graphId, e);
 			}
-			
-			CommandLineParameters params = new CommandLineParameters();
-			params.build = new File(GRAPH_DIR, graphId);
-			params.inMemory = true;
-			GraphBuilder gbt = GraphBuilder.forDirectory(params, params.build);
-			gbt.run();
-			
-			Graph g = gbt.getGraph();
-			
-			g.routerId = graphId;
-			
-			g.index(new DefaultStreetVertexIndexFactory());
-
-			g.index.clusterStopsAsNeeded();
-			
-			Router r = new Router(graphId, g);
-			
-			// temporarily disable graph caching so we don't run out of RAM.
-			// Long-term we will use an actual cache for this.
-			//graphMap.put(graphId,r);
-			
-			return r;
-					
-		}
-		else {
-			return graphMap.get(graphId);
+		} catch (IOException e) {
+			LOG.error("exception finding graph {}", graphId, e);
 		}
+		
+		CommandLineParameters params = new CommandLineParameters();
+		params.build = new File(GRAPH_DIR, graphId);
+		params.inMemory = true;
+		GraphBuilder gbt = GraphBuilder.forDirectory(params, params.build);
+		gbt.run();
+		
+		Graph g = gbt.getGraph();
+		
+		g.routerId = graphId;
+		
+		g.index(new DefaultStreetVertexIndexFactory());
+
+		g.index.clusterStopsAsNeeded();
+		
+		return g;
 	}
 
 	public ClusterGraphService(String s3CredentialsFilename, Boolean workOffline, String bucket) {
+		this(s3CredentialsFilename, workOffline, bucket, DEFAULT_MAX_GRAPHS);
+	}
+
+	public ClusterGraphService(String s3CredentialsFilename, Boolean workOffline, String bucket, int maxGraphs) {
 		
 		if(!workOffline) {
 			if (s3CredentialsFilename != null) {
@@ -105,6 +120,10 @@ public class ClusterGraphService extends GraphService {
 		}
 		
 		this.workOffline = workOffline;
+		
+		// serialized graphs are only shared through S3 when online
+		this.graphCache = new ClusterGraphCache(GRAPH_DIR, workOffline ? null : s3, graphBucket, maxGraphs,
+				MAX_MEMORY_FRACTION);
 	}
 	
 	// adds either a zip file or graph directory to S3, or local cache for offline use
@@ -307,8 +326,10 @@ public class ClusterGraphService extends GraphService {
 
 	@Override
 	public int evictAll() {
+		int n = graphMap.size();
+		graphCache.evictAll();
 		graphMap.clear();
-		return 0;
+		return n;
 	}
 
 	@Override
@@ -0,0 +1,209 @@
+package org.opentripplanner.analyst.cluster;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.opentripplanner.analyst.Histogram;
+import org.opentripplanner.analyst.ResultSet;
+import org.opentripplanner.analyst.core.IsochroneData;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact binary encoding of ResultEnvelopes, an alternative to JSON for workers returning results to the broker
+ * or saving them on S3. It is used when the binaryResults flag of the AnalystClusterRequest is set.
+ *
+ * Everything is written as protobuf variable-length integers. Travel times to the destinations and histogram bins are
+ * written as zigzag-encoded differences from the previous value: neighboring destinations have similar travel times,
+ * so most values fit in one or two bytes instead of the ten or so characters of a JSON number. Unreached destinations
+ * are stored as zero and reached ones as their time plus one, so that unreached points do not produce huge deltas.
+ * Isochrone geometries are stored as WKB.
+ *
+ * The stream starts with a magic number and a format version, and may be gzipped as a whole; the reader recognizes
+ * both plain and gzipped streams.
+ */
+public class ResultEnvelopeFormat {
+
+    /** "OTPR", little endian. */
+    public static final int MAGIC = 0x5250544F;
+
+    public static final int FORMAT_VERSION = 1;
+
+    /** The content type of binary result envelopes returned through the broker. */
+    public static final String CONTENT_TYPE = "application/x-otp-result-envelope";
+
+    /** The extension of gzipped binary result envelopes saved on S3. */
+    public static final String FILE_EXTENSION = ".dat.gz";
+
+    /** Travel times are in seconds and never negative, except for unreached destinations. */
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private ResultEnvelopeFormat () { }
+
+    /** Write the given envelope to the given stream, optionally gzipping it. The stream is not closed. */
+    public static void write (ResultEnvelope envelope, OutputStream out, boolean gzip) throws IOException {
+        GZIPOutputStream gzipOut = gzip ? new GZIPOutputStream(out) : null;
+        CodedOutputStream cos = CodedOutputStream.newInstance(gzip ? gzipOut : out);
+        cos.writeFixed32NoTag(MAGIC);
+        cos.writeUInt32NoTag(FORMAT_VERSION);
+        cos.writeBoolNoTag(envelope.profile);
+        writeString(cos, envelope.jobId);
+        writeString(cos, envelope.id);
+        writeString(cos, envelope.destinationPointsetId);
+        for (ResultEnvelope.Which which : ResultEnvelope.Which.values()) {
+            ResultSet resultSet = envelope.get(which);
+            cos.writeBoolNoTag(resultSet != null);
+            if (resultSet != null) writeResultSet(cos, resultSet);
+        }
+        cos.flush();
+        if (gzip) gzipOut.finish();
+    }
+
+    /** Read an envelope written by write(), whether it was gzipped or not. */
+    public static ResultEnvelope read (InputStream in) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in);
+        bis.mark(2);
+        int first = bis.read();
+        int second = bis.read();
+        bis.reset();
+        boolean gzip = first == (GZIPInputStream.GZIP_MAGIC & 0xFF) && second == (GZIPInputStream.GZIP_MAGIC >> 8);
+        CodedInputStream cis = CodedInputStream.newInstance(gzip ? new GZIPInputStream(bis) : bis);
+        // result sets with times for millions of destinations are larger than the default 64MB limit
+        cis.setSizeLimit(Integer.MAX_VALUE);
+
+        if (cis.readFixed32() != MAGIC) {
+            throw new IOException("Not a binary result envelope.");
+        }
+        int version = cis.readUInt32();
+        if (version != FORMAT_VERSION) {
+            throw new IOException(String.format("Unsupported result envelope format version %d.", version));
+        }
+        ResultEnvelope envelope = new ResultEnvelope();
+        envelope.profile = cis.readBool();
+        envelope.jobId = readString(cis);
+        envelope.id = readString(cis);
+        envelope.destinationPointsetId = readString(cis);
+        for (ResultEnvelope.Which which : ResultEnvelope.Which.values()) {
+            if (cis.readBool()) envelope.put(which, readResultSet(cis));
+        }
+        return envelope;
+    }
+
+    private static void writeResultSet (CodedOutputStream cos, ResultSet resultSet) throws IOException {
+        writeString(cos, resultSet.id);
+
+        cos.writeUInt32NoTag(resultSet.histograms.size());
+        for (Map.Entry<String, Histogram> entry : resultSet.histograms.entrySet()) {
+            writeString(cos, entry.getKey());
+            writeDeltas(cos, entry.getValue().counts);
+            writeDeltas(cos, entry.getValue().sums);
+        }
+
+        int[] times = resultSet.times;
+        cos.writeBoolNoTag(times != null);
+        if (times != null) {
+            cos.writeUInt32NoTag(times.length);
+            int previous = 0;
+            for (int time : times) {
+                if (time < 0) throw new IllegalArgumentException("Negative travel time " + time);
+                int value = time == UNREACHED ? 0 : time + 1;
+                cos.writeSInt32NoTag(value - previous);
+                previous = value;
+            }
+        }
+
+        IsochroneData[] isochrones = resultSet.isochrones;
+        cos.writeBoolNoTag(isochrones != null);
+        if (isochrones != null) {
+            WKBWriter wkbWriter = new WKBWriter();
+            cos.writeUInt32NoTag(isochrones.length);
+            for (IsochroneData isochrone : isochrones) {
+                cos.writeUInt32NoTag(isochrone.cutoffSec);
+                cos.writeByteArrayNoTag(wkbWriter.write(isochrone.geometry));
+            }
+        }
+    }
+
+    private static ResultSet readResultSet (CodedInputStream cis) throws IOException {
+        ResultSet resultSet = new ResultSet();
+        resultSet.id = readString(cis);
+
+        int nHistograms = cis.readUInt32();
+        for (int i = 0; i < nHistograms; i++) {
+            String key = readString(cis);
+            Histogram histogram = new Histogram();
+            histogram.counts = readDeltas(cis);
+            histogram.sums = readDeltas(cis);
+            resultSet.histograms.put(key, histogram);
+        }
+
+        if (cis.readBool()) {
+            int[] times = new int[cis.readUInt32()];
+            int previous = 0;
+            for (int i = 0; i < times.length; i++) {
+                previous += cis.readSInt32();
+                times[i] = previous == 0 ? UNREACHED : previous - 1;
+            }
+            resultSet.times = times;
+        }
+
+        if (cis.readBool()) {
+            WKBReader wkbReader = new WKBReader();
+            IsochroneData[] isochrones = new IsochroneData[cis.readUInt32()];
+            for (int i = 0; i < isochrones.length; i++) {
+                int cutoffSec = cis.readUInt32();
+                Geometry geometry;
+                try {
+                    geometry = wkbReader.read(cis.readByteArray());
+                } catch (ParseException e) {
+                    throw new IOException("Invalid isochrone geometry.", e);
+                }
+                isochrones[i] = new IsochroneData(cutoffSec, geometry);
+            }
+            resultSet.isochrones = isochrones;
+        }
+        return resultSet;
+    }
+
+    /** Write a nullable array of values as zigzag-encoded differences from the previous value. */
+    private static void writeDeltas (CodedOutputStream cos, int[] values) throws IOException {
+        cos.writeBoolNoTag(values != null);
+        if (values == null) return;
+        cos.writeUInt32NoTag(values.length);
+        int previous = 0;
+        for (int value : values) {
+            cos.writeSInt32NoTag(value - previous);
+            previous = value;
+        }
+    }
+
+    private static int[] readDeltas (CodedInputStream cis) throws IOException {
+        if (!cis.readBool()) return null;
+        int[] values = new int[cis.readUInt32()];
+        int previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            previous += cis.readSInt32();
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    private static void writeString (CodedOutputStream cos, String string) throws IOException {
+        cos.writeBoolNoTag(string != null);
+        if (string != null) cos.writeStringNoTag(string);
+    }
+
+    private static String readString (CodedInputStream cis) throws IOException {
+        return cis.readBool() ? cis.readString() : null;
+    }
+
+}
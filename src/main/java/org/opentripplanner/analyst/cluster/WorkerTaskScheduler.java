@@ -0,0 +1,204 @@
+package org.opentripplanner.analyst.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the tasks received by an AnalystWorker on one thread per core, and decides how many batch tasks to request
+ * from the broker.
+ *
+ * All threads serve both single point and batch tasks from shared queues in which single point tasks overtake batch
+ * tasks, so interactive requests use every core as soon as one is free, and batch work fills the cores otherwise.
+ * Tasks take seconds each, so shared queues balance the load as well as per-thread work stealing deques would.
+ *
+ * A single point task never waits for a batch task to finish: when no thread is idle it is started at once on an
+ * extra thread, and no new batch task is started until the number of running tasks is back to one per core.
+ *
+ * Batch tasks are prefetched: the worker asks for enough tasks to keep every core busy while the next request to the
+ * broker is in flight, estimated from the measured compute time per task and the measured time to fetch tasks.
+ * Instead of being rejected when the local buffer is full, the fetching thread waits for a task to finish.
+ */
+public class WorkerTaskScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerTaskScheduler.class);
+
+    /** Weight of the latest measurement in the moving averages of task and fetch durations. */
+    private static final double SMOOTHING = 0.2;
+
+    /** Never buffer more than this many batch tasks per thread, however slow fetching tasks seems to be. */
+    private static final int MAX_BUFFER_PER_THREAD = 4;
+
+    private final int nThreads;
+
+    private final Consumer<AnalystClusterRequest> handler;
+
+    /* Tasks waiting for a thread, guarded by this scheduler's monitor like the counts below. */
+    private final Queue<AnalystClusterRequest> priorityQueue = new ArrayDeque<>();
+    private final Queue<AnalystClusterRequest> batchQueue = new ArrayDeque<>();
+
+    /** Runs the single point tasks that arrive while every thread is busy, with at most one extra thread per core. */
+    private final ThreadPoolExecutor overflowExecutor;
+
+    /*
+     * Counts guarded by this scheduler's monitor, on which the task threads wait for tasks and the fetching thread
+     * waits for batch capacity.
+     */
+    private int nRunningBatch = 0;
+    private int nRunningPriority = 0;
+    private int nIdleThreads = 0;
+
+    /* Moving averages of the time to compute one batch task and the time to fetch a batch of tasks, NaN if unknown. */
+    private volatile double meanTaskMillis = Double.NaN;
+    private volatile double meanFetchMillis = Double.NaN;
+
+    public WorkerTaskScheduler (int nThreads, Consumer<AnalystClusterRequest> handler) {
+        this.nThreads = nThreads;
+        this.handler = handler;
+        AtomicInteger overflowThreads = new AtomicInteger();
+        overflowExecutor = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "analyst-priority-task-" + overflowThreads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        overflowExecutor.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < nThreads; i++) {
+            Thread thread = new Thread(this::runTasks, "analyst-task-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Run a single point task right away, on an idle thread if there is one. Otherwise it runs on an extra thread
+     * rather than waiting for a batch task to finish.
+     */
+    public void submitPriority (AnalystClusterRequest task) {
+        synchronized (this) {
+            nRunningPriority++;
+            if (nIdleThreads > priorityQueue.size()) {
+                priorityQueue.add(task);
+                notifyAll();
+                return;
+            }
+        }
+        overflowExecutor.execute(() -> {
+            try {
+                handle(task);
+            } finally {
+                synchronized (this) {
+                    nRunningPriority--;
+                    // batch tasks may have been held back while this task was running
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /** Queue a batch task. This never blocks nor rejects the task, awaitBatchCapacity() limits the queue size. */
+    public synchronized void submitBatch (AnalystClusterRequest task) {
+        batchQueue.add(task);
+        notifyAll();
+    }
+
+    /**
+     * The number of batch tasks that keeps every thread busy, and enough more to cover the time needed to fetch more
+     * tasks. Before anything has been measured, this is two tasks per thread.
+     */
+    public int getTargetBatchTasks () {
+        int buffer = nThreads;
+        if (!Double.isNaN(meanTaskMillis) && !Double.isNaN(meanFetchMillis)) {
+            // the number of tasks completed by all the threads while a fetch is in flight
+            buffer = (int) Math.ceil(nThreads * meanFetchMillis / Math.max(meanTaskMillis, 1));
+            buffer = Math.max(1, Math.min(buffer, nThreads * MAX_BUFFER_PER_THREAD));
+        }
+        return nThreads + buffer;
+    }
+
+    /**
+     * Wait until there is room for more batch tasks.
+     * @return how many batch tasks should be requested from the broker.
+     */
+    public synchronized int awaitBatchCapacity () throws InterruptedException {
+        while (batchQueue.size() + nRunningBatch >= getTargetBatchTasks()) {
+            wait();
+        }
+        return getTargetBatchTasks() - batchQueue.size() - nRunningBatch;
+    }
+
+    /**
+     * Record how long it took to fetch tasks from the broker. Only fetches that returned all the tasks requested
+     * should be recorded: the others waited for tasks to be available, which says nothing about the fetch latency.
+     */
+    public void recordFetch (long millis) {
+        meanFetchMillis = Double.isNaN(meanFetchMillis) ? millis : meanFetchMillis + SMOOTHING * (millis - meanFetchMillis);
+    }
+
+    public synchronized String getStatus () {
+        return String.format("%d queued and %d running batch tasks, %d single point tasks, target %d batch tasks " +
+                "(%.0f ms per task, %.0f ms per fetch)", batchQueue.size(), nRunningBatch, nRunningPriority,
+                getTargetBatchTasks(), meanTaskMillis, meanFetchMillis);
+    }
+
+    private void runTasks () {
+        while (true) {
+            AnalystClusterRequest task;
+            boolean priority;
+            synchronized (this) {
+                try {
+                    // Single point tasks come first. Batch tasks wait while extra threads are running single point
+                    // tasks, so that there is again one running task per core once those are done.
+                    while (priorityQueue.isEmpty() &&
+                            (batchQueue.isEmpty() || nRunningBatch + nRunningPriority >= nThreads)) {
+                        nIdleThreads++;
+                        try {
+                            wait();
+                        } finally {
+                            nIdleThreads--;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    LOG.info("Task thread was interrupted.");
+                    return;
+                }
+                priority = !priorityQueue.isEmpty();
+                task = priority ? priorityQueue.remove() : batchQueue.remove();
+                if (!priority) nRunningBatch++;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                handle(task);
+            } finally {
+                long millis = System.currentTimeMillis() - start;
+                synchronized (this) {
+                    if (priority) {
+                        nRunningPriority--;
+                    } else {
+                        meanTaskMillis = Double.isNaN(meanTaskMillis) ? millis :
+                                meanTaskMillis + SMOOTHING * (millis - meanTaskMillis);
+                        nRunningBatch--;
+                    }
+                    // wake up the thread fetching batch tasks, and threads holding back batch tasks
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void handle (AnalystClusterRequest task) {
+        try {
+            handler.accept(task);
+        } catch (Exception e) {
+            LOG.error("Error handling task {}", task.taskId, e);
+        }
+    }
+
+}
@@ -13,4 +13,9 @@ public abstract class TripFilter extends TimetableFilter {
     public abstract TripTimes apply (Trip trip, TripPattern tp, TripTimes tt);
 
     public abstract FrequencyEntry apply (Trip trip, TripPattern tp, FrequencyEntry fe);
+
+    /** Could this filter modify or remove any trip on this trip pattern? */
+    public boolean couldAffect (TripPattern pattern) {
+        return couldMatch(pattern);
+    }
 }
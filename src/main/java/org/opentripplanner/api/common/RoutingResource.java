@@ -346,6 +346,12 @@ public abstract class RoutingResource {
      */
     @QueryParam("disableRemainingWeightHeuristic")
     protected Boolean disableRemainingWeightHeuristic;
+
+    /**
+     * If true, the searches for the alternative itineraries are run concurrently once the first itinerary is found.
+     */
+    @QueryParam("parallelItineraries")
+    protected Boolean parallelItineraries;
     
     /* 
      * somewhat ugly bug fix: the graphService is only needed here for fetching per-graph time zones. 
@@ -565,6 +571,9 @@ public abstract class RoutingResource {
         if (disableRemainingWeightHeuristic != null)
             request.disableRemainingWeightHeuristic = disableRemainingWeightHeuristic;
 
+        if (parallelItineraries != null)
+            request.parallelItineraries = parallelItineraries;
+
         //getLocale function returns defaultLocale if locale is null
         request.locale = ResourceBundleSingleton.INSTANCE.getLocale(locale);
         return request;
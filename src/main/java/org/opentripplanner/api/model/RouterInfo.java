@@ -72,6 +72,12 @@ public class RouterInfo {
 
     public List<TravelOption> travelOptions;
 
+    /** The number of plans served from the plan cache of the router, or null if it has no plan cache. */
+    public Long planCacheHits;
+
+    /** The number of plan requests not found in the plan cache of the router, or null if it has no plan cache. */
+    public Long planCacheMisses;
+
 
     public RouterInfo(String routerId, Graph graph) {
         this.routerId = routerId;
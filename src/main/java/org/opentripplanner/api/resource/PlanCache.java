@@ -0,0 +1,201 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package org.opentripplanner.api.resource;
+
+import com.google.common.collect.ImmutableSet;
+import org.opentripplanner.api.model.TripPlan;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.traffic.StreetSpeedSnapshot;
+import org.opentripplanner.updater.stoptime.TimetableSnapshotSource;
+
+import javax.ws.rs.core.MultivaluedMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A cache of the trip plans returned by the PlannerResource. Kiosk displays and app retries send the same request over
+ * and over, and each of them would otherwise be routed again.
+ *
+ * Plans are keyed on the query parameters of the request, which together with the routing defaults of the router
+ * determine the routing request, and on the departure or arrival time rounded down to a bucket of timeBucketSeconds.
+ * A plan may thus be returned for a request up to one bucket later than the one it was computed for. The origin and
+ * destination are keyed as given: they are only snapped to the street network while routing, on temporary vertices
+ * that are different for every request.
+ *
+ * Each plan is tagged with the realtime data it was computed with: the timetable snapshot, the alert patch version
+ * and the street speed snapshot of the graph. A plan is only returned while those are current, so committing a new
+ * snapshot or changing an alert invalidates the plans computed before. Requests using bike rental, bike parking or
+ * park and ride are not cached, as the availability of stations and parkings is updated without any version.
+ *
+ * The least recently used plans are evicted once the maximum number of plans is reached.
+ */
+public class PlanCache {
+
+    /** Query parameters that do not change the plan, or that are replaced by the rounded request time. */
+    private static final Set<String> IGNORED_PARAMETERS = ImmutableSet.of("date", "time", "_");
+
+    private final Graph graph;
+
+    public final int timeBucketSeconds;
+
+    private final Map<Key, Entry> plans;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    public PlanCache(Graph graph, final int maxPlans, int timeBucketSeconds) {
+        this.graph = graph;
+        this.timeBucketSeconds = timeBucketSeconds;
+        this.plans = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxPlans;
+            }
+        };
+    }
+
+    /**
+     * Make the key of a request, capturing the current realtime data. This must be called before routing the request,
+     * so that a plan is never tagged with realtime data newer than the data it was computed with.
+     *
+     * @return the key of the request, or null if plans for this request should not be cached.
+     */
+    public Key key(MultivaluedMap<String, String> queryParameters, RoutingRequest request) {
+        if (request.allowBikeRental || request.bikeParkAndRide || request.parkAndRide || request.kissAndRide) {
+            return null;
+        }
+        Map<String, List<String>> parameters = new TreeMap<>();
+        for (Map.Entry<String, List<String>> parameter : queryParameters.entrySet()) {
+            if (!IGNORED_PARAMETERS.contains(parameter.getKey())) {
+                parameters.put(parameter.getKey(), new ArrayList<>(parameter.getValue()));
+            }
+        }
+        long time = request.dateTime;
+        if (timeBucketSeconds > 1) {
+            time = Math.floorDiv(time, timeBucketSeconds) * timeBucketSeconds;
+        }
+        return new Key(parameters, time, currentRealtimeData());
+    }
+
+    /**
+     * @return the plan cached for the given key if it was computed with the realtime data captured in the key, or
+     *         null. Plans computed with older realtime data are removed.
+     */
+    public synchronized TripPlan get(Key key) {
+        Entry entry = plans.get(key);
+        if (entry != null) {
+            if (entry.realtimeData.isSameAs(key.realtimeData)) {
+                hits++;
+                return entry.plan;
+            }
+            plans.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /** Cache a plan computed for the given key, tagged with the realtime data captured in the key. */
+    public synchronized void put(Key key, TripPlan plan) {
+        plans.put(key, new Entry(plan, key.realtimeData));
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    private RealtimeData currentRealtimeData() {
+        TimetableSnapshotSource timetableSnapshotSource = graph.timetableSnapshotSource;
+        TimetableSnapshot timetableSnapshot = null;
+        if (timetableSnapshotSource != null) {
+            timetableSnapshot = timetableSnapshotSource.getTimetableSnapshot();
+        }
+        StreetSpeedSnapshot streetSpeedSnapshot = null;
+        if (graph.streetSpeedSource != null) {
+            streetSpeedSnapshot = graph.streetSpeedSource.getSnapshot();
+        }
+        return new RealtimeData(timetableSnapshot, graph.getAlertPatchVersion(), streetSpeedSnapshot);
+    }
+
+    /** The versions of the realtime data of the graph. Snapshots never change, so they are compared by identity. */
+    private static class RealtimeData {
+        final TimetableSnapshot timetableSnapshot;
+        final long alertPatchVersion;
+        final StreetSpeedSnapshot streetSpeedSnapshot;
+
+        RealtimeData(TimetableSnapshot timetableSnapshot, long alertPatchVersion,
+                StreetSpeedSnapshot streetSpeedSnapshot) {
+            this.timetableSnapshot = timetableSnapshot;
+            this.alertPatchVersion = alertPatchVersion;
+            this.streetSpeedSnapshot = streetSpeedSnapshot;
+        }
+
+        boolean isSameAs(RealtimeData other) {
+            return timetableSnapshot == other.timetableSnapshot && alertPatchVersion == other.alertPatchVersion
+                    && streetSpeedSnapshot == other.streetSpeedSnapshot;
+        }
+    }
+
+    private static class Entry {
+        final TripPlan plan;
+        final RealtimeData realtimeData;
+
+        Entry(TripPlan plan, RealtimeData realtimeData) {
+            this.plan = plan;
+            this.realtimeData = realtimeData;
+        }
+    }
+
+    /** The normalized query parameters and rounded time of a request. The realtime data is not part of equality. */
+    public static class Key {
+        private final Map<String, List<String>> parameters;
+        private final long time;
+        private final RealtimeData realtimeData;
+
+        private Key(Map<String, List<String>> parameters, long time, RealtimeData realtimeData) {
+            this.parameters = parameters;
+            this.time = time;
+            this.realtimeData = realtimeData;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return time == other.time && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return parameters.hashCode() * 31 + Long.hashCode(time);
+        }
+    }
+}
@@ -64,18 +64,36 @@ public class    PlannerResource extends RoutingResource {
         // Create response object, containing a copy of all request parameters. Maybe they should be in the debug section of the response.
         Response response = new Response(uriInfo);
         RoutingRequest request = null;
+        boolean cachedPlan = false;
         try {
 
             /* Fill in request fields from query parameters via shared superclass method, catching any errors. */
             request = super.buildRequest();
 
-            /* Find some good GraphPaths through the OTP Graph. */
+            /* Look for the plan of an identical request made with the same realtime data. */
             Router router = otpServer.getRouter(request.routerId);
-            GraphPathFinder gpFinder = new GraphPathFinder(router); // we could also get a persistent router-scoped GraphPathFinder but there's no setup cost here
-            List<GraphPath> paths = gpFinder.graphPathFinderEntryPoint(request);
+            PlanCache.Key cacheKey = null;
+            TripPlan plan = null;
+            if (router.planCache != null) {
+                cacheKey = router.planCache.key(uriInfo.getQueryParameters(), request);
+                if (cacheKey != null) {
+                    plan = router.planCache.get(cacheKey);
+                }
+            }
+
+            if (plan == null) {
+                /* Find some good GraphPaths through the OTP Graph. */
+                GraphPathFinder gpFinder = new GraphPathFinder(router); // we could also get a persistent router-scoped GraphPathFinder but there's no setup cost here
+                List<GraphPath> paths = gpFinder.graphPathFinderEntryPoint(request);
 
-            /* Convert the internal GraphPaths to a TripPlan object that is included in an OTP web service Response. */
-            TripPlan plan = GraphPathToTripPlanConverter.generatePlan(paths, request);
+                /* Convert the internal GraphPaths to a TripPlan object that is included in an OTP web service Response. */
+                plan = GraphPathToTripPlanConverter.generatePlan(paths, request);
+                if (cacheKey != null) {
+                    router.planCache.put(cacheKey, plan);
+                }
+            } else {
+                cachedPlan = true;
+            }
             response.setPlan(plan);
 
         } catch (Exception e) {
@@ -84,7 +102,8 @@ public class    PlannerResource extends RoutingResource {
                 LOG.warn("Error while planning path: ", e);
             response.setError(error);
         } finally {
-            if (request != null) {
+            // A cached plan is returned without a routing context to clean up
+            if (request != null && !cachedPlan) {
                 if (request.rctx != null) {
                     response.debugOutput = request.rctx.debugOutput;
                 }
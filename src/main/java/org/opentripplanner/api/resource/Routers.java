@@ -146,7 +146,12 @@ public class Routers {
             //new router is created here instead of loaded from router
             //since routerId here isn't always the same as routerId when Router was created
             //at least this happens in RoutersTest
-            return new RouterInfo(routerId, router.graph);
+            RouterInfo routerInfo = new RouterInfo(routerId, router.graph);
+            if (router.planCache != null) {
+                routerInfo.planCacheHits = router.planCache.getHits();
+                routerInfo.planCacheMisses = router.planCache.getMisses();
+            }
+            return routerInfo;
         } catch (GraphNotFoundException e) {
             return null;
         }
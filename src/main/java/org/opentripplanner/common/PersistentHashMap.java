@@ -0,0 +1,409 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * An immutable hash map that shares structure with the maps it was derived from: a hash array mapped trie, where
+ * changing one entry copies only the few nodes on the path from the root to that entry.
+ *
+ * Maps are modified through a Transient, which changes the nodes it has already copied in place, so that a series of
+ * updates copies each touched path once. Calling persistent() on the transient returns an immutable map sharing all its
+ * nodes, and any later update through the same transient copies the nodes it touches again. This makes taking an
+ * immutable snapshot of a large, frequently updated map cost as much as the updates since the previous snapshot,
+ * rather than as much as the whole map.
+ *
+ * Keys and values may not be null. A Transient may only be used by one thread at a time, while immutable maps can be
+ * read from any number of threads.
+ */
+public final class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentHashMap (Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty () {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    public V get (Object key) {
+        return find(root, key);
+    }
+
+    public boolean containsKey (Object key) {
+        return get(key) != null;
+    }
+
+    /** @return a map with the given entry added or replaced, sharing all the other entries with this one. */
+    public PersistentHashMap<K, V> plus (K key, V value) {
+        Transient<K, V> map = asTransient();
+        map.put(key, value);
+        return map.persistent();
+    }
+
+    /** @return a map without the given key, sharing all the other entries with this one. */
+    public PersistentHashMap<K, V> minus (Object key) {
+        Transient<K, V> map = asTransient();
+        map.remove(key);
+        return map.persistent();
+    }
+
+    public void forEach (BiConsumer<? super K, ? super V> action) {
+        if (root != null) root.forEach(action);
+    }
+
+    /** @return a mutable version of this map. This map itself is not affected by changes to it. */
+    public Transient<K, V> asTransient () {
+        return new Transient<>(root, size);
+    }
+
+    /** A mutable view of a map, which copies on the first write the nodes shared with immutable maps. */
+    public static final class Transient<K, V> {
+
+        /** Identifies the nodes created by this transient since the last call to persistent(). */
+        private Object owner = new Object();
+
+        private Node root;
+
+        private int size;
+
+        private Transient (Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public int size () {
+            return size;
+        }
+
+        public boolean isEmpty () {
+            return size == 0;
+        }
+
+        public V get (Object key) {
+            return find(root, key);
+        }
+
+        public boolean containsKey (Object key) {
+            return get(key) != null;
+        }
+
+        /** @return the value previously associated with the key, or null if there was none. */
+        @SuppressWarnings("unchecked")
+        public V put (K key, V value) {
+            if (key == null || value == null) throw new NullPointerException();
+            Object[] previous = new Object[1];
+            int hash = hash(key);
+            root = root == null ? BitmapNode.EMPTY.put(owner, 0, hash, key, value, previous)
+                                : root.put(owner, 0, hash, key, value, previous);
+            if (previous[0] == null) size++;
+            return (V) previous[0];
+        }
+
+        /** @return the value previously associated with the key, or null if there was none. */
+        @SuppressWarnings("unchecked")
+        public V remove (Object key) {
+            if (root == null || key == null) return null;
+            Object[] previous = new Object[1];
+            root = root.remove(owner, 0, hash(key), key, previous);
+            if (previous[0] != null) size--;
+            return (V) previous[0];
+        }
+
+        /** Remove all the entries matching the given predicate. @return whether any entry was removed. */
+        public boolean removeIf (BiPredicate<? super K, ? super V> filter) {
+            List<K> keys = new ArrayList<>();
+            forEach((k, v) -> {
+                if (filter.test(k, v)) keys.add(k);
+            });
+            for (K key : keys) remove(key);
+            return !keys.isEmpty();
+        }
+
+        public void forEach (BiConsumer<? super K, ? super V> action) {
+            if (root != null) root.forEach(action);
+        }
+
+        /**
+         * @return an immutable map with the current contents of this transient, which remains usable. This takes
+         * constant time: it only stops this transient from modifying the nodes it created so far in place.
+         */
+        public PersistentHashMap<K, V> persistent () {
+            owner = new Object();
+            return size == 0 ? empty() : new PersistentHashMap<>(root, size);
+        }
+    }
+
+    private static int hash (Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V find (Node root, Object key) {
+        if (root == null || key == null) return null;
+        return (V) root.find(0, hash(key), key);
+    }
+
+    /** @return the bit of the given hash at the given level of the trie. */
+    private static int bitpos (int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    /** Make a node holding two entries with different keys, at the given level of the trie. */
+    private static Node createNode (Object owner, int shift, Object key1, Object value1, Object key2, Object value2) {
+        int hash1 = hash(key1);
+        int hash2 = hash(key2);
+        if (hash1 == hash2) {
+            return new CollisionNode(owner, hash1, new Object[] { key1, value1, key2, value2 });
+        }
+        Object[] unused = new Object[1];
+        return BitmapNode.EMPTY.put(owner, shift, hash1, key1, value1, unused)
+                .put(owner, shift, hash2, key2, value2, unused);
+    }
+
+    /**
+     * A node of the trie. Nodes are only changed in place by the transient they were created by (their owner), until
+     * it is made persistent. Removing the last entry of a node returns null.
+     */
+    private static abstract class Node {
+
+        final Object owner;
+
+        Node (Object owner) {
+            this.owner = owner;
+        }
+
+        abstract Object find (int shift, int hash, Object key);
+
+        /** @param previous receives the value previously associated with the key. */
+        abstract Node put (Object owner, int shift, int hash, Object key, Object value, Object[] previous);
+
+        /** @param previous receives the removed value. */
+        abstract Node remove (Object owner, int shift, int hash, Object key, Object[] previous);
+
+        abstract void forEach (BiConsumer action);
+    }
+
+    /**
+     * A node with one slot for each of the 32 values of the bits of the hash at its level, holding either an entry or
+     * a child node. Only present slots are stored, as pairs of (key, value) or (null, child) in the order of the bits.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+
+        Object[] array;
+
+        BitmapNode (Object owner, int bitmap, Object[] array) {
+            super(owner);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object find (int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return null;
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[index];
+            Object v = array[index + 1];
+            if (k == null) return ((Node) v).find(shift + BITS, hash, key);
+            return key.equals(k) ? v : null;
+        }
+
+        @Override
+        Node put (Object owner, int shift, int hash, Object key, Object value, Object[] previous) {
+            int bit = bitpos(hash, shift);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) != 0) {
+                Object k = array[index];
+                Object v = array[index + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(owner, shift + BITS, hash, key, value, previous);
+                    return child == v ? this : editAndSet(owner, index + 1, child);
+                }
+                if (key.equals(k)) {
+                    previous[0] = v;
+                    return value == v ? this : editAndSet(owner, index + 1, value);
+                }
+                // two different keys in the same slot, push them down to a child node
+                BitmapNode editable = editable(owner);
+                editable.array[index] = null;
+                editable.array[index + 1] = createNode(owner, shift + BITS, k, v, key, value);
+                return editable;
+            }
+            Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            newArray[index] = key;
+            newArray[index + 1] = value;
+            System.arraycopy(array, index, newArray, index + 2, array.length - index);
+            if (owner != null && owner == this.owner) {
+                bitmap |= bit;
+                array = newArray;
+                return this;
+            }
+            return new BitmapNode(owner, bitmap | bit, newArray);
+        }
+
+        @Override
+        Node remove (Object owner, int shift, int hash, Object key, Object[] previous) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[index];
+            Object v = array[index + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(owner, shift + BITS, hash, key, previous);
+                if (child == v) return this;
+                if (child != null) return editAndSet(owner, index + 1, child);
+            } else if (key.equals(k)) {
+                previous[0] = v;
+            } else {
+                return this;
+            }
+            // the slot is now empty
+            if (bitmap == bit) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+            if (owner == this.owner) {
+                bitmap ^= bit;
+                array = newArray;
+                return this;
+            }
+            return new BitmapNode(owner, bitmap ^ bit, newArray);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void forEach (BiConsumer action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) ((Node) array[i + 1]).forEach(action);
+                else action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        private BitmapNode editable (Object owner) {
+            return owner == this.owner ? this : new BitmapNode(owner, bitmap, array.clone());
+        }
+
+        private BitmapNode editAndSet (Object owner, int index, Object element) {
+            BitmapNode editable = editable(owner);
+            editable.array[index] = element;
+            return editable;
+        }
+    }
+
+    /** The entries whose keys all have the same full hash, as (key, value) pairs. */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+
+        Object[] array;
+
+        CollisionNode (Object owner, int hash, Object[] array) {
+            super(owner);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf (Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object find (int shift, int hash, Object key) {
+            int index = indexOf(key);
+            return index == -1 ? null : array[index + 1];
+        }
+
+        @Override
+        Node put (Object owner, int shift, int hash, Object key, Object value, Object[] previous) {
+            if (hash != this.hash) {
+                // a key with another hash reached this level, nest this node in a bitmap node
+                return new BitmapNode(owner, bitpos(this.hash, shift), new Object[] { null, this })
+                        .put(owner, shift, hash, key, value, previous);
+            }
+            int index = indexOf(key);
+            Object[] newArray;
+            if (index != -1) {
+                previous[0] = array[index + 1];
+                if (value == array[index + 1]) return this;
+                newArray = owner == this.owner ? array : array.clone();
+            } else {
+                index = array.length;
+                newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                newArray[index] = key;
+            }
+            newArray[index + 1] = value;
+            if (owner == this.owner) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(owner, hash, newArray);
+        }
+
+        @Override
+        Node remove (Object owner, int shift, int hash, Object key, Object[] previous) {
+            int index = indexOf(key);
+            if (index == -1) return this;
+            previous[0] = array[index + 1];
+            if (array.length == 2) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+            if (owner == this.owner) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(owner, hash, newArray);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void forEach (BiConsumer action) {
+            for (int i = 0; i < array.length; i += 2) action.accept(array[i], array[i + 1]);
+        }
+    }
+
+}
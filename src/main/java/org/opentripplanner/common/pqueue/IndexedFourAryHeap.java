@@ -0,0 +1,267 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.pqueue;
+
+import java.util.Arrays;
+
+/**
+ * A 4-ary min-heap backed by flat arrays, in which an element may optionally be associated with a small non-negative
+ * integer key (typically a vertex index). At most one element per key is indexed, and that element can be looked up
+ * and replaced in place with a new element and priority (decrease-key, or increase-key when needed). Elements inserted
+ * without a key behave exactly as in BinHeap.
+ *
+ * A 4-ary heap is shallower than a binary heap and its children are adjacent in memory, which reduces cache misses
+ * when sifting down in extract_min, the dominant operation in a search.
+ *
+ * Instances can be obtained from a per-thread pool with acquire() and handed back with release(), so that the backing
+ * arrays (including the key index, which is sized to the number of vertices) are reused across searches instead of
+ * being reallocated for every request.
+ */
+public class IndexedFourAryHeap<T> implements OTPPriorityQueue<T> {
+
+    private static final double GROW_FACTOR = 2.0;
+
+    private static final int NO_KEY = -1;
+
+    private static final ThreadLocal<IndexedFourAryHeap<Object>> pool = new ThreadLocal<>();
+
+    private double[] prio;
+
+    private Object[] elem;
+
+    /** The key of the element in each heap slot, or NO_KEY. */
+    private int[] slotKey;
+
+    /** For each key, one plus the heap slot of the element indexed under that key, or zero if there is none. */
+    private int[] keySlot;
+
+    private int size;
+
+    private final boolean pooled;
+
+    private boolean inUse;
+
+    public IndexedFourAryHeap() {
+        this(1000, 0);
+    }
+
+    public IndexedFourAryHeap(int capacity, int keyCapacity) {
+        this(capacity, keyCapacity, false);
+    }
+
+    private IndexedFourAryHeap(int capacity, int keyCapacity, boolean pooled) {
+        if (capacity < 10) capacity = 10;
+        prio = new double[capacity];
+        elem = new Object[capacity];
+        slotKey = new int[capacity];
+        keySlot = new int[Math.max(keyCapacity, 0)];
+        size = 0;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Get an empty heap from the pool belonging to the current thread, creating it if necessary. If the pooled heap
+     * is already in use by another search on this thread (nested searches) a fresh, unpooled heap is returned.
+     * Every acquired heap should be handed back with release() once the search is finished.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> IndexedFourAryHeap<T> acquire(int capacity, int keyCapacity) {
+        IndexedFourAryHeap<Object> heap = pool.get();
+        if (heap == null) {
+            heap = new IndexedFourAryHeap<>(capacity, keyCapacity, true);
+            pool.set(heap);
+        } else if (heap.inUse) {
+            return new IndexedFourAryHeap<>(capacity, keyCapacity);
+        }
+        heap.reset();
+        heap.ensureKeyCapacity(keyCapacity);
+        heap.inUse = true;
+        return (IndexedFourAryHeap<T>) heap;
+    }
+
+    /**
+     * Empty this heap and, if it came from the per-thread pool, make it available to the next search on this thread.
+     * The heap must not be used by the caller after it is released.
+     */
+    public void release() {
+        reset();
+        inUse = false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean empty() {
+        return size <= 0;
+    }
+
+    @Override
+    public double peek_min_key() {
+        if (size > 0)
+            return prio[0];
+        else
+            throw new IllegalStateException("An empty queue does not have a minimum key.");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T peek_min() {
+        if (size > 0)
+            return (T) elem[0];
+        else
+            return null;
+    }
+
+    /** Insert an element that is not associated with any key. */
+    @Override
+    public void insert(T e, double p) {
+        insert(e, NO_KEY, p);
+    }
+
+    /**
+     * Insert an element, indexing it under the given key. If another element is already indexed under that key it
+     * remains in the queue but can no longer be found with get(); callers wanting decrease-key should use get() and
+     * update() instead.
+     */
+    public void insert(T e, int key, double p) {
+        if (size == prio.length)
+            resize((int) (prio.length * GROW_FACTOR));
+        if (key != NO_KEY) {
+            ensureKeyCapacity(key + 1);
+            int old = keySlot[key];
+            if (old != 0) slotKey[old - 1] = NO_KEY;
+        }
+        siftUp(size++, e, key, p);
+    }
+
+    /** @return the element currently indexed under the given key, or null if there is none. */
+    @SuppressWarnings("unchecked")
+    public T get(int key) {
+        if (key < 0 || key >= keySlot.length) return null;
+        int slot = keySlot[key];
+        return slot == 0 ? null : (T) elem[slot - 1];
+    }
+
+    /**
+     * Replace the element indexed under the given key with a new element and priority, moving it up or down the heap
+     * as needed. If no element is indexed under the key, this is equivalent to a keyed insert.
+     */
+    public void update(int key, T e, double p) {
+        int slot = key < keySlot.length ? keySlot[key] - 1 : -1;
+        if (slot < 0) {
+            insert(e, key, p);
+        } else if (p < prio[slot]) {
+            siftUp(slot, e, key, p);
+        } else {
+            siftDown(slot, e, key, p);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T extract_min() {
+        if (size <= 0)
+            return null;
+        T minElem = (T) elem[0];
+        int minKey = slotKey[0];
+        if (minKey != NO_KEY) keySlot[minKey] = 0;
+        size -= 1;
+        Object lastElem = elem[size];
+        int lastKey = slotKey[size];
+        double lastPrio = prio[size];
+        elem[size] = null;
+        if (size > 0) siftDown(0, lastElem, lastKey, lastPrio);
+        return minElem;
+    }
+
+    @Override
+    public void reset() {
+        // only the keys and elements still in the queue need to be cleared, which keeps a pooled reset cheap
+        for (int i = 0; i < size; i++) {
+            if (slotKey[i] != NO_KEY) keySlot[slotKey[i]] = 0;
+            elem[i] = null;
+        }
+        size = 0;
+    }
+
+    public void resize(int capacity) {
+        if (capacity < size)
+            throw new IllegalStateException("IndexedFourAryHeap contains too many elements to fit in new capacity.");
+        prio = Arrays.copyOf(prio, capacity);
+        elem = Arrays.copyOf(elem, capacity);
+        slotKey = Arrays.copyOf(slotKey, capacity);
+    }
+
+    /** @return whether this heap belongs to a per-thread pool. */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    private void ensureKeyCapacity(int keyCapacity) {
+        if (keyCapacity > keySlot.length) {
+            keySlot = Arrays.copyOf(keySlot, Math.max(keyCapacity, (int) (keySlot.length * GROW_FACTOR)));
+        }
+    }
+
+    /** Place the given element at or above slot i, moving larger parents down. */
+    private void siftUp(int i, Object e, int key, double p) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 2;
+            if (prio[parent] <= p) break;
+            move(parent, i);
+            i = parent;
+        }
+        place(i, e, key, p);
+    }
+
+    /** Place the given element at or below slot i, moving smaller children up. */
+    private void siftDown(int i, Object e, int key, double p) {
+        while (true) {
+            int first = (i << 2) + 1;
+            if (first >= size) break;
+            int last = Math.min(first + 4, size);
+            int child = first;
+            double childPrio = prio[first];
+            for (int c = first + 1; c < last; c++) {
+                if (prio[c] < childPrio) {
+                    child = c;
+                    childPrio = prio[c];
+                }
+            }
+            if (p <= childPrio) break;
+            move(child, i);
+            i = child;
+        }
+        place(i, e, key, p);
+    }
+
+    private void move(int from, int to) {
+        elem[to] = elem[from];
+        prio[to] = prio[from];
+        int key = slotKey[from];
+        slotKey[to] = key;
+        if (key != NO_KEY) keySlot[key] = to + 1;
+    }
+
+    private void place(int i, Object e, int key, double p) {
+        elem[i] = e;
+        prio[i] = p;
+        slotKey[i] = key;
+        if (key != NO_KEY) keySlot[key] = i + 1;
+    }
+
+}
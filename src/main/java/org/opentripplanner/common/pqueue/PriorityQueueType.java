@@ -0,0 +1,30 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.pqueue;
+
+/**
+ * The priority queue implementations a search can be configured to use.
+ */
+public enum PriorityQueueType {
+
+    /** A binary heap allocated per search. Dominated states stay in the queue until they are extracted. */
+    BINARY_HEAP,
+
+    /** A 4-ary heap with decrease-key on vertex index, allocated per search. */
+    INDEXED_HEAP,
+
+    /** A 4-ary heap with decrease-key on vertex index, whose arrays are reused across searches on the same thread. */
+    POOLED_INDEXED_HEAP
+
+}
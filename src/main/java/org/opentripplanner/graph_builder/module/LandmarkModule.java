@@ -0,0 +1,60 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.LandmarkTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link org.opentripplanner.graph_builder.services.GraphBuilderModule} module that computes the street distances
+ * to a set of landmarks, stored with the graph and used as a goal direction heuristic for street searches.
+ * It must run once the street network is complete.
+ */
+public class LandmarkModule implements GraphBuilderModule {
+
+    private static Logger LOG = LoggerFactory.getLogger(LandmarkModule.class);
+
+    private final int nLandmarks;
+
+    public LandmarkModule(int nLandmarks) {
+        this.nLandmarks = nLandmarks;
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("landmarks");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("streets");
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        LOG.info("Computing street distances to {} landmarks...", nLandmarks);
+        graph.landmarks = LandmarkTable.build(graph, nLandmarks);
+    }
+
+    @Override
+    public void checkInputs() {
+        // No inputs
+    }
+
+}
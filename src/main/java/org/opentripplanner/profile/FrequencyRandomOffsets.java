@@ -28,6 +28,12 @@ public class FrequencyRandomOffsets {
                 });
     }
 
+    /** Draw new offsets from a generator reseeded with the given seed, so that the draw is reproducible. */
+    public void randomize (long seed) {
+        mt.setSeed(seed);
+        randomize();
+    }
+
     public void randomize () {
         for (TIntObjectIterator<int[]> it = offsets.iterator(); it.hasNext();) {
             it.advance();
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 import java.util.stream.IntStream;
@@ -69,6 +70,16 @@ public class PropagatedTimesStore {
 
     private static final Random random = new Random();
 
+    /*
+     * Running statistics per target while accumulating iterations one at a time (see startAccumulating).
+     * During accumulation, mins and maxs hold the running extrema over the iterations in which the target was reached.
+     */
+    private ConfidenceCalculationMethod accumulationMethod;
+    private int[] sums, counts;
+    private BitSet sometimesUnreached;
+    private StreamingQuantiles lowerQuantile, upperQuantile;
+    private int accumulatedIterations, effectiveIterations;
+
     public PropagatedTimesStore(Graph graph, ProfileRequest req) {
         this(graph, req, Vertex.getMaxIndex());
     }
@@ -223,6 +234,91 @@ public class PropagatedTimesStore {
         }
     }
 
+    /**
+     * Start accumulating the travel times of successive iterations with accumulate() instead of passing them all at
+     * once to setFromArray(), so that memory use does not depend on the number of iterations. The results are the
+     * same as those of setFromArray, except that percentiles are estimated with a streaming quantile sketch, and that
+     * bootstrapping is not possible because it resamples the times of every iteration.
+     */
+    public void startAccumulating(ConfidenceCalculationMethod confidenceCalculationMethod) {
+        if (confidenceCalculationMethod == ConfidenceCalculationMethod.BOOTSTRAP) {
+            throw new UnsupportedOperationException("Bootstrapping needs the times of all iterations, use setFromArray.");
+        }
+        accumulationMethod = confidenceCalculationMethod;
+        sums = new int[size];
+        counts = new int[size];
+        sometimesUnreached = new BitSet(size);
+        if (confidenceCalculationMethod == ConfidenceCalculationMethod.PERCENTILE) {
+            lowerQuantile = new StreamingQuantiles(size, 1 / 40d);
+            upperQuantile = new StreamingQuantiles(size, 39 / 40d);
+        }
+        accumulatedIterations = 0;
+        effectiveIterations = 0;
+        Arrays.fill(maxs, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Merge the travel times to each target of one iteration into the running statistics. The array is not retained
+     * and can be reused for the next iteration.
+     * @param includeInAverages whether this iteration should be included in average calculations (see setFromArray).
+     */
+    public void accumulate(int[] times, boolean includeInAverages) {
+        accumulatedIterations++;
+        if (includeInAverages) effectiveIterations++;
+        for (int target = 0; target < size; target++) {
+            int time = times[target];
+            if (time == RaptorWorker.UNREACHED) {
+                sometimesUnreached.set(target);
+                continue;
+            }
+            if (includeInAverages) {
+                sums[target] += time;
+                counts[target]++;
+            }
+            if (time < mins[target]) mins[target] = time;
+            if (time > maxs[target]) maxs[target] = time;
+            if (lowerQuantile != null) {
+                lowerQuantile.add(target, time);
+                upperQuantile.add(target, time);
+            }
+        }
+    }
+
+    /** Compute the final statistics from the accumulated iterations and release the running statistics. */
+    public void finishAccumulating() {
+        for (int target = 0; target < size; target++) {
+            int count = counts[target];
+            // never reachable, as in setFromArray
+            if (count == 0) {
+                mins[target] = maxs[target] = Integer.MAX_VALUE;
+                continue;
+            }
+            if (count >= effectiveIterations * req.reachabilityThreshold)
+                avgs[target] = sums[target] / count;
+
+            switch (accumulationMethod) {
+            case PERCENTILE:
+                mins[target] = lowerQuantile.get(target);
+                maxs[target] = upperQuantile.get(target);
+                break;
+            case NONE:
+                mins[target] = maxs[target] = avgs[target];
+                break;
+            case MIN_MAX:
+            default:
+                // worst case: if it is sometimes unreachable, worst case is unreachable
+                if (sometimesUnreached.get(target))
+                    maxs[target] = Integer.MAX_VALUE;
+                break;
+            }
+        }
+        LOG.debug("Accumulated {} iterations ({} included in averages).", accumulatedIterations, effectiveIterations);
+        sums = counts = null;
+        sometimesUnreached = null;
+        lowerQuantile = upperQuantile = null;
+        accumulationMethod = null;
+    }
+
     /**
      * Make a ResultEnvelope directly from a given SampleSet.
      * The RaptorWorkerData must have been constructed from the same SampleSet.
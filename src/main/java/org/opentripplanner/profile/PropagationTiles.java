@@ -0,0 +1,152 @@
+package org.opentripplanner.profile;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The egress times from transit stops to targets of a RaptorWorkerData, transposed from one list of targets per stop
+ * into tiles of TILE_SIZE consecutive targets, each listing the stops that reach it.
+ *
+ * Propagation runs tile by tile, so all the writes of a tile hit the same few kilobytes of the target array instead of
+ * jumping all over it once per stop. Within a tile, the targets reached from a stop are stored as runs of consecutive
+ * target indices with one egress time each, so the min-reduction of a run is a tight loop over two contiguous int
+ * arrays that the JIT can unroll and vectorize. Targets of grid point sets are numbered column by column, so the
+ * targets a stop reaches in a column form a single run.
+ *
+ * The layout is compressed sparse row on three levels: the entries (stops) of tile t are firstEntry[t] to
+ * firstEntry[t + 1], the runs of entry e are firstRun[e] to firstRun[e + 1], and the egress times of run r are
+ * firstTime[r] to firstTime[r + 1], the first of them being the time to target runTarget[r].
+ */
+public class PropagationTiles implements Serializable {
+
+    /** The number of targets per tile, 8 kB of target times which leaves room in L1 cache for the egress times. */
+    public static final int TILE_SIZE = 2048;
+
+    public final int nTargets;
+
+    private final int[] firstEntry;
+
+    private final int[] entryStop;
+
+    private final int[] firstRun;
+
+    private final int[] runTarget;
+
+    private final int[] firstTime;
+
+    private final int[] egressTimes;
+
+    /**
+     * @param targetsForStop for each stop, pairs of (target index, egress time in seconds) as in RaptorWorkerData.
+     */
+    public PropagationTiles (List<int[]> targetsForStop, int nTargets) {
+        this.nTargets = nTargets;
+        int nStops = targetsForStop.size();
+        int nTiles = (nTargets + TILE_SIZE - 1) / TILE_SIZE;
+
+        // sort the targets of each stop, keeping their egress times alongside
+        long[][] sortedTargets = new long[nStops][];
+        for (int s = 0; s < nStops; s++) {
+            int[] targets = targetsForStop.get(s);
+            long[] sorted = new long[targets.length / 2];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = ((long) targets[2 * i] << 32) | (targets[2 * i + 1] & 0xFFFFFFFFL);
+            }
+            Arrays.sort(sorted);
+            sortedTargets[s] = sorted;
+        }
+
+        // find the stops reaching each tile, in ascending order since stops are visited in order
+        TIntArrayList[] stopsForTile = new TIntArrayList[nTiles];
+        for (int t = 0; t < nTiles; t++) stopsForTile[t] = new TIntArrayList();
+        int nEntries = 0;
+        for (int s = 0; s < nStops; s++) {
+            int lastTile = -1;
+            for (long pair : sortedTargets[s]) {
+                int tile = (int) (pair >>> 32) / TILE_SIZE;
+                if (tile != lastTile) {
+                    stopsForTile[tile].add(s);
+                    lastTile = tile;
+                    nEntries++;
+                }
+            }
+        }
+
+        firstEntry = new int[nTiles + 1];
+        entryStop = new int[nEntries];
+        firstRun = new int[nEntries + 1];
+        TIntArrayList runTargets = new TIntArrayList();
+        TIntArrayList runTimes = new TIntArrayList();
+        TIntArrayList times = new TIntArrayList();
+
+        // the position in its sorted targets of the first target of each stop not yet assigned to a tile
+        int[] cursor = new int[nStops];
+        int entry = 0;
+        for (int t = 0; t < nTiles; t++) {
+            firstEntry[t] = entry;
+            int tileEnd = (t + 1) * TILE_SIZE;
+            for (int i = 0; i < stopsForTile[t].size(); i++) {
+                int s = stopsForTile[t].get(i);
+                entryStop[entry] = s;
+                firstRun[entry] = runTargets.size();
+                long[] sorted = sortedTargets[s];
+                int previousTarget = -2;
+                for (; cursor[s] < sorted.length; cursor[s]++) {
+                    int target = (int) (sorted[cursor[s]] >>> 32);
+                    if (target >= tileEnd) break;
+                    if (target != previousTarget + 1) {
+                        // start a new run
+                        runTargets.add(target);
+                        runTimes.add(times.size());
+                    }
+                    times.add((int) sorted[cursor[s]]);
+                    previousTarget = target;
+                }
+                entry++;
+            }
+            stopsForTile[t] = null;
+        }
+        firstEntry[nTiles] = entry;
+        firstRun[nEntries] = runTargets.size();
+        runTimes.add(times.size());
+
+        runTarget = runTargets.toArray();
+        firstTime = runTimes.toArray();
+        egressTimes = times.toArray();
+    }
+
+    /**
+     * Lower the times at targets to the times at the given stops plus egress, for the stops set in the given bit set.
+     * Unreached stops are skipped.
+     */
+    public void propagate (int[] timesAtStops, BitSet stops, int[] timesAtTargets) {
+        int[] egressTimes = this.egressTimes;
+        for (int tile = 0; tile < firstEntry.length - 1; tile++) {
+            for (int entry = firstEntry[tile]; entry < firstEntry[tile + 1]; entry++) {
+                int stop = entryStop[entry];
+                if (!stops.get(stop)) continue;
+                int baseTimeSeconds = timesAtStops[stop];
+                if (baseTimeSeconds == RaptorWorker.UNREACHED) continue;
+                for (int run = firstRun[entry]; run < firstRun[entry + 1]; run++) {
+                    int end = firstTime[run + 1];
+                    // offset from the position of an egress time to the index of its target
+                    int shift = runTarget[run] - firstTime[run];
+                    for (int i = firstTime[run]; i < end; i++) {
+                        timesAtTargets[i + shift] = Math.min(timesAtTargets[i + shift], baseTimeSeconds + egressTimes[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return an estimate of the memory used by these tiles in bytes. */
+    public long estimateMemoryBytes () {
+        return 16 * 6 + 4L * (firstEntry.length + entryStop.length + firstRun.length + runTarget.length +
+                firstTime.length + egressTimes.length);
+    }
+
+}
@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 
 /**
@@ -113,6 +114,37 @@ public class RaptorWorker {
 
     private FrequencyRandomOffsets offsets;
 
+    /**
+     * The boarding assumption for frequency trips in the current search. This is the one of the request, except for
+     * the best and worst case draws made when it is RANDOM.
+     */
+    private RaptorWorkerTimetable.BoardingAssumption boardingAssumption;
+
+    /**
+     * Whether to run the Monte Carlo draws of each departure minute in parallel on the common fork-join pool. This
+     * is worthwhile for a single request using the whole machine, but not when many searches are already running
+     * concurrently.
+     */
+    public boolean parallelDraws = false;
+
+    /**
+     * The seed of the random offsets of the Monte Carlo draws. Each draw is seeded from this seed, its departure
+     * minute and its position within the minute, so that results are reproducible whether or not draws are run in
+     * parallel.
+     */
+    public long randomSeed = DEFAULT_RANDOM_SEED;
+
+    public static final long DEFAULT_RANDOM_SEED = 0x5DEECE66DL;
+
+    /* Results of the last draw run by this worker when it is a draw worker, see runDraw. */
+    private int[] timesAtTargets;
+    private boolean includeInAverages;
+
+    /* Scratch state of runRaptor, kept so that a worker reused for several origins does not reallocate it. */
+    private RaptorWorker[] drawWorkers;
+    private int[] scheduledTimesAtTargets;
+    private int[] elapsedTimesAtTargets;
+
     public RaptorWorker(RaptorWorkerData data, ProfileRequest req) {
         this.data = data;
         // these should only reflect the results of the (deterministic) scheduled search
@@ -127,6 +159,21 @@ public class RaptorWorker {
         Arrays.fill(bestTimes, UNREACHED); // initialize once here and reuse on subsequent iterations.
         Arrays.fill(bestNonTransferTimes, UNREACHED);
         offsets = new FrequencyRandomOffsets(data);
+        boardingAssumption = req.boardingAssumption;
+    }
+
+    /**
+     * Forget the results of the previous search, so that this worker can be reused for another origin with the same
+     * data and a request that differs only in its origin.
+     */
+    public void reset () {
+        Arrays.fill(bestTimes, UNREACHED);
+        Arrays.fill(bestNonTransferTimes, UNREACHED);
+        Arrays.fill(previousPatterns, -1);
+        allStopsTouched.clear();
+        stopsTouched.clear();
+        patternsTouched.clear();
+        totalPropagationTime = 0;
     }
 
     public void advance () {
@@ -144,6 +191,8 @@ public class RaptorWorker {
      */
     public PropagatedTimesStore runRaptor (Graph graph, TIntIntMap accessTimes, int[] nonTransitTimes, TaskStatistics ts) {
         long beginCalcTime = System.currentTimeMillis();
+        // range-raptor carries state over between minutes, but not between calls
+        reset();
         TIntIntMap initialStops = new TIntIntHashMap();
         TIntIntIterator initialIterator = accessTimes.iterator();
         while (initialIterator.hasNext()) {
@@ -177,24 +226,39 @@ public class RaptorWorker {
 
         ts.searchCount = iterations;
 
-        // Iterate backward through minutes (range-raptor) taking a snapshot of router state after each call
-        int[][] timesAtTargetsEachIteration = new int[iterations][data.nTargets];
-
-        // for each iteration, whether it is the result of a schedule or Monte Carlo search, or whether it is an extrema.
-        // extrema are not included in averages.
-        boolean[] includeIterationInAverages = new boolean[iterations];
-        Arrays.fill(includeIterationInAverages, true);
+        // Iterate backward through minutes (range-raptor) taking a snapshot of router state after each call.
+        // Each snapshot is merged into the summary statistics as soon as it is made rather than retaining all of them,
+        // which would take iterations * nTargets ints (gigabytes with large point sets and many Monte Carlo draws).
+        // we can use min_max here as we've also run it once with best case and worst case board,
+        // so the best and worst cases are meaningful.
+        propagatedTimesStore.startAccumulating(PropagatedTimesStore.ConfidenceCalculationMethod.MIN_MAX);
+        if (elapsedTimesAtTargets == null) elapsedTimesAtTargets = new int[data.nTargets];
+        if (scheduledTimesAtTargets == null) scheduledTimesAtTargets = new int[data.nTargets];
+        final int[] scheduledTimesAtTargets = this.scheduledTimesAtTargets;
 
         // TODO don't hardwire timestep below
         ts.timeStep = 60;
 
         // times at targets from scheduled search
-        int[] scheduledTimesAtTargets = new int[data.nTargets];
         Arrays.fill(scheduledTimesAtTargets, UNREACHED);
 
         // current iteration
         int iteration = 0;
 
+        // workers running the Monte Carlo draws, with their own scratch arrays and random offsets
+        int nDrawWorkers = 0;
+        if (data.hasFrequencies) {
+            nDrawWorkers = parallelDraws ? Math.min(monteCarloDraws + 2, ForkJoinPool.getCommonPoolParallelism()) : 1;
+            nDrawWorkers = Math.max(nDrawWorkers, 1);
+        }
+        if (drawWorkers == null || drawWorkers.length != nDrawWorkers) {
+            drawWorkers = new RaptorWorker[nDrawWorkers];
+            for (int w = 0; w < drawWorkers.length; w++) {
+                drawWorkers[w] = new RaptorWorker(data, req);
+            }
+        }
+        final RaptorWorker[] drawWorkers = this.drawWorkers;
+
         // FIXME this should be changed to tolerate a zero-width time range
         for (int departureTime = req.toTime - 60, n = 0; departureTime >= fromTime; departureTime -= 60, n++) {
             if (n % 15 == 0) {
@@ -214,68 +278,45 @@ public class RaptorWorker {
 
             // run the frequency searches
             if (data.hasFrequencies) {
-                for (int i = 0; i < monteCarloDraws + 2; i++) {
-                    // make copies for just this search. We need copies because we can't use dynamic
-                    // programming/range-raptor with randomized schedules
-                    int[] bestTimesCopy = Arrays.copyOf(bestTimes, bestTimes.length);
-                    int[] bestNonTransferTimesCopy = Arrays
-                            .copyOf(bestNonTransferTimes, bestNonTransferTimes.length);
-                    int[] previousPatternsCopy = Arrays
-                            .copyOf(previousPatterns, previousPatterns.length);
-
-                    // special cases: calculate the best and the worst cases as well
-                    // Note that this (intentionally) does not affect searches where the user has requested
-                    // an assumption other than RANDOM, or stops with transfer rules.
-                    RaptorWorkerTimetable.BoardingAssumption requestedBoardingAssumption = req.boardingAssumption;
-
-                    if (i == 0 && req.boardingAssumption == RaptorWorkerTimetable.BoardingAssumption.RANDOM) {
-                        req.boardingAssumption = RaptorWorkerTimetable.BoardingAssumption.WORST_CASE;
-                        // don't include extrema in averages
-                        includeIterationInAverages[iteration] = false;
-                    }
-                    else if (i == 1 && req.boardingAssumption == RaptorWorkerTimetable.BoardingAssumption.RANDOM) {
-                        req.boardingAssumption = RaptorWorkerTimetable.BoardingAssumption.BEST_CASE;
-                        // don't include extrema in averages
-                        includeIterationInAverages[iteration] = false;
+                int nDraws = monteCarloDraws + 2;
+                // Draws are independent given the scheduled state, run them in batches of one per draw worker.
+                // Results are accumulated in draw order so they do not depend on the order in which draws finish.
+                for (int firstDraw = 0; firstDraw < nDraws; firstDraw += drawWorkers.length) {
+                    final int batchSize = Math.min(drawWorkers.length, nDraws - firstDraw);
+                    final int batchStart = firstDraw;
+                    final int dt = departureTime;
+                    if (batchSize > 1) {
+                        IntStream.range(0, batchSize).parallel().forEach(w ->
+                                drawWorkers[w].runDraw(this, batchStart + w, dt, scheduledTimesAtTargets));
+                    } else {
+                        drawWorkers[0].runDraw(this, batchStart, dt, scheduledTimesAtTargets);
                     }
-                    else if (requestedBoardingAssumption == RaptorWorkerTimetable.BoardingAssumption.RANDOM)
-                        // use a new Monte Carlo draw each time
-                        // included in averages by default
-                        offsets.randomize();
-
-                    this.runRaptorFrequency(departureTime, bestTimesCopy, bestNonTransferTimesCopy,
-                            previousPatternsCopy);
-
-                    req.boardingAssumption = requestedBoardingAssumption;
-
-                    // do propagation
-                    int[] frequencyTimesAtTargets = timesAtTargetsEachIteration[iteration++];
-                    System.arraycopy(scheduledTimesAtTargets, 0, frequencyTimesAtTargets, 0,
-                            scheduledTimesAtTargets.length);
-                    // updates timesAtTargetsEachIteration directly because it has a reference into the array.
-                    this.doPropagation(bestNonTransferTimesCopy, frequencyTimesAtTargets,
-                            departureTime);
-
-                    // convert to elapsed time
-                    for (int t = 0; t < frequencyTimesAtTargets.length; t++) {
-                        if (frequencyTimesAtTargets[t] != UNREACHED)
-                            frequencyTimesAtTargets[t] -= departureTime;
+                    long batchPropagationTime = 0;
+                    for (int w = 0; w < batchSize; w++) {
+                        RaptorWorker drawWorker = drawWorkers[w];
+                        propagatedTimesStore.accumulate(drawWorker.timesAtTargets, drawWorker.includeInAverages);
+                        iteration++;
+                        // draws of a batch propagate concurrently, count the longest one
+                        batchPropagationTime = Math.max(batchPropagationTime, drawWorker.totalPropagationTime);
+                        drawWorker.totalPropagationTime = 0;
                     }
+                    totalPropagationTime += batchPropagationTime;
                 }
             } else {
-                final int dt = departureTime;
-                timesAtTargetsEachIteration[iteration++] = IntStream.of(scheduledTimesAtTargets)
-                        .map(i -> i != UNREACHED ? i - dt : i)
-                        .toArray();
+                for (int t = 0; t < elapsedTimesAtTargets.length; t++) {
+                    int time = scheduledTimesAtTargets[t];
+                    elapsedTimesAtTargets[t] = time != UNREACHED ? time - departureTime : time;
+                }
+                propagatedTimesStore.accumulate(elapsedTimesAtTargets, true);
+                iteration++;
             }
         }
 
-        // make sure we filled the array, otherwise results are garbage.
+        // make sure we ran as many iterations as planned, otherwise results are garbage.
         // This implies a bug in OTP, but it has happened in the past when we did
         // not set the number of iterations correctly.
-        // iteration should be incremented past end of array by ++ in assignment above
         if (iteration != iterations)
-            throw new IllegalStateException("Iterations did not completely fill output array");
+            throw new IllegalStateException("Ran " + iteration + " iterations instead of " + iterations);
 
         long calcTime = System.currentTimeMillis() - beginCalcTime;
         LOG.info("calc time {}sec", calcTime / 1000.0);
@@ -284,10 +325,7 @@ public class RaptorWorker {
         ts.propagation = (int) totalPropagationTime;
         ts.transitSearch = (int) (calcTime - totalPropagationTime);
         //dumpVariableByte(timesAtTargetsEachMinute);
-        // we can use min_max here as we've also run it once with best case and worst case board,
-        // so the best and worst cases are meaningful.
-        propagatedTimesStore.setFromArray(timesAtTargetsEachIteration, includeIterationInAverages,
-                PropagatedTimesStore.ConfidenceCalculationMethod.MIN_MAX);
+        propagatedTimesStore.finishAccumulating();
         return propagatedTimesStore;
     }
 
@@ -335,6 +373,52 @@ public class RaptorWorker {
         }
     }
 
+    /**
+     * Run one Monte Carlo draw of the given departure minute, starting from the state of the scheduled search of the
+     * parent worker, and propagate its results into the timesAtTargets of this worker, as elapsed times.
+     * @param draw the position of the draw within the minute. When the requested boarding assumption is RANDOM,
+     *             draws 0 and 1 use the worst and best case boarding assumptions and are not included in averages.
+     */
+    private void runDraw (RaptorWorker parent, int draw, int departureTime, int[] scheduledTimesAtTargets) {
+        // make copies for just this search. We need copies because we can't use dynamic
+        // programming/range-raptor with randomized schedules
+        System.arraycopy(parent.bestTimes, 0, bestTimes, 0, bestTimes.length);
+        System.arraycopy(parent.bestNonTransferTimes, 0, bestNonTransferTimes, 0, bestNonTransferTimes.length);
+        System.arraycopy(parent.previousPatterns, 0, previousPatterns, 0, previousPatterns.length);
+
+        // special cases: calculate the best and the worst cases as well
+        // Note that this (intentionally) does not affect searches where the user has requested
+        // an assumption other than RANDOM, or stops with transfer rules.
+        boardingAssumption = req.boardingAssumption;
+        includeInAverages = true;
+        if (req.boardingAssumption == RaptorWorkerTimetable.BoardingAssumption.RANDOM) {
+            if (draw == 0) {
+                boardingAssumption = RaptorWorkerTimetable.BoardingAssumption.WORST_CASE;
+                // don't include extrema in averages
+                includeInAverages = false;
+            } else if (draw == 1) {
+                boardingAssumption = RaptorWorkerTimetable.BoardingAssumption.BEST_CASE;
+                includeInAverages = false;
+            } else {
+                // use a new Monte Carlo draw each time, seeded independently of the worker running it
+                offsets.randomize(parent.randomSeed + departureTime * 1000L + draw);
+            }
+        }
+
+        runRaptorFrequency(departureTime, bestTimes, bestNonTransferTimes, previousPatterns);
+
+        // do propagation
+        if (timesAtTargets == null) timesAtTargets = new int[data.nTargets];
+        System.arraycopy(scheduledTimesAtTargets, 0, timesAtTargets, 0, scheduledTimesAtTargets.length);
+        doPropagation(bestNonTransferTimes, timesAtTargets, departureTime);
+
+        // convert to elapsed time
+        for (int t = 0; t < timesAtTargets.length; t++) {
+            if (timesAtTargets[t] != UNREACHED)
+                timesAtTargets[t] -= departureTime;
+        }
+    }
+
     /** Run a RAPTOR search using frequencies */
     public void runRaptorFrequency (int departureTime, int[] bestTimes, int[] bestNonTransferTimes, int[] previousPatterns) {
         max_time = departureTime + MAX_DURATION;
@@ -391,7 +475,7 @@ public class RaptorWorker {
                         for (int trip = 0; trip < timetable.getFrequencyTripCount(); trip++) {
                             int boardTime = timetable
                                     .getFrequencyDeparture(trip, stopPositionInPattern,
-                                            bestTimes[stopIndex], previousPatterns[stopIndex], offsets, req.boardingAssumption);
+                                            bestTimes[stopIndex], previousPatterns[stopIndex], offsets, boardingAssumption);
 
                             if (boardTime != -1 && boardTime < remainOnBoardTime) {
                                 // make sure we board the best frequency entry at a stop
@@ -526,29 +610,14 @@ public class RaptorWorker {
         // a sample would be able to reach these two stops within the walk limit, but that the two
         // intersections it is connected to cannot reach both.
 
-        // only loop over stops that were touched this minute
-        for (int s = allStopsTouched.nextSetBit(0); s >= 0; s = allStopsTouched.nextSetBit(s + 1)) {
-            // it's safe to use the best time at this stop for any number of transfers, even in range-raptor,
-            // because we allow unlimited transfers. this is slightly different from the original RAPTOR implementation:
-            // we do not necessarily compute all pareto-optimal paths on (journey time, number of transfers).
-            int baseTimeSeconds = timesAtTransitStops[s];
-            if (baseTimeSeconds != UNREACHED) {
-                int[] targets = data.targetsForStop.get(s);
-
-                if (targets == null)
-                    continue;
-
-                for (int i = 0; i < targets.length; i++) {
-                    int targetIndex = targets[i++]; // increment i after read
-                    // the cache has time in seconds rather than distance, to avoid costly floating-point divides and integer casts here.
-                    int propagated_time = baseTimeSeconds + targets[i];
-
-                    if (timesAtTargets[targetIndex] > propagated_time) {
-                        timesAtTargets[targetIndex] = propagated_time;
-                    }
-                }
-            }
-        }
+        // Only propagate from stops that were touched this minute. Range-raptor keeps the state of the previous
+        // (later) minute, whose times have already been propagated, so the other stops cannot improve any target.
+        // It's safe to use the best time at a stop for any number of transfers, even in range-raptor,
+        // because we allow unlimited transfers. this is slightly different from the original RAPTOR implementation:
+        // we do not necessarily compute all pareto-optimal paths on (journey time, number of transfers).
+        // The egress times are in seconds rather than distances, to avoid costly floating-point divides and integer
+        // casts here, and grouped by tiles of targets (see PropagationTiles).
+        data.propagationTiles.propagate(timesAtTransitStops, allStopsTouched, timesAtTargets);
         totalPropagationTime += (System.currentTimeMillis() - beginPropagationTime);
     }
 
@@ -23,6 +23,7 @@ import org.opentripplanner.analyst.scenario.AddTripPattern;
 import org.opentripplanner.analyst.scenario.ConvertToFrequency;
 import org.opentripplanner.analyst.scenario.Scenario;
 import org.opentripplanner.analyst.scenario.TransferRule;
+import org.opentripplanner.analyst.scenario.TripFilter;
 import org.opentripplanner.analyst.scenario.TripPatternFilter;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.algorithm.AStar;
@@ -47,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -93,14 +95,18 @@ public class RaptorWorkerData implements Serializable {
     public RaptorWorkerTimetable.BoardingAssumption boardingAssumption;
 
     /**
-     * For each stop, one pair of ints (targetID, distanceMeters) for each destination near that stop.
-     * For generic TimeSurfaces these are street intersections. They could be anything though since the worker doesn't
-     * care what the IDs stand for. For example, they could be point indexes in a pointset.
+     * The egress times from each stop to the destinations near that stop, grouped by tiles of targets for fast
+     * propagation. For generic TimeSurfaces the targets are street intersections. They could be anything though since
+     * the worker doesn't care what the IDs stand for. For example, they could be point indexes in a pointset.
      */
-    public final List<int[]> targetsForStop = new ArrayList<>();
+    public final PropagationTiles propagationTiles;
 
     /** The 0-based RAPTOR indices of each stop from their vertex IDs */
     public transient final TIntIntMap indexForStop;
+
+    /** The 0-based RAPTOR indices of the timetables of each pattern, used to share timetables with scenario variants. */
+    public transient final TObjectIntMap<TripPattern> indexForPattern;
+
      /** Optional debug data: the name of each stop. */
     public transient final List<String> stopNames = new ArrayList<>();
     public transient final List<String> patternNames = new ArrayList<>();
@@ -120,13 +126,23 @@ public class RaptorWorkerData implements Serializable {
 
     /** Create RaptorWorkerData to be used to build ResultSets directly without creating an intermediate SampleSet */
     public RaptorWorkerData (Graph graph, TimeWindow window, ProfileRequest req, SampleSet sampleSet, TaskStatistics ts) {
+        this(graph, window, req, sampleSet, ts, null);
+    }
+
+    /**
+     * Create RaptorWorkerData for a scenario, sharing the timetables of the patterns the scenario does not modify with
+     * the given base data, which must have been built without a scenario on the same graph and time window. This
+     * avoids rebuilding the timetables of every pattern for each variant of a baseline. The base may be null.
+     */
+    public RaptorWorkerData (Graph graph, TimeWindow window, ProfileRequest req, SampleSet sampleSet, TaskStatistics ts,
+                             RaptorWorkerData base) {
         Scenario scenario = req.scenario;
 
         int totalPatterns = graph.index.patternForId.size();
         int totalStops = graph.index.stopForId.size();
         timetablesForPattern = new ArrayList<RaptorWorkerTimetable>(totalPatterns);
         List<TripPattern> patternForIndex = Lists.newArrayList(totalPatterns);
-        TObjectIntMap<TripPattern> indexForPattern = new TObjectIntHashMap<>(totalPatterns, 0.75f, -1);
+        indexForPattern = new TObjectIntHashMap<>(totalPatterns, 0.75f, -1);
         indexForStop = new TIntIntHashMap(totalStops, 0.75f, Integer.MIN_VALUE, -1);
         TIntList stopForIndex = new TIntArrayList(totalStops, Integer.MIN_VALUE);
 
@@ -140,6 +156,15 @@ public class RaptorWorkerData implements Serializable {
         // first apply any filters that need to be applied to the entire schedule at once
         Collection<TripPattern> graphPatterns = graph.index.patternForId.values();
 
+        // timetables can only be shared with the base data if they are built from the same patterns
+        boolean shareWithBase = base != null && base.indexForPattern != null;
+
+        List<TripFilter> tripFilters = Collections.emptyList();
+        if (scenario != null && scenario.modifications != null) {
+            tripFilters = new ArrayList<>();
+            Iterables.addAll(tripFilters, Iterables.filter(scenario.modifications, TripFilter.class));
+        }
+
         // convert scheduled trips to freuquencies as needed
         if (scenario != null && scenario.modifications != null) {
             Collection<ConvertToFrequency> frequencies = scenario.modifications.stream()
@@ -148,6 +173,8 @@ public class RaptorWorkerData implements Serializable {
                     .collect(Collectors.toList());
 
             if (!frequencies.isEmpty()) {
+                shareWithBase = false;
+
                 // apply the operations
                 List<TripTimes> scheduled = graphPatterns.stream()
                         .flatMap(p -> p.scheduledTimetable.tripTimes.stream())
@@ -216,8 +243,14 @@ public class RaptorWorkerData implements Serializable {
             }
 
             for (TripPattern pattern : patterns) {
-                RaptorWorkerTimetable timetable = RaptorWorkerTimetable
-                        .forPattern(graph, pattern, window, scenario, ts);
+                RaptorWorkerTimetable timetable;
+                if (shareWithBase && pattern == originalPattern && !couldAffect(tripFilters, pattern)) {
+                    // the scenario leaves this pattern untouched, reuse the times of the base data
+                    int baseIndex = base.indexForPattern.get(pattern);
+                    timetable = baseIndex == -1 ? null : base.timetablesForPattern.get(baseIndex).sharedCopy(ts);
+                } else {
+                    timetable = RaptorWorkerTimetable.forPattern(graph, pattern, window, scenario, ts);
+                }
                 if (timetable == null) {
                     // Pattern is not running during the time window
                     continue;
@@ -449,8 +482,10 @@ public class RaptorWorkerData implements Serializable {
         StopTreeCache stc = graph.index.getStopTreeCache();
         ts.stopTreeCaching = (int) (System.currentTimeMillis() - stcStart);
 
-        // Record times to nearby intersections for all used stops.
+        // Record times to nearby intersections for all used stops, as one pair of ints (targetID, seconds) for each
+        // target near each stop. They are only kept once grouped into propagation tiles.
         // We use times rather than distances to avoid a costly floating-point divide during propagation
+        List<int[]> targetsForStop = new ArrayList<>();
         if (sampleSet == null) {
             int maxWalkDistance = (int) (req.maxWalkTime * 60 * req.walkSpeed);
             for (TIntIterator stopIt = stopForIndex.iterator(); stopIt.hasNext();) {
@@ -460,7 +495,7 @@ public class RaptorWorkerData implements Serializable {
                 Vertex tstop = graph.getVertexById(stop);
                 boolean isPermanentStop = tstop != null && TransitStop.class.isInstance(tstop);
                 // convert distance to time
-                int[] distancesForStop = isPermanentStop ? stc.distancesForStop.get(tstop) : temporaryStopTreeCache.get(stop);
+                int[] distancesForStop = isPermanentStop ? stc.getDistancesForStop((TransitStop) tstop) : temporaryStopTreeCache.get(stop);
                 TIntList timesForStop = new TIntArrayList();
 
                 for (int i = 0; i < distancesForStop.length; i += 2) {
@@ -544,7 +579,7 @@ public class RaptorWorkerData implements Serializable {
                 Vertex tstop = graph.getVertexById(stop);
                 if (tstop != null && TransitStop.class.isInstance(tstop))
                     // permanent stop
-                    distancesForStop = stc.distancesForStop.get(tstop);
+                    distancesForStop = stc.getDistancesForStop((TransitStop) tstop);
                 else
                     // temporary stop
                     distancesForStop = temporaryStopTreeCache.get(stop);
@@ -584,6 +619,10 @@ public class RaptorWorkerData implements Serializable {
             nTargets = sampleSet.pset.capacity;
         }
 
+        long tilesStart = System.currentTimeMillis();
+        propagationTiles = new PropagationTiles(targetsForStop, nTargets);
+        LOG.info("Grouped egress times into tiles in {} ms", System.currentTimeMillis() - tilesStart);
+
         // store transfer rules by stop
         if (scenario != null && scenario.modifications != null) {
             for (TransferRule tr : Iterables.filter(scenario.modifications, TransferRule.class)) {
@@ -615,6 +654,30 @@ public class RaptorWorkerData implements Serializable {
         ts.targetCount = nTargets;
     }
 
+    private static boolean couldAffect (List<TripFilter> tripFilters, TripPattern pattern) {
+        for (TripFilter filter : tripFilters) {
+            if (filter.couldAffect(pattern))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return an estimate of the memory used by this data in bytes, counting timetables shared with other
+     * RaptorWorkerData in full.
+     */
+    public long estimateMemoryBytes () {
+        long bytes = 0;
+        for (RaptorWorkerTimetable timetable : timetablesForPattern) bytes += 64 + timetable.estimateMemoryBytes();
+        for (List<int[]> arrays : Arrays.asList(transfersForStop, patternsForStop)) {
+            for (int[] array : arrays) bytes += 16 + 4L * array.length;
+        }
+        bytes += propagationTiles.estimateMemoryBytes();
+        // open-addressing hash maps from stop vertex and pattern to RAPTOR index, about half full
+        bytes += 2 * (4 + 4 + 1) * (long) indexForStop.size() + 2 * (8 + 4 + 1) * (long) indexForPattern.size();
+        return bytes;
+    }
+
     /** find stops from a given SPT, including temporary stops. If useTimes is true, use times from the SPT, otherwise use distances */
     public TIntIntMap findStopsNear (ShortestPathTree spt, Graph graph, boolean useTimes, float walkSpeed) {
         TIntIntMap accessTimes = new TIntIntHashMap();
@@ -0,0 +1,154 @@
+package org.opentripplanner.profile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.opentripplanner.analyst.SampleSet;
+import org.opentripplanner.analyst.cluster.TaskStatistics;
+import org.opentripplanner.analyst.scenario.Scenario;
+import org.opentripplanner.routing.graph.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of RaptorWorkerData shared by all the tasks searching the same graph, time window and scenario, as the
+ * thousands of origins of a regional analysis do. Building the data is a large part of the time taken by each task.
+ *
+ * Entries are weighed on their estimated memory use, and the least recently used entries are evicted once the maximum
+ * weight is reached. The data for a scenario is derived from the data without a scenario for the same graph, time
+ * window and targets, which is cached as well: only the timetables of the patterns modified by the scenario are
+ * rebuilt, the others are shared.
+ *
+ * Scenarios are identified by a hash of their serialized modifications rather than by their ID, which is chosen by the
+ * client and may be reused for different modifications.
+ */
+public class RaptorWorkerDataCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RaptorWorkerDataCache.class);
+
+    private final Cache<Key, RaptorWorkerData> cache;
+
+    public RaptorWorkerDataCache (long maxMegabytes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxMegabytes * 1024)
+                // weights are in kilobytes so that large data does not overflow an int
+                .weigher((Key key, RaptorWorkerData data) -> (int) Math.min(Integer.MAX_VALUE, data.estimateMemoryBytes() / 1024))
+                .recordStats()
+                .build();
+    }
+
+    /** @return the RAPTOR worker data for the given request, from the cache or built and cached if needed. */
+    public RaptorWorkerData get (String graphId, ProfileRequest request, Graph graph, SampleSet sampleSet, TaskStatistics ts) {
+        Key key = new Key(graphId, request, graph, sampleSet);
+        try {
+            return cache.get(key, () -> {
+                RaptorWorkerData base = request.scenario == null ? null : getBase(graphId, request, graph, sampleSet, ts);
+                RaptorWorkerData data = RepeatedRaptorProfileRouter.getRaptorWorkerData(request, graph, sampleSet, ts, base);
+                LOG.info("Cached RAPTOR data for scenario {} on graph {}, about {} kB",
+                        request.scenario == null ? null : request.scenario.id, graphId,
+                        data.estimateMemoryBytes() / 1024);
+                return data;
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new RuntimeException("Error building RAPTOR data", e.getCause());
+        }
+    }
+
+    /**
+     * @return RAPTOR worker data for the given request, derived from the cached data without a scenario but not cached
+     * itself. This is for requests whose scenario changes from one request to the next.
+     */
+    public RaptorWorkerData derive (String graphId, ProfileRequest request, Graph graph, SampleSet sampleSet, TaskStatistics ts) {
+        if (request.scenario == null) {
+            return get(graphId, request, graph, sampleSet, ts);
+        }
+        RaptorWorkerData base = getBase(graphId, request, graph, sampleSet, ts);
+        return RepeatedRaptorProfileRouter.getRaptorWorkerData(request, graph, sampleSet, ts, base);
+    }
+
+    /** @return the cached data for the given request without its scenario. */
+    private RaptorWorkerData getBase (String graphId, ProfileRequest request, Graph graph, SampleSet sampleSet, TaskStatistics ts) {
+        ProfileRequest baseRequest;
+        try {
+            baseRequest = request.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        baseRequest.scenario = null;
+        return get(graphId, baseRequest, graph, sampleSet, ts);
+    }
+
+    public CacheStats stats () {
+        return cache.stats();
+    }
+
+    public void invalidateAll () {
+        cache.invalidateAll();
+    }
+
+    /** The graph, time window, scenario and targets, and the request parameters on which the RAPTOR data depend. */
+    private static class Key {
+
+        final String graphId;
+        final TimeWindow window;
+        final RaptorWorkerTimetable.BoardingAssumption boardingAssumption;
+        /** Hash of the scenario modifications, or null without a scenario. */
+        final HashCode scenarioHash;
+        /** Sample sets are compared by identity, they are cached per point set and graph. */
+        final SampleSet sampleSet;
+        final float walkSpeed;
+        final int maxWalkTime;
+
+        Key (String graphId, ProfileRequest request, Graph graph, SampleSet sampleSet) {
+            this.graphId = graphId;
+            this.window = RepeatedRaptorProfileRouter.getTimeWindow(request, graph);
+            this.boardingAssumption = request.boardingAssumption;
+            this.scenarioHash = request.scenario == null ? null : hashModifications(request.scenario);
+            this.sampleSet = sampleSet;
+            this.walkSpeed = request.walkSpeed;
+            this.maxWalkTime = request.maxWalkTime;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return graphId.equals(other.graphId) && window.equals(other.window)
+                    && boardingAssumption == other.boardingAssumption && Objects.equals(scenarioHash, other.scenarioHash)
+                    && sampleSet == other.sampleSet && walkSpeed == other.walkSpeed
+                    && maxWalkTime == other.maxWalkTime;
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(graphId, window, boardingAssumption, scenarioHash, System.identityHashCode(sampleSet),
+                    walkSpeed, maxWalkTime);
+        }
+
+        /**
+         * @return a hash of the Java serialization of the scenario modifications. Some modifications keep state once
+         * applied, so the same modifications may hash differently after use, which only causes a cache miss.
+         */
+        private static HashCode hashModifications (Scenario scenario) {
+            Hasher hasher = Hashing.sha256().newHasher();
+            try (ObjectOutputStream out = new ObjectOutputStream(Funnels.asOutputStream(hasher))) {
+                out.writeObject(new ArrayList<>(scenario.modifications));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not hash the modifications of scenario " + scenario.id, e);
+            }
+            return hasher.hash();
+        }
+    }
+
+}
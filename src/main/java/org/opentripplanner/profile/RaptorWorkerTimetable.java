@@ -369,6 +369,41 @@ public class RaptorWorkerTimetable implements Serializable {
         return rwtt;
     }
 
+    /**
+     * Make a copy of this timetable for use in another RaptorWorkerData built on the same time window, sharing the
+     * time arrays, which are never modified once built. The stop indices, data index and parent data are specific to
+     * each RaptorWorkerData and are left for the caller to fill in.
+     */
+    RaptorWorkerTimetable sharedCopy (TaskStatistics ts) {
+        RaptorWorkerTimetable rwtt = new RaptorWorkerTimetable(nTrips, nStops);
+        rwtt.timesPerTrip = timesPerTrip;
+        rwtt.frequencyTrips = frequencyTrips;
+        rwtt.headwaySecs = headwaySecs;
+        rwtt.startTimes = startTimes;
+        rwtt.endTimes = endTimes;
+        rwtt.mode = mode;
+        rwtt.routeId = routeId;
+
+        ts.scheduledTripCount += timesPerTrip.length;
+        for (int i = 0; i < headwaySecs.length; i++) {
+            ts.frequencyTripCount += (endTimes[i] - startTimes[i]) / headwaySecs[i];
+        }
+        ts.frequencyEntryCount += getFrequencyTripCount();
+
+        return rwtt;
+    }
+
+    /** @return an estimate of the memory used by the times of this timetable, in bytes. */
+    long estimateMemoryBytes () {
+        long bytes = 0;
+        for (int[] times : timesPerTrip) bytes += 16 + 4L * times.length;
+        if (frequencyTrips != null) {
+            for (int[] times : frequencyTrips) bytes += 16 + 4L * times.length;
+            bytes += 12L * headwaySecs.length;
+        }
+        return bytes + 4L * stopIndices.length;
+    }
+
     /** Create a raptor worker timetable for an added pattern */
     public static RaptorWorkerTimetable forAddedPattern(AddTripPattern atp, TimeWindow window, TaskStatistics ts) {
         if (atp.temporaryStops.length < 2 || atp.timetables.isEmpty())
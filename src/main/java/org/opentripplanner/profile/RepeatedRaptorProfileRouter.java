@@ -8,6 +8,7 @@ import gnu.trove.map.TObjectLongMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
 import org.joda.time.DateTimeZone;
+import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.SampleSet;
 import org.opentripplanner.analyst.TimeSurface;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
@@ -30,6 +31,8 @@ import org.slf4j.LoggerFactory;
 
 import java.time.DayOfWeek;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Perform one-to-many profile routing using repeated RAPTOR searches. In this context, profile routing means finding
@@ -89,6 +92,9 @@ public class RepeatedRaptorProfileRouter {
     // Set this field to true before routing if you want the full travel times included in your response.
     public boolean includeTimes = false;
 
+    // Set this field to true before routing to run the Monte Carlo draws of each minute in parallel (see RaptorWorker).
+    public boolean parallelDraws = false;
+
     /**
      * Make a router to use for making time surfaces only.
      *
@@ -129,7 +135,6 @@ public class RepeatedRaptorProfileRouter {
 
     public ResultEnvelope route () {
 
-        boolean isochrone = (sampleSet == null); // When no sample set is provided, we're making isochrones.
         boolean transit = (request.transitModes != null && request.transitModes.isTransit()); // Does the search involve transit at all?
 
         long computationStartTime = System.currentTimeMillis();
@@ -149,20 +154,7 @@ public class RepeatedRaptorProfileRouter {
         // This will return null if we have no transit data, but will leave behind a pre-transit SPT.
         TIntIntMap transitStopAccessTimes = findInitialStops(false, raptorWorkerData);
         // Create an array containing the best travel time in seconds to each vertex in the graph when not using transit.
-        int[] nonTransitTimes = new int[Vertex.getMaxIndex()];
-        Arrays.fill(nonTransitTimes, Integer.MAX_VALUE);
-        for (State state : preTransitSpt.getAllStates()) {
-            // Note that we are using the walk distance divided by speed here in order to be consistent with the
-            // least-walk optimization in the initial stop search (and the stop tree cache which is used at egress)
-            // TODO consider why this matters, I'm using reported travel time from the states
-            int time = (int) state.getElapsedTimeSeconds();
-            int vidx = state.getVertex().getIndex();
-            int otime = nonTransitTimes[vidx];
-            // There may be dominated states in the SPT. Make sure we don't include them here.
-            if (otime > time) {
-                nonTransitTimes[vidx] = time;
-            }
-        }
+        int[] nonTransitTimes = getNonTransitTimes(preTransitSpt, null, Vertex.getMaxIndex());
         ts.initialStopSearch = (int) (System.currentTimeMillis() - initialStopStartTime);
 
         long walkSearchStart = System.currentTimeMillis(); // FIXME wasn't the walk search already performed above?
@@ -177,15 +169,12 @@ public class RepeatedRaptorProfileRouter {
 
         if (transit) {
             RaptorWorker worker = new RaptorWorker(raptorWorkerData, request);
+            worker.parallelDraws = parallelDraws;
             propagatedTimesStore = worker.runRaptor(graph, transitStopAccessTimes, nonTransitTimes, ts);
             ts.initialStopCount = transitStopAccessTimes.size();
         } else {
             // Nontransit case: skip transit routing and make a propagated times store based on only one row.
-            propagatedTimesStore = new PropagatedTimesStore(graph, request, nonTransitTimes.length);
-            int[][] singleRoundResults = new int[1][];
-            singleRoundResults[0] = nonTransitTimes;
-            propagatedTimesStore.setFromArray(singleRoundResults, new boolean[] {true},
-                    PropagatedTimesStore.ConfidenceCalculationMethod.MIN_MAX);
+            propagatedTimesStore = getNonTransitTimesStore(request, nonTransitTimes);
         }
         for (int min : propagatedTimesStore.mins) {
             if (min != RaptorWorker.UNREACHED) ts.targetsReached++;
@@ -195,20 +184,154 @@ public class RepeatedRaptorProfileRouter {
 
         // Turn the results of the search into isochrone geometries or accessibility data as requested.
         long resultSetStart = System.currentTimeMillis();
-        ResultEnvelope envelope = new ResultEnvelope();
-        if (isochrone) {
+        ResultEnvelope envelope = makeResults(propagatedTimesStore);
+        ts.resultSets = (int) (System.currentTimeMillis() - resultSetStart);
+        return envelope;
+    }
+
+    /**
+     * Route from each of the given origins, with the time window, modes, scenario and targets of this router (the
+     * origin of its request is ignored). This is what a regional accessibility job does for each point of its origin
+     * grid, without repeating the work that does not depend on the origin: the RAPTOR data are built once and shared
+     * by all the origins, and each thread keeps one RaptorWorker and its scratch arrays for all the origins it handles.
+     * Origins are processed in parallel on the common fork-join pool, so the Monte Carlo draws of each origin are not.
+     *
+     * Only the result envelopes are produced. The fields describing a single search (time surfaces, task statistics
+     * other than the RAPTOR data build time) are left untouched.
+     *
+     * This is an API for callers holding many origins at once. AnalystWorker does not call it: it receives regional
+     * jobs from the broker one origin per task, and routes each of them with route().
+     *
+     * @param origins the origins, typically a slice of a grid point set.
+     * @return one result envelope per origin, in the order of the point set. The envelope of an origin whose search
+     * failed is empty.
+     */
+    public List<ResultEnvelope> routeBatch (PointSet origins) {
+        boolean transit = (request.transitModes != null && request.transitModes.isTransit());
+        if (raptorWorkerData == null && transit) {
+            long dataStart = System.currentTimeMillis();
+            raptorWorkerData = getRaptorWorkerData(request, graph, sampleSet, ts);
+            ts.raptorData = (int) (System.currentTimeMillis() - dataStart);
+        }
+
+        long batchStartTime = System.currentTimeMillis();
+        LOG.info("Begin profile requests from {} origins", origins.featureCount());
+        ThreadLocal<BatchScratch> scratch = ThreadLocal.withInitial(BatchScratch::new);
+        ResultEnvelope[] envelopes = new ResultEnvelope[origins.featureCount()];
+        IntStream.range(0, origins.featureCount()).parallel().forEach(i -> {
+            try {
+                envelopes[i] = routeFromOrigin(origins.getLat(i), origins.getLon(i), transit, scratch.get());
+            } catch (Exception e) {
+                LOG.error("Error routing from origin {} of batch", i, e);
+                envelopes[i] = new ResultEnvelope();
+            }
+        });
+        LOG.info("Profile requests from {} origins finished in {} seconds", origins.featureCount(),
+                (System.currentTimeMillis() - batchStartTime) / 1000.0);
+        return Arrays.asList(envelopes);
+    }
+
+    /** Route from one origin of a batch, using the scratch state of the calling thread. */
+    private ResultEnvelope routeFromOrigin (double lat, double lon, boolean transit, BatchScratch scratch) {
+        ProfileRequest originRequest;
+        try {
+            originRequest = request.clone();
+        } catch (CloneNotSupportedException e) {
+            /* can't happen */
+            throw new RuntimeException(e);
+        }
+        originRequest.fromLat = originRequest.toLat = lat;
+        originRequest.fromLon = originRequest.toLon = lon;
+
+        ShortestPathTree spt = findPreTransitSpt(originRequest, false, transit ? raptorWorkerData : null);
+        // The vertices of this search, including the temporary ones of this origin. Other threads may add more.
+        int nVertices = Vertex.getMaxIndex();
+        TIntIntMap accessTimes = null;
+        try {
+            scratch.vertexTimes = getNonTransitTimes(spt, scratch.vertexTimes, nVertices);
+            if (transit) {
+                accessTimes = raptorWorkerData.findStopsNear(spt, graph,
+                        spt.getOptions().modes.contains(TraverseMode.BICYCLE), originRequest.walkSpeed);
+            }
+        } finally {
+            // Remove the temporary edges linking this origin to the streets, or they pile up over the whole batch.
+            spt.getOptions().cleanup();
+        }
+        // Without a point set the vertices are the targets, and the result must have exactly one element per vertex.
+        int[] nonTransitTimes = sampleSet != null ? sampleSet.eval(scratch.vertexTimes) :
+                Arrays.copyOf(scratch.vertexTimes, nVertices);
+
+        PropagatedTimesStore store;
+        if (transit) {
+            // Workers only depend on the time window and boarding assumption of the request, shared by all origins.
+            if (scratch.worker == null) scratch.worker = new RaptorWorker(raptorWorkerData, originRequest);
+            store = scratch.worker.runRaptor(graph, accessTimes, nonTransitTimes, new TaskStatistics());
+        } else {
+            store = getNonTransitTimesStore(originRequest, nonTransitTimes);
+        }
+        return makeResults(store);
+    }
+
+    /** Per-thread state reused across the origins of a batch. */
+    private static class BatchScratch {
+        RaptorWorker worker;
+        /** Indexed on vertices, and longer than the number of vertices to make room for the temporary ones. */
+        int[] vertexTimes;
+    }
+
+    /**
+     * @param nonTransitTimes an array to reuse, or null.
+     * @param nVertices the number of vertices, which must be larger than the index of every vertex in the tree.
+     * @return the best travel time in seconds to each vertex in the graph when not using transit. This is the given
+     * array if it is long enough, otherwise a new one with room for more vertices. Only the first nVertices elements
+     * are meaningful.
+     */
+    private static int[] getNonTransitTimes (ShortestPathTree spt, int[] nonTransitTimes, int nVertices) {
+        if (nonTransitTimes == null) {
+            nonTransitTimes = new int[nVertices];
+        } else if (nonTransitTimes.length < nVertices) {
+            // Each origin of a batch adds temporary vertices, so leave some room rather than growing for every origin.
+            nonTransitTimes = new int[Math.max(nVertices, nonTransitTimes.length + nonTransitTimes.length / 2)];
+        }
+        Arrays.fill(nonTransitTimes, 0, nVertices, Integer.MAX_VALUE);
+        for (State state : spt.getAllStates()) {
+            // Note that we are using the walk distance divided by speed here in order to be consistent with the
+            // least-walk optimization in the initial stop search (and the stop tree cache which is used at egress)
+            // TODO consider why this matters, I'm using reported travel time from the states
+            int time = (int) state.getElapsedTimeSeconds();
+            int vidx = state.getVertex().getIndex();
+            int otime = nonTransitTimes[vidx];
+            // There may be dominated states in the SPT. Make sure we don't include them here.
+            if (otime > time) {
+                nonTransitTimes[vidx] = time;
+            }
+        }
+        return nonTransitTimes;
+    }
+
+    /** Nontransit case: skip transit routing and make a propagated times store based on only one row. */
+    private PropagatedTimesStore getNonTransitTimesStore (ProfileRequest request, int[] nonTransitTimes) {
+        PropagatedTimesStore store = new PropagatedTimesStore(graph, request, nonTransitTimes.length);
+        int[][] singleRoundResults = new int[1][];
+        singleRoundResults[0] = nonTransitTimes;
+        store.setFromArray(singleRoundResults, new boolean[] {true},
+                PropagatedTimesStore.ConfidenceCalculationMethod.MIN_MAX);
+        return store;
+    }
+
+    /** Turn the results of a search into isochrone geometries or accessibility data as requested. */
+    private ResultEnvelope makeResults (PropagatedTimesStore store) {
+        if (sampleSet == null) {
             // No destination point set was provided and we're just making isochrones based on travel time to vertices,
             // rather than finding access times to a set of user-specified points.
-            envelope = propagatedTimesStore.makeIsochronesForVertices();
+            return store.makeIsochronesForVertices();
         } else {
             // A destination point set was provided. We've found access times to a set of specified points.
             // TODO actually use those boolean params to calculate isochrones on a regular grid pointset
             // TODO maybe there's a better way to pass includeTimes in here from the clusterRequest,
             // maybe we should just provide the whole clusterRequest not just the wrapped profileRequest.
-            envelope = propagatedTimesStore.makeResults(sampleSet, includeTimes, true, false);
+            return store.makeResults(sampleSet, includeTimes, true, false);
         }
-        ts.resultSets = (int) (System.currentTimeMillis() - resultSetStart);
-        return envelope;
     }
 
     /**
@@ -221,6 +344,22 @@ public class RepeatedRaptorProfileRouter {
     @VisibleForTesting
     public TIntIntMap findInitialStops(boolean dest, RaptorWorkerData data) {
         LOG.info("Finding initial stops");
+        preTransitSpt = findPreTransitSpt(request, dest, data);
+
+        // Return nearest stops if we're using transit,
+        // otherwise return null and leave preTransitSpt around for later use.
+        if (data != null) {
+            TIntIntMap accessTimes = data.findStopsNear(preTransitSpt, graph,
+                    preTransitSpt.getOptions().modes.contains(TraverseMode.BICYCLE), request.walkSpeed);
+            LOG.info("Found {} transit stops", accessTimes.size());
+            return accessTimes;
+        } else {
+            return null;
+        }
+    }
+
+    /** @return the tree of on-street travel times around the origin (or destination) of the given request. */
+    private ShortestPathTree findPreTransitSpt(ProfileRequest request, boolean dest, RaptorWorkerData data) {
         double lat = dest ? request.toLat : request.fromLat;
         double lon = dest ? request.toLon : request.fromLon;
         QualifiedModeSet modes = dest ? request.egressModes : request.accessModes;
@@ -268,21 +407,21 @@ public class RepeatedRaptorProfileRouter {
         rr.longDistance = true;
 
         AStar aStar = new AStar();
-        preTransitSpt = aStar.getShortestPathTree(rr, 5);
-
-        // Return nearest stops if we're using transit,
-        // otherwise return null and leave preTransitSpt around for later use.
-        if (data != null) {
-            TIntIntMap accessTimes = data.findStopsNear(preTransitSpt, graph, rr.modes.contains(TraverseMode.BICYCLE), request.walkSpeed);
-            LOG.info("Found {} transit stops", accessTimes.size());
-            return accessTimes;
-        } else {
-            return null;
-        }
+        return aStar.getShortestPathTree(rr, 5);
     }
 
     /** Create RAPTOR worker data from a graph, profile request and sample set (the last of which may be null */
     public static RaptorWorkerData getRaptorWorkerData (ProfileRequest request, Graph graph, SampleSet sampleSet, TaskStatistics ts) {
+        return getRaptorWorkerData(request, graph, sampleSet, ts, null);
+    }
+
+    /**
+     * Create RAPTOR worker data from a graph, profile request and sample set (the last of which may be null), sharing
+     * the timetables not modified by the scenario of the request with the given base data built without a scenario
+     * for the same graph, time window and sample set (which may also be null).
+     */
+    public static RaptorWorkerData getRaptorWorkerData (ProfileRequest request, Graph graph, SampleSet sampleSet,
+                                                        TaskStatistics ts, RaptorWorkerData base) {
         LOG.info("Make data...");
         long startData = System.currentTimeMillis();
 
@@ -297,18 +436,8 @@ public class RepeatedRaptorProfileRouter {
             }
         }
 
-        // convert from joda to java - ISO day of week with monday == 1
-        DayOfWeek dayOfWeek = DayOfWeek.of(request.date.getDayOfWeek());
-
-        TimeWindow window = new TimeWindow(request.fromTime, request.toTime + RaptorWorker.MAX_DURATION,
-                graph.index.servicesRunning(request.date), dayOfWeek);
-
-        RaptorWorkerData raptorWorkerData;
-        if (sampleSet == null)
-            raptorWorkerData = new RaptorWorkerData(graph, window, request, ts);
-        else
-            raptorWorkerData = new RaptorWorkerData(graph, window, request, sampleSet,
-                    ts);
+        TimeWindow window = getTimeWindow(request, graph);
+        RaptorWorkerData raptorWorkerData = new RaptorWorkerData(graph, window, request, sampleSet, ts, base);
 
         ts.raptorData = (int) (System.currentTimeMillis() - startData);
 
@@ -316,4 +445,13 @@ public class RepeatedRaptorProfileRouter {
 
         return raptorWorkerData;
     }
+
+    /** @return the time window searched for the given request, including the time needed to reach the targets. */
+    public static TimeWindow getTimeWindow (ProfileRequest request, Graph graph) {
+        // convert from joda to java - ISO day of week with monday == 1
+        DayOfWeek dayOfWeek = DayOfWeek.of(request.date.getDayOfWeek());
+
+        return new TimeWindow(request.fromTime, request.toTime + RaptorWorker.MAX_DURATION,
+                graph.index.servicesRunning(request.date), dayOfWeek);
+    }
 }
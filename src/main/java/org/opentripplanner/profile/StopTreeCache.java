@@ -1,38 +1,92 @@
 package org.opentripplanner.profile;
 
-import com.beust.jcommander.internal.Maps;
-
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import org.opentripplanner.routing.algorithm.AStar;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.spt.DominanceFunction;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.opentripplanner.routing.vertextype.TransitStop;
+import org.opentripplanner.util.MappedFileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * Keeps travel distances from all transit stops in a particular Graph to their nearby street nodes.
  * This allows us to propagate travel times out from transit to streets much faster in one-to-many analyst queries.
  * The StopTreeCache has a fixed distance cutoff, so will be unable to provide distance information for vertices beyond
  * that cutoff distance.
+ *
+ * The distances are stored in compressed sparse row layout: the entries of stop s are the positions firstEntry[s]
+ * (inclusive) to firstEntry[s + 1] (exclusive) of two parallel columns, the vertex indices and the distances, in
+ * units of distanceUnit meters packed in 16 bits. Propagating from a stop thus reads two contiguous runs of memory.
+ * A newly built cache has the entries of each stop sorted on vertex index, so that propagation writes the target
+ * array in ascending order. A mapped cache keeps the order of the file, which need not match the vertex indices of
+ * the current process; no caller depends on the order.
+ *
+ * The cache can be saved to a file and memory-mapped back for the same serialized graph (see save() and map()). Vertex
+ * indices are not stable across graph loads, so the file identifies vertices by an incident edge id, and only the
+ * vertex column is rebuilt on the heap when mapping. The distance column stays in the mapped file.
  */
 public class StopTreeCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(StopTreeCache.class);
+
+    /** "OTPS", the first four bytes of a saved stop tree cache. */
+    private static final int MAGIC = 0x4F545053;
+
+    /** Incremented whenever the layout written by save() changes. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Magic, version, cutoff, distance unit, counts and the stamp of the graph the file was built for. */
+    private static final int HEADER_BYTES = 6 * 4 + 8;
+
+    private final Graph graph;
+
     final int maxWalkMeters;
-    // Flattened 2D array of (streetVertexIndex, distanceFromStop) for each TransitStop
-    public final Map<TransitStop, int[]> distancesForStop = Maps.newHashMap();
+
+    /** The number of meters in one unit of the distance column, chosen so that maxWalkMeters fits in 16 bits. */
+    final int distanceUnit;
+
+    private final TransitStop[] stops;
+
+    /** Vertex index of each TransitStop to its position in stops. */
+    private final TIntIntMap stopForVertex;
+
+    private final int[] firstEntry;
+
+    private final int[] vertices;
+
+    private final CharBuffer distances;
 
     public StopTreeCache (Graph graph, int maxWalkMeters) {
+        this.graph = graph;
         this.maxWalkMeters = maxWalkMeters;
+        this.distanceUnit = unitFor(maxWalkMeters);
         LOG.info("Caching distances to nearby street intersections from each transit stop...");
-        graph.index.stopVertexForStop.values().parallelStream().forEach(tstop -> {
+        Collection<TransitStop> transitStops = graph.index.stopVertexForStop.values();
+        stops = transitStops.toArray(new TransitStop[transitStops.size()]);
+        // Flattened 2D array of (streetVertexIndex, distanceFromStop) for each TransitStop
+        int[][] distancesForStop = new int[stops.length][];
+        Arrays.parallelSetAll(distancesForStop, s -> {
+            TransitStop tstop = stops[s];
             RoutingRequest rr = new RoutingRequest(TraverseMode.WALK);
             rr.batch = (true);
             rr.setRoutingContext(graph, tstop, tstop);
@@ -49,26 +103,220 @@ public class StopTreeCache {
             rr.dominanceFunction = new DominanceFunction.LeastWalk();
 
             ShortestPathTree spt = astar.getShortestPathTree(rr, 5); // timeout in seconds
-            // Copy vertex indices and distances into a flattened 2D array
-            int[] distances = new int[spt.getVertexCount() * 2];
+            long[] packed = new long[spt.getVertexCount()];
             int i = 0;
             for (Vertex vertex : spt.getVertices()) {
                 State state = spt.getState(vertex);
-                
+
                 if (state == null)
                     continue;
-                
-                distances[i++] = vertex.getIndex();
-                distances[i++] = (int) state.getWalkDistance();
+
+                // sort on vertex index by packing it in the high bits
+                packed[i++] = ((long) vertex.getIndex() << 32) | ((int) state.getWalkDistance() & 0xFFFFFFFFL);
             }
 
             rr.cleanup();
 
-            synchronized (distancesForStop) {
-                distancesForStop.put(tstop, distances);
+            Arrays.sort(packed, 0, i);
+            int[] distances = new int[i * 2];
+            for (int j = 0; j < i; j++) {
+                distances[j * 2] = (int) (packed[j] >>> 32);
+                distances[j * 2 + 1] = (int) packed[j];
             }
+            return distances;
         });
-        LOG.info("Done caching distances to nearby street intersections from each transit stop.");
+
+        firstEntry = new int[stops.length + 1];
+        for (int s = 0; s < stops.length; s++) {
+            firstEntry[s + 1] = firstEntry[s] + distancesForStop[s].length / 2;
+        }
+        vertices = new int[firstEntry[stops.length]];
+        char[] packedDistances = new char[vertices.length];
+        for (int s = 0; s < stops.length; s++) {
+            int[] distances = distancesForStop[s];
+            for (int i = 0, e = firstEntry[s]; i < distances.length; i += 2, e++) {
+                vertices[e] = distances[i];
+                // round up so that distances are never underestimated
+                int units = (Math.min(distances[i + 1], maxWalkMeters) + distanceUnit - 1) / distanceUnit;
+                packedDistances[e] = (char) units;
+            }
+        }
+        distances = CharBuffer.wrap(packedDistances);
+        stopForVertex = indexStops(stops);
+        LOG.info("Done caching {} distances to nearby street intersections from {} transit stops.", vertices.length,
+                stops.length);
+    }
+
+    /**
+     * Create a stop tree cache whose distance column is a read-only view on the given buffer, which holds a cache
+     * written by save(). The stops and vertices are looked up by edge id in the graph.
+     */
+    private StopTreeCache (Graph graph, ByteBuffer buffer, long graphStamp) {
+        this.graph = graph;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Not a stop tree cache.");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported stop tree cache version " + buffer.getInt(4));
+        }
+        if (buffer.getLong(24) != graphStamp) {
+            throw new IllegalStateException("The stop tree cache was built for another serialized graph.");
+        }
+        maxWalkMeters = buffer.getInt(8);
+        distanceUnit = buffer.getInt(12);
+        int nStops = buffer.getInt(16);
+        int nEntries = buffer.getInt(20);
+        buffer.position(HEADER_BYTES);
+
+        IntBuffer stopRefs = slice(buffer, nStops * 4).asIntBuffer();
+        stops = new TransitStop[nStops];
+        for (int s = 0; s < nStops; s++) {
+            Vertex stop = vertexForRef(graph, stopRefs.get(s));
+            if (!(stop instanceof TransitStop)) {
+                throw new IllegalStateException("Stop tree cache does not match the graph (stop " + s + ").");
+            }
+            stops[s] = (TransitStop) stop;
+        }
+
+        firstEntry = new int[nStops + 1];
+        slice(buffer, (nStops + 1) * 4).asIntBuffer().get(firstEntry);
+
+        IntBuffer vertexRefs = slice(buffer, nEntries * 4).asIntBuffer();
+        vertices = new int[nEntries];
+        TIntIntMap indexForRef = new TIntIntHashMap(nEntries / 8 + 16, 0.5f, Integer.MIN_VALUE, -1);
+        for (int e = 0; e < nEntries; e++) {
+            int ref = vertexRefs.get(e);
+            int index = indexForRef.get(ref);
+            if (index == -1) {
+                index = vertexForRef(graph, ref).getIndex();
+                indexForRef.put(ref, index);
+            }
+            vertices[e] = index;
+        }
+
+        distances = slice(buffer, nEntries * 2).asCharBuffer();
+        stopForVertex = indexStops(stops);
+    }
+
+    private static int unitFor (int maxWalkMeters) {
+        return Math.max(1, (maxWalkMeters + Character.MAX_VALUE - 1) / Character.MAX_VALUE);
+    }
+
+    private static TIntIntMap indexStops (TransitStop[] stops) {
+        TIntIntMap stopForVertex = new TIntIntHashMap(stops.length * 2, 0.5f, Integer.MIN_VALUE, -1);
+        for (int s = 0; s < stops.length; s++) {
+            stopForVertex.put(stops[s].getIndex(), s);
+        }
+        return stopForVertex;
+    }
+
+    /** Take the next length bytes of the buffer as a new little-endian buffer, and advance past them. */
+    private static ByteBuffer slice (ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** @return a reference to the vertex that survives serialization: twice the id of an incident edge, plus one if
+     * the vertex is the to vertex of that edge, or -1 if the vertex has no edges. */
+    private static int refForVertex (Vertex vertex) {
+        for (Edge e : vertex.getOutgoing()) return e.getId() * 2;
+        for (Edge e : vertex.getIncoming()) return e.getId() * 2 + 1;
+        return -1;
+    }
+
+    private static Vertex vertexForRef (Graph graph, int ref) {
+        Edge edge = graph.getEdgeById(ref >>> 1);
+        if (edge == null) {
+            throw new IllegalStateException("Stop tree cache does not match the graph (edge " + (ref >>> 1) + ").");
+        }
+        return (ref & 1) == 0 ? edge.getFromVertex() : edge.getToVertex();
+    }
+
+    /**
+     * Write this stop tree cache to a file that can later be memory-mapped with map(). Vertices are identified by edge
+     * ids, so the file is only valid for the serialized graph the cache was built from. Vertices without any edge do
+     * not survive serialization and are left out. The serialized graph is recorded in the header as the given stamp
+     * (see Graph.getFileStamp()), and the file is replaced atomically.
+     */
+    public void save (File file, long graphStamp) throws IOException {
+        int[] stopRefs = new int[stops.length];
+        int[] savedFirstEntry = new int[stops.length + 1];
+        int[] vertexRefs = new int[vertices.length];
+        char[] savedDistances = new char[vertices.length];
+        int nStopsSaved = 0;
+        int nSaved = 0;
+        for (int s = 0; s < stops.length; s++) {
+            int stopRef = refForVertex(stops[s]);
+            if (stopRef == -1) continue;
+            stopRefs[nStopsSaved++] = stopRef;
+            for (int e = firstEntry[s]; e < firstEntry[s + 1]; e++) {
+                Vertex vertex = graph.getVertexById(vertices[e]);
+                int ref = vertex == null ? -1 : refForVertex(vertex);
+                if (ref == -1) continue;
+                vertexRefs[nSaved] = ref;
+                savedDistances[nSaved++] = distances.get(e);
+            }
+            savedFirstEntry[nStopsSaved] = nSaved;
+        }
+
+        long size = HEADER_BYTES + (nStopsSaved * 2L + 1) * 4 + nSaved * 6L;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Stop tree cache is too large to be saved as a single file.");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(maxWalkMeters).putInt(distanceUnit)
+                .putInt(nStopsSaved).putInt(nSaved).putLong(graphStamp);
+        for (int s = 0; s < nStopsSaved; s++) buffer.putInt(stopRefs[s]);
+        for (int s = 0; s <= nStopsSaved; s++) buffer.putInt(savedFirstEntry[s]);
+        for (int e = 0; e < nSaved; e++) buffer.putInt(vertexRefs[e]);
+        for (int e = 0; e < nSaved; e++) buffer.putChar(savedDistances[e]);
+        buffer.flip();
+        MappedFileUtils.writeAtomically(buffer, file);
+    }
+
+    /**
+     * Memory-map a stop tree cache previously written by save() for the same serialized graph. The pages of the
+     * distance column are shared through the operating system page cache by every process that maps it.
+     * @throws IllegalStateException if the file was not saved with the given graph stamp.
+     */
+    public static StopTreeCache map (Graph graph, File file, long graphStamp) throws IOException {
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            StopTreeCache stc = new StopTreeCache(graph, buffer, graphStamp);
+            LOG.info("Mapped stop tree cache with {} stops and {} distances in {} msec.", stc.stops.length,
+                    stc.vertices.length, System.currentTimeMillis() - start);
+            return stc;
+        }
+    }
+
+    public int getMaxWalkMeters () {
+        return maxWalkMeters;
+    }
+
+    /** @return the transit stops of this cache. */
+    public Collection<TransitStop> getStops () {
+        return Arrays.asList(stops);
+    }
+
+    /**
+     * @return a flattened 2D array of (streetVertexIndex, distanceFromStop) pairs for each street vertex within the
+     * cutoff distance of the given stop, in no particular order, or an empty array if the stop is not in this cache.
+     */
+    public int[] getDistancesForStop (TransitStop transitStop) {
+        int stop = stopForVertex.get(transitStop.getIndex());
+        if (stop == -1) return RaptorWorkerData.EMPTY_INT_ARRAY;
+        int first = firstEntry[stop];
+        int[] ret = new int[(firstEntry[stop + 1] - first) * 2];
+        for (int i = 0, e = first; i < ret.length; i += 2, e++) {
+            ret[i] = vertices[e];
+            ret[i + 1] = distances.get(e) * distanceUnit;
+        }
+        return ret;
     }
 
     /**
@@ -77,23 +325,21 @@ public class StopTreeCache {
      * into the same targetArray.
      */
     public void propagateStop(TransitStop transitStop, int baseTimeSeconds, double walkSpeed, int[] targetArray) {
+        int stop = stopForVertex.get(transitStop.getIndex());
+        if (stop == -1) return;
         // Iterate over street intersections in the vicinity of this particular transit stop.
         // Shift the time range at this transit stop, merging it into that for all reachable street intersections.
-        int[] distances = distancesForStop.get(transitStop);
-        int v = 0;
-        while (v < distances.length) {
-            // Unravel flattened 2D array
-            int vertexIndex = distances[v++];
-            int distance = distances[v++];
+        // The loop has no data-dependent branch other than the minimum, which compiles to a conditional move.
+        double unitsPerSecond = walkSpeed / distanceUnit;
+        CharBuffer distances = this.distances;
+        int[] vertices = this.vertices;
+        for (int e = firstEntry[stop], end = firstEntry[stop + 1]; e < end; e++) {
             // distance in meters over walkspeed in meters per second --> seconds
-            int egressWalkTimeSeconds = (int) (distance / walkSpeed);
-            int propagated_time = baseTimeSeconds + egressWalkTimeSeconds;
-            int existing_min = targetArray[vertexIndex];
-            if (existing_min == 0 || existing_min > propagated_time) {
-                targetArray[vertexIndex] = propagated_time;
-            }
+            int propagatedTime = baseTimeSeconds + (int) (distances.get(e) / unitsPerSecond);
+            int vertexIndex = vertices[e];
+            int existingMin = targetArray[vertexIndex];
+            targetArray[vertexIndex] = existingMin == 0 || existingMin > propagatedTime ? propagatedTime : existingMin;
         }
-
     }
 
 }
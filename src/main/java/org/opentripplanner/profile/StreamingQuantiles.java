@@ -0,0 +1,118 @@
+package org.opentripplanner.profile;
+
+/**
+ * Estimates one quantile of the travel times to each of many targets, consuming the times one at a time without
+ * retaining them, using the P-square algorithm (Jain and Chlamtac, "The P2 algorithm for dynamic calculation of
+ * quantiles and histograms without storing observations", CACM 1985).
+ *
+ * Each target keeps five markers: the minimum, the maximum, the estimated quantile and two markers halfway between it
+ * and the extrema. When a time is added, the markers are shifted towards their desired positions and their heights are
+ * adjusted with a piecewise-parabolic interpolation. The first five times are kept exactly, so the estimate is exact
+ * until then. Memory is 44 bytes per target whatever the number of times added. Estimates of extreme quantiles are
+ * poor until a few dozen times have been added, which is well below the number of iterations of a profile search.
+ *
+ * The state of all the targets is stored in flat parallel arrays rather than in one object per target, as there may be
+ * millions of targets.
+ */
+public class StreamingQuantiles {
+
+    private static final int MARKERS = 5;
+
+    /** The quantile estimated, between 0 and 1. */
+    public final double quantile;
+
+    /** Increment of the desired position of each marker per time added. */
+    private final double[] desiredIncrement;
+
+    /** Marker heights, five per target. Until five times are added, the times added so far in ascending order. */
+    private final float[] heights;
+
+    /** Marker positions (zero-based ranks among the times added), five per target. */
+    private final int[] positions;
+
+    /** The number of times added for each target. */
+    private final int[] counts;
+
+    public StreamingQuantiles(int nTargets, double quantile) {
+        this.quantile = quantile;
+        this.desiredIncrement = new double[] { 0, quantile / 2, quantile, (1 + quantile) / 2, 1 };
+        this.heights = new float[nTargets * MARKERS];
+        this.positions = new int[nTargets * MARKERS];
+        this.counts = new int[nTargets];
+    }
+
+    public void add(int target, int time) {
+        int base = target * MARKERS;
+        int count = counts[target]++;
+        if (count < MARKERS) {
+            // insertion sort of the first times
+            int i = base + count;
+            while (i > base && heights[i - 1] > time) {
+                heights[i] = heights[i - 1];
+                i--;
+            }
+            heights[i] = time;
+            if (count == MARKERS - 1) {
+                for (int m = 0; m < MARKERS; m++) positions[base + m] = m;
+            }
+            return;
+        }
+
+        // find the cell containing the new time, extending the extrema if needed
+        int k;
+        if (time < heights[base]) {
+            heights[base] = time;
+            k = 0;
+        } else if (time >= heights[base + 4]) {
+            heights[base + 4] = time;
+            k = 3;
+        } else {
+            k = 0;
+            while (time >= heights[base + k + 1]) k++;
+        }
+        for (int m = k + 1; m < MARKERS; m++) positions[base + m]++;
+
+        // move the middle markers that are off their desired position by at least one rank
+        for (int m = 1; m < MARKERS - 1; m++) {
+            int i = base + m;
+            double d = desiredIncrement[m] * count - positions[i];
+            int gapAbove = positions[i + 1] - positions[i];
+            int gapBelow = positions[i - 1] - positions[i];
+            if ((d >= 1 && gapAbove > 1) || (d <= -1 && gapBelow < -1)) {
+                int step = d > 0 ? 1 : -1;
+                float height = parabolic(i, step);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] += step * (heights[i + step] - heights[i]) / (positions[i + step] - positions[i]);
+                }
+                positions[i] += step;
+            }
+        }
+    }
+
+    private float parabolic(int i, int step) {
+        double q = heights[i], qBelow = heights[i - 1], qAbove = heights[i + 1];
+        double n = positions[i], nBelow = positions[i - 1], nAbove = positions[i + 1];
+        return (float) (q + step / (nAbove - nBelow) * ((n - nBelow + step) * (qAbove - q) / (nAbove - n)
+                + (nAbove - n - step) * (q - qBelow) / (n - nBelow)));
+    }
+
+    /** @return the number of times added for the given target. */
+    public int getCount(int target) {
+        return counts[target];
+    }
+
+    /** @return the estimated quantile of the times added for the given target, or UNREACHED if none were added. */
+    public int get(int target) {
+        int count = counts[target];
+        if (count == 0) return RaptorWorker.UNREACHED;
+        int base = target * MARKERS;
+        if (count <= MARKERS) {
+            // exact, using the same rank as PropagatedTimesStore.setFromArray
+            return Math.round(heights[base + Math.min(count - 1, (int) (quantile * count))]);
+        }
+        return Math.round(heights[base + 2]);
+    }
+
+}
@@ -2,6 +2,7 @@ package org.opentripplanner.profile;
 
 import java.time.DayOfWeek;
 import java.util.BitSet;
+import java.util.Objects;
 
 public class TimeWindow {
     int from;
@@ -33,4 +34,17 @@ public class TimeWindow {
         return min_to - max_from;
     }
 
-}
\ No newline at end of file
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TimeWindow)) return false;
+        TimeWindow other = (TimeWindow) o;
+        return from == other.from && to == other.to && servicesRunning.equals(other.servicesRunning)
+                && dayOfWeek == other.dayOfWeek;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, to, servicesRunning, dayOfWeek);
+    }
+
+}
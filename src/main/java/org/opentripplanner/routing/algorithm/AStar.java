@@ -19,12 +19,15 @@ import java.util.LinkedList;
 import java.util.List;
 
 import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.common.pqueue.IndexedFourAryHeap;
+import org.opentripplanner.common.pqueue.OTPPriorityQueue;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.core.RoutingContext;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.StateArena;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.spt.*;
@@ -49,6 +52,7 @@ public class AStar {
     // FIXME this is not really a factory, it's a way to fake a global variable. This should be stored at the OTPServer level.
     private static final MonitoringStore store = MonitoringStoreFactory.getStore();
     private static final double OVERSEARCH_MULTIPLIER = 4.0;
+    private static final int STATE_ARENA_CAPACITY = 1024;
 
     private boolean verbose = false;
 
@@ -63,7 +67,9 @@ public class AStar {
 
         public State u;
         public ShortestPathTree spt;
-        BinHeap<State> pq;
+        OTPPriorityQueue<State> pq;
+        /** The same queue as pq when it supports decrease-key on vertex index, otherwise null. */
+        IndexedFourAryHeap<State> indexedPq;
         RemainingWeightHeuristic heuristic;
         public RoutingContext rctx;
         public int nVisited;
@@ -73,6 +79,8 @@ public class AStar {
         private SearchTerminationStrategy terminationStrategy;
         public Vertex u_vertex;
         Double foundPathWeight = null;
+        /** Where rejected states are recycled, or null if states are not recycled in this search. */
+        StateArena arena;
 
         public RunState(RoutingRequest options, SearchTerminationStrategy terminationStrategy) {
             this.options = options;
@@ -134,14 +142,28 @@ public class AStar {
         // before reaching its target.
         int initialSize = runState.rctx.graph.getVertices().size();
         initialSize = (int) Math.ceil(2 * (Math.sqrt((double) initialSize + 1)));
-        runState.pq = new BinHeap<>(initialSize);
+        switch (options.queueType) {
+            case INDEXED_HEAP:
+                runState.indexedPq = new IndexedFourAryHeap<>(initialSize, Vertex.getMaxIndex());
+                runState.pq = runState.indexedPq;
+                break;
+            case POOLED_INDEXED_HEAP:
+                runState.indexedPq = IndexedFourAryHeap.acquire(initialSize, Vertex.getMaxIndex());
+                runState.pq = runState.indexedPq;
+                break;
+            default:
+                runState.pq = new BinHeap<>(initialSize);
+        }
         runState.nVisited = 0;
         runState.targetAcceptedStates = Lists.newArrayList();
+        if (options.recycleStates) {
+            runState.arena = new StateArena(STATE_ARENA_CAPACITY);
+        }
         
         if (addToQueue) {
             State initialState = new State(options);
             runState.spt.add(initialState);
-            runState.pq.insert(initialState, 0);
+            enqueue(initialState, 0);
         }
     }
 
@@ -182,8 +204,10 @@ public class AStar {
 
             // Iterate over traversal results. When an edge leads nowhere (as indicated by
             // returning NULL), the iteration is over. TODO Use this to board multiple trips.
-            for (State v = edge.traverse(runState.u); v != null; v = v.getNextResult()) {
+            State first = edge.traverse(runState.u);
+            for (State v = first, next; v != null; v = next) {
                 // Could be: for (State v : traverseEdge...)
+                next = v.getNextResult();
 
                 if (traverseVisitor != null) {
                     traverseVisitor.visitEdge(edge, v);
@@ -192,6 +216,7 @@ public class AStar {
                 double remaining_w = runState.heuristic.estimateRemainingWeight(v);
 
                 if (remaining_w < 0 || Double.isInfinite(remaining_w) ) {
+                    recycle(v, first);
                     continue;
                 }
                 double estimate = v.getWeight() + remaining_w;
@@ -208,12 +233,14 @@ public class AStar {
                     // too expensive to get here
                     if (verbose)
                         System.out.println("         too expensive to reach, not enqueued. estimated weight = " + estimate);
+                    recycle(v, first);
                     continue;
                 }
                 if (isWorstTimeExceeded(v, runState.options)) {
                     // too much time to get here
                     if (verbose)
                         System.out.println("         too much time to reach, not enqueued. time = " + v.getTimeSeconds());
+                    recycle(v, first);
                     continue;
                 }
                 
@@ -223,15 +250,76 @@ public class AStar {
                     if (traverseVisitor != null)
                         traverseVisitor.visitEnqueue(v);
                     //LOG.info("u.w={} v.w={} h={}", runState.u.weight, v.weight, remaining_w);
-                    runState.pq.insert(v, estimate);
-                } 
+                    enqueue(v, estimate);
+                } else {
+                    recycle(v, first);
+                }
             }
         }
         
         return true;
     }
+
+    /**
+     * Hand a state rejected right after it was created back to the arena, if states are recycled in this search.
+     * Only the single result of a traversal, created directly from the state being expanded and never seen by a
+     * visitor, is known not to be referenced from anywhere else.
+     */
+    private void recycle(State v, State first) {
+        if (runState.arena != null && traverseVisitor == null && v == first && v.getNextResult() == null
+                && v.getBackState() == runState.u) {
+            runState.arena.recycle(v);
+        }
+    }
+
+    /**
+     * Add a state to the priority queue. When the queue supports decrease-key, a state already queued at the same
+     * vertex that has since been dominated is replaced in place rather than left in the queue to be skipped later.
+     * Co-dominant states at the same vertex are still inserted as separate queue entries.
+     */
+    private void enqueue(State v, double estimate) {
+        IndexedFourAryHeap<State> indexedPq = runState.indexedPq;
+        if (indexedPq == null) {
+            runState.pq.insert(v, estimate);
+            return;
+        }
+        int key = v.getVertex().getIndex();
+        State queued = indexedPq.get(key);
+        if (queued == null) {
+            indexedPq.insert(v, key, estimate);
+        } else if (!runState.spt.visit(queued)) {
+            indexedPq.update(key, v, estimate);
+        } else {
+            indexedPq.insert(v, estimate);
+        }
+    }
+
+    /** Hand a pooled queue back once the search no longer needs it. */
+    private void releaseQueue() {
+        if (runState != null && runState.indexedPq != null && runState.indexedPq.isPooled()) {
+            runState.indexedPq.release();
+            runState.indexedPq = null;
+            runState.pq = null;
+        }
+    }
     
     void runSearch(long abortTime){
+        // new states are only taken from the arena while this search runs in this thread
+        if (runState.arena != null) {
+            runState.arena.activate();
+        }
+        try {
+            runSearchLoop(abortTime);
+        } finally {
+            if (runState.arena != null) {
+                runState.arena.deactivate();
+                LOG.debug("recycled {} states, reused {}", runState.arena.getRecycledCount(),
+                        runState.arena.getReusedCount());
+            }
+        }
+    }
+
+    private void runSearchLoop(long abortTime) {
         /* the core of the A* algorithm */
         while (!runState.pq.empty()) { // Until the priority queue is empty:
             /*
@@ -247,7 +335,12 @@ public class AStar {
 
                 break;
             }
-            
+            // A search whose results will not be read (e.g. a cancelled follow-up itinerary search) is aborted too.
+            if (Thread.currentThread().isInterrupted()) {
+                runState.options.rctx.aborted = true;
+                break;
+            }
+
             /*
              * Get next best state and, if it hasn't already been dominated, add adjacent states to queue.
              * If it has been dominated, the iteration is over; don't bother checking for termination condition.
@@ -302,11 +395,16 @@ public class AStar {
         ShortestPathTree spt = null;
         long abortTime = DateUtils.absoluteTimeout(relTimeoutSeconds);
 
-        startSearch (options, terminationStrategy, abortTime);
+        try {
+            startSearch (options, terminationStrategy, abortTime);
 
-        if (runState != null) {
-            runSearch(abortTime);
-            spt = runState.spt;
+            if (runState != null) {
+                runSearch(abortTime);
+                spt = runState.spt;
+            }
+        } finally {
+            // also when the search fails, or the pooled queue would stay marked in use for this thread
+            releaseQueue();
         }
         
         storeMemory();
@@ -320,18 +418,23 @@ public class AStar {
         ShortestPathTree spt = null;
         long abortTime = DateUtils.absoluteTimeout(relTimeoutSeconds);
 
-        startSearch (options, terminationStrategy, abortTime, false);
+        try {
+            startSearch (options, terminationStrategy, abortTime, false);
         
-        if (runState != null) {
-            for (State state : initialStates) {
-                runState.spt.add(state);
-                // TODO: hardwired for earliest arrival
-                // TODO: weights are seconds, no?
-                runState.pq.insert(state, state.getElapsedTimeSeconds());
-            }
+            if (runState != null) {
+                for (State state : initialStates) {
+                    runState.spt.add(state);
+                    // TODO: hardwired for earliest arrival
+                    // TODO: weights are seconds, no?
+                    enqueue(state, state.getElapsedTimeSeconds());
+                }
             
-            runSearch(abortTime);
-            spt = runState.spt;
+                runSearch(abortTime);
+                spt = runState.spt;
+            }
+        
+        } finally {
+            releaseQueue();
         }
         
         return spt;
@@ -0,0 +1,494 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingContext;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.CompactStreetGraph;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.util.ElevationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.opentripplanner.routing.graph.CompactStreetGraph.FLAG_STAIRS;
+import static org.opentripplanner.routing.graph.CompactStreetGraph.PERMISSION_BICYCLE;
+import static org.opentripplanner.routing.graph.CompactStreetGraph.PERMISSION_CAR;
+import static org.opentripplanner.routing.graph.CompactStreetGraph.PERMISSION_PEDESTRIAN;
+
+/**
+ * A single-mode (walk, bicycle or car) A* search over a CompactStreetGraph, for street-only point to point requests.
+ *
+ * The search runs entirely on primitive arrays with one label per vertex and reuses its per-vertex scratch arrays
+ * between searches on the same thread. Only the edges of the final path are turned back into StreetEdges: the path is
+ * replayed through the ordinary Edge.traverse() methods to produce a GraphPath with exactly the same States, times and
+ * weights as a regular search would give for that path.
+ *
+ * The cost model is the one in StreetEdge.doTraverse without the parts that depend on the search history: turn costs,
+ * turn restrictions, no-through-traffic areas and walk limits are not considered while searching. They are applied
+ * when the path is replayed, and if the replay rejects the path (e.g. because it makes a forbidden turn) getPath()
+ * returns null and the caller should fall back on AStar. Requests this class cannot model at all are excluded by
+ * canHandle().
+ *
+ * The origin and destination are usually temporary vertices linked into the street network by temporary edges, which
+ * are not part of the compact graph. These few edges are explored on the object graph at both ends of the search.
+ */
+public class CompactStreetSearch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactStreetSearch.class);
+
+    /** How many non-compact edges may be followed to link the origin and destination into the compact graph. */
+    private static final int MAX_LINK_DEPTH = 4;
+
+    /** Slack on the goal direction heuristic, covering the error in fast distance computations. */
+    private static final double HEURISTIC_SLACK = 0.99;
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<>();
+
+    private final CompactStreetGraph graph;
+
+    /* Per-search cost parameters. */
+    private TraverseMode mode;
+    private OptimizeType optimize;
+    private double walkSpeed;
+    private double walkReluctance;
+    private double stairsReluctance;
+    private double bikeSpeed;
+    private double bikeWalkSpeed;
+    private double bikeWalkReluctance;
+    private double bikeWalkStairsReluctance;
+    /** Lower bound on the cost of traveling one meter, for the goal direction heuristic. */
+    private double minCostPerMeter;
+
+    public CompactStreetSearch(CompactStreetGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * @return true if the request is a street-only search whose cost model this class reproduces. Requests involving
+     * transit, vehicle rental or parking, wheelchair accessibility, traffic data or complex bicycle optimization are
+     * left to AStar.
+     */
+    public static boolean canHandle(RoutingRequest options) {
+        RoutingContext rctx = options.rctx;
+        if (rctx == null || rctx.fromVertex == null || rctx.toVertex == null || rctx.fromVertex == rctx.toVertex) {
+            return false;
+        }
+        if (options.modes.isTransit() || options.allowBikeRental || options.parkAndRide || options.kissAndRide
+                || options.bikeParkAndRide || options.wheelchairAccessible) {
+            return false;
+        }
+        if (options.useTraffic && rctx.streetSpeedSnapshot != null) {
+            return false;
+        }
+        TraverseMode mode = nonTransitMode(options);
+        if (mode == null) {
+            return false;
+        }
+        if (mode == TraverseMode.BICYCLE) {
+            return options.optimize == OptimizeType.QUICK || options.optimize == OptimizeType.SAFE
+                    || options.optimize == OptimizeType.GREENWAYS;
+        }
+        return true;
+    }
+
+    /** The mode in which a search for these options starts, following the same rule as StateData. */
+    private static TraverseMode nonTransitMode(RoutingRequest options) {
+        if (options.modes.getCar()) return TraverseMode.CAR;
+        if (options.modes.getWalk()) return TraverseMode.WALK;
+        if (options.modes.getBicycle()) return TraverseMode.BICYCLE;
+        return null;
+    }
+
+    /**
+     * Find the best path between the from and to vertices of the request's routing context.
+     * @return the path, or null if there is no path or it could not be replayed on the full graph.
+     */
+    public GraphPath getPath(RoutingRequest options) {
+        RoutingContext rctx = options.rctx;
+        setCostParameters(options);
+        Vertex fromVertex = rctx.fromVertex;
+        Vertex toVertex = rctx.toVertex;
+
+        // link the origin and destination into the compact graph
+        List<Link> seeds = new ArrayList<>();
+        List<Edge> direct = link(fromVertex, toVertex, true, seeds);
+        List<Link> exitList = new ArrayList<>();
+        link(toVertex, fromVertex, false, exitList);
+        TIntObjectMap<Link> exits = new TIntObjectHashMap<>();
+        for (Link exit : exitList) {
+            Link existing = exits.get(exit.vertex);
+            if (existing == null || exit.cost < existing.cost) exits.put(exit.vertex, exit);
+        }
+        double bestCost = direct == null ? Double.POSITIVE_INFINITY : cost(direct);
+        List<Edge> bestPath = direct;
+
+        if (!seeds.isEmpty() && !exits.isEmpty()) {
+            Scratch s = getScratch();
+            s.begin();
+            double targetLat = toVertex.getLat();
+            double targetLon = toVertex.getLon();
+            for (int i = 0; i < seeds.size(); i++) {
+                Link seed = seeds.get(i);
+                if (s.improve(seed.vertex, seed.cost, -1 - i, -1)) {
+                    s.push(seed.vertex, seed.cost + heuristic(seed.vertex, targetLat, targetLon));
+                }
+            }
+            int bestExit = -1;
+            while (s.heapSize > 0) {
+                double estimate = s.heapPrio[0];
+                if (estimate >= bestCost) break;
+                int u = s.pop();
+                double uCost = s.cost[u];
+                Link exit = exits.get(u);
+                if (exit != null && uCost + exit.cost < bestCost) {
+                    bestCost = uCost + exit.cost;
+                    bestExit = u;
+                }
+                for (int e = graph.firstOutgoing(u), end = graph.firstOutgoing(u + 1); e < end; e++) {
+                    double edgeCost = cost(e);
+                    if (edgeCost == Double.POSITIVE_INFINITY) continue;
+                    int v = graph.getToVertex(e);
+                    double vCost = uCost + edgeCost;
+                    if (s.improve(v, vCost, e, u)) {
+                        s.push(v, vCost + heuristic(v, targetLat, targetLon));
+                    }
+                }
+            }
+            if (bestExit >= 0) {
+                bestPath = s.path(bestExit, seeds, exits.get(bestExit));
+            }
+        }
+        if (bestPath == null) {
+            return null;
+        }
+        return replay(options, bestPath);
+    }
+
+    private void setCostParameters(RoutingRequest options) {
+        mode = nonTransitMode(options);
+        optimize = options.optimize;
+        walkSpeed = options.walkSpeed;
+        walkReluctance = options.walkReluctance;
+        stairsReluctance = options.stairsReluctance;
+        bikeSpeed = options.bikeSpeed;
+        bikeWalkSpeed = options.bikeWalkingOptions.walkSpeed;
+        bikeWalkReluctance = options.bikeWalkingOptions.walkReluctance;
+        bikeWalkStairsReluctance = options.bikeWalkingOptions.stairsReluctance;
+        double walkCostPerMeter = Math.min(walkReluctance, stairsReluctance) * graph.getMinWalkLengthRatio()
+                / walkSpeed;
+        switch (mode) {
+            case CAR:
+                minCostPerMeter = graph.getMaxCarSpeed() > 0 ? walkReluctance / graph.getMaxCarSpeed() : 0;
+                break;
+            case BICYCLE:
+                double factor = optimize == OptimizeType.QUICK ? graph.getMinBikeLengthRatio()
+                        : graph.getMinBicycleSafetyFactor() * (optimize == OptimizeType.GREENWAYS ? 0.66 : 1);
+                double bikeWalkCostPerMeter = Math.min(bikeWalkReluctance, bikeWalkStairsReluctance)
+                        * graph.getMinWalkLengthRatio() / bikeWalkSpeed;
+                minCostPerMeter = Math.min(walkReluctance * factor / bikeSpeed, bikeWalkCostPerMeter);
+                break;
+            default:
+                minCostPerMeter = walkCostPerMeter;
+        }
+        minCostPerMeter *= HEURISTIC_SLACK;
+    }
+
+    private double heuristic(int v, double targetLat, double targetLon) {
+        return SphericalDistanceLibrary.fastDistance(graph.getLat(v), graph.getLon(v), targetLat, targetLon)
+                * minCostPerMeter;
+    }
+
+    /** The cost of compact edge e in the current mode, or positive infinity if it cannot be traversed. */
+    private double cost(int e) {
+        return cost(graph.allows(e, PERMISSION_PEDESTRIAN), graph.allows(e, PERMISSION_BICYCLE),
+                graph.allows(e, PERMISSION_CAR), graph.getLengthMm(e) / 1000.0, graph.getBikeLengthMm(e) / 1000.0,
+                graph.getWalkLengthMm(e) / 1000.0, graph.getCarSpeed(e), graph.getBicycleSafetyFactor(e),
+                graph.hasFlag(e, FLAG_STAIRS));
+    }
+
+    /** The cost of a path on the object graph, used for paths that never enter the compact graph. */
+    private double cost(List<Edge> path) {
+        double total = 0;
+        for (Edge e : path) {
+            total += cost(e);
+        }
+        return total;
+    }
+
+    /** The cost of an edge of the object graph, for the few edges linking the endpoints into the compact graph. */
+    private double cost(Edge e) {
+        if (e instanceof FreeEdge) {
+            return 0;
+        }
+        if (!(e instanceof StreetEdge)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        StreetEdge se = (StreetEdge) e;
+        double distance = se.getDistance();
+        double walkLength = ElevationUtils.getWalkCostsForSlope(distance, se.getMaxSlope()) * 4.0 / 3.0;
+        return cost(se.canTraverseIncludingBarrier(TraverseMode.WALK),
+                se.canTraverseIncludingBarrier(TraverseMode.BICYCLE), se.canTraverseIncludingBarrier(TraverseMode.CAR),
+                distance, se.getSlopeSpeedEffectiveLength(), walkLength, se.getCarSpeed(),
+                se.getBicycleSafetyFactor(), se.isStairs());
+    }
+
+    /** The weight StreetEdge.doTraverse would give an edge with these characteristics, ignoring turns. */
+    private double cost(boolean pedestrian, boolean bicycle, boolean car, double length, double bikeLength,
+            double walkLength, double carSpeed, double safety, boolean stairs) {
+        switch (mode) {
+            case CAR:
+                if (!car || carSpeed <= 0) return Double.POSITIVE_INFINITY;
+                return length / carSpeed * walkReluctance;
+            case BICYCLE:
+                if (bicycle) {
+                    double weight;
+                    if (optimize == OptimizeType.QUICK) {
+                        weight = bikeLength / bikeSpeed;
+                    } else {
+                        weight = safety * length / bikeSpeed;
+                        if (optimize == OptimizeType.GREENWAYS && safety <= 0.1) weight *= 0.66;
+                    }
+                    return weight * (stairs ? stairsReluctance : walkReluctance);
+                }
+                // walk the bike
+                if (!pedestrian) return Double.POSITIVE_INFINITY;
+                return walkLength / bikeWalkSpeed * (stairs ? bikeWalkStairsReluctance : bikeWalkReluctance);
+            default:
+                if (!pedestrian) return Double.POSITIVE_INFINITY;
+                return walkLength / walkSpeed * (stairs ? stairsReluctance : walkReluctance);
+        }
+    }
+
+    /**
+     * Explore the object graph from an endpoint until reaching vertices of the compact graph, following outgoing
+     * edges from the origin (forward) or incoming edges into the destination (backward).
+     * @return the edges of a path reaching the other endpoint without entering the compact graph, if one is found.
+     */
+    private List<Edge> link(Vertex start, Vertex otherEnd, boolean forward, List<Link> links) {
+        int compact = graph.getCompactIndex(start);
+        if (compact >= 0) {
+            links.add(new Link(compact, 0, Collections.<Edge>emptyList()));
+            return null;
+        }
+        List<Edge> direct = null;
+        List<Link> frontier = Collections.singletonList(new Link(-1, 0, Collections.<Edge>emptyList()));
+        List<Vertex> frontierVertices = Collections.singletonList(start);
+        for (int depth = 0; depth < MAX_LINK_DEPTH && !frontier.isEmpty(); depth++) {
+            List<Link> nextFrontier = new ArrayList<>();
+            List<Vertex> nextVertices = new ArrayList<>();
+            for (int i = 0; i < frontier.size(); i++) {
+                Link link = frontier.get(i);
+                Vertex vertex = frontierVertices.get(i);
+                for (Edge e : forward ? vertex.getOutgoing() : vertex.getIncoming()) {
+                    double edgeCost = cost(e);
+                    if (edgeCost == Double.POSITIVE_INFINITY) continue;
+                    Vertex next = forward ? e.getToVertex() : e.getFromVertex();
+                    List<Edge> edges = new ArrayList<>(link.edges.size() + 1);
+                    if (forward) {
+                        edges.addAll(link.edges);
+                        edges.add(e);
+                    } else {
+                        edges.add(e);
+                        edges.addAll(link.edges);
+                    }
+                    Link nextLink = new Link(graph.getCompactIndex(next), link.cost + edgeCost, edges);
+                    if (next == otherEnd) {
+                        if (direct == null || nextLink.cost < cost(direct)) direct = edges;
+                    } else if (nextLink.vertex >= 0) {
+                        links.add(nextLink);
+                    } else {
+                        nextFrontier.add(nextLink);
+                        nextVertices.add(next);
+                    }
+                }
+            }
+            frontier = nextFrontier;
+            frontierVertices = nextVertices;
+        }
+        return direct;
+    }
+
+    /**
+     * Traverse the edges of the path with the ordinary edge implementations, in search order.
+     * @return a GraphPath made of the resulting states, or null if any edge refuses the traversal.
+     */
+    private GraphPath replay(RoutingRequest options, List<Edge> path) {
+        State state = new State(options);
+        int n = path.size();
+        for (int i = 0; i < n; i++) {
+            Edge e = path.get(options.arriveBy ? n - 1 - i : i);
+            state = e.traverse(state);
+            if (state == null) {
+                LOG.debug("Compact street path could not be replayed at edge {}, falling back.", e);
+                return null;
+            }
+        }
+        options.rctx.debugOutput.foundPath();
+        return new GraphPath(state, true);
+    }
+
+    private Scratch getScratch() {
+        Scratch s = scratch.get();
+        if (s == null || s.cost.length != graph.getVertexCount()) {
+            s = new Scratch(graph.getVertexCount());
+            scratch.set(s);
+        }
+        s.graph = graph;
+        return s;
+    }
+
+    /** A way into or out of the compact graph: a compact vertex, and a path on the object graph with its cost. */
+    private static class Link {
+        final int vertex;
+        final double cost;
+        final List<Edge> edges;
+        Link(int vertex, double cost, List<Edge> edges) {
+            this.vertex = vertex;
+            this.cost = cost;
+            this.edges = edges;
+        }
+    }
+
+    /**
+     * Per-vertex search labels and an indexed 4-ary heap of vertices, reused between searches on the same thread.
+     * Labels are only valid when their stamp equals the current generation, so they never need to be cleared.
+     */
+    private static class Scratch {
+        CompactStreetGraph graph;
+        final double[] cost;
+        /** The compact edge leading to each vertex, or -1 - i for the i-th seed. */
+        final int[] backEdge;
+        final int[] backVertex;
+        final int[] stamp;
+        /** One plus the heap slot of each vertex, or 0 if it is not in the heap. */
+        final int[] heapSlot;
+        int[] heapVertex = new int[64];
+        double[] heapPrio = new double[64];
+        int heapSize;
+        int generation = 0;
+
+        Scratch(int nVertices) {
+            cost = new double[nVertices];
+            backEdge = new int[nVertices];
+            backVertex = new int[nVertices];
+            stamp = new int[nVertices];
+            heapSlot = new int[nVertices];
+        }
+
+        void begin() {
+            for (int i = 0; i < heapSize; i++) heapSlot[heapVertex[i]] = 0;
+            heapSize = 0;
+            generation++;
+            if (generation == 0) {
+                // wrapped around, stamps from long ago could look current
+                Arrays.fill(stamp, 0);
+                generation = 1;
+            }
+        }
+
+        /** Record a new label for vertex v if it is better than the existing one. */
+        boolean improve(int v, double c, int viaEdge, int viaVertex) {
+            if (stamp[v] == generation && cost[v] <= c) return false;
+            stamp[v] = generation;
+            cost[v] = c;
+            backEdge[v] = viaEdge;
+            backVertex[v] = viaVertex;
+            return true;
+        }
+
+        /** Insert vertex v into the heap, or move it if it is already there. */
+        void push(int v, double prio) {
+            int i = heapSlot[v] - 1;
+            if (i < 0) {
+                if (heapSize == heapVertex.length) {
+                    heapVertex = Arrays.copyOf(heapVertex, heapSize * 2);
+                    heapPrio = Arrays.copyOf(heapPrio, heapSize * 2);
+                }
+                i = heapSize++;
+            } else if (prio > heapPrio[i]) {
+                siftDown(i, v, prio);
+                return;
+            }
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 2;
+                if (heapPrio[parent] <= prio) break;
+                place(i, heapVertex[parent], heapPrio[parent]);
+                i = parent;
+            }
+            place(i, v, prio);
+        }
+
+        int pop() {
+            int min = heapVertex[0];
+            heapSlot[min] = 0;
+            heapSize--;
+            if (heapSize > 0) siftDown(0, heapVertex[heapSize], heapPrio[heapSize]);
+            return min;
+        }
+
+        private void siftDown(int i, int v, double prio) {
+            while (true) {
+                int first = (i << 2) + 1;
+                if (first >= heapSize) break;
+                int last = Math.min(first + 4, heapSize);
+                int child = first;
+                for (int c = first + 1; c < last; c++) {
+                    if (heapPrio[c] < heapPrio[child]) child = c;
+                }
+                if (prio <= heapPrio[child]) break;
+                place(i, heapVertex[child], heapPrio[child]);
+                i = child;
+            }
+            place(i, v, prio);
+        }
+
+        private void place(int i, int v, double prio) {
+            heapVertex[i] = v;
+            heapPrio[i] = prio;
+            heapSlot[v] = i + 1;
+        }
+
+        /** Assemble the object graph edges of the path ending at the given exit, in forward order. */
+        List<Edge> path(int exitVertex, List<Link> seeds, Link exit) {
+            List<Edge> edges = new ArrayList<>();
+            int v = exitVertex;
+            while (backEdge[v] >= 0) {
+                edges.add(graph.getEdge(backEdge[v]));
+                v = backVertex[v];
+            }
+            Collections.reverse(edges);
+            List<Edge> path = new ArrayList<>(seeds.get(-1 - backEdge[v]).edges);
+            path.addAll(edges);
+            path.addAll(exit.edges);
+            return path;
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.RouteMatcher;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.StopMatcher;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A cache of the destination side of the InterleavedBidirectionalHeuristic, which does not depend on the origin of
+ * the search: the weights of the street vertices around the destination and the lower bounds on the weight of
+ * reaching the destination from every transit vertex. Popular destinations are requested over and over, and this
+ * initialization is a large fixed cost per request.
+ *
+ * Tables are keyed on a destination cluster, the walk speed rounded up to a bucket and the other request parameters
+ * affecting the lower bounds. A destination that is a permanent vertex (e.g. a transit stop) is its own cluster.
+ * Temporary destinations, linked to the street network for one request, are clustered on a grid: the table for a
+ * grid cell is computed from all the street vertices at the ends of the edges passing through the cell at once,
+ * which is a lower bound for any destination linked to those edges. The table is computed with the highest walk
+ * speed of the bucket, and the transit search is run to completion, ignoring the banned routes, trips and stops of
+ * the request, so that it is admissible for every request sharing its key.
+ *
+ * The least recently used tables are evicted once the maximum number of tables is reached.
+ */
+public class BidirectionalHeuristicCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BidirectionalHeuristicCache.class);
+
+    /** Size of the grid cells clustering temporary destinations, about 200 meters north-south. */
+    public static final double CLUSTER_SIZE_DEGREES = 0.002;
+
+    /** Width of the walk speed buckets in meters per second. */
+    public static final double WALK_SPEED_BUCKET = 0.2;
+
+    private final Graph graph;
+
+    private final Map<Key, DestinationTable> tables;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    public BidirectionalHeuristicCache(Graph graph, final int maxTables) {
+        this.graph = graph;
+        this.tables = new LinkedHashMap<Key, DestinationTable>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, DestinationTable> eldest) {
+                return size() > maxTables;
+            }
+        };
+    }
+
+    /**
+     * @return the destination table for the given request, computing and caching it if needed, or null if the
+     *         destination cannot be clustered or the computation timed out.
+     */
+    public DestinationTable getTable(RoutingRequest options, long abortTime) {
+        Vertex target = options.rctx.target;
+        Object cluster;
+        Collection<Vertex> seeds;
+        if (target instanceof TemporaryVertex) {
+            double lat = Math.floor(target.getLat() / CLUSTER_SIZE_DEGREES) * CLUSTER_SIZE_DEGREES;
+            double lon = Math.floor(target.getLon() / CLUSTER_SIZE_DEGREES) * CLUSTER_SIZE_DEGREES;
+            cluster = new Envelope(lon, lon + CLUSTER_SIZE_DEGREES, lat, lat + CLUSTER_SIZE_DEGREES);
+            seeds = null;
+        } else {
+            cluster = target;
+            seeds = Collections.singleton(target);
+        }
+        double walkSpeed = Math.ceil(options.walkSpeed / WALK_SPEED_BUCKET) * WALK_SPEED_BUCKET;
+        Key key = new Key(cluster, options, walkSpeed);
+        synchronized (this) {
+            DestinationTable table = tables.get(key);
+            if (table != null) {
+                hits++;
+                return table;
+            }
+            misses++;
+        }
+        if (seeds == null) {
+            seeds = clusterVertices((Envelope) cluster);
+            // Every path to the destination must go through one of the vertices it is linked to.
+            if (!seeds.containsAll(LandmarkRemainingWeightHeuristic.anchors(target))) {
+                LOG.debug("Destination {} is linked outside of its cluster, not caching.", target);
+                return null;
+            }
+        }
+        // Computing the same table twice concurrently is harmless, so do not hold the lock while doing so.
+        DestinationTable table = DestinationTable.compute(options, walkSpeed, seeds, abortTime);
+        if (table != null) {
+            synchronized (this) {
+                tables.put(key, table);
+            }
+        }
+        return table;
+    }
+
+    /** @return the non-temporary street vertices at either end of the street edges passing through the envelope. */
+    private Set<Vertex> clusterVertices(Envelope envelope) {
+        Set<Vertex> vertices = Sets.newHashSet();
+        for (Edge e : graph.streetIndex.getEdgesForEnvelope(envelope)) {
+            for (Vertex v : new Vertex[] { e.getFromVertex(), e.getToVertex() }) {
+                if (v instanceof StreetVertex && !(v instanceof TemporaryVertex)) vertices.add(v);
+            }
+        }
+        return vertices;
+    }
+
+    public synchronized int size() {
+        return tables.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        tables.clear();
+    }
+
+    /**
+     * The weights computed from a destination cluster, shared read-only by all the requests using it. Street
+     * vertices around the destination and transit vertices able to reach it have a weight, all other vertices have
+     * an infinite weight.
+     */
+    public static class DestinationTable {
+
+        private final TObjectDoubleHashMap<Vertex> weights;
+
+        private DestinationTable(TObjectDoubleHashMap<Vertex> weights) {
+            this.weights = weights;
+        }
+
+        public double getWeight(Vertex v) {
+            return weights.get(v);
+        }
+
+        public int size() {
+            return weights.size();
+        }
+
+        /** @return a complete table from the given destination vertices, or null if the computation timed out. */
+        static DestinationTable compute(RoutingRequest options, double walkSpeed, Collection<Vertex> seeds,
+                long abortTime) {
+            long start = System.currentTimeMillis();
+            RoutingRequest rr = options.clone();
+            rr.walkSpeed = walkSpeed;
+            rr.bikeWalkingOptions.walkSpeed = walkSpeed;
+            rr.bannedRoutes = RouteMatcher.emptyMatcher();
+            rr.bannedAgencies = new HashSet<String>();
+            rr.bannedTrips.clear();
+            rr.bannedStops = StopMatcher.emptyMatcher();
+            rr.bannedStopsHard = StopMatcher.emptyMatcher();
+            rr.onlyTransitTrips = false;
+            TObjectDoubleHashMap<Vertex> weights =
+                    new TObjectDoubleHashMap<Vertex>(1024, 0.5f, Double.POSITIVE_INFINITY);
+            List<State> stopStates =
+                    InterleavedBidirectionalHeuristic.streetSearch(rr, true, seeds, weights, true, abortTime);
+            if (stopStates == null) return null;
+            BinHeap<Vertex> q = new BinHeap<Vertex>();
+            for (State stopState : stopStates) {
+                q.insert(stopState.getVertex(), stopState.getWeight());
+            }
+            rr.setMaxWalkDistance(Double.POSITIVE_INFINITY);
+            rr.setMaxPreTransitTime(Integer.MAX_VALUE);
+            while (!q.empty()) {
+                if (abortTime < Long.MAX_VALUE && System.currentTimeMillis() > abortTime) return null;
+                InterleavedBidirectionalHeuristic.transitStep(q, weights, rr);
+            }
+            LOG.debug("computed destination table of {} vertices from {} seeds in {} ms", weights.size(),
+                    seeds.size(), System.currentTimeMillis() - start);
+            return new DestinationTable(weights);
+        }
+    }
+
+    /** The destination cluster and the request parameters on which the destination weights depend. */
+    private static class Key {
+
+        final Object cluster;
+        final boolean arriveBy;
+        final TraverseModeSet modes;
+        final double walkSpeed;
+        final double bikeSpeed;
+        final double carSpeed;
+        final double walkReluctance;
+        final double maxWalkDistance;
+        final int maxPreTransitTime;
+        final int boardCostLowerBound;
+        final boolean wheelchairAccessible;
+        final Set<ServiceDay> serviceDays;
+
+        Key(Object cluster, RoutingRequest options, double walkSpeed) {
+            this.cluster = cluster;
+            this.arriveBy = options.arriveBy;
+            this.modes = options.modes.clone();
+            this.walkSpeed = walkSpeed;
+            this.bikeSpeed = options.bikeSpeed;
+            this.carSpeed = options.carSpeed;
+            this.walkReluctance = options.walkReluctance;
+            this.maxWalkDistance = options.maxWalkDistance;
+            this.maxPreTransitTime = options.maxPreTransitTime;
+            this.boardCostLowerBound = options.getBoardCostLowerBound();
+            this.wheelchairAccessible = options.wheelchairAccessible;
+            this.serviceDays = options.rctx.serviceDays == null ? Collections.<ServiceDay>emptySet()
+                    : new HashSet<ServiceDay>(options.rctx.serviceDays);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return cluster.equals(other.cluster) && arriveBy == other.arriveBy && modes.equals(other.modes)
+                    && walkSpeed == other.walkSpeed && bikeSpeed == other.bikeSpeed && carSpeed == other.carSpeed
+                    && walkReluctance == other.walkReluctance && maxWalkDistance == other.maxWalkDistance
+                    && maxPreTransitTime == other.maxPreTransitTime
+                    && boardCostLowerBound == other.boardCostLowerBound
+                    && wheelchairAccessible == other.wheelchairAccessible && serviceDays.equals(other.serviceDays);
+        }
+
+        @Override
+        public int hashCode() {
+            return cluster.hashCode() * 31 + modes.hashCode() + (arriveBy ? 1 : 0) + serviceDays.hashCode() * 7
+                    + (int) (walkSpeed * 1000) + (int) maxWalkDistance;
+        }
+    }
+
+}
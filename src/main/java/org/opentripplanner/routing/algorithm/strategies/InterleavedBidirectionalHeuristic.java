@@ -20,6 +20,7 @@ import org.opentripplanner.common.pqueue.BinHeap;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
+import org.opentripplanner.routing.edgetype.TemporaryEdge;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
@@ -30,6 +31,8 @@ import org.opentripplanner.routing.vertextype.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -78,9 +81,23 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     BinHeap<Vertex> q;
 
     boolean finished = false;
-    
+
+    /** Where the destination tables are cached between requests, or null to compute them for every request. */
+    final BidirectionalHeuristicCache cache;
+
+    /**
+     * The cached destination table in use, if any. In that case the weights field only holds the marks left by the
+     * street search around the origin, and the heuristic does no further work during the main search.
+     */
+    BidirectionalHeuristicCache.DestinationTable table;
+
     public InterleavedBidirectionalHeuristic(Graph graph) {
+        this(graph, null);
+    }
+
+    public InterleavedBidirectionalHeuristic(Graph graph, BidirectionalHeuristicCache cache) {
         this.graph = graph;
+        this.cache = cache;
     }
 
     
@@ -117,6 +134,21 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         // do not use soft limiting in long-distance mode
         options.softWalkLimiting = false;
         options.softPreTransitLimiting = false;
+        if (cache != null) {
+            // The destination side does not depend on the origin and can be shared with other requests.
+            table = cache.getTable(options, abortTime);
+            if (table != null) {
+                // Only mark the street vertices around the origin, the rest of the work is already done.
+                if (streetSearch(options, false, abortTime) == null) return; // Search timed out
+                finished = true;
+                LOG.debug("end forward street search with cached destination table {} ms",
+                        System.currentTimeMillis() - start);
+                options.setMaxWalkDistance(Double.POSITIVE_INFINITY);
+                options.setMaxPreTransitTime(Integer.MAX_VALUE);
+                options.rctx.debugOutput.finishedPrecalculating();
+                return;
+            }
+        }
         // make sure distance table is initialized before starting thread
         LOG.debug("initializing heuristic computation thread");
         // Forward street search first, mark street vertices around the origin so H evaluates to 0
@@ -152,37 +184,45 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
                 finished = true;
                 break;
             }
-            double uw = q.peek_min_key();
-            Vertex u = q.extract_min();
-            //LOG.info("dequeued weight {} at {}", uw, u);
-//            // Ignore vertices that could be rekeyed (but are not rekeyed in this implementation).
-//            if (uw > weights.get(u)) continue;
             // The weight of the queue head is uniformly increasing. This is the highest ever seen.
-            maxFound = uw;
-            
-//            System.out.printf("H, %3.5f, %3.5f, %2.1f\n", u.getY(), u.getX(), 
-//                    Double.isInfinite(uw) ? -1.0 : uw);
-
-            // OUTgoing for heuristic search when main search is arriveBy 
-            for (Edge e : options.arriveBy ? u.getOutgoing() : u.getIncoming()) {
-                // Do not enter streets in this phase.
-                if (e instanceof StreetTransitLink) continue;
-                Vertex v = options.arriveBy ? e.getToVertex() : e.getFromVertex();
-                double ew = e.weightLowerBound(options);
-                // INF heuristic value indicates unreachable (e.g. non-running transit service)
-                // this saves time by not reverse-exploring those routes and avoids maxFound of INF.
-                if (Double.isInfinite(ew)) {
-                    continue;  
-                }
-                double vw = uw + ew;
-                double old_vw = weights.get(v);
-                if (vw < old_vw) {
-                    // including when old_vw is infinite because it is not yet touched
-                    weights.put(v, vw);
-                    q.insert(v, vw); 
-                }
+            maxFound = transitStep(q, weights, options);
+        }
+    }
+
+    /**
+     * Take the vertex at the head of the queue of the backward transit search and relax the edges leading to it.
+     * @return the weight of that vertex.
+     */
+    static double transitStep(BinHeap<Vertex> q, TObjectDoubleHashMap<Vertex> weights, RoutingRequest options) {
+        double uw = q.peek_min_key();
+        Vertex u = q.extract_min();
+        //LOG.info("dequeued weight {} at {}", uw, u);
+//        // Ignore vertices that could be rekeyed (but are not rekeyed in this implementation).
+//        if (uw > weights.get(u)) continue;
+
+//        System.out.printf("H, %3.5f, %3.5f, %2.1f\n", u.getY(), u.getX(),
+//                Double.isInfinite(uw) ? -1.0 : uw);
+
+        // OUTgoing for heuristic search when main search is arriveBy
+        for (Edge e : options.arriveBy ? u.getOutgoing() : u.getIncoming()) {
+            // Do not enter streets in this phase.
+            if (e instanceof StreetTransitLink) continue;
+            Vertex v = options.arriveBy ? e.getToVertex() : e.getFromVertex();
+            double ew = e.weightLowerBound(options);
+            // INF heuristic value indicates unreachable (e.g. non-running transit service)
+            // this saves time by not reverse-exploring those routes and avoids maxFound of INF.
+            if (Double.isInfinite(ew)) {
+                continue;
+            }
+            double vw = uw + ew;
+            double old_vw = weights.get(v);
+            if (vw < old_vw) {
+                // including when old_vw is infinite because it is not yet touched
+                weights.put(v, vw);
+                q.insert(v, vw);
             }
         }
+        return uw;
     }
     
     /**
@@ -197,6 +237,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         final Vertex v = s.getVertex();
         // Temporary vertices (StreetLocations) might not be found in walk search.
         if (v instanceof StreetLocation) return 0;
+        if (table != null) return estimateFromTable(s, v);
         double weight = weights.get(v);
         // All valid street vertices should be explored before the main search starts,
         // but many transit vertices may not yet be explored when the search starts.
@@ -220,6 +261,32 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         return weight;
     }
 
+    /**
+     * The same estimate as above, combining the marks left around the origin by this request with a cached
+     * destination table. The table is complete, so a transit vertex missing from it cannot reach the destination
+     * (unless it was added to the graph after the table was computed), and the Euclidean bound is used for it.
+     */
+    private double estimateFromTable(State s, Vertex v) {
+        double weight = table.getWeight(v);
+        double originWeight = weights.get(v);
+        if (v instanceof StreetVertex) {
+            if (originWeight == -1) {
+                // Near both origin and destination: remaining distance unknown because of potential transit use.
+                if (weight != Double.POSITIVE_INFINITY) return 0;
+                // If we are near the origin but not near the destination, do not alight from transit.
+                return s.isEverBoarded() ? Double.POSITIVE_INFINITY : 0;
+            }
+            return weight;
+        }
+        // Park and ride vertices around the origin record their weight from the origin, see streetSearch().
+        if (originWeight >= 0 && originWeight < weight) weight = originWeight;
+        if (weight == Double.POSITIVE_INFINITY) {
+            double dist = SphericalDistanceLibrary.fastDistance(v.getY(), v.getX(), target.getY(), target.getX());
+            return dist / MAX_TRANSIT_SPEED;
+        }
+        return weight;
+    }
+
     @Override
     public void reset() { }
         
@@ -264,15 +331,29 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     */
 
     private List<State> streetSearch (RoutingRequest rr, boolean fromTarget, long abortTime) {
+        Vertex initVertex = fromTarget ? rr.rctx.target : rr.rctx.origin;
+        return streetSearch(rr, fromTarget, Collections.singleton(initVertex), weights, false, abortTime);
+    }
+
+    /**
+     * Search the streets from all the given vertices at once, recording weights in the given map as described
+     * above. Searches shared by several requests should skip temporary edges, which lead to the temporary vertices
+     * of other requests.
+     * @return the states reaching transit stops, or null if the search timed out.
+     */
+    static List<State> streetSearch (RoutingRequest rr, boolean fromTarget, Collection<Vertex> initVertices,
+            TObjectDoubleHashMap<Vertex> weights, boolean skipTemporaryEdges, long abortTime) {
         rr = rr.clone();
         if (fromTarget)
             rr.setArriveBy( ! rr.arriveBy);
         List<State> stopStates = Lists.newArrayList();
         ShortestPathTree spt = new DominanceFunction.MinimumWeight().getNewShortestPathTree(rr);
         BinHeap<State> pq = new BinHeap<State>();
-        Vertex initVertex = fromTarget ? rr.rctx.target : rr.rctx.origin;
-        State initState = new State(initVertex, rr);
-        pq.insert(initState, 0);
+        for (Vertex initVertex : initVertices) {
+            State initState = new State(initVertex, rr);
+            spt.add(initState);
+            pq.insert(initState, 0);
+        }
         while ( ! pq.empty()) {
             /**
              * Terminate the search prematurely if we've hit our computation wall.
@@ -314,6 +395,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
             }
             // FIXME should only traverse when state is better than old_weight
             for (Edge e : rr.arriveBy ? v.getIncoming() : v.getOutgoing()) {
+                if (skipTemporaryEdges && e instanceof TemporaryEdge) continue;
                 // arriveBy has been set to match actual directional behavior in this subsearch
                 State s1 = e.traverse(s);
                 if (s1 == null)
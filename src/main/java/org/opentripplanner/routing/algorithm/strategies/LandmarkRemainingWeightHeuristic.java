@@ -0,0 +1,125 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.LandmarkTable;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
+
+import com.google.common.collect.Sets;
+
+/**
+ * A remaining weight heuristic for non-transit searches using the landmark distances stored with the graph (see
+ * LandmarkTable), falling back on the straight-line distance where it is higher or where the table does not apply.
+ *
+ * A temporary target is not in the table, but every path to it goes through one of the street vertices it is linked
+ * to, so the bound is the smallest bound to any of those vertices.
+ */
+public class LandmarkRemainingWeightHeuristic implements RemainingWeightHeuristic {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LandmarkTable table;
+
+    private double lat;
+    private double lon;
+    private boolean arriveBy;
+    private double weightPerMeter;
+    private double landmarkWeightPerMeter;
+
+    /** The table rows of the target, or of the vertices it is linked to. */
+    private int[] targetRows;
+
+    public LandmarkRemainingWeightHeuristic(LandmarkTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public void initialize(RoutingRequest options, long abortTime) {
+        Vertex target = options.rctx.target;
+        lat = target.getLat();
+        lon = target.getLon();
+        arriveBy = options.arriveBy;
+        // the same scaling as the Euclidean heuristic for non-transit searches
+        weightPerMeter = options.walkReluctance / options.getStreetSpeedUpperBound();
+        landmarkWeightPerMeter = weightPerMeter * table.getMinLengthRatio();
+        TIntArrayList rows = new TIntArrayList();
+        for (Vertex v : anchors(target)) {
+            int row = table.getRow(v);
+            if (row < 0) {
+                // Not linked to the street network the table was built on, fall back on the Euclidean bound.
+                rows.clear();
+                break;
+            }
+            rows.add(row);
+        }
+        targetRows = rows.toArray();
+    }
+
+    /** @return the target if it is not temporary, otherwise the non-temporary vertices it is linked to. */
+    static Set<Vertex> anchors(Vertex target) {
+        Set<Vertex> anchors = Sets.newHashSet();
+        Set<Vertex> seen = Sets.newHashSet(target);
+        LinkedList<Vertex> queue = new LinkedList<Vertex>(seen);
+        while (!queue.isEmpty()) {
+            Vertex v = queue.removeFirst();
+            if (!(v instanceof TemporaryVertex)) {
+                anchors.add(v);
+                continue;
+            }
+            Collection<Edge> edges = new ArrayList<Edge>(v.getIncoming());
+            edges.addAll(v.getOutgoing());
+            for (Edge e : edges) {
+                for (Vertex u : new Vertex[] { e.getFromVertex(), e.getToVertex() }) {
+                    if (seen.add(u)) queue.add(u);
+                }
+            }
+        }
+        return anchors;
+    }
+
+    @Override
+    public double estimateRemainingWeight(State s) {
+        Vertex v = s.getVertex();
+        double euclidean = SphericalDistanceLibrary.fastDistance(v.getLat(), v.getLon(), lat, lon) * weightPerMeter;
+        if (targetRows.length == 0) return euclidean;
+        int row = table.getRow(v);
+        if (row < 0) return euclidean;
+        double landmark = Double.POSITIVE_INFINITY;
+        for (int targetRow : targetRows) {
+            // In an arriveBy search the remaining path runs from the target to the current vertex.
+            double bound = arriveBy ? table.lowerBound(targetRow, row) : table.lowerBound(row, targetRow);
+            if (bound < landmark) landmark = bound;
+        }
+        return Math.max(euclidean, landmark * landmarkWeightPerMeter);
+    }
+
+    @Override
+    public void reset() {}
+
+    @Override
+    public void doSomeWork() {}
+
+}
@@ -411,6 +411,26 @@ public class RoutingContext implements Cloneable {
         return true;
     }
 
+    /**
+     * Make a copy of this routing context for another search between the same origin and destination, possibly run
+     * concurrently with the search using this context. The copy shares the temporary vertices and edges and the other
+     * read-only parts of this context, but has its own request, goal direction heuristic, abort flag and debug output.
+     * Only the original context should be destroyed.
+     */
+    public RoutingContext copyForSearch(RoutingRequest opt, RemainingWeightHeuristic heuristic) {
+        try {
+            RoutingContext copy = (RoutingContext) super.clone();
+            copy.opt = opt;
+            copy.remainingWeightHeuristic = heuristic;
+            copy.debugOutput = new DebugOutput();
+            copy.aborted = false;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            /* this will never happen since our super is the cloneable object */
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Tear down this routing context, removing any temporary edges.
      */
@@ -21,6 +21,7 @@ import org.opentripplanner.api.parameter.QualifiedModeSet;
 import org.opentripplanner.common.MavenVersion;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.common.model.NamedPlace;
+import org.opentripplanner.common.pqueue.PriorityQueueType;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
@@ -412,6 +413,44 @@ public class RoutingRequest implements Cloneable, Serializable {
     /** Accept only paths that use transit (no street-only paths). */
     public boolean onlyTransitTrips = false;
 
+    /**
+     * The priority queue used by the search. The indexed heaps replace dominated states at the same vertex in place
+     * (decrease-key) rather than leaving them in the queue, and the pooled variant also reuses the queue arrays
+     * across requests handled by the same thread.
+     */
+    public PriorityQueueType queueType = PriorityQueueType.BINARY_HEAP;
+
+    /**
+     * If true, the shortest path tree stores states in arrays indexed on vertex index instead of a hash map. This
+     * avoids a hash lookup and a list allocation per vertex, which matters most for single-state dominance functions.
+     */
+    public boolean arrayShortestPathTree = false;
+
+    /**
+     * If true, street-only searches that CompactStreetSearch can model are run on the graph's compact (CSR) copy of
+     * the street network rather than with AStar on the object graph. Other searches are unaffected.
+     */
+    public boolean compactStreetSearch = false;
+
+    /**
+     * If true, the searches for the second and later itineraries are run concurrently on the router's itinerary
+     * executor once the first itinerary is found, each banning different trips of that first itinerary, instead of
+     * one after the other with cumulative bans.
+     */
+    public boolean parallelItineraries = false;
+
+    /**
+     * If true, transit searches use the bidirectional heuristic, whose destination side is cached by the router and
+     * shared with other requests to nearby destinations, rather than the simpler walk constraining heuristic.
+     */
+    public boolean bidirectionalHeuristic = false;
+
+    /**
+     * If true, states rejected right after being created during a search are recycled to create the next states,
+     * reducing the garbage produced by searches.
+     */
+    public boolean recycleStates = false;
+
     /* CONSTRUCTORS */
 
     /** Constructor for options; modes defaults to walk and transit */
@@ -157,6 +157,27 @@ public class State implements Cloneable {
         return ret;
     }
 
+    /**
+     * The same as clone(), but reusing a rejected state from the arena of the current search if there is one.
+     * Every field of State must be copied here.
+     */
+    State cloneReusing() {
+        StateArena arena = StateArena.current();
+        State ret = arena == null ? null : arena.take();
+        if (ret == null) return clone();
+        ret.time = time;
+        ret.weight = weight;
+        ret.vertex = vertex;
+        ret.backState = backState;
+        ret.backEdge = backEdge;
+        ret.next = next;
+        ret.stateData = stateData;
+        ret.walkDistance = walkDistance;
+        ret.preTransitTime = preTransitTime;
+        ret.pathParserStates = pathParserStates;
+        return ret;
+    }
+
     /*
      * FIELD ACCESSOR METHODS States are immutable, so they have only get methods. The corresponding
      * set methods are in StateEditor.
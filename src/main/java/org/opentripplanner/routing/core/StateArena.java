@@ -0,0 +1,89 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.core;
+
+/**
+ * A bounded free list of State objects that were created during a search but immediately rejected (dominated,
+ * pruned by the heuristic or by a limit), so that StateEditor can reuse them for the next states it creates rather
+ * than allocating new ones. Most states produced by a search are rejected this way, and they are the main source of
+ * short-lived garbage during routing.
+ *
+ * An arena belongs to a single search and is only used by the thread running it, between activate() and
+ * deactivate(). Only states that nothing else refers to may be recycled: the search must check that the state was
+ * not added to the shortest path tree, not passed to a traverse visitor and not part of a longer result chain.
+ */
+public final class StateArena {
+
+    private static final ThreadLocal<StateArena> CURRENT = new ThreadLocal<StateArena>();
+
+    private final State[] free;
+
+    private int size = 0;
+
+    private int recycled = 0;
+
+    private int reused = 0;
+
+    public StateArena(int capacity) {
+        free = new State[capacity];
+    }
+
+    /** @return the arena active in the current thread, or null if states are not recycled. */
+    static StateArena current() {
+        return CURRENT.get();
+    }
+
+    /** Make this arena the source of new states in the current thread. */
+    public void activate() {
+        CURRENT.set(this);
+    }
+
+    public void deactivate() {
+        CURRENT.remove();
+    }
+
+    /** @return a recycled state whose fields must all be overwritten, or null if there is none. */
+    State take() {
+        if (size == 0) return null;
+        State state = free[--size];
+        free[size] = null;
+        reused++;
+        return state;
+    }
+
+    /**
+     * Hand back a state that is no longer referenced by anything. Its references are cleared so that it does not
+     * retain a path or state data while waiting to be reused.
+     */
+    public void recycle(State state) {
+        if (size == free.length || state.getClass() != State.class) return;
+        state.backState = null;
+        state.backEdge = null;
+        state.next = null;
+        state.vertex = null;
+        state.stateData = null;
+        state.pathParserStates = null;
+        free[size++] = state;
+        recycled++;
+    }
+
+    public int getRecycledCount() {
+        return recycled;
+    }
+
+    public int getReusedCount() {
+        return reused;
+    }
+
+}
@@ -58,7 +58,7 @@ public class StateEditor {
     }
 
     public StateEditor(State parent, Edge e) {
-        child = parent.clone();
+        child = parent.cloneReusing();
         child.backState = parent;
         child.backEdge = e;
         // We clear child.next here, since it could have already been set in the
@@ -249,21 +249,30 @@ public class StateEditor {
     /* Basic Setters */
 
     public void setTripTimes(TripTimes tripTimes) {
+        if (tripTimes == child.stateData.tripTimes)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.tripTimes = tripTimes;
     }
 
     public void setTripId(AgencyAndId tripId) {
+        if (tripId == child.stateData.tripId)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.tripId = tripId;
     }
 
     public void setPreviousTrip(Trip previousTrip) {
+        if (previousTrip == child.stateData.previousTrip)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.previousTrip = previousTrip;
     }
 
     public void setEnteredNoThroughTrafficArea() {
+        if (child.stateData.enteredNoThroughTrafficArea)
+            return;
+        cloneStateDataAsNeeded();
         child.stateData.enteredNoThroughTrafficArea = true;
     }
     
@@ -272,6 +281,8 @@ public class StateEditor {
      * This happens in Analyst.
      */
     public void setInitialWaitTimeSeconds(long initialWaitTimeSeconds) {
+        if (initialWaitTimeSeconds == child.stateData.initialWaitTime)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.initialWaitTime = initialWaitTimeSeconds;
     }
@@ -297,6 +308,8 @@ public class StateEditor {
      * the planner used and the arrival of the trip after that.
      */
     public void setLastNextArrivalDelta (int lastNextArrivalDelta) {
+        if (lastNextArrivalDelta == child.stateData.lastNextArrivalDelta)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.lastNextArrivalDelta = lastNextArrivalDelta;
     }
@@ -337,23 +350,26 @@ public class StateEditor {
     }
 
     public void setNumBoardings(int numBoardings) {
+        if (numBoardings == child.stateData.numBoardings)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.numBoardings = numBoardings;
     }
 
     public void setEverBoarded(boolean everBoarded) {
+        if (child.stateData.everBoarded)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.everBoarded = true;
     }
 
     public void setBikeRenting(boolean bikeRenting) {
+        TraverseMode mode = bikeRenting ? TraverseMode.BICYCLE : TraverseMode.WALK;
+        if (bikeRenting == child.stateData.usingRentedBike && mode == child.stateData.nonTransitMode)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.usingRentedBike = bikeRenting;
-        if (bikeRenting) {
-            child.stateData.nonTransitMode = TraverseMode.BICYCLE;
-        } else {
-            child.stateData.nonTransitMode = TraverseMode.WALK;
-        }
+        child.stateData.nonTransitMode = mode;
     }
 
     /**
@@ -361,32 +377,34 @@ public class StateEditor {
      * Marking the car parked is important for allowing co-dominance of walking and driving states.
      */
     public void setCarParked(boolean carParked) {
+        // We do not handle mixed-mode P+BIKE...
+        TraverseMode mode = carParked ? TraverseMode.WALK : TraverseMode.CAR;
+        if (carParked == child.stateData.carParked && mode == child.stateData.nonTransitMode)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.carParked = carParked;
-        if (carParked) {
-            // We do not handle mixed-mode P+BIKE...
-            child.stateData.nonTransitMode = TraverseMode.WALK;
-        } else {
-            child.stateData.nonTransitMode = TraverseMode.CAR;
-        }
+        child.stateData.nonTransitMode = mode;
     }
 
     public void setBikeParked(boolean bikeParked) {
+        TraverseMode mode = bikeParked ? TraverseMode.WALK : TraverseMode.BICYCLE;
+        if (bikeParked == child.stateData.bikeParked && mode == child.stateData.nonTransitMode)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.bikeParked = bikeParked;
-        if (bikeParked) {
-            child.stateData.nonTransitMode = TraverseMode.WALK;
-        } else {
-            child.stateData.nonTransitMode = TraverseMode.BICYCLE;
-        }
+        child.stateData.nonTransitMode = mode;
     }
 
     public void setPreviousStop(Stop previousStop) {
+        if (previousStop == child.stateData.previousStop)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.previousStop = previousStop;
     }
 
     public void setLastAlightedTimeSeconds(long lastAlightedTimeSeconds) {
+        if (lastAlightedTimeSeconds == child.stateData.lastAlightedTime)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.lastAlightedTime = lastAlightedTimeSeconds;
     }
@@ -396,6 +414,8 @@ public class StateEditor {
     }
 
     public void setStartTimeSeconds(long seconds) {
+        if (seconds == child.stateData.startTime)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.startTime = seconds;
     }
@@ -489,7 +509,9 @@ public class StateEditor {
     /**
      * To be called before modifying anything in the child's StateData. Makes sure that changes are
      * applied to a copy of StateData rather than the same one that is still referenced in existing,
-     * older states.
+     * older states. Setters should return early when the value does not change, so that the
+     * StateData stays shared with the parent state (it is only copied when transit, rental,
+     * parking or other infrequently changing fields really change).
      */
     private void cloneStateDataAsNeeded() {
         if (child.backState != null && child.stateData == child.backState.stateData)
@@ -497,25 +519,35 @@ public class StateEditor {
     }
 
     public void alightTransit() {
+        if (child.getWalkDistance() == child.stateData.lastTransitWalk)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.lastTransitWalk = child.getWalkDistance();
     }
 
     public void setLastPattern(TripPattern pattern) {
+        if (pattern == child.stateData.lastPattern)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.lastPattern = pattern;
     }
     public void setOptions(RoutingRequest options) {
+        if (options == child.stateData.opt)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.opt = options;
     }
 
     public void setServiceDay(ServiceDay day) {
+        if (day == child.stateData.serviceDay)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.serviceDay = day;
     }
 
     public void setBikeRentalNetwork(Set<String> networks) {
+        if (networks == child.stateData.bikeRentalNetworks)
+            return;
         cloneStateDataAsNeeded();
         child.stateData.bikeRentalNetworks = networks;
     }
@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.TimeZone;
 
 import com.beust.jcommander.internal.Lists;
+import com.google.common.annotations.VisibleForTesting;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
@@ -87,6 +88,19 @@ public class Timetable implements Serializable {
      * Helps determine whether a particular pattern is worth searching for departures at a given time. 
      */
     private transient int minTime, maxTime;
+
+    /**
+     * Timetables with fewer trips than this are not indexed: a linear search over a handful of trips is as fast as a
+     * binary search, and the index would take several times the memory of their TripTimes.
+     */
+    static final int MIN_INDEXED_TRIPS = 16;
+
+    /**
+     * Per-stop sorted departure and arrival times of tripTimes, built in finish(). Null when the timetable has too
+     * few trips or trips have been added since the last call to finish(), in which case getNextTrip falls back on a
+     * linear search.
+     */
+    private transient TripTimesIndex tripTimesIndex;
     
     /** Construct an empty Timetable. */
     public Timetable(TripPattern pattern) {
@@ -101,6 +115,10 @@ public class Timetable implements Serializable {
         tripTimes.addAll(tt.tripTimes);
         this.serviceDate = serviceDate;
         this.pattern = tt.pattern;
+        // the copy is updated trip by trip before being finished, keep its index current rather than rebuilding it
+        if (tt.tripTimesIndex != null && tt.tripTimesIndex.nTrips == tripTimes.size()) {
+            this.tripTimesIndex = tt.tripTimesIndex.sharedCopy();
+        }
     }
 
     /**
@@ -144,41 +162,18 @@ public class Timetable implements Serializable {
         } else {
             time -= s0.getOptions().getAlightTime(this.pattern.mode);
         }
-        TripTimes bestTrip = null;
         Stop currentStop = pattern.getStop(stopIndex);
-        // Linear search through the timetable looking for the best departure.
-        // We no longer use a binary search on Timetables because:
-        // 1. we allow combining trips from different service IDs on the same tripPattern.
-        // 2. We mix frequency-based and one-off TripTimes together on tripPatterns.
-        // 3. Stoptimes may change with realtime updates, and we cannot count on them being sorted.
-        //    The complexity of keeping sorted indexes up to date does not appear to be worth the
-        //    apparently minor speed improvement.
+        TripTimesIndex index = tripTimesIndex;
+        TripTimes bestTrip;
+        if (index != null) {
+            bestTrip = boarding ? getNextDeparture(index, s0, serviceDay, stopIndex, currentStop, time)
+                                : getPreviousArrival(index, s0, serviceDay, stopIndex, currentStop, time);
+        } else {
+            bestTrip = getNextTripLinear(s0, serviceDay, stopIndex, currentStop, boarding, time);
+        }
         int bestTime = boarding ? Integer.MAX_VALUE : Integer.MIN_VALUE;
-        // Hoping JVM JIT will distribute the loop over the if clauses as needed.
-        // We could invert this and skip some service days based on schedule overlap as in RRRR.
-        for (TripTimes tt : tripTimes) {
-            if (tt.isCanceled()) continue;
-            if ( ! serviceDay.serviceRunning(tt.serviceCode)) continue; // TODO merge into call on next line
-            if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
-            int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
-            if (adjustedTime == -1) continue;
-            if (boarding) {
-                int depTime = tt.getDepartureTime(stopIndex);
-                if (depTime < 0) continue; // negative values were previously used for canceled trips/passed stops/skipped stops, but
-                                           // now its not sure if this check should be still in place because there is a boolean field
-                                           // for canceled trips
-                if (depTime >= adjustedTime && depTime < bestTime) {
-                    bestTrip = tt;
-                    bestTime = depTime;
-                }
-            } else {
-                int arvTime = tt.getArrivalTime(stopIndex);
-                if (arvTime < 0) continue;
-                if (arvTime <= adjustedTime && arvTime > bestTime) {
-                    bestTrip = tt;
-                    bestTime = arvTime;
-                }
-            }
+        if (bestTrip != null) {
+            bestTime = boarding ? bestTrip.getDepartureTime(stopIndex) : bestTrip.getArrivalTime(stopIndex);
         }
         // ACK all logic is identical to above.
         // A sign that FrequencyEntries and TripTimes need a common interface.
@@ -215,6 +210,111 @@ public class Timetable implements Serializable {
         return bestTrip;
     }
 
+    /**
+     * Find the best trip by checking every TripTimes in this timetable. This is used when the timetable has not been
+     * indexed since trips were last added to it.
+     */
+    private TripTimes getNextTripLinear(State s0, ServiceDay serviceDay, int stopIndex, Stop currentStop,
+            boolean boarding, int time) {
+        TripTimes bestTrip = null;
+        int bestTime = boarding ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        // Hoping JVM JIT will distribute the loop over the if clauses as needed.
+        // We could invert this and skip some service days based on schedule overlap as in RRRR.
+        for (TripTimes tt : tripTimes) {
+            if (tt.isCanceled()) continue;
+            if ( ! serviceDay.serviceRunning(tt.serviceCode)) continue; // TODO merge into call on next line
+            if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
+            int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
+            if (adjustedTime == -1) continue;
+            if (boarding) {
+                int depTime = tt.getDepartureTime(stopIndex);
+                if (depTime < 0) continue; // negative values were previously used for canceled trips/passed stops/skipped stops, but
+                                           // now its not sure if this check should be still in place because there is a boolean field
+                                           // for canceled trips
+                if (depTime >= adjustedTime && depTime < bestTime) {
+                    bestTrip = tt;
+                    bestTime = depTime;
+                }
+            } else {
+                int arvTime = tt.getArrivalTime(stopIndex);
+                if (arvTime < 0) continue;
+                if (arvTime <= adjustedTime && arvTime > bestTime) {
+                    bestTrip = tt;
+                    bestTime = arvTime;
+                }
+            }
+        }
+        return bestTrip;
+    }
+
+    /**
+     * Find the first trip departing at or after the given time, using the sorted departures at the given stop. Within
+     * each running service block, trips are checked in order of departure until one is acceptable. A transfer rule
+     * can only delay the earliest allowed departure or forbid the trip, so no trip before the search time can qualify.
+     */
+    private TripTimes getNextDeparture(TripTimesIndex index, State s0, ServiceDay serviceDay, int stopIndex,
+            Stop currentStop, int time) {
+        int[] trips = index.departureTrips[stopIndex];
+        int[] times = index.departureTimes[stopIndex];
+        TripTimes bestTrip = null;
+        int bestTime = Integer.MAX_VALUE;
+        int bestTripIndex = Integer.MAX_VALUE;
+        for (int b = 0; b < index.serviceCodes.length; b++) {
+            if ( ! serviceDay.serviceRunning(index.serviceCodes[b])) continue;
+            int end = index.blockStart[b + 1];
+            // negative times mark passed or skipped stops and are never boarded
+            int p = TripTimesIndex.firstAtOrAfter(times, index.blockStart[b], end, Math.max(time, 0));
+            for (; p < end; p++) {
+                int depTime = times[p];
+                if (depTime > bestTime || (depTime == bestTime && trips[p] > bestTripIndex)) break;
+                TripTimes tt = tripTimes.get(trips[p]);
+                if (tt.isCanceled()) continue;
+                if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
+                int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, true, serviceDay, time);
+                if (adjustedTime == -1) continue;
+                if (depTime >= adjustedTime) {
+                    bestTrip = tt;
+                    bestTime = depTime;
+                    bestTripIndex = trips[p];
+                    break;
+                }
+            }
+        }
+        return bestTrip;
+    }
+
+    /** The mirror image of getNextDeparture, finding the last trip arriving at or before the given time. */
+    private TripTimes getPreviousArrival(TripTimesIndex index, State s0, ServiceDay serviceDay, int stopIndex,
+            Stop currentStop, int time) {
+        int[] trips = index.arrivalTrips[stopIndex];
+        int[] times = index.arrivalTimes[stopIndex];
+        TripTimes bestTrip = null;
+        int bestTime = Integer.MIN_VALUE;
+        int bestTripIndex = Integer.MAX_VALUE;
+        for (int b = 0; b < index.serviceCodes.length; b++) {
+            if ( ! serviceDay.serviceRunning(index.serviceCodes[b])) continue;
+            int start = index.blockStart[b];
+            int p = TripTimesIndex.lastAtOrBefore(times, start, index.blockStart[b + 1], time);
+            for (; p >= start; p--) {
+                int arvTime = times[p];
+                if (arvTime < 0) break;
+                if (arvTime < bestTime || (arvTime == bestTime && trips[p] > bestTripIndex)) break;
+                TripTimes tt = tripTimes.get(trips[p]);
+                if (tt.isCanceled()) continue;
+                if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
+                int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, false, serviceDay, time);
+                if (adjustedTime == -1) continue;
+                if (arvTime <= adjustedTime) {
+                    bestTrip = tt;
+                    bestTime = arvTime;
+                    bestTripIndex = trips[p];
+                    break;
+                }
+            }
+        }
+        return bestTrip;
+    }
+
     /**
      * Check transfer table rules. Given the last alight time from the State,
      * return the boarding time t0 adjusted for this particular trip's minimum transfer time,
@@ -260,6 +360,12 @@ public class Timetable implements Serializable {
      * actions to compact the data structure such as trimming and deduplicating arrays.
      */
     public void finish() {
+        finish(MIN_INDEXED_TRIPS);
+    }
+
+    /** Finish this Timetable, indexing its trips only if there are at least the given number of them. */
+    @VisibleForTesting
+    void finish(int minIndexedTrips) {
         int nStops = pattern.stopPattern.size;
         int nHops = nStops - 1;
         /* Find lower bounds on dwell and running times at each stop. */
@@ -295,6 +401,12 @@ public class Timetable implements Serializable {
             minTime = Math.min(minTime, freq.getMinDeparture());
             maxTime = Math.max(maxTime, freq.getMaxArrival());
         }
+        /* Index departures and arrivals, unless the index has been kept up to date by setTripTimes. */
+        if (tripTimes.size() < minIndexedTrips) {
+            tripTimesIndex = null;
+        } else if (tripTimesIndex == null || tripTimesIndex.nTrips != tripTimes.size()) {
+            tripTimesIndex = TripTimesIndex.build(tripTimes, nStops);
+        }
     }
 
     /** @return the index of TripTimes for this trip ID in this particular Timetable */
@@ -338,6 +450,9 @@ public class Timetable implements Serializable {
      * @return old trip times of trip
      */
     public TripTimes setTripTimes(int tripIndex, TripTimes tt) {
+        if (tripTimesIndex != null && ! tripTimesIndex.update(tripIndex, tt)) {
+            tripTimesIndex = null;
+        }
         return tripTimes.set(tripIndex, tt);
     }
 
@@ -519,6 +634,7 @@ public class Timetable implements Serializable {
      */
     public void addTripTimes(TripTimes tt) {
         tripTimes.add(tt);
+        tripTimesIndex = null;
     }
 
     /**
@@ -562,6 +678,7 @@ public class Timetable implements Serializable {
     /** Find and cache service codes. Duplicates information in trip.getServiceId for optimization. */
     // TODO maybe put this is a more appropriate place
     public void setServiceCodes (Map<AgencyAndId, Integer> serviceCodes) {
+        tripTimesIndex = null; // trips are grouped on service code in the index
         for (TripTimes tt : this.tripTimes) {
             tt.serviceCode = serviceCodes.get(tt.trip.getServiceId());
         }
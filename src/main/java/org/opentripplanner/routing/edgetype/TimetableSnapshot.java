@@ -17,6 +17,7 @@ import java.util.*;
 import java.util.Map.Entry;
 
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.opentripplanner.common.PersistentHashMap;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -96,12 +97,12 @@ public class TimetableSnapshot {
 
     private static final Logger LOG = LoggerFactory.getLogger(TimetableSnapshot.class);
     
-    // Use HashMap not Map so we can clone.
-    // if this turns out to be slow/spacious we can use an array with integer pattern indexes
+    // Persistent maps, so that a commit shares all the entries of the buffer instead of copying the whole map, and
+    // updating the buffer after a commit only copies the few trie nodes leading to the updated patterns.
+    // A committed snapshot holds a transient it never changes, as it is read-only.
     // The SortedSet members are copy-on-write
-    // FIXME: this could be made into a flat hashtable with compound keys.
-    private HashMap<TripPattern, SortedSet<Timetable>> timetables =
-            new HashMap<TripPattern, SortedSet<Timetable>>();
+    private PersistentHashMap.Transient<TripPattern, SortedSet<Timetable>> timetables =
+            PersistentHashMap.<TripPattern, SortedSet<Timetable>>empty().asTransient();
 
     /**
      * <p>
@@ -109,11 +110,9 @@ public class TimetableSnapshot {
      * service date as a result of a call to {@link #update(String feedId, TripPattern, TripTimes, ServiceDate)}
      * with trip times of a trip that didn't exist yet in the trip pattern.
      * </p>
-     * <p>
-     * This is a HashMap and not a Map so the clone function is available.
-     * </p>
      */
-    private HashMap<TripIdAndServiceDate, TripPattern> lastAddedTripPattern = new HashMap<>();
+    private PersistentHashMap.Transient<TripIdAndServiceDate, TripPattern> lastAddedTripPattern =
+            PersistentHashMap.<TripIdAndServiceDate, TripPattern>empty().asTransient();
     
     /**
      * Boolean value indicating that timetable snapshot is read only if true. Once it is true, it shouldn't
@@ -231,7 +230,7 @@ public class TimetableSnapshot {
 
     /**
      * This produces a small delay of typically around 50ms, which is almost entirely due to
-     * the indexing step. Cloning the map is much faster (2ms).
+     * the indexing step. Sharing the maps with the snapshot takes constant time.
      * It is perhaps better to index timetables as they are changed to avoid experiencing all
      * this lag at once, but we want to avoid re-indexing when receiving multiple updates for
      * the same timetable in rapid succession. This compromise is expressed by the
@@ -243,7 +242,6 @@ public class TimetableSnapshot {
         return commit(false);
     }
 
-    @SuppressWarnings("unchecked")
     public TimetableSnapshot commit(boolean force) {
         if (readOnly) {
             throw new ConcurrentModificationException("This TimetableSnapshot is read-only.");
@@ -254,9 +252,8 @@ public class TimetableSnapshot {
         for (Timetable tt : dirtyTimetables) {
             tt.finish(); // summarize, index, etc. the new timetables
         }
-        ret.timetables = (HashMap<TripPattern, SortedSet<Timetable>>) this.timetables.clone();
-        ret.lastAddedTripPattern = (HashMap<TripIdAndServiceDate, TripPattern>)
-                this.lastAddedTripPattern.clone();
+        ret.timetables = this.timetables.persistent().asTransient();
+        ret.lastAddedTripPattern = this.lastAddedTripPattern.persistent().asTransient();
         this.dirtyTimetables.clear();
         this.dirty = false;
 
@@ -290,7 +287,7 @@ public class TimetableSnapshot {
      * @return true if the timetable changed as a result of the call
      */
     protected boolean clearTimetable(String feedId) {
-        return timetables.keySet().removeIf(tripPattern -> feedId.equals(tripPattern.getFeedId()));
+        return timetables.removeIf((tripPattern, sortedTimetables) -> feedId.equals(tripPattern.getFeedId()));
     }
 
     /**
@@ -300,7 +297,8 @@ public class TimetableSnapshot {
      * @return true if the lastAddedTripPattern changed as a result of the call
      */
     protected boolean clearLastAddedTripPattern(String feedId) {
-        return lastAddedTripPattern.keySet().removeIf(lastAddedTripPattern -> feedId.equals(lastAddedTripPattern.getFeedId()));
+        return lastAddedTripPattern.removeIf((tripIdAndServiceDate, pattern) ->
+                feedId.equals(tripIdAndServiceDate.getFeedId()));
     }
 
     /**
@@ -311,35 +309,35 @@ public class TimetableSnapshot {
             throw new ConcurrentModificationException("This TimetableSnapshot is read-only.");
         }
 
-        boolean modified = false;
-        for (Iterator<TripPattern> it = timetables.keySet().iterator(); it.hasNext();){
-            TripPattern pattern = it.next();
-            SortedSet<Timetable> sortedTimetables = timetables.get(pattern);
+        // The maps cannot be changed while they are traversed, collect the changes first
+        Map<TripPattern, SortedSet<Timetable>> changes = new HashMap<TripPattern, SortedSet<Timetable>>();
+        timetables.forEach((pattern, sortedTimetables) -> {
+            if (serviceDate.compareTo(sortedTimetables.first().serviceDate) < 0) {
+                // the timetables are sorted by service date, none of them has expired
+                return;
+            }
             SortedSet<Timetable> toKeepTimetables =
                     new TreeSet<Timetable>(new SortedTimetableComparator());
             for(Timetable timetable : sortedTimetables) {
                 if(serviceDate.compareTo(timetable.serviceDate) < 0) {
                     toKeepTimetables.add(timetable);
-                } else {
-                    modified = true;
                 }
             }
-
-            if(toKeepTimetables.isEmpty()) {
-                it.remove();
+            changes.put(pattern, toKeepTimetables);
+        });
+        for (Entry<TripPattern, SortedSet<Timetable>> change : changes.entrySet()) {
+            if (change.getValue().isEmpty()) {
+                timetables.remove(change.getKey());
             } else {
-                timetables.put(pattern, toKeepTimetables);
+                timetables.put(change.getKey(), change.getValue());
             }
         }
+        boolean modified = !changes.isEmpty();
         
         // Also remove last added trip pattern for days that are purged
-        for (Iterator<Entry<TripIdAndServiceDate, TripPattern>> iterator = lastAddedTripPattern
-                .entrySet().iterator(); iterator.hasNext();) {
-            TripIdAndServiceDate tripIdAndServiceDate = iterator.next().getKey();
-            if (serviceDate.compareTo(tripIdAndServiceDate.getServiceDate()) >= 0) {
-                iterator.remove();
-                modified = true;
-            }
+        if (lastAddedTripPattern.removeIf((tripIdAndServiceDate, pattern) ->
+                serviceDate.compareTo(tripIdAndServiceDate.getServiceDate()) >= 0)) {
+            modified = true;
         }
 
         return modified;
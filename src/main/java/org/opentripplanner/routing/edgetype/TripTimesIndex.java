@@ -0,0 +1,213 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentripplanner.routing.trippattern.TripTimes;
+
+/**
+ * A per-stop sorted index of the departure and arrival times of the TripTimes in a Timetable, used by
+ * Timetable.getNextTrip to find the next departure (previous arrival) with a binary search instead of scanning every
+ * trip.
+ *
+ * Trips are grouped into blocks sharing the same service code, so that a whole block can be skipped when its service
+ * is not running. Within each block and for each stop, trip indexes are sorted on their time at that stop. Departures
+ * are sorted on (time, trip index) and arrivals on (time, descending trip index), so that scanning forward from a
+ * departure time or backward from an arrival time meets tied trips in the same order as a linear scan of the
+ * timetable, and the same trip is chosen.
+ *
+ * Canceled trips are kept in the index and skipped during the search, so that cancellations and other realtime
+ * updates can be applied by moving a single trip within its block (see update()) rather than rebuilding the index.
+ * An index copied for an updated Timetable shares its arrays with the original until it is first updated.
+ */
+final class TripTimesIndex {
+
+    /** The number of trips indexed, which is the number of TripTimes in the timetable when the index was built. */
+    final int nTrips;
+
+    /** The service code of each block. */
+    final int[] serviceCodes;
+
+    /** The first position of each block in the per-stop arrays, followed by the total number of positions. */
+    final int[] blockStart;
+
+    /** The block containing each trip. */
+    private final int[] tripBlock;
+
+    /* Per stop, the trip indexes in each block sorted on their time at that stop, and the times themselves. */
+    int[][] departureTrips;
+    int[][] departureTimes;
+    int[][] arrivalTrips;
+    int[][] arrivalTimes;
+
+    /** Whether the per-stop arrays are shared with another index and must be copied before being modified. */
+    private boolean shared;
+
+    private TripTimesIndex(int nTrips, int[] serviceCodes, int[] blockStart, int[] tripBlock) {
+        this.nTrips = nTrips;
+        this.serviceCodes = serviceCodes;
+        this.blockStart = blockStart;
+        this.tripBlock = tripBlock;
+    }
+
+    /** Build an index over the given TripTimes, all of which must have the given number of stops. */
+    static TripTimesIndex build(List<TripTimes> tripTimes, int nStops) {
+        int nTrips = tripTimes.size();
+        // sort trips on service code, then trip index
+        long[] keys = new long[nTrips];
+        for (int t = 0; t < nTrips; t++) {
+            keys[t] = ((long) tripTimes.get(t).serviceCode << 32) | t;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[nTrips];
+        int[] tripBlock = new int[nTrips];
+        int[] serviceCodes = new int[nTrips];
+        int[] blockStart = new int[nTrips + 1];
+        int nBlocks = 0;
+        for (int p = 0; p < nTrips; p++) {
+            int t = (int) keys[p];
+            int serviceCode = (int) (keys[p] >> 32);
+            if (nBlocks == 0 || serviceCodes[nBlocks - 1] != serviceCode) {
+                serviceCodes[nBlocks] = serviceCode;
+                blockStart[nBlocks] = p;
+                nBlocks++;
+            }
+            order[p] = t;
+            tripBlock[t] = nBlocks - 1;
+        }
+        blockStart[nBlocks] = nTrips;
+        TripTimesIndex index = new TripTimesIndex(nTrips, Arrays.copyOf(serviceCodes, nBlocks),
+                Arrays.copyOf(blockStart, nBlocks + 1), tripBlock);
+
+        index.departureTrips = new int[nStops][nTrips];
+        index.departureTimes = new int[nStops][nTrips];
+        index.arrivalTrips = new int[nStops][nTrips];
+        index.arrivalTimes = new int[nStops][nTrips];
+        long[] departureKeys = new long[nTrips];
+        long[] arrivalKeys = new long[nTrips];
+        for (int s = 0; s < nStops; s++) {
+            for (int p = 0; p < nTrips; p++) {
+                TripTimes tt = tripTimes.get(order[p]);
+                departureKeys[p] = key(tt.getDepartureTime(s), order[p], false);
+                arrivalKeys[p] = key(tt.getArrivalTime(s), order[p], true);
+            }
+            for (int b = 0; b < nBlocks; b++) {
+                Arrays.sort(departureKeys, index.blockStart[b], index.blockStart[b + 1]);
+                Arrays.sort(arrivalKeys, index.blockStart[b], index.blockStart[b + 1]);
+            }
+            for (int p = 0; p < nTrips; p++) {
+                index.departureTimes[s][p] = (int) (departureKeys[p] >> 32);
+                index.departureTrips[s][p] = tripOf(departureKeys[p], false);
+                index.arrivalTimes[s][p] = (int) (arrivalKeys[p] >> 32);
+                index.arrivalTrips[s][p] = tripOf(arrivalKeys[p], true);
+            }
+        }
+        return index;
+    }
+
+    /** A sort key on time then trip index, ascending or descending on trip index. Times may be negative. */
+    private static long key(int time, int trip, boolean descendingTrips) {
+        return ((long) time << 32) | (descendingTrips ? Integer.MAX_VALUE - trip : trip);
+    }
+
+    private static int tripOf(long key, boolean descendingTrips) {
+        int low = (int) key;
+        return descendingTrips ? Integer.MAX_VALUE - low : low;
+    }
+
+    /** @return a copy of this index, sharing its arrays until one of the two is updated. */
+    TripTimesIndex sharedCopy() {
+        TripTimesIndex copy = new TripTimesIndex(nTrips, serviceCodes, blockStart, tripBlock);
+        copy.departureTrips = departureTrips;
+        copy.departureTimes = departureTimes;
+        copy.arrivalTrips = arrivalTrips;
+        copy.arrivalTimes = arrivalTimes;
+        copy.shared = true;
+        this.shared = true;
+        return copy;
+    }
+
+    /**
+     * Move the given trip to the positions matching its new times at every stop.
+     * @return false if the trip cannot be updated in place because it changed service code, in which case the index
+     *         must be rebuilt.
+     */
+    boolean update(int tripIndex, TripTimes tt) {
+        if (tripIndex >= nTrips) return false;
+        int b = tripBlock[tripIndex];
+        if (serviceCodes[b] != tt.serviceCode) return false;
+        if (shared) {
+            departureTrips = deepCopy(departureTrips);
+            departureTimes = deepCopy(departureTimes);
+            arrivalTrips = deepCopy(arrivalTrips);
+            arrivalTimes = deepCopy(arrivalTimes);
+            shared = false;
+        }
+        int start = blockStart[b];
+        int end = blockStart[b + 1];
+        for (int s = 0; s < departureTrips.length; s++) {
+            move(departureTrips[s], departureTimes[s], start, end, tripIndex, tt.getDepartureTime(s), false);
+            move(arrivalTrips[s], arrivalTimes[s], start, end, tripIndex, tt.getArrivalTime(s), true);
+        }
+        return true;
+    }
+
+    private static int[][] deepCopy(int[][] arrays) {
+        int[][] copy = new int[arrays.length][];
+        for (int i = 0; i < arrays.length; i++) {
+            copy[i] = arrays[i].clone();
+        }
+        return copy;
+    }
+
+    /** Remove a trip from the sorted range [start, end) and insert it back at the position of its new time. */
+    private static void move(int[] trips, int[] times, int start, int end, int trip, int time,
+            boolean descendingTrips) {
+        int p = start;
+        while (trips[p] != trip) p++;
+        System.arraycopy(trips, p + 1, trips, p, end - p - 1);
+        System.arraycopy(times, p + 1, times, p, end - p - 1);
+        long key = key(time, trip, descendingTrips);
+        int q = start;
+        while (q < end - 1 && key(times[q], trips[q], descendingTrips) < key) q++;
+        System.arraycopy(trips, q, trips, q + 1, end - q - 1);
+        System.arraycopy(times, q, times, q + 1, end - q - 1);
+        trips[q] = trip;
+        times[q] = time;
+    }
+
+    /** @return the first position in [from, to) of the sorted times holding a time at or after the given one. */
+    static int firstAtOrAfter(int[] times, int from, int to, int time) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (times[mid] < time) from = mid + 1;
+            else to = mid;
+        }
+        return from;
+    }
+
+    /** @return the last position in [from, to) of the sorted times holding a time at or before the given one, or
+     *          from - 1 if there is none. */
+    static int lastAtOrBefore(int[] times, int from, int to, int time) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (times[mid] <= time) from = mid + 1;
+            else to = mid;
+        }
+        return from - 1;
+    }
+
+}
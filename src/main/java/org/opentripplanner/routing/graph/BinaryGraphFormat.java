@@ -0,0 +1,145 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.nustaq.serialization.FSTConfiguration;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+import org.opentripplanner.routing.edgetype.PatternDwell;
+import org.opentripplanner.routing.edgetype.PatternHop;
+import org.opentripplanner.routing.edgetype.SimpleTransfer;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTransitLink;
+import org.opentripplanner.routing.edgetype.StreetWithElevationEdge;
+import org.opentripplanner.routing.edgetype.Timetable;
+import org.opentripplanner.routing.edgetype.TransitBoardAlight;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.trippattern.FrequencyEntry;
+import org.opentripplanner.routing.trippattern.TripTimes;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.OsmVertex;
+import org.opentripplanner.routing.vertextype.PatternArriveVertex;
+import org.opentripplanner.routing.vertextype.PatternDepartVertex;
+import org.opentripplanner.routing.vertextype.SplitterVertex;
+import org.opentripplanner.routing.vertextype.TransitStop;
+import org.opentripplanner.routing.vertextype.TransitStopArrive;
+import org.opentripplanner.routing.vertextype.TransitStopDepart;
+
+/**
+ * Reading and writing of the binary graph format, an alternative to plain Java serialization of Graph.obj.
+ *
+ * The file starts with a fixed magic number followed by a format version, then holds the same sequence of objects
+ * as a Java-serialized graph (the Graph itself, the list of all edges, and optionally the debug data) encoded with FST.
+ * FST honors the existing writeObject/readObject hooks but is several times faster than ObjectInputStream and needs
+ * far less transient heap while reading, mostly because it does not keep per-class stream descriptors.
+ *
+ * The most numerous classes are registered up front so that they are written as small integers rather than class
+ * names. That list is part of the on-disk schema: FORMAT_VERSION must be incremented whenever it is changed.
+ */
+class BinaryGraphFormat {
+
+    /** "OTPG", which cannot be confused with the 0xACED magic number starting a Java serialization stream. */
+    static final int MAGIC = 0x4F545047;
+
+    static final int FORMAT_VERSION = 2;
+
+    /** Number of bytes that must be available to recognize the format of a graph stream. */
+    static final int HEADER_LENGTH = 8;
+
+    private static final Class<?>[] REGISTERED_CLASSES = new Class<?>[] {
+        Graph.class, ArrayList.class, HashMap.class,
+        IntersectionVertex.class, OsmVertex.class, SplitterVertex.class,
+        TransitStop.class, TransitStopArrive.class, TransitStopDepart.class,
+        PatternArriveVertex.class, PatternDepartVertex.class,
+        StreetEdge.class, StreetWithElevationEdge.class, StreetTransitLink.class, SimpleTransfer.class,
+        PatternHop.class, PatternDwell.class, TransitBoardAlight.class,
+        TripPattern.class, Timetable.class, TripTimes.class, FrequencyEntry.class, LandmarkTable.class,
+        int[].class, int[][].class, float[].class, float[][].class, String[].class
+    };
+
+    private static final FSTConfiguration defaultConfiguration = createConfiguration(null);
+
+    /** FST configurations are expensive to create but thread safe, so one is shared by all default-classloader loads. */
+    static FSTConfiguration getConfiguration(ClassLoader classLoader) {
+        return classLoader == null ? defaultConfiguration : createConfiguration(classLoader);
+    }
+
+    private static FSTConfiguration createConfiguration(ClassLoader classLoader) {
+        FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+        if (classLoader != null) {
+            conf.setClassLoader(classLoader);
+        }
+        conf.registerClass(REGISTERED_CLASSES);
+        return conf;
+    }
+
+    /**
+     * @return true if the given header bytes (at least HEADER_LENGTH of them) start a graph in the binary format.
+     */
+    static boolean isBinaryGraph(byte[] header) {
+        return header.length >= 4 && readInt(header, 0) == MAGIC;
+    }
+
+    static void writeHeader(OutputStream out) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        writeInt(header, 0, MAGIC);
+        writeInt(header, 4, FORMAT_VERSION);
+        out.write(header);
+    }
+
+    /**
+     * Consume and check the header of a binary graph.
+     * @throws IllegalStateException if the graph was written with a different version of the format.
+     */
+    static void readHeader(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        new DataInputStream(in).readFully(header);
+        if (!isBinaryGraph(header)) {
+            throw new IllegalStateException("Stream does not contain a binary graph.");
+        }
+        int version = readInt(header, 4);
+        if (version != FORMAT_VERSION) {
+            throw new IllegalStateException(String.format(
+                    "Binary graph format version %d is not supported by this OTP (expected %d), please rebuild it.",
+                    version, FORMAT_VERSION));
+        }
+    }
+
+    static FSTObjectOutput getObjectOutput(OutputStream out) {
+        return new FSTObjectOutput(out, defaultConfiguration);
+    }
+
+    static FSTObjectInput getObjectInput(InputStream in, ClassLoader classLoader) {
+        return new FSTObjectInput(in, getConfiguration(classLoader));
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+}
@@ -0,0 +1,464 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.edgetype.TemporaryEdge;
+import org.opentripplanner.routing.util.ElevationUtils;
+import org.opentripplanner.util.MappedFileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only, compressed sparse row (CSR) copy of the street layer of a Graph, for searches that only need the
+ * street network. Vertices that have at least one street edge are renumbered densely from zero, and all per-edge
+ * characteristics used by street routing are packed into parallel primitive arrays, so that a search touches a few
+ * contiguous arrays instead of chasing references through Vertex, StreetEdge, geometry and name objects.
+ *
+ * The outgoing edges of vertex v are the edge numbers firstOutgoing(v) (inclusive) to firstOutgoing(v + 1)
+ * (exclusive). Incoming edges are stored as a second CSR index over the same edge numbers. The original StreetEdge
+ * can be recovered for any edge number, which is how search results are turned back into GraphPaths.
+ *
+ * This is a snapshot: street edges added to the Graph after it was built (other than temporary edges, which are
+ * always excluded) are not seen. Build it once the graph is loaded, see Graph.getCompactStreetGraph().
+ */
+public class CompactStreetGraph {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactStreetGraph.class);
+
+    public static final int PERMISSION_PEDESTRIAN = StreetTraversalPermission.PEDESTRIAN.code;
+    public static final int PERMISSION_BICYCLE = StreetTraversalPermission.BICYCLE.code;
+    public static final int PERMISSION_CAR = StreetTraversalPermission.CAR.code;
+
+    public static final int FLAG_STAIRS = 1;
+    public static final int FLAG_WHEELCHAIR_ACCESSIBLE = 2;
+    public static final int FLAG_NO_THRU_TRAFFIC = 4;
+    public static final int FLAG_ROUNDABOUT = 8;
+    public static final int FLAG_HAS_TURN_RESTRICTIONS = 16;
+
+    /** Fixed-point scale of vertex coordinates (1e-7 degree, about 1 cm). */
+    private static final double FIXED_FACTOR = 1e7;
+
+    /** "OTPC", the first four bytes of a saved compact street graph. */
+    private static final int MAGIC = 0x4F545043;
+
+    /** Incremented whenever the layout written by save() changes. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Magic, version, counts, four cost bounds and the stamp of the graph the file was built for. */
+    private static final int HEADER_BYTES = 8 * 4 + 8;
+
+    private final int nVertices;
+    private final int nEdges;
+
+    /** Vertex.getIndex() to compact vertex number, or -1 for vertices not in the street layer. */
+    private final int[] compactIndex;
+    private final Vertex[] vertices;
+    private final StreetEdge[] edges;
+
+    /*
+     * The numeric columns are buffers rather than arrays so that they can either wrap heap arrays or be views on a
+     * memory-mapped file (see save() and map()), in which case they are shared with any other process mapping it.
+     */
+    private final IntBuffer fixedLat;
+    private final IntBuffer fixedLon;
+
+    private final IntBuffer firstOutgoing;
+    private final IntBuffer toVertex;
+    private final IntBuffer firstIncoming;
+    private final IntBuffer incomingEdges;
+
+    /** Length in millimeters. */
+    private final IntBuffer lengthMm;
+    /** Length adjusted for the effect of slope on bicycle speed, in millimeters. */
+    private final IntBuffer bikeLengthMm;
+    /** Flat-ground length equivalent to the slope-dependent walking cost, in millimeters. */
+    private final IntBuffer walkLengthMm;
+    private final FloatBuffer carSpeed;
+    private final FloatBuffer bicycleSafety;
+    /** StreetTraversalPermission code, including any barriers at either end of the edge. */
+    private final ByteBuffer permissions;
+    private final ByteBuffer flags;
+    private final ShortBuffer inAngle;
+    private final ShortBuffer outAngle;
+
+    private final float maxCarSpeed;
+
+    /* Lower bounds on the per-meter cost factors, so that searches can use admissible goal direction heuristics. */
+    private final float minBikeLengthRatio;
+    private final float minWalkLengthRatio;
+    private final float minBicycleSafety;
+
+    public CompactStreetGraph(Graph graph) {
+        long start = System.currentTimeMillis();
+        List<StreetEdge> streetEdges = new ArrayList<>();
+        for (Edge e : graph.getEdges()) {
+            if (e instanceof StreetEdge && !(e instanceof TemporaryEdge)) {
+                streetEdges.add((StreetEdge) e);
+            }
+        }
+
+        // number the vertices touched by street edges
+        compactIndex = new int[Vertex.getMaxIndex()];
+        Arrays.fill(compactIndex, -1);
+        List<Vertex> vertexList = new ArrayList<>();
+        for (StreetEdge e : streetEdges) {
+            for (Vertex v : new Vertex[] { e.getFromVertex(), e.getToVertex() }) {
+                if (compactIndex[v.getIndex()] < 0) {
+                    compactIndex[v.getIndex()] = vertexList.size();
+                    vertexList.add(v);
+                }
+            }
+        }
+        nVertices = vertexList.size();
+        nEdges = streetEdges.size();
+        vertices = vertexList.toArray(new Vertex[nVertices]);
+        int[] fixedLat = new int[nVertices];
+        int[] fixedLon = new int[nVertices];
+        for (int v = 0; v < nVertices; v++) {
+            fixedLat[v] = (int) Math.round(vertices[v].getLat() * FIXED_FACTOR);
+            fixedLon[v] = (int) Math.round(vertices[v].getLon() * FIXED_FACTOR);
+        }
+
+        // counting sort of edges on their from vertex
+        int[] firstOutgoing = new int[nVertices + 1];
+        int[] firstIncoming = new int[nVertices + 1];
+        for (StreetEdge e : streetEdges) {
+            firstOutgoing[compactIndex[e.getFromVertex().getIndex()] + 1]++;
+            firstIncoming[compactIndex[e.getToVertex().getIndex()] + 1]++;
+        }
+        for (int v = 0; v < nVertices; v++) {
+            firstOutgoing[v + 1] += firstOutgoing[v];
+            firstIncoming[v + 1] += firstIncoming[v];
+        }
+        int[] nextOutgoing = Arrays.copyOf(firstOutgoing, nVertices);
+        int[] nextIncoming = Arrays.copyOf(firstIncoming, nVertices);
+
+        int[] toVertex = new int[nEdges];
+        int[] incomingEdges = new int[nEdges];
+        int[] lengthMm = new int[nEdges];
+        int[] bikeLengthMm = new int[nEdges];
+        int[] walkLengthMm = new int[nEdges];
+        float[] carSpeed = new float[nEdges];
+        float[] bicycleSafety = new float[nEdges];
+        byte[] permissions = new byte[nEdges];
+        byte[] flags = new byte[nEdges];
+        short[] inAngle = new short[nEdges];
+        short[] outAngle = new short[nEdges];
+        edges = new StreetEdge[nEdges];
+        float maxSpeed = 0;
+        float minBikeRatio = 1;
+        float minWalkRatio = 1;
+        float minSafety = 1;
+        for (StreetEdge e : streetEdges) {
+            int from = compactIndex[e.getFromVertex().getIndex()];
+            int to = compactIndex[e.getToVertex().getIndex()];
+            int i = nextOutgoing[from]++;
+            incomingEdges[nextIncoming[to]++] = i;
+            toVertex[i] = to;
+            double distance = e.getDistance();
+            lengthMm[i] = (int) Math.round(distance * 1000);
+            bikeLengthMm[i] = (int) Math.round(e.getSlopeSpeedEffectiveLength() * 1000);
+            // ElevationUtils gives the walking cost in seconds at 4/3 m/s, convert it back to an equivalent length
+            double walkCost = ElevationUtils.getWalkCostsForSlope(distance, e.getMaxSlope());
+            walkLengthMm[i] = (int) Math.round(walkCost * 4.0 / 3.0 * 1000);
+            carSpeed[i] = e.getCarSpeed();
+            if (e.getCarSpeed() > maxSpeed) maxSpeed = e.getCarSpeed();
+            bicycleSafety[i] = e.getBicycleSafetyFactor();
+            if (lengthMm[i] > 0) {
+                minBikeRatio = Math.min(minBikeRatio, bikeLengthMm[i] / (float) lengthMm[i]);
+                minWalkRatio = Math.min(minWalkRatio, walkLengthMm[i] / (float) lengthMm[i]);
+            }
+            minSafety = Math.min(minSafety, bicycleSafety[i]);
+            int permission = 0;
+            if (e.canTraverseIncludingBarrier(TraverseMode.WALK)) permission |= PERMISSION_PEDESTRIAN;
+            if (e.canTraverseIncludingBarrier(TraverseMode.BICYCLE)) permission |= PERMISSION_BICYCLE;
+            if (e.canTraverseIncludingBarrier(TraverseMode.CAR)) permission |= PERMISSION_CAR;
+            permissions[i] = (byte) permission;
+            int flag = 0;
+            if (e.isStairs()) flag |= FLAG_STAIRS;
+            if (e.isWheelchairAccessible()) flag |= FLAG_WHEELCHAIR_ACCESSIBLE;
+            if (e.isNoThruTraffic()) flag |= FLAG_NO_THRU_TRAFFIC;
+            if (e.isRoundabout()) flag |= FLAG_ROUNDABOUT;
+            if (graph.hasTurnRestrictions(e)) flag |= FLAG_HAS_TURN_RESTRICTIONS;
+            flags[i] = (byte) flag;
+            inAngle[i] = (short) e.getInAngle();
+            outAngle[i] = (short) e.getOutAngle();
+            edges[i] = e;
+        }
+        this.fixedLat = IntBuffer.wrap(fixedLat);
+        this.fixedLon = IntBuffer.wrap(fixedLon);
+        this.firstOutgoing = IntBuffer.wrap(firstOutgoing);
+        this.firstIncoming = IntBuffer.wrap(firstIncoming);
+        this.toVertex = IntBuffer.wrap(toVertex);
+        this.incomingEdges = IntBuffer.wrap(incomingEdges);
+        this.lengthMm = IntBuffer.wrap(lengthMm);
+        this.bikeLengthMm = IntBuffer.wrap(bikeLengthMm);
+        this.walkLengthMm = IntBuffer.wrap(walkLengthMm);
+        this.carSpeed = FloatBuffer.wrap(carSpeed);
+        this.bicycleSafety = FloatBuffer.wrap(bicycleSafety);
+        this.permissions = ByteBuffer.wrap(permissions);
+        this.flags = ByteBuffer.wrap(flags);
+        this.inAngle = ShortBuffer.wrap(inAngle);
+        this.outAngle = ShortBuffer.wrap(outAngle);
+        maxCarSpeed = maxSpeed;
+        minBikeLengthRatio = minBikeRatio;
+        minWalkLengthRatio = minWalkRatio;
+        minBicycleSafety = minSafety;
+        LOG.info("Built compact street graph with {} vertices and {} edges in {} msec.", nVertices, nEdges,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Create a compact street graph whose numeric columns are read-only views on the given buffer, which holds a
+     * graph written by save(). Only the vertex and edge references are rebuilt on the heap, by looking up edge ids.
+     */
+    private CompactStreetGraph(Graph graph, ByteBuffer buffer, long graphStamp) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Not a compact street graph.");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported compact street graph version " + buffer.getInt(4));
+        }
+        if (buffer.getLong(32) != graphStamp) {
+            throw new IllegalStateException("The compact street graph was built for another serialized graph.");
+        }
+        nVertices = buffer.getInt(8);
+        nEdges = buffer.getInt(12);
+        maxCarSpeed = buffer.getFloat(16);
+        minBikeLengthRatio = buffer.getFloat(20);
+        minWalkLengthRatio = buffer.getFloat(24);
+        minBicycleSafety = buffer.getFloat(28);
+        buffer.position(HEADER_BYTES);
+        fixedLat = slice(buffer, nVertices * 4).asIntBuffer();
+        fixedLon = slice(buffer, nVertices * 4).asIntBuffer();
+        firstOutgoing = slice(buffer, (nVertices + 1) * 4).asIntBuffer();
+        firstIncoming = slice(buffer, (nVertices + 1) * 4).asIntBuffer();
+        toVertex = slice(buffer, nEdges * 4).asIntBuffer();
+        incomingEdges = slice(buffer, nEdges * 4).asIntBuffer();
+        lengthMm = slice(buffer, nEdges * 4).asIntBuffer();
+        bikeLengthMm = slice(buffer, nEdges * 4).asIntBuffer();
+        walkLengthMm = slice(buffer, nEdges * 4).asIntBuffer();
+        carSpeed = slice(buffer, nEdges * 4).asFloatBuffer();
+        bicycleSafety = slice(buffer, nEdges * 4).asFloatBuffer();
+        IntBuffer edgeIds = slice(buffer, nEdges * 4).asIntBuffer();
+        inAngle = slice(buffer, nEdges * 2).asShortBuffer();
+        outAngle = slice(buffer, nEdges * 2).asShortBuffer();
+        permissions = slice(buffer, nEdges);
+        flags = slice(buffer, nEdges);
+
+        edges = new StreetEdge[nEdges];
+        vertices = new Vertex[nVertices];
+        compactIndex = new int[Vertex.getMaxIndex()];
+        Arrays.fill(compactIndex, -1);
+        for (int v = 0; v < nVertices; v++) {
+            for (int e = firstOutgoing.get(v); e < firstOutgoing.get(v + 1); e++) {
+                Edge edge = graph.getEdgeById(edgeIds.get(e));
+                if (!(edge instanceof StreetEdge)) {
+                    throw new IllegalStateException("Compact street graph does not match the graph (edge " + e + ").");
+                }
+                edges[e] = (StreetEdge) edge;
+                vertices[v] = edge.getFromVertex();
+                vertices[toVertex.get(e)] = edge.getToVertex();
+            }
+        }
+        for (int v = 0; v < nVertices; v++) {
+            if (vertices[v] == null) {
+                throw new IllegalStateException("Compact street graph does not match the graph (vertex " + v + ").");
+            }
+            compactIndex[vertices[v].getIndex()] = v;
+        }
+    }
+
+    /** Take the next length bytes of the buffer as a new little-endian buffer, and advance past them. */
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write this compact street graph to a file that can later be memory-mapped with map(). Edges are identified by
+     * their edge ids, so the file is only valid for the serialized graph it was built from, which is recorded in the
+     * header as the given stamp (see Graph.getFileStamp()). The file is replaced atomically.
+     */
+    public void save(File file, long graphStamp) throws IOException {
+        // per vertex: fixed lat and lon, plus one more entry in each of the two edge offset columns.
+        // per edge: 5 int columns, 2 float columns and the edge id, 2 short angle columns, 2 byte columns.
+        int size = HEADER_BYTES + (nVertices * 2 + (nVertices + 1) * 2) * 4 + nEdges * (8 * 4 + 2 * 2 + 2);
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(nVertices).putInt(nEdges);
+        buffer.putFloat(maxCarSpeed).putFloat(minBikeLengthRatio).putFloat(minWalkLengthRatio)
+                .putFloat(minBicycleSafety);
+        buffer.putLong(graphStamp);
+        for (IntBuffer column : new IntBuffer[] { fixedLat, fixedLon, firstOutgoing, firstIncoming, toVertex,
+                incomingEdges, lengthMm, bikeLengthMm, walkLengthMm }) {
+            for (int i = 0; i < column.limit(); i++) buffer.putInt(column.get(i));
+        }
+        for (int e = 0; e < nEdges; e++) buffer.putFloat(carSpeed.get(e));
+        for (int e = 0; e < nEdges; e++) buffer.putFloat(bicycleSafety.get(e));
+        for (int e = 0; e < nEdges; e++) buffer.putInt(edges[e].getId());
+        for (int e = 0; e < nEdges; e++) buffer.putShort(inAngle.get(e));
+        for (int e = 0; e < nEdges; e++) buffer.putShort(outAngle.get(e));
+        for (int e = 0; e < nEdges; e++) buffer.put(permissions.get(e));
+        for (int e = 0; e < nEdges; e++) buffer.put(flags.get(e));
+        if (buffer.hasRemaining()) {
+            throw new IllegalStateException("Compact street graph size does not match the columns written.");
+        }
+        buffer.flip();
+        MappedFileUtils.writeAtomically(buffer, file);
+    }
+
+    /**
+     * Memory-map a compact street graph previously written by save() for the same serialized graph. The pages of the
+     * file are shared through the operating system page cache by every process that maps it.
+     * @throws IllegalStateException if the file was not saved with the given graph stamp.
+     */
+    public static CompactStreetGraph map(Graph graph, File file, long graphStamp) throws IOException {
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CompactStreetGraph csg = new CompactStreetGraph(graph, buffer, graphStamp);
+            LOG.info("Mapped compact street graph with {} vertices and {} edges in {} msec.", csg.nVertices,
+                    csg.nEdges, System.currentTimeMillis() - start);
+            return csg;
+        }
+    }
+
+    public int getVertexCount() {
+        return nVertices;
+    }
+
+    public int getEdgeCount() {
+        return nEdges;
+    }
+
+    /** @return the compact number of the given vertex, or -1 if it is not part of the street layer. */
+    public int getCompactIndex(Vertex vertex) {
+        int index = vertex.getIndex();
+        return index < compactIndex.length ? compactIndex[index] : -1;
+    }
+
+    public Vertex getVertex(int v) {
+        return vertices[v];
+    }
+
+    public double getLat(int v) {
+        return fixedLat.get(v) / FIXED_FACTOR;
+    }
+
+    public double getLon(int v) {
+        return fixedLon.get(v) / FIXED_FACTOR;
+    }
+
+    /** @return the first outgoing edge of vertex v; the outgoing edges of v end at firstOutgoing(v + 1). */
+    public int firstOutgoing(int v) {
+        return firstOutgoing.get(v);
+    }
+
+    /** @return the first position in the incoming edge index for vertex v; see incomingEdge(). */
+    public int firstIncoming(int v) {
+        return firstIncoming.get(v);
+    }
+
+    /** @return the edge number at the given position of the incoming edge index. */
+    public int incomingEdge(int position) {
+        return incomingEdges.get(position);
+    }
+
+    public int getToVertex(int e) {
+        return toVertex.get(e);
+    }
+
+    public int getLengthMm(int e) {
+        return lengthMm.get(e);
+    }
+
+    public int getBikeLengthMm(int e) {
+        return bikeLengthMm.get(e);
+    }
+
+    public int getWalkLengthMm(int e) {
+        return walkLengthMm.get(e);
+    }
+
+    public float getCarSpeed(int e) {
+        return carSpeed.get(e);
+    }
+
+    public float getBicycleSafetyFactor(int e) {
+        return bicycleSafety.get(e);
+    }
+
+    /** @return true if any of the given StreetTraversalPermission bits are allowed on edge e. */
+    public boolean allows(int e, int permission) {
+        return (permissions.get(e) & permission) != 0;
+    }
+
+    public boolean hasFlag(int e, int flag) {
+        return (flags.get(e) & flag) != 0;
+    }
+
+    public int getInAngle(int e) {
+        return inAngle.get(e);
+    }
+
+    public int getOutAngle(int e) {
+        return outAngle.get(e);
+    }
+
+    public StreetEdge getEdge(int e) {
+        return edges[e];
+    }
+
+    /** @return the highest car speed found on any edge, in meters per second. */
+    public float getMaxCarSpeed() {
+        return maxCarSpeed;
+    }
+
+    /** @return the smallest ratio of slope-adjusted bicycle length to actual length found on any edge. */
+    public float getMinBikeLengthRatio() {
+        return minBikeLengthRatio;
+    }
+
+    /** @return the smallest ratio of slope-adjusted walking length to actual length found on any edge. */
+    public float getMinWalkLengthRatio() {
+        return minWalkLengthRatio;
+    }
+
+    /** @return the smallest bicycle safety factor found on any edge. */
+    public float getMinBicycleSafetyFactor() {
+        return minBicycleSafety;
+    }
+
+}
@@ -50,6 +50,18 @@ public abstract class Edge implements Serializable {
 
     protected Vertex tov;
 
+    /**
+     * Whether the graph holds turn restrictions for this edge. Maintained by the Graph, so that the common case of an
+     * edge without turn restrictions is a field read instead of a lookup in the turn restriction map.
+     */
+    boolean hasTurnRestrictions;
+
+    /**
+     * Whether the graph holds alert patches for this edge, maintained by the Graph like hasTurnRestrictions. Volatile
+     * since alert patches are changed by the alert updaters while requests read them.
+     */
+    volatile boolean hasAlertPatches;
+
     protected Edge(Vertex v1, Vertex v2) {
         if (v1 == null || v2 == null) {
             String err = String.format("%s constructed with null vertex : %s %s", this.getClass(),
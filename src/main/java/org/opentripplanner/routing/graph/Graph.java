@@ -55,13 +55,18 @@ import org.opentripplanner.traffic.StreetSpeedSnapshotSource;
 import org.opentripplanner.updater.GraphUpdaterConfigurator;
 import org.opentripplanner.updater.GraphUpdaterManager;
 import org.opentripplanner.updater.stoptime.TimetableSnapshotSource;
+import org.opentripplanner.util.ByteBufferInputStream;
 import org.opentripplanner.util.WorldEnvelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.prefs.Preferences;
 /**
  * A graph is really just one or more indexes into a set of vertexes. It used to keep edgelists for each vertex, but those are in the vertex now.
@@ -77,7 +82,16 @@ public class Graph implements Serializable {
     // TODO Remove this field, use Router.routerId ?
     public String routerId;
 
-    private final Map<Edge, Set<AlertPatch>> alertPatches = new HashMap<Edge, Set<AlertPatch>>(0);
+    /**
+     * The alert patches of each edge. The arrays are copied on write and never modified, so they are read without
+     * locking and returned as is.
+     */
+    private final ConcurrentHashMap<Edge, AlertPatch[]> alertPatches = new ConcurrentHashMap<>(0);
+
+    private static final AlertPatch[] NO_ALERT_PATCHES = new AlertPatch[0];
+
+    /** Incremented after every change to the alert patches, so that results depending on them can be invalidated. */
+    private final AtomicLong alertPatchVersion = new AtomicLong();
 
     private final Map<Edge, List<TurnRestriction>> turnRestrictions = Maps.newHashMap();
 
@@ -114,6 +128,11 @@ public class Graph implements Serializable {
 
     private transient SampleFactory sampleFactory;
 
+    private transient CompactStreetGraph compactStreetGraph;
+
+    /** Identifies the serialized file this graph was loaded from or saved to, see setSerializedFile(). */
+    private transient long fileStamp;
+
     public final Deduplicator deduplicator = new Deduplicator();
 
     /**
@@ -198,6 +217,9 @@ public class Graph implements Serializable {
     /** A speed source for traffic data */
     public transient StreetSpeedSnapshotSource streetSpeedSource;
 
+    /** Street distances to a few landmark vertices, for goal direction in street searches. Null if not built. */
+    public LandmarkTable landmarks = null;
+
     public Graph(Graph basedOn) {
         this();
         this.bundle = basedOn.getBundle();
@@ -243,11 +265,13 @@ public class Graph implements Serializable {
      */
     public void removeEdge(Edge e) {
         if (e != null) {
-            synchronized (alertPatches) {   // This synchronization is somewhat silly because this
-                alertPatches.remove(e);     // method isn't thread-safe anyway, but it is consistent
-            }
+            alertPatches.compute(e, (edge, patches) -> {
+                edge.hasAlertPatches = false;
+                return null;
+            });
 
             turnRestrictions.remove(e);
+            e.hasTurnRestrictions = false;
             streetNotesService.removeStaticNotes(e);
             edgeById.remove(e.getId());
 
@@ -327,62 +351,72 @@ public class Graph implements Serializable {
     }
 
     /**
-     * Add an {@link AlertPatch} to the {@link AlertPatch} {@link Set} belonging to an {@link Edge}.
+     * Add an {@link AlertPatch} to the {@link AlertPatch} array belonging to an {@link Edge}.
      * @param edge
      * @param alertPatch
      */
     public void addAlertPatch(Edge edge, AlertPatch alertPatch) {
         if (edge == null || alertPatch == null) return;
-        synchronized (alertPatches) {
-            Set<AlertPatch> alertPatches = this.alertPatches.get(edge);
-            if (alertPatches == null) {
-                this.alertPatches.put(edge, Collections.singleton(alertPatch));
-            } else if (alertPatches instanceof HashSet) {
-                alertPatches.add(alertPatch);
-            } else {
-                alertPatches = new HashSet<AlertPatch>(alertPatches);
-                if (alertPatches.add(alertPatch)) {
-                    this.alertPatches.put(edge, alertPatches);
-                }
+        // compute is atomic per edge, which keeps the flag of the edge in line with its patches
+        alertPatches.compute(edge, (e, patches) -> {
+            if (patches == null) {
+                e.hasAlertPatches = true;
+                return new AlertPatch[] { alertPatch };
             }
-        }
+            for (AlertPatch patch : patches) {
+                if (patch.equals(alertPatch)) return patches;
+            }
+            AlertPatch[] added = Arrays.copyOf(patches, patches.length + 1);
+            added[patches.length] = alertPatch;
+            return added;
+        });
+        alertPatchVersion.incrementAndGet();
     }
 
     /**
-     * Remove an {@link AlertPatch} from the {@link AlertPatch} {@link Set} belonging to an
+     * Remove an {@link AlertPatch} from the {@link AlertPatch} array belonging to an
      * {@link Edge}.
      * @param edge
      * @param alertPatch
      */
     public void removeAlertPatch(Edge edge, AlertPatch alertPatch) {
-        if (edge == null || alertPatch == null) return;
-        synchronized (alertPatches) {
-            Set<AlertPatch> alertPatches = this.alertPatches.get(edge);
-            if (alertPatches != null && alertPatches.contains(alertPatch)) {
-                if (alertPatches.size() < 2) {
-                    this.alertPatches.remove(edge);
-                } else {
-                    alertPatches.remove(alertPatch);
-                }
+        if (edge == null || alertPatch == null || !edge.hasAlertPatches) return;
+        alertPatches.computeIfPresent(edge, (e, patches) -> {
+            AlertPatch[] removed = new AlertPatch[patches.length];
+            int n = 0;
+            for (AlertPatch patch : patches) {
+                if (!patch.equals(alertPatch)) removed[n++] = patch;
             }
-        }
+            if (n == 0) {
+                e.hasAlertPatches = false;
+                return null;
+            }
+            return n == patches.length ? patches : Arrays.copyOf(removed, n);
+        });
+        alertPatchVersion.incrementAndGet();
     }
 
     /**
-     * Get the {@link AlertPatch} {@link Set} that belongs to an {@link Edge} and build a new array.
+     * Get the {@link AlertPatch} array that belongs to an {@link Edge}. This does not lock or copy, the returned array
+     * is shared and must not be modified.
      * @param edge
      * @return The {@link AlertPatch} array that belongs to the {@link Edge}
      */
     public AlertPatch[] getAlertPatches(Edge edge) {
-        if (edge != null) {
-            synchronized (alertPatches) {
-                Set<AlertPatch> alertPatches = this.alertPatches.get(edge);
-                if (alertPatches != null) {
-                    return alertPatches.toArray(new AlertPatch[alertPatches.size()]);
-                }
+        if (edge != null && edge.hasAlertPatches) {
+            AlertPatch[] patches = alertPatches.get(edge);
+            if (patches != null) {
+                return patches;
             }
         }
-        return new AlertPatch[0];
+        return NO_ALERT_PATCHES;
+    }
+
+    /**
+     * @return the version of the alert patches, which changes whenever an alert patch is added or removed.
+     */
+    public long getAlertPatchVersion() {
+        return alertPatchVersion.get();
     }
 
     /**
@@ -397,6 +431,7 @@ public class Graph implements Serializable {
         if (turnRestrictions == null) {
             turnRestrictions = Lists.newArrayList();
             this.turnRestrictions.put(edge, turnRestrictions);
+            edge.hasTurnRestrictions = true;
         }
         turnRestrictions.add(turnRestriction);
     }
@@ -413,6 +448,7 @@ public class Graph implements Serializable {
         if (turnRestrictions != null && turnRestrictions.contains(turnRestriction)) {
             if (turnRestrictions.size() < 2) {
                 this.turnRestrictions.remove(edge);
+                edge.hasTurnRestrictions = false;
             } else {
                 turnRestrictions.remove(turnRestriction);
             }
@@ -427,7 +463,7 @@ public class Graph implements Serializable {
      * @return The {@link TurnRestriction} {@link List} that belongs to the {@link Edge}
      */
     public List<TurnRestriction> getTurnRestrictions(Edge edge) {
-        if (edge != null) {
+        if (edge != null && edge.hasTurnRestrictions) {
             List<TurnRestriction> turnRestrictions = this.turnRestrictions.get(edge);
             if (turnRestrictions != null) {
                 return ImmutableList.copyOf(turnRestrictions);
@@ -436,6 +472,13 @@ public class Graph implements Serializable {
         return Collections.emptyList();
     }
 
+    /**
+     * @return whether there are turn restrictions starting on the given {@link Edge}, without looking them up.
+     */
+    public boolean hasTurnRestrictions(Edge edge) {
+        return edge != null && edge.hasTurnRestrictions;
+    }
+
     /**
      * Return only the StreetEdges in the graph.
      * @return
@@ -656,24 +699,129 @@ public class Graph implements Serializable {
         BASIC, FULL, DEBUG;
     }
 
+    /**
+     * The encodings in which a graph can be saved. Both are recognized automatically when a graph is loaded.
+     * JAVA is plain Java serialization. BINARY is a versioned format (see BinaryGraphFormat) that is much faster
+     * to read and needs less transient memory while loading.
+     */
+    public enum SerializationFormat {
+        JAVA, BINARY;
+    }
+
+    /**
+     * Where the large immutable parts of a graph loaded from a file are kept. HEAP deserializes everything into heap
+     * objects. MAPPED reads the graph file through a memory mapping and keeps the compact street graph (see
+     * CompactStreetGraph) in a memory-mapped file next to the graph, written on first load. The pages of mapped
+     * files are shared through the operating system page cache by all the JVMs on a machine that load the same graph.
+     */
+    public enum MemoryMode {
+        HEAP, MAPPED;
+    }
+
+    /** The name of the memory-mapped compact street graph file stored beside a graph in MAPPED mode. */
+    public static final String COMPACT_STREET_GRAPH_FILENAME = "Graph.csr";
+
+    /** The name of the memory-mapped stop tree cache file stored beside a graph in MAPPED mode. */
+    public static final String STOP_TREE_CACHE_FILENAME = "Graph.stc";
+
     public static Graph load(File file, LoadLevel level) throws IOException, ClassNotFoundException {
         LOG.info("Reading graph " + file.getAbsolutePath() + " ...");
         // cannot use getClassLoader() in static context
-        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-        return load(in, level);
+        return load(new BufferedInputStream(new FileInputStream(file)), level,
+                new DefaultStreetVertexIndexFactory(), null);
     }
 
     public static Graph load(ClassLoader classLoader, File file, LoadLevel level)
             throws IOException, ClassNotFoundException {
         LOG.info("Reading graph " + file.getAbsolutePath() + " with alternate classloader ...");
-        ObjectInputStream in = new GraphObjectInputStream(new BufferedInputStream(
-                new FileInputStream(file)), classLoader);
-        return load(in, level);
+        return load(new BufferedInputStream(new FileInputStream(file)), level,
+                new DefaultStreetVertexIndexFactory(), classLoader);
+    }
+
+    /**
+     * Load a graph from a file, keeping its large immutable parts on the heap or in memory-mapped files according to
+     * the given MemoryMode.
+     */
+    public static Graph load(File file, LoadLevel level, StreetVertexIndexFactory indexFactory, MemoryMode mode)
+            throws IOException, ClassNotFoundException {
+        if (mode != MemoryMode.MAPPED || file.length() > Integer.MAX_VALUE) {
+            if (mode == MemoryMode.MAPPED) {
+                LOG.warn("Graph file {} is too large to be mapped at once, loading it on the heap.", file);
+            }
+            try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+                Graph graph = load(is, level, indexFactory);
+                graph.setSerializedFile(file);
+                return graph;
+            }
+        }
+        LOG.info("Reading memory-mapped graph " + file.getAbsolutePath() + " ...");
+        Graph graph;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            graph = load(new ByteBufferInputStream(buffer), level, indexFactory);
+        }
+        graph.setSerializedFile(file);
+        if (level == LoadLevel.BASIC) {
+            return graph;
+        }
+        // the stop tree cache is built lazily, and saved the first time it is needed
+        graph.index.setStopTreeCacheFile(new File(file.getParentFile(), STOP_TREE_CACHE_FILENAME));
+        // the compact street graph is rebuilt whenever it was saved for another serialized graph
+        File compactFile = new File(file.getParentFile(), COMPACT_STREET_GRAPH_FILENAME);
+        if (compactFile.exists()) {
+            try {
+                graph.compactStreetGraph = CompactStreetGraph.map(graph, compactFile, graph.fileStamp);
+                return graph;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not map compact street graph {}, rebuilding it: {}", compactFile, e.toString());
+            }
+        }
+        try {
+            new CompactStreetGraph(graph).save(compactFile, graph.fileStamp);
+            graph.compactStreetGraph = CompactStreetGraph.map(graph, compactFile, graph.fileStamp);
+        } catch (IOException e) {
+            LOG.warn("Could not save compact street graph {}, it will be built on the heap when needed.",
+                    compactFile, e);
+        }
+        return graph;
     }
 
     public static Graph load(InputStream is, LoadLevel level) throws ClassNotFoundException,
             IOException {
-        return load(new ObjectInputStream(is), level);
+        return load(is, level, new DefaultStreetVertexIndexFactory());
+    }
+
+    /**
+     * Load a graph from a stream in any of the supported serialization formats, detecting the format from the first
+     * bytes of the stream.
+     */
+    public static Graph load(InputStream is, LoadLevel level, StreetVertexIndexFactory indexFactory)
+            throws IOException, ClassNotFoundException {
+        return load(is, level, indexFactory, null);
+    }
+
+    private static Graph load(InputStream is, LoadLevel level, StreetVertexIndexFactory indexFactory,
+            ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        if (!is.markSupported()) {
+            is = new BufferedInputStream(is);
+        }
+        byte[] header = new byte[BinaryGraphFormat.HEADER_LENGTH];
+        is.mark(header.length);
+        int n = 0;
+        while (n < header.length) {
+            int r = is.read(header, n, header.length - n);
+            if (r < 0) break;
+            n += r;
+        }
+        is.reset();
+        if (BinaryGraphFormat.isBinaryGraph(header)) {
+            BinaryGraphFormat.readHeader(is);
+            LOG.info("Graph is in binary format version {}.", BinaryGraphFormat.FORMAT_VERSION);
+            return read(BinaryGraphFormat.getObjectInput(is, classLoader), level, indexFactory);
+        }
+        ObjectInputStream in = classLoader == null ? new ObjectInputStream(is)
+                : new GraphObjectInputStream(is, classLoader);
+        return load(in, level, indexFactory);
     }
 
     /**
@@ -721,9 +869,15 @@ public class Graph implements Serializable {
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    @SuppressWarnings("unchecked")
     public static Graph load(ObjectInputStream in, LoadLevel level,
             StreetVertexIndexFactory indexFactory) throws IOException, ClassNotFoundException {
+        return read(in, level, indexFactory);
+    }
+
+    /** Read the objects written by write(), whatever the encoding of the underlying stream. */
+    @SuppressWarnings("unchecked")
+    private static Graph read(ObjectInput in, LoadLevel level,
+            StreetVertexIndexFactory indexFactory) throws IOException, ClassNotFoundException {
         try {
             Graph graph = (Graph) in.readObject();
             LOG.debug("Basic graph info read.");
@@ -796,21 +950,38 @@ public class Graph implements Serializable {
     }
 
     public void save(File file) throws IOException {
+        save(file, SerializationFormat.JAVA);
+    }
+
+    public void save(File file, SerializationFormat format) throws IOException {
         LOG.info("Main graph size: |V|={} |E|={}", this.countVertices(), this.countEdges());
-        LOG.info("Writing graph " + file.getAbsolutePath() + " ...");
-        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
-                new FileOutputStream(file)));
+        LOG.info("Writing graph " + file.getAbsolutePath() + " in " + format + " format ...");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
         try {
-            save(out);
-            out.close();
+            if (format == SerializationFormat.BINARY) {
+                BinaryGraphFormat.writeHeader(os);
+                ObjectOutput out = BinaryGraphFormat.getObjectOutput(os);
+                write(out);
+                out.flush();
+            } else {
+                ObjectOutputStream out = new ObjectOutputStream(os);
+                save(out);
+                out.flush();
+            }
+            os.close();
         } catch (RuntimeException e) {
-            out.close();
+            os.close();
             file.delete(); // remove half-written file
             throw e;
         }
     }
 
     public void save(ObjectOutputStream out) throws IOException {
+        write(out);
+    }
+
+    /** Write the graph, its edges and any debug data as a sequence of objects, whatever the encoding. */
+    private void write(ObjectOutput out) throws IOException {
         LOG.debug("Consolidating edges...");
         // this is not space efficient
         List<Edge> edges = new ArrayList<Edge>(this.countEdges());
@@ -1022,6 +1193,28 @@ public class Graph implements Serializable {
         return this.sampleFactory;	
     }
 
+    // lazy-init compact street graph on an as needed basis, synchronized because it is built by request threads
+    public synchronized CompactStreetGraph getCompactStreetGraph() {
+        if (this.compactStreetGraph == null)
+            this.compactStreetGraph = new CompactStreetGraph(this);
+
+        return this.compactStreetGraph;
+    }
+
+    /**
+     * Record the serialized file this graph was loaded from or saved to. Files kept next to it that refer to edges by
+     * id, like the compact street graph and the stop tree cache, store the resulting stamp and are only reused when it
+     * matches, because a graph file can be replaced by another one whose modification time is not more recent.
+     */
+    public void setSerializedFile(File file) {
+        this.fileStamp = (file.length() * 31 + file.lastModified()) * 31 + countEdges();
+    }
+
+    /** @return the stamp of the serialized file set with setSerializedFile(), or 0 if there is none. */
+    public long getFileStamp() {
+        return this.fileStamp;
+    }
+
     /**
      * Calculates Transit center from median of coordinates of all transitStops if graph
      * has transit. If it doesn't it isn't calculated. (mean walue of min, max latitude and longitudes are used)
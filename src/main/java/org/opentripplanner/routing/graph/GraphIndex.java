@@ -50,6 +50,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
@@ -113,6 +115,9 @@ public class GraphIndex {
     /** Store distances from each stop to all nearby street intersections. Useful in speeding up analyst requests. */
     private transient StopTreeCache stopTreeCache = null;
 
+    /** Where the stop tree cache is persisted between graph loads, or null if it is only kept in memory. */
+    private transient File stopTreeCacheFile = null;
+
     public GraphIndex (Graph graph) {
         LOG.info("Indexing graph...");
 
@@ -512,18 +517,54 @@ public class GraphIndex {
         return ret;
     }
 
-    /** Fetch a cache of nearby intersection distances for every transit stop in this graph, lazy-building as needed. */
+    /**
+     * Fetch a cache of nearby intersection distances for every transit stop in this graph, lazy-building as needed.
+     * When a stop tree cache file is set, the cache is memory-mapped from it if present, or saved to it once built.
+     */
     public StopTreeCache getStopTreeCache() {
         if (stopTreeCache == null) {
             synchronized (this) {
+                if (stopTreeCache == null) {
+                    stopTreeCache = mapStopTreeCache();
+                }
                 if (stopTreeCache == null) {
                     stopTreeCache = new StopTreeCache(graph, MAX_WALK_METERS); // TODO make this max-distance variable
+                    saveStopTreeCache();
                 }
             }
         }
         return stopTreeCache;
     }
 
+    /**
+     * Persist the stop tree cache of this graph in the given file. A file saved for another serialized graph than the
+     * one set with Graph.setSerializedFile() is ignored and replaced.
+     */
+    public void setStopTreeCacheFile(File file) {
+        this.stopTreeCacheFile = file;
+    }
+
+    private StopTreeCache mapStopTreeCache() {
+        if (stopTreeCacheFile == null || !stopTreeCacheFile.exists()) return null;
+        try {
+            StopTreeCache stc = StopTreeCache.map(graph, stopTreeCacheFile, graph.getFileStamp());
+            if (stc.getMaxWalkMeters() == MAX_WALK_METERS) return stc;
+            LOG.info("Stop tree cache {} has a different cutoff distance, rebuilding it.", stopTreeCacheFile);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not map stop tree cache {}, rebuilding it: {}", stopTreeCacheFile, e.toString());
+        }
+        return null;
+    }
+
+    private void saveStopTreeCache() {
+        if (stopTreeCacheFile == null) return;
+        try {
+            stopTreeCache.save(stopTreeCacheFile, graph.getFileStamp());
+        } catch (IOException e) {
+            LOG.warn("Could not save stop tree cache {}, it will be rebuilt on the next load.", stopTreeCacheFile, e);
+        }
+    }
+
     /**
      * FIXME OBA parentStation field is a string, not an AgencyAndId, so it has no agency/feed scope
      * But the DC regional graph has no parent stations pre-defined, so no use dealing with them for now.
@@ -0,0 +1,276 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.edgetype.DwellEdge;
+import org.opentripplanner.routing.edgetype.HopEdge;
+import org.opentripplanner.routing.edgetype.OnboardEdge;
+import org.opentripplanner.routing.edgetype.StationEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.TablePatternEdge;
+import org.opentripplanner.routing.edgetype.TemporaryEdge;
+import org.opentripplanner.routing.edgetype.TimedTransferEdge;
+import org.opentripplanner.routing.util.ElevationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Network distances between every vertex reachable without transit and a small set of landmark vertices, for the
+ * landmark (ALT) lower bound on the street distance between any two vertices. By the triangle inequality, the distance from v to w is at
+ * least d(L, w) - d(L, v) and at least d(v, L) - d(w, L) for every landmark L. This bound follows the street network
+ * and is usually much tighter than the straight-line distance, especially around rivers, highways and other barriers.
+ *
+ * Distances are computed over every edge that can be traversed without riding transit, regardless of permissions:
+ * street edges count for their length, and the other edges (elevators, pathways, free edges...) count as zero length
+ * since their cost does not depend on a length. The bound therefore holds for every non-transit mode, shortcuts
+ * included.
+ * The table is computed at graph build time (see LandmarkModule) and serialized with the graph. Landmarks are chosen
+ * one after the other as the vertex farthest from all the landmarks already chosen, which spreads them around the
+ * edges of the network where they give the best bounds.
+ */
+public class LandmarkTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(LandmarkTable.class);
+
+    /** The vertices of the table, in the order of the distance arrays. */
+    private final Vertex[] vertices;
+
+    /** The table row of each landmark. */
+    private final int[] landmarks;
+
+    /** Distance in meters from each landmark to each vertex, infinite when not reachable. */
+    private final float[][] fromLandmark;
+
+    /** Distance in meters from each vertex to each landmark, infinite when not reachable. */
+    private final float[][] toLandmark;
+
+    /**
+     * The smallest ratio of slope-adjusted length to actual length found on any street edge. Searches weighting
+     * edges on their slope-adjusted length must scale the bounds by this factor.
+     */
+    private final float minLengthRatio;
+
+    private transient TObjectIntHashMap<Vertex> rows;
+
+    private LandmarkTable(Vertex[] vertices, int[] landmarks, float[][] fromLandmark, float[][] toLandmark,
+            float minLengthRatio) {
+        this.vertices = vertices;
+        this.landmarks = landmarks;
+        this.fromLandmark = fromLandmark;
+        this.toLandmark = toLandmark;
+        this.minLengthRatio = minLengthRatio;
+    }
+
+    /** Choose the given number of landmarks among the vertices of the graph and compute their distances. */
+    public static LandmarkTable build(Graph graph, int nLandmarks) {
+        long start = System.currentTimeMillis();
+        Network network = new Network(graph);
+        int nVertices = network.vertices.length;
+        nLandmarks = Math.min(nLandmarks, nVertices);
+        int[] landmarks = new int[nLandmarks];
+        float[][] fromLandmark = new float[nLandmarks][];
+        float[][] toLandmark = new float[nLandmarks][];
+        // the smallest distance from any landmark chosen so far, starting with the distances from an arbitrary vertex
+        float[] minDistance = nVertices == 0 ? new float[0] : network.distances(0, true);
+        for (int l = 0; l < nLandmarks; l++) {
+            int farthest = 0;
+            for (int v = 0; v < nVertices; v++) {
+                if (minDistance[v] != Float.POSITIVE_INFINITY && minDistance[v] > minDistance[farthest]) {
+                    farthest = v;
+                }
+            }
+            landmarks[l] = farthest;
+            fromLandmark[l] = network.distances(farthest, true);
+            toLandmark[l] = network.distances(farthest, false);
+            for (int v = 0; v < nVertices; v++) {
+                float d = fromLandmark[l][v];
+                if (l == 0 || minDistance[v] == Float.POSITIVE_INFINITY || d < minDistance[v]) minDistance[v] = d;
+            }
+            minDistance[farthest] = 0;
+        }
+        LOG.info("Computed distances to {} landmarks for {} vertices in {} ms.", nLandmarks, nVertices,
+                System.currentTimeMillis() - start);
+        return new LandmarkTable(network.vertices, landmarks, fromLandmark, toLandmark, network.minLengthRatio);
+    }
+
+    /**
+     * @return whether the given edge can be part of a path that does not ride transit. Edges that are only used on
+     *         board a vehicle or to board and alight one are left out, as are temporary edges.
+     */
+    static boolean isNonTransit(Edge e) {
+        return !(e instanceof TemporaryEdge || e instanceof OnboardEdge || e instanceof HopEdge
+                || e instanceof DwellEdge || e instanceof TablePatternEdge || e instanceof StationEdge
+                || e instanceof TimedTransferEdge);
+    }
+
+    /**
+     * The edges of the graph that can be traversed without riding transit, in compressed adjacency arrays. Street
+     * edges count for their length. The cost of the other edges (elevators, pathways, links to stops, free edges...)
+     * is not tied to a length, so they count as zero length: a shortcut through them must never make the distances
+     * of the table longer than the real ones.
+     */
+    private static class Network {
+
+        final Vertex[] vertices;
+        final int[] firstOutgoing;
+        final int[] firstIncoming;
+        final int[] outgoingTo;
+        final int[] outgoingLengthMm;
+        final int[] incomingFrom;
+        final int[] incomingLengthMm;
+        /** The smallest ratio of slope-adjusted length to actual length, computed as in CompactStreetGraph. */
+        final float minLengthRatio;
+
+        Network(Graph graph) {
+            List<Edge> edges = new ArrayList<>();
+            TObjectIntHashMap<Vertex> index = new TObjectIntHashMap<Vertex>(1024, 0.5f, -1);
+            List<Vertex> vertexList = new ArrayList<>();
+            float minRatio = 1;
+            for (Edge e : graph.getEdges()) {
+                if (!isNonTransit(e)) continue;
+                edges.add(e);
+                for (Vertex v : new Vertex[] { e.getFromVertex(), e.getToVertex() }) {
+                    if (index.get(v) < 0) {
+                        index.put(v, vertexList.size());
+                        vertexList.add(v);
+                    }
+                }
+                if (e instanceof StreetEdge && e.getDistance() > 0) {
+                    StreetEdge se = (StreetEdge) e;
+                    double distance = se.getDistance();
+                    double walkLength = ElevationUtils.getWalkCostsForSlope(distance, se.getMaxSlope()) * 4.0 / 3.0;
+                    minRatio = (float) Math.min(minRatio, se.getSlopeSpeedEffectiveLength() / distance);
+                    minRatio = (float) Math.min(minRatio, walkLength / distance);
+                }
+            }
+            minLengthRatio = minRatio;
+            int nVertices = vertexList.size();
+            vertices = vertexList.toArray(new Vertex[nVertices]);
+
+            // counting sort of the edges on their from and to vertices
+            firstOutgoing = new int[nVertices + 1];
+            firstIncoming = new int[nVertices + 1];
+            for (Edge e : edges) {
+                firstOutgoing[index.get(e.getFromVertex()) + 1]++;
+                firstIncoming[index.get(e.getToVertex()) + 1]++;
+            }
+            for (int v = 0; v < nVertices; v++) {
+                firstOutgoing[v + 1] += firstOutgoing[v];
+                firstIncoming[v + 1] += firstIncoming[v];
+            }
+            int[] nextOutgoing = Arrays.copyOf(firstOutgoing, nVertices);
+            int[] nextIncoming = Arrays.copyOf(firstIncoming, nVertices);
+            outgoingTo = new int[edges.size()];
+            outgoingLengthMm = new int[edges.size()];
+            incomingFrom = new int[edges.size()];
+            incomingLengthMm = new int[edges.size()];
+            for (Edge e : edges) {
+                int from = index.get(e.getFromVertex());
+                int to = index.get(e.getToVertex());
+                int lengthMm = e instanceof StreetEdge ? (int) Math.round(e.getDistance() * 1000) : 0;
+                int o = nextOutgoing[from]++;
+                outgoingTo[o] = to;
+                outgoingLengthMm[o] = lengthMm;
+                int i = nextIncoming[to]++;
+                incomingFrom[i] = from;
+                incomingLengthMm[i] = lengthMm;
+            }
+        }
+
+        /** Dijkstra search, forward from or backward to the given vertex. */
+        float[] distances(int origin, boolean forward) {
+            int nVertices = vertices.length;
+            int[] first = forward ? firstOutgoing : firstIncoming;
+            int[] adjacent = forward ? outgoingTo : incomingFrom;
+            int[] lengthMm = forward ? outgoingLengthMm : incomingLengthMm;
+            int[] distanceMm = new int[nVertices];
+            Arrays.fill(distanceMm, Integer.MAX_VALUE);
+            boolean[] closed = new boolean[nVertices];
+            BinHeap<Integer> queue = new BinHeap<Integer>();
+            distanceMm[origin] = 0;
+            queue.insert(origin, 0);
+            while (!queue.empty()) {
+                int v = queue.extract_min();
+                if (closed[v]) continue;
+                closed[v] = true;
+                for (int p = first[v]; p < first[v + 1]; p++) {
+                    int u = adjacent[p];
+                    long d = (long) distanceMm[v] + lengthMm[p];
+                    if (d < distanceMm[u]) {
+                        distanceMm[u] = (int) d;
+                        queue.insert(u, d);
+                    }
+                }
+            }
+            float[] distances = new float[nVertices];
+            for (int v = 0; v < nVertices; v++) {
+                distances[v] = distanceMm[v] == Integer.MAX_VALUE ? Float.POSITIVE_INFINITY : distanceMm[v] / 1000f;
+            }
+            return distances;
+        }
+    }
+
+    /** @return the row of the given vertex in this table, or -1 if it is not a vertex known to the table. */
+    public int getRow(Vertex vertex) {
+        TObjectIntHashMap<Vertex> rows = this.rows;
+        if (rows == null) {
+            rows = new TObjectIntHashMap<Vertex>(vertices.length, 0.5f, -1);
+            for (int v = 0; v < vertices.length; v++) {
+                rows.put(vertices[v], v);
+            }
+            // a race here only means the map is built more than once
+            this.rows = rows;
+        }
+        return rows.get(vertex);
+    }
+
+    /**
+     * @return a lower bound in meters on the street distance from the vertex in row v to the vertex in row w,
+     *         ignoring landmarks that cannot reach or be reached from either vertex.
+     */
+    public double lowerBound(int v, int w) {
+        float bound = 0;
+        for (int l = 0; l < landmarks.length; l++) {
+            float forward = fromLandmark[l][w] - fromLandmark[l][v];
+            float backward = toLandmark[l][v] - toLandmark[l][w];
+            // differences involving an unreachable vertex are either NaN or infinite, neither is a usable bound
+            if (forward > bound && forward != Float.POSITIVE_INFINITY) bound = forward;
+            if (backward > bound && backward != Float.POSITIVE_INFINITY) bound = backward;
+        }
+        return bound;
+    }
+
+    public float getMinLengthRatio() {
+        return minLengthRatio;
+    }
+
+    public int getLandmarkCount() {
+        return landmarks.length;
+    }
+
+    public Vertex getLandmark(int l) {
+        return vertices[landmarks[l]];
+    }
+
+}
@@ -18,8 +18,10 @@ import com.google.common.collect.Sets;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.CompactStreetSearch;
 import org.opentripplanner.routing.algorithm.strategies.EuclideanRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.InterleavedBidirectionalHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.WalkConstrainingHeuristic;
@@ -42,6 +44,10 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * This class contains the logic for repeatedly building shortest path trees and accumulating paths through
@@ -108,19 +114,7 @@ public class GraphPathFinder {
         options.dominanceFunction = new DominanceFunction.MinimumWeight(); // FORCING the dominance function to weight only
         LOG.debug("rreq={}", options);
 
-        // Choose an appropriate heuristic for goal direction.
-        RemainingWeightHeuristic heuristic;
-        if (options.disableRemainingWeightHeuristic) {
-            heuristic = new TrivialRemainingWeightHeuristic();
-        } else if (options.modes.isTransit()) {
-            // Only use the BiDi heuristic for transit. It is not very useful for on-street modes.
-            // heuristic = new InterleavedBidirectionalHeuristic(options.rctx.graph);
-            // Use a simplistic heuristic until BiDi heuristic is improved, see #2153
-            heuristic = new WalkConstrainingHeuristic();
-        } else {
-            heuristic = new EuclideanRemainingWeightHeuristic();
-        }
-        options.rctx.remainingWeightHeuristic = heuristic;
+        options.rctx.remainingWeightHeuristic = newHeuristic(options);
 
         /* In RoutingRequest, maxTransfers defaults to 2. Over long distances, we may see
          * itineraries with far more transfers. We do not expect transfer limiting to improve
@@ -140,6 +134,19 @@ public class GraphPathFinder {
         long searchBeginTime = System.currentTimeMillis();
         LOG.debug("BEGIN SEARCH");
         List<GraphPath> paths = Lists.newArrayList();
+        // Street-only searches can be answered from the compact street graph, falling back on AStar if that fails.
+        if (options.compactStreetSearch && CompactStreetSearch.canHandle(options)) {
+            CompactStreetSearch compactSearch = new CompactStreetSearch(options.rctx.graph.getCompactStreetGraph());
+            GraphPath path = compactSearch.getPath(options);
+            if (path != null) {
+                LOG.debug("END COMPACT STREET SEARCH ({} msec)", System.currentTimeMillis() - searchBeginTime);
+                paths.add(path);
+                return paths;
+            }
+        }
+        if (options.parallelItineraries && options.numItineraries > 1 && router.graphVisualizer == null) {
+            return getPathsInParallel(options, aStar, searchBeginTime);
+        }
         while (paths.size() < options.numItineraries) {
             // TODO pull all this timeout logic into a function near org.opentripplanner.util.DateUtils.absoluteTimeout()
             int timeoutIndex = paths.size();
@@ -184,6 +191,142 @@ public class GraphPathFinder {
         return paths;
     }
 
+    /** Choose an appropriate heuristic for goal direction. */
+    private RemainingWeightHeuristic newHeuristic(RoutingRequest options) {
+        if (options.disableRemainingWeightHeuristic) {
+            return new TrivialRemainingWeightHeuristic();
+        } else if (options.modes.isTransit()) {
+            // Only use the BiDi heuristic for transit. It is not very useful for on-street modes.
+            if (options.bidirectionalHeuristic) {
+                return new InterleavedBidirectionalHeuristic(options.rctx.graph, router.heuristicCache);
+            }
+            // Use a simplistic heuristic until BiDi heuristic is improved, see #2153
+            return new WalkConstrainingHeuristic();
+        } else if (options.rctx.graph.landmarks != null) {
+            return new LandmarkRemainingWeightHeuristic(options.rctx.graph.landmarks);
+        } else {
+            return new EuclideanRemainingWeightHeuristic();
+        }
+    }
+
+    /**
+     * Find the first itinerary, then search for the others concurrently on the router's itinerary executor.
+     * The sequential loop in getPaths cannot be parallelized as such because each of its searches bans the trips
+     * found by all the previous ones. Instead, once the first itinerary is known, the follow-up searches each get a
+     * fixed set of bans derived from it: the first bans all of its trips (which is the second search of the
+     * sequential loop), the others each ban a single one of its trips. The follow-up searches share the read-only
+     * parts of the routing context (graph, temporary vertices, service days) but each has its own request, AStar
+     * instance and heuristic. Their results are merged in submission order and deduplicated on the trips they use, so
+     * the outcome does not depend on thread scheduling.
+     */
+    private List<GraphPath> getPathsInParallel(RoutingRequest options, AStar aStar, long searchBeginTime) {
+        List<GraphPath> paths = Lists.newArrayList();
+        double timeout = relativeTimeout(searchBeginTime, 0);
+        if (timeout <= 0) {
+            options.rctx.aborted = true;
+            return paths;
+        }
+        aStar.getShortestPathTree(options, timeout);
+        if (options.rctx.aborted) {
+            return paths;
+        }
+        List<GraphPath> firstPaths = aStar.getPathsToTarget();
+        paths.addAll(firstPaths);
+        if (firstPaths.isEmpty() || paths.size() >= options.numItineraries) {
+            return paths;
+        }
+
+        // Build the follow-up requests, each banning a different set of trips from the first itineraries.
+        List<RoutingRequest> requests = Lists.newArrayList();
+        RoutingRequest banAll = options.clone();
+        Set<AgencyAndId> firstTrips = Sets.newLinkedHashSet();
+        for (GraphPath path : firstPaths) {
+            List<AgencyAndId> tripIds = path.getTrips();
+            for (AgencyAndId tripId : tripIds) {
+                banAll.banTrip(tripId);
+            }
+            firstTrips.addAll(tripIds);
+            if (tripIds.isEmpty()) {
+                // This path does not use transit (is entirely on-street). Do not repeatedly find the same one.
+                banAll.onlyTransitTrips = true;
+            }
+        }
+        requests.add(banAll);
+        if (firstTrips.size() > 1) {
+            for (AgencyAndId tripId : firstTrips) {
+                if (requests.size() >= options.numItineraries - paths.size()) break;
+                RoutingRequest banOne = options.clone();
+                banOne.banTrip(tripId);
+                requests.add(banOne);
+            }
+        }
+
+        final double followUpTimeout = relativeTimeout(searchBeginTime, 1);
+        if (followUpTimeout <= 0) {
+            return paths;
+        }
+        List<Future<List<GraphPath>>> futures = Lists.newArrayList();
+        ExecutorService executor = router.getItineraryExecutor();
+        for (final RoutingRequest request : requests) {
+            request.dominanceFunction = new DominanceFunction.MinimumWeight();
+            request.rctx = options.rctx.copyForSearch(request, newHeuristic(request));
+            futures.add(executor.submit(new Callable<List<GraphPath>>() {
+                @Override
+                public List<GraphPath> call() {
+                    AStar search = new AStar();
+                    search.getShortestPathTree(request, followUpTimeout);
+                    if (request.rctx.aborted) {
+                        return Collections.emptyList();
+                    }
+                    return search.getPathsToTarget();
+                }
+            }));
+        }
+
+        // Merge in submission order, skipping itineraries using the same trips as one already retained.
+        Set<List<AgencyAndId>> seenTrips = Sets.newHashSet();
+        for (GraphPath path : paths) {
+            seenTrips.add(path.getTrips());
+        }
+        for (Future<List<GraphPath>> future : futures) {
+            try {
+                for (GraphPath path : future.get()) {
+                    if (seenTrips.add(path.getTrips())) {
+                        paths.add(path);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Nobody will read the results of the searches still running, stop them.
+                for (Future<List<GraphPath>> outstanding : futures) {
+                    outstanding.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                LOG.error("Follow-up itinerary search failed", e.getCause());
+            }
+        }
+        LOG.debug("END PARALLEL SEARCH ({} msec)", System.currentTimeMillis() - searchBeginTime);
+        Collections.sort(paths, new PathComparator(options.arriveBy));
+        if (paths.size() > options.numItineraries) {
+            paths = Lists.newArrayList(paths.subList(0, options.numItineraries));
+        }
+        return paths;
+    }
+
+    /**
+     * @return the time left in seconds before the router timeout of the search with the given index, started at the
+     *         given time, expires.
+     */
+    private double relativeTimeout(long searchBeginTime, int timeoutIndex) {
+        if (timeoutIndex >= router.timeouts.length) {
+            timeoutIndex = router.timeouts.length - 1;
+        }
+        double timeout = searchBeginTime + (router.timeouts[timeoutIndex] * 1000);
+        timeout -= System.currentTimeMillis(); // Convert from absolute to relative time
+        return timeout / 1000; // Convert milliseconds to seconds
+    }
+
     /* Try to find N paths through the Graph */
     public List<GraphPath> graphPathFinderEntryPoint (RoutingRequest request) {
 
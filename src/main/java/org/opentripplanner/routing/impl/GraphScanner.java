@@ -25,6 +25,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.opentripplanner.routing.error.GraphNotFoundException;
 import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.routing.graph.Graph.MemoryMode;
 import org.opentripplanner.routing.services.GraphService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +52,9 @@ public class GraphScanner {
     /** Load level */
     public LoadLevel loadLevel = LoadLevel.FULL;
 
+    /** Whether the immutable parts of the graphs are kept on the heap or in memory-mapped files */
+    public MemoryMode memoryMode = MemoryMode.HEAP;
+
     /** The GraphService where register graphs to */
     private GraphService graphService;
 
@@ -82,7 +86,7 @@ public class GraphScanner {
             LOG.info("Graph files will be sought in paths relative to {}", basePath);
             for (String routerId : routerIds) {
                 InputStreamGraphSource graphSource = InputStreamGraphSource.newFileGraphSource(
-                        routerId, getBasePath(routerId), loadLevel);
+                        routerId, getBasePath(routerId), loadLevel, memoryMode);
                 graphService.registerGraph(routerId, graphSource);
             }
         } else {
@@ -132,7 +136,7 @@ public class GraphScanner {
                     Arrays.toString(graphToRegister.toArray()));
             for (String routerId : graphToRegister) {
                 InputStreamGraphSource graphSource = InputStreamGraphSource.newFileGraphSource(
-                        routerId, getBasePath(routerId), loadLevel);
+                        routerId, getBasePath(routerId), loadLevel, memoryMode);
                 // Can be null here if the file has been removed in the meantime.
                 graphService.registerGraph(routerId, graphSource);
             }
@@ -20,6 +20,7 @@ import com.fasterxml.jackson.databind.node.MissingNode;
 import com.google.common.io.ByteStreams;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.routing.graph.Graph.MemoryMode;
 import org.opentripplanner.routing.services.GraphSource;
 import org.opentripplanner.routing.services.StreetVertexIndexFactory;
 import org.opentripplanner.standalone.Router;
@@ -54,6 +55,8 @@ public class InputStreamGraphSource implements GraphSource {
 
     private LoadLevel loadLevel;
 
+    private MemoryMode memoryMode = MemoryMode.HEAP;
+
     private Object preEvictMutex = new Boolean(false);
 
     /**
@@ -75,6 +78,21 @@ public class InputStreamGraphSource implements GraphSource {
         return new InputStreamGraphSource(routerId, loadLevel, new FileStreams(path));
     }
 
+    /**
+     * @param routerId
+     * @param path
+     * @param loadLevel
+     * @param memoryMode
+     * @return A GraphSource loading graph from the file system under a base path, keeping the immutable parts of the
+     *         graph in memory-mapped files when memoryMode is MAPPED.
+     */
+    public static InputStreamGraphSource newFileGraphSource(String routerId, File path,
+            LoadLevel loadLevel, MemoryMode memoryMode) {
+        InputStreamGraphSource graphSource = newFileGraphSource(routerId, path, loadLevel);
+        graphSource.memoryMode = memoryMode;
+        return graphSource;
+    }
+
     /**
      * @param routerId
      * @param path
@@ -203,20 +221,36 @@ public class InputStreamGraphSource implements GraphSource {
      */
     private Router loadGraph() {
         final Graph newGraph;
-        try (InputStream is = streams.getGraphInputStream()) {
-            LOG.info("Loading graph...");
+        File graphFile = streams.getGraphFile();
+        if (memoryMode == MemoryMode.MAPPED && graphFile != null) {
+            LOG.info("Loading memory-mapped graph...");
+            if (!graphFile.canRead()) {
+                LOG.warn("Graph file not found or not openable for routerId '{}': {}", routerId, graphFile);
+                return null;
+            }
             try {
-                newGraph = Graph.load(new ObjectInputStream(is), loadLevel,
-                        streetVertexIndexFactory);
+                newGraph = Graph.load(graphFile, loadLevel, streetVertexIndexFactory, memoryMode);
             } catch (Exception ex) {
                 LOG.error("Exception while loading graph '{}'.", routerId, ex);
                 return null;
             }
-
             newGraph.routerId = (routerId);
-        } catch (IOException e) {
-            LOG.warn("Graph file not found or not openable for routerId '{}': {}", routerId, e);
-            return null;
+        } else {
+            try (InputStream is = streams.getGraphInputStream()) {
+                LOG.info("Loading graph...");
+                try {
+                    newGraph = Graph.load(is, loadLevel,
+                            streetVertexIndexFactory);
+                } catch (Exception ex) {
+                    LOG.error("Exception while loading graph '{}'.", routerId, ex);
+                    return null;
+                }
+
+                newGraph.routerId = (routerId);
+            } catch (IOException e) {
+                LOG.warn("Graph file not found or not openable for routerId '{}': {}", routerId, e);
+                return null;
+            }
         }
 
         // Decorate the graph TODO how are we "decorating" it? This appears to refer to loading its configuration.
@@ -252,6 +286,9 @@ public class InputStreamGraphSource implements GraphSource {
         public abstract InputStream getConfigInputStream() throws IOException;
 
         public abstract long getLastModified();
+
+        /** @return the graph file if the graph is a plain file that can be memory-mapped, null otherwise. */
+        public abstract File getGraphFile();
     }
 
     private static class FileStreams implements Streams {
@@ -285,6 +322,11 @@ public class InputStreamGraphSource implements GraphSource {
             // Note: this returns 0L if the file does not exists
             return new File(path, GRAPH_FILENAME).lastModified();
         }
+
+        @Override
+        public File getGraphFile() {
+            return new File(path, GRAPH_FILENAME);
+        }
     }
 
     private static class ClasspathStreams implements Streams {
@@ -319,6 +361,11 @@ public class InputStreamGraphSource implements GraphSource {
         public long getLastModified() {
             return 0L;
         }
+
+        @Override
+        public File getGraphFile() {
+            return null;
+        }
     }
 
     /**
@@ -332,6 +379,8 @@ public class InputStreamGraphSource implements GraphSource {
 
         public LoadLevel loadLevel = LoadLevel.FULL;
 
+        public MemoryMode memoryMode = MemoryMode.HEAP;
+
         public FileFactory(File basePath) {
             this.basePath = basePath;
         }
@@ -339,7 +388,7 @@ public class InputStreamGraphSource implements GraphSource {
         @Override
         public GraphSource createGraphSource(String routerId) {
             return InputStreamGraphSource.newFileGraphSource(routerId, getBasePath(routerId),
-                    loadLevel);
+                    loadLevel, memoryMode);
         }
 
         @Override
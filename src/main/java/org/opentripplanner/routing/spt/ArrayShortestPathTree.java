@@ -0,0 +1,249 @@
+/* This program is free software: you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public License
+as published by the Free Software Foundation, either version 3 of
+the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.spt;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A ShortestPathTree that finds the states at a vertex by its index (Vertex.getIndex()) rather than through a hash map.
+ *
+ * Each vertex slot holds either nothing, a single State, or a StateList when the vertex really has several co-dominant
+ * states. With single-state dominance functions (MinimumWeight, EarliestArrival) almost every vertex stays on the
+ * single-State path, so adding and visiting states allocates nothing but the tree's own pages.
+ *
+ * Slots are stored in fixed-size pages that are only allocated when a state is first added to a vertex in their range,
+ * so a short search on a large graph does not pay for an array covering every vertex.
+ */
+public class ArrayShortestPathTree extends ShortestPathTree {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArrayShortestPathTree.class);
+
+    private static final int PAGE_SHIFT = 10;
+
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** A distinct class for lists of co-dominant states, so slots can be tested with an exact class check. */
+    private static final class StateList extends ArrayList<State> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Pages of slots, each slot being null, a State, or a StateList. */
+    private Object[][] pages;
+
+    private int vertexCount = 0;
+
+    public ArrayShortestPathTree (RoutingRequest options, DominanceFunction dominanceFunction) {
+        super(options, dominanceFunction, null);
+        pages = new Object[(Vertex.getMaxIndex() >>> PAGE_SHIFT) + 1][];
+    }
+
+    private Object getSlot(int index) {
+        int p = index >>> PAGE_SHIFT;
+        if (p >= pages.length) return null;
+        Object[] page = pages[p];
+        return page == null ? null : page[index & PAGE_MASK];
+    }
+
+    private void setSlot(int index, Object slot) {
+        int p = index >>> PAGE_SHIFT;
+        if (p >= pages.length) {
+            // vertices (e.g. temporary ones) may have been created since this tree was constructed
+            pages = Arrays.copyOf(pages, Math.max(p + 1, pages.length * 2));
+        }
+        Object[] page = pages[p];
+        if (page == null) {
+            page = new Object[PAGE_SIZE];
+            pages[p] = page;
+        }
+        page[index & PAGE_MASK] = slot;
+    }
+
+    @Override
+    public boolean add(State newState) {
+        int index = newState.getVertex().getIndex();
+        Object slot = getSlot(index);
+
+        // if the vertex has no states, add one and return
+        if (slot == null) {
+            setSlot(index, newState);
+            vertexCount++;
+            return true;
+        }
+
+        // fast path for a vertex holding a single state
+        if (slot.getClass() != StateList.class) {
+            State oldState = (State) slot;
+            if (dominanceFunction.betterOrEqualAndComparable(oldState, newState))
+                return false;
+            if (dominanceFunction.betterOrEqualAndComparable(newState, oldState)) {
+                setSlot(index, newState);
+            } else {
+                StateList states = new StateList();
+                states.add(oldState);
+                states.add(newState);
+                setSlot(index, states);
+            }
+            return true;
+        }
+
+        // same logic as the map-based tree: reject dominated new states and remove states the new one dominates
+        StateList states = (StateList) slot;
+        Iterator<State> it = states.iterator();
+        while (it.hasNext()) {
+            State oldState = it.next();
+            if (dominanceFunction.betterOrEqualAndComparable(oldState, newState))
+                return false;
+            if (dominanceFunction.betterOrEqualAndComparable(newState, oldState))
+                it.remove();
+        }
+        if (states.isEmpty()) {
+            // back onto the single-state fast path
+            setSlot(index, newState);
+        } else {
+            states.add(newState);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean visit(State state) {
+        Object slot = getSlot(state.getVertex().getIndex());
+        if (slot == state)
+            return true;
+        if (slot == null || slot.getClass() != StateList.class)
+            return false;
+        for (State s : (StateList) slot) {
+            if (s == state)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public State getState(Vertex dest) {
+        Object slot = getSlot(dest.getIndex());
+        if (slot == null)
+            return null;
+        if (slot.getClass() != StateList.class) {
+            State s = (State) slot;
+            return s.isFinal() ? s : null;
+        }
+        State ret = null;
+        for (State s : (StateList) slot) {
+            if ((ret == null || s.weight < ret.weight) && s.isFinal()) {
+                ret = s;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<State> getStates(Vertex dest) {
+        Object slot = getSlot(dest.getIndex());
+        if (slot == null)
+            return null;
+        if (slot.getClass() != StateList.class)
+            return Collections.singletonList((State) slot);
+        return (StateList) slot;
+    }
+
+    @Override
+    public Set<Vertex> getVertices() {
+        Set<Vertex> vertices = Collections.newSetFromMap(new IdentityHashMap<Vertex, Boolean>());
+        for (Object[] page : pages) {
+            if (page == null) continue;
+            for (Object slot : page) {
+                if (slot == null) continue;
+                if (slot.getClass() != StateList.class) {
+                    vertices.add(((State) slot).getVertex());
+                } else {
+                    vertices.add(((StateList) slot).get(0).getVertex());
+                }
+            }
+        }
+        return vertices;
+    }
+
+    @Override
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public Collection<State> getAllStates() {
+        ArrayList<State> allStates = new ArrayList<State>();
+        for (Object[] page : pages) {
+            if (page == null) continue;
+            for (Object slot : page) {
+                if (slot == null) continue;
+                if (slot.getClass() != StateList.class) {
+                    allStates.add((State) slot);
+                } else {
+                    allStates.addAll((StateList) slot);
+                }
+            }
+        }
+        return allStates;
+    }
+
+    @Override
+    public void dump() {
+        Multiset<Integer> histogram = HashMultiset.create();
+        int statesCount = 0;
+        int maxSize = 0;
+        for (Object[] page : pages) {
+            if (page == null) continue;
+            for (Object slot : page) {
+                if (slot == null) continue;
+                int size = slot.getClass() != StateList.class ? 1 : ((StateList) slot).size();
+                histogram.add(size);
+                statesCount += size;
+                if (size > maxSize) {
+                    maxSize = size;
+                }
+            }
+        }
+        LOG.info("SPT: vertices: " + vertexCount + " states: total: "
+                + statesCount + " per vertex max: " + maxSize + " avg: "
+                + (statesCount * 1.0 / vertexCount));
+        List<Integer> nStates = new ArrayList<Integer>(histogram.elementSet());
+        Collections.sort(nStates);
+        for (Integer nState : nStates) {
+            LOG.info(nState + " states: " + histogram.count(nState) + " vertices.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ArrayShortestPathTree(" + vertexCount + " vertices)";
+    }
+
+}
@@ -35,6 +35,8 @@ import java.util.*;
  * Note that turn restrictions make all searches multi-state; however turn restrictions do not apply when walking.
  * The turn restriction handling is done in the base dominance function implementation, and applies to all subclasses.
  * It essentially splits each vertex into N vertices depending on the incoming edge being taken.
+ *
+ * ArrayShortestPathTree implements the same multi-state logic with storage indexed on vertex index rather than a map.
  */
 public class ShortestPathTree {
 
@@ -44,12 +46,18 @@ public class ShortestPathTree {
 
     public final DominanceFunction dominanceFunction;
 
-    private Map<Vertex, List<State>> stateSets;
+    private final Map<Vertex, List<State>> stateSets;
 
     public ShortestPathTree (RoutingRequest options, DominanceFunction dominanceFunction) {
+        this(options, dominanceFunction, new IdentityHashMap<Vertex, List<State>>());
+    }
+
+    /** For subclasses that store their states some other way, and override every method that reads stateSets. */
+    ShortestPathTree (RoutingRequest options, DominanceFunction dominanceFunction,
+            Map<Vertex, List<State>> stateSets) {
         this.options = options;
         this.dominanceFunction = dominanceFunction;
-        stateSets = new IdentityHashMap<Vertex, List<State>>();
+        this.stateSets = stateSets;
     }
 
     /** @return a list of GraphPaths, sometimes empty but never null. */
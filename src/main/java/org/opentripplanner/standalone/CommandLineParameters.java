@@ -90,6 +90,10 @@ public class CommandLineParameters implements Cloneable {
     @Parameter(names = {"--autoReload"}, description = "Auto-reload registered graphs when source data is modified.")
     public boolean autoReload = false;
 
+    @Parameter(names = {"--memoryMapped"},
+            description = "Load graphs through memory-mapped files that are shared between OTP instances on one machine.")
+    public boolean memoryMapped = false;
+
     @Parameter(names = {"--port"}, validateWith = AvailablePort.class,
             description = "Server port for plain HTTP.")
     public Integer port;
@@ -1,11 +1,14 @@
 package org.opentripplanner.standalone;
 
 import org.opentripplanner.graph_builder.services.osm.CustomNamer;
+import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.impl.DefaultFareServiceFactory;
 import org.opentripplanner.routing.services.FareServiceFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import java.util.Locale;
+
 /**
  * These are parameters that when changed, necessitate a Graph rebuild.
  * They are distinct from the RouterParameters which can be applied to a pre-built graph or on the fly at runtime.
@@ -112,6 +115,18 @@ public class GraphBuilderParameters {
      */
     public boolean staticBikeParkAndRide = false;
 
+    /**
+     * The format in which the graph is saved: "java" for plain Java serialization or "binary" for the faster-loading
+     * versioned binary format. Either format is detected automatically when the graph is loaded.
+     */
+    public final Graph.SerializationFormat graphFormat;
+
+    /**
+     * The number of landmarks to which street distances are computed and stored with the graph, for a tighter goal
+     * direction heuristic in street searches. Each landmark costs 8 bytes per street vertex. 0 disables them.
+     */
+    public final int landmarks;
+
     /**
      * Set all parameters from the given Jackson JSON tree, applying defaults.
      * Supplying MissingNode.getInstance() will cause all the defaults to be applied.
@@ -138,6 +153,18 @@ public class GraphBuilderParameters {
         staticParkAndRide = config.path("staticParkAndRide").asBoolean(true);
         staticBikeParkAndRide = config.path("staticBikeParkAndRide").asBoolean(false);
         maxHtmlAnnotationsPerFile = config.path("maxHtmlAnnotationsPerFile").asInt(1000);
+        graphFormat = parseGraphFormat(config.path("graphFormat").asText("java"));
+        landmarks = config.path("landmarks").asInt(0);
+    }
+
+    /** Look up a graph format by its case-insensitive name, independently of the default locale. */
+    private static Graph.SerializationFormat parseGraphFormat(String name) {
+        try {
+            return Graph.SerializationFormat.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Unknown graphFormat '%s', the accepted values are 'java' and 'binary'.", name), e);
+        }
     }
 
 }
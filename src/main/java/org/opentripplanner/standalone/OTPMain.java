@@ -22,6 +22,7 @@ import com.fasterxml.jackson.databind.node.MissingNode;
 import org.opentripplanner.common.MavenVersion;
 import org.opentripplanner.graph_builder.GraphBuilder;
 import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Graph.MemoryMode;
 import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
 import org.opentripplanner.routing.impl.GraphScanner;
 import org.opentripplanner.routing.impl.InputStreamGraphSource;
@@ -130,6 +131,7 @@ public class OTPMain {
             /* Auto-register pre-existing graph on disk, with optional auto-scan. */
             GraphScanner graphScanner = new GraphScanner(graphService, params.graphDirectory, params.autoScan);
             graphScanner.basePath = params.graphDirectory;
+            graphScanner.memoryMode = params.memoryMapped ? MemoryMode.MAPPED : MemoryMode.HEAP;
             if (params.routerIds != null && params.routerIds.size() > 0) {
                 graphScanner.defaultRouterId = params.routerIds.get(0);
             }
@@ -185,6 +187,7 @@ public class OTPMain {
         graphService = new GraphService(params.autoReload);
         InputStreamGraphSource.FileFactory graphSourceFactory =
                 new InputStreamGraphSource.FileFactory(params.graphDirectory);
+        graphSourceFactory.memoryMode = params.memoryMapped ? MemoryMode.MAPPED : MemoryMode.HEAP;
         graphService.graphSourceFactory = graphSourceFactory;
         if (params.graphDirectory != null) {
             graphSourceFactory.basePath = params.graphDirectory;
@@ -1,10 +1,13 @@
 package org.opentripplanner.standalone;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.opentripplanner.analyst.request.*;
 import org.opentripplanner.analyst.scenario.ScenarioStore;
+import org.opentripplanner.api.resource.PlanCache;
 import org.opentripplanner.inspector.TileRendererManager;
 import org.opentripplanner.reflect.ReflectiveInitializer;
+import org.opentripplanner.routing.algorithm.strategies.BidirectionalHeuristicCache;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.graph.Graph;
@@ -14,6 +17,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.EnumMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents the configuration of a single router (a single graph for a specific geographic area)
@@ -25,6 +33,10 @@ public class Router {
 
     public static final String ROUTER_CONFIG_FILENAME = "router-config.json";
 
+    public static final int DEFAULT_HEURISTIC_CACHE_SIZE = 16;
+
+    public static final int DEFAULT_PLAN_CACHE_TIME_BUCKET_SECONDS = 60;
+
     public String id;
     public Graph graph;
     public double[] timeouts = {5, 2, 1, 0.5, 0.1};
@@ -49,9 +61,22 @@ public class Router {
     /** Storage for non-descructive alternatives analysis scenarios. */
     public ScenarioStore scenarioStore = new ScenarioStore();
 
+    /** The maximum number of itinerary searches run at once for requests with parallelItineraries set. */
+    public int itineraryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Runs the follow-up itinerary searches of requests with parallelItineraries set, created on first use. */
+    private ExecutorService itineraryExecutor;
+
+    /** The destination tables of the bidirectional heuristic, shared by all requests to this router. */
+    public BidirectionalHeuristicCache heuristicCache;
+
+    /** The trip plans of recent requests to this router, null unless enabled in the router config. */
+    public PlanCache planCache;
+
     public Router(String id, Graph graph) {
         this.id = id;
         this.graph = graph;
+        this.heuristicCache = new BidirectionalHeuristicCache(graph, DEFAULT_HEURISTIC_CACHE_SIZE);
     }
 
 
@@ -113,6 +138,39 @@ public class Router {
         }
         LOG.info("Timeouts for router '{}': {}", this.id, this.timeouts);
 
+        /* Size the cache of bidirectional heuristic destination tables. */
+        JsonNode heuristicCacheSize = config.get("heuristicCacheSize");
+        if (heuristicCacheSize != null) {
+            if (heuristicCacheSize.isInt() && heuristicCacheSize.intValue() >= 0) {
+                this.heuristicCache = heuristicCacheSize.intValue() == 0 ? null
+                        : new BidirectionalHeuristicCache(graph, heuristicCacheSize.intValue());
+            } else {
+                LOG.error("The 'heuristicCacheSize' configuration option should be a non-negative integer.");
+            }
+        }
+
+        /* Cache the plans of identical requests, within buckets of departure or arrival time. */
+        JsonNode planCacheSize = config.get("planCacheSize");
+        if (planCacheSize != null) {
+            if (planCacheSize.isInt() && planCacheSize.intValue() >= 0) {
+                int timeBucket = config.path("planCacheTimeBucket").asInt(DEFAULT_PLAN_CACHE_TIME_BUCKET_SECONDS);
+                this.planCache = planCacheSize.intValue() == 0 ? null
+                        : new PlanCache(graph, planCacheSize.intValue(), timeBucket);
+            } else {
+                LOG.error("The 'planCacheSize' configuration option should be a non-negative integer.");
+            }
+        }
+
+        /* Bound the number of concurrent follow-up itinerary searches. */
+        JsonNode itineraryThreads = config.get("itineraryThreads");
+        if (itineraryThreads != null) {
+            if (itineraryThreads.isInt() && itineraryThreads.intValue() > 0) {
+                this.itineraryThreads = itineraryThreads.intValue();
+            } else {
+                LOG.error("The 'itineraryThreads' configuration option should be a positive integer.");
+            }
+        }
+
 
         JsonNode boardTimes = config.get("boardTimes");
         if (boardTimes != null && boardTimes.isObject()) {
@@ -139,9 +197,30 @@ public class Router {
 
     }
 
+    /**
+     * @return the executor running the follow-up itinerary searches of this router. It has itineraryThreads threads
+     * and a bounded queue; when the queue is full, searches are run in the submitting request thread instead.
+     */
+    public synchronized ExecutorService getItineraryExecutor() {
+        if (itineraryExecutor == null) {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("itineraries-" + id + "-%d").build();
+            itineraryExecutor = new ThreadPoolExecutor(itineraryThreads, itineraryThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(itineraryThreads * 4), threadFactory,
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return itineraryExecutor;
+    }
+
     /** Shut down this router when evicted or (auto-)reloaded. Stop any real-time updater threads. */
     public void shutdown() {
         GraphUpdaterConfigurator.shutdownGraph(this.graph);
+        synchronized (this) {
+            if (itineraryExecutor != null) {
+                itineraryExecutor.shutdownNow();
+                itineraryExecutor = null;
+            }
+        }
     }
 
 }
@@ -20,6 +20,8 @@ import org.opentripplanner.routing.graph.Graph;
  * GraphUpdaterManager.
  * A few notes:
  * - Don't spend more time in this runnable than necessary, it might block other graph writer runnables.
+ *   Work that only reads the graph, like decoding and matching updates, is better done in the updater
+ *   thread before the runnable is executed (see TimetableSnapshotSource.prepareTripUpdates).
  * - Be aware that while only one graph writer runnable is running to write to the graph, several
  *   request-threads might be reading the graph.
  * - Be sure that the request-threads always see a consistent view of the graph while planning.
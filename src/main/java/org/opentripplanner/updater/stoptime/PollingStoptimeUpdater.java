@@ -76,6 +76,11 @@ public class PollingStoptimeUpdater extends PollingGraphUpdater {
      */
     private GtfsRealtimeFuzzyTripMatcher fuzzyTripMatcher;
 
+    /**
+     * The realtime data snapshot source of the graph, used to prepare the updates before they are applied
+     */
+    private TimetableSnapshotSource snapshotSource;
+
     @Override
     public void setGraphUpdaterManager(GraphUpdaterManager updaterManager) {
         this.updaterManager = updaterManager;
@@ -145,6 +150,7 @@ public class PollingStoptimeUpdater extends PollingGraphUpdater {
                 if (fuzzyTripMatcher != null) {
                     snapshotSource.fuzzyTripMatcher = fuzzyTripMatcher;
                 }
+                PollingStoptimeUpdater.this.snapshotSource = snapshotSource;
             }
         });
     }
@@ -160,9 +166,9 @@ public class PollingStoptimeUpdater extends PollingGraphUpdater {
         boolean fullDataset = updateSource.getFullDatasetValueOfLastUpdates();
 
         if (updates != null) {
-            // Handle trip updates via graph writer runnable
-            TripUpdateGraphWriterRunnable runnable =
-                    new TripUpdateGraphWriterRunnable(fullDataset, updates, feedId);
+            // Match the updates in this thread, the graph writer runnable only applies them
+            TripUpdateGraphWriterRunnable runnable = new TripUpdateGraphWriterRunnable(
+                    snapshotSource.prepareTripUpdates(fullDataset, updates, feedId));
             updaterManager.execute(runnable);
         }
     }
@@ -17,11 +17,14 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 import org.onebusaway.gtfs.model.Agency;
 import org.onebusaway.gtfs.model.AgencyAndId;
@@ -30,6 +33,7 @@ import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.opentripplanner.common.model.T2;
 import org.opentripplanner.model.StopPattern;
 import org.opentripplanner.routing.edgetype.Timetable;
 import org.opentripplanner.routing.edgetype.TimetableSnapshot;
@@ -44,6 +48,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
@@ -100,6 +106,12 @@ public class TimetableSnapshotSource {
      */
     private final TripPatternCache tripPatternCache = new TripPatternCache();
 
+    /**
+     * For each feed whose last message was a full dataset, the trip updates of that dataset that were applied to the
+     * buffer, by trip id and service date. See applyFullDataset.
+     */
+    private final Map<String, Map<T2<String, ServiceDate>, AppliedTripUpdate>> appliedTripUpdates = new HashMap<>();
+
     /** Should expired realtime data be purged from the graph. */
     public boolean purgeExpiredData = true;
 
@@ -190,79 +202,55 @@ public class TimetableSnapshotSource {
             return;
         }
 
+        applyTripUpdates(graph, prepareTripUpdates(fullDataset, updates, feedId));
+    }
+
+    /**
+     * Decode a trip update list and match it against the scheduled data, without touching the buffer. This is the
+     * expensive part of applying trip updates: fuzzy trip matching and building the updated trip times of scheduled
+     * trips. It only reads the graph, so it is meant to be called outside of the graph writer thread, leaving only
+     * applyTripUpdates(Graph, PreparedTripUpdates) to the graph writer. The trip updates are prepared in parallel.
+     *
+     * @param fullDataset true iff the list with updates represent all updates that are active right
+     *        now, i.e. all previous updates should be disregarded
+     * @param updates GTFS-RT TripUpdate's that should be applied atomically
+     * @param feedId
+     */
+    public PreparedTripUpdates prepareTripUpdates(final boolean fullDataset, final List<TripUpdate> updates,
+            final String feedId) {
+        Preconditions.checkNotNull(updates);
+        Preconditions.checkNotNull(feedId);
+
+        // Collecting an ordered parallel stream keeps the updates in their original order
+        final List<PreparedTripUpdate> preparedUpdates = updates.parallelStream()
+                .map(tripUpdate -> prepareTripUpdate(tripUpdate, fullDataset, feedId))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        return new PreparedTripUpdates(fullDataset, preparedUpdates, feedId, updates.size());
+    }
+
+    /**
+     * Apply trip updates prepared by prepareTripUpdates to the most recent version of the timetable snapshot. This
+     * holds the buffer lock while the prepared trip times are swapped in, trips are added or modified, and expired
+     * data purged.
+     *
+     * @param graph graph to update (needed for adding/changing stop patterns)
+     * @param prepared the decoded and matched trip updates of one message
+     */
+    public void applyTripUpdates(final Graph graph, final PreparedTripUpdates prepared) {
         // Acquire lock on buffer
         bufferLock.lock();
 
         try {
-            if (fullDataset) {
-                // Remove all updates from the buffer
-                buffer.clear(feedId);
-            }
+            LOG.debug("message contains {} trip updates", prepared.messageSize);
 
-            LOG.debug("message contains {} trip updates", updates.size());
-            int uIndex = 0;
-            for (TripUpdate tripUpdate : updates) {
-                if (fuzzyTripMatcher != null && tripUpdate.hasTrip()) {
-                    final TripDescriptor trip = fuzzyTripMatcher.match(feedId, tripUpdate.getTrip());
-                    tripUpdate = tripUpdate.toBuilder().setTrip(trip).build();
-                }
-
-                if (!tripUpdate.hasTrip()) {
-                    LOG.warn("Missing TripDescriptor in gtfs-rt trip update: \n{}", tripUpdate);
-                    continue;
-                }
-
-                ServiceDate serviceDate = new ServiceDate();
-                final TripDescriptor tripDescriptor = tripUpdate.getTrip();
-
-                if (tripDescriptor.hasStartDate()) {
-                    try {
-                        serviceDate = ServiceDate.parseString(tripDescriptor.getStartDate());
-                    } catch (final ParseException e) {
-                        LOG.warn("Failed to parse start date in gtfs-rt trip update: \n{}", tripUpdate);
-                        continue;
-                    }
-                } else {
-                    // TODO: figure out the correct service date. For the special case that a trip
-                    // starts for example at 40:00, yesterday would probably be a better guess.
-                }
-
-                uIndex += 1;
-                LOG.debug("trip update #{} ({} updates) :",
-                        uIndex, tripUpdate.getStopTimeUpdateCount());
-                LOG.trace("{}", tripUpdate);
-
-                // Determine what kind of trip update this is
-                boolean applied = false;
-                final TripDescriptor.ScheduleRelationship tripScheduleRelationship = determineTripScheduleRelationship(
-                        tripUpdate);
-                switch (tripScheduleRelationship) {
-                    case SCHEDULED:
-                        applied = handleScheduledTrip(tripUpdate, feedId, serviceDate);
-                        break;
-                    case ADDED:
-                        applied = validateAndHandleAddedTrip(graph, tripUpdate, feedId, serviceDate);
-                        break;
-                    case UNSCHEDULED:
-                        applied = handleUnscheduledTrip(tripUpdate, feedId, serviceDate);
-                        break;
-                    case CANCELED:
-                        applied = handleCanceledTrip(tripUpdate, feedId, serviceDate);
-                        break;
-                    case MODIFIED:
-                        applied = validateAndHandleModifiedTrip(graph, tripUpdate, feedId, serviceDate);
-                        break;
-                }
-
-                if (applied) {
-                    appliedBlockCount++;
-                } else {
-                    LOG.warn("Failed to apply TripUpdate.");
-                    LOG.trace(" Contents: {}", tripUpdate);
-                }
-
-                if (appliedBlockCount % logFrequency == 0) {
-                    LOG.info("Applied {} trip updates.", appliedBlockCount);
+            if (prepared.fullDataset) {
+                applyFullDataset(graph, prepared.updates, prepared.feedId);
+            } else {
+                // The buffer no longer matches the last full dataset of this feed
+                appliedTripUpdates.remove(prepared.feedId);
+                for (final PreparedTripUpdate update : prepared.updates) {
+                    applyTripUpdate(graph, update, prepared.feedId);
                 }
             }
             LOG.debug("end of update message");
@@ -272,6 +260,10 @@ public class TimetableSnapshotSource {
             // Make sure that the public (locking) getTimetableSnapshot function is not called.
             if (purgeExpiredData) {
                 final boolean modified = purgeExpiredData();
+                if (modified) {
+                    // The purged trips may still be recorded as applied
+                    appliedTripUpdates.clear();
+                }
                 getTimetableSnapshot(modified);
             } else {
                 getTimetableSnapshot(false);
@@ -282,6 +274,246 @@ public class TimetableSnapshotSource {
         }
     }
 
+    /**
+     * Match one trip update and find its service date, and build the updated trip times if it is a scheduled trip.
+     * This runs concurrently with other preparations and with the graph writer, so it must not use the buffer.
+     *
+     * @return the prepared trip update, or null if it cannot be applied
+     */
+    private PreparedTripUpdate prepareTripUpdate(TripUpdate tripUpdate, final boolean fullDataset,
+            final String feedId) {
+        if (fuzzyTripMatcher != null && tripUpdate.hasTrip()) {
+            final TripDescriptor trip = fuzzyTripMatcher.match(feedId, tripUpdate.getTrip());
+            tripUpdate = tripUpdate.toBuilder().setTrip(trip).build();
+        }
+
+        if (!tripUpdate.hasTrip()) {
+            LOG.warn("Missing TripDescriptor in gtfs-rt trip update: \n{}", tripUpdate);
+            return null;
+        }
+
+        ServiceDate serviceDate = new ServiceDate();
+        final TripDescriptor tripDescriptor = tripUpdate.getTrip();
+
+        if (tripDescriptor.hasStartDate()) {
+            try {
+                serviceDate = ServiceDate.parseString(tripDescriptor.getStartDate());
+            } catch (final ParseException e) {
+                LOG.warn("Failed to parse start date in gtfs-rt trip update: \n{}", tripUpdate);
+                return null;
+            }
+        } else {
+            // TODO: figure out the correct service date. For the special case that a trip
+            // starts for example at 40:00, yesterday would probably be a better guess.
+        }
+
+        final PreparedTripUpdate prepared = new PreparedTripUpdate(tripUpdate, serviceDate,
+                determineTripScheduleRelationship(tripUpdate), fullDataset ? hashTripUpdate(tripUpdate) : 0);
+        if (prepared.relationship == TripDescriptor.ScheduleRelationship.SCHEDULED) {
+            prepareScheduledTrip(prepared, feedId);
+        }
+        return prepared;
+    }
+
+    /**
+     * The trip updates of one message, matched against the scheduled data by prepareTripUpdates and ready to be
+     * applied to the buffer by the graph writer.
+     */
+    public static class PreparedTripUpdates {
+        private final boolean fullDataset;
+        private final List<PreparedTripUpdate> updates;
+        private final String feedId;
+        /** The number of trip updates in the message, including those that could not be prepared. */
+        private final int messageSize;
+
+        private PreparedTripUpdates(final boolean fullDataset, final List<PreparedTripUpdate> updates,
+                final String feedId, final int messageSize) {
+            this.fullDataset = fullDataset;
+            this.updates = updates;
+            this.feedId = feedId;
+            this.messageSize = messageSize;
+        }
+
+        public String getFeedId() {
+            return feedId;
+        }
+
+        public int size() {
+            return updates.size();
+        }
+    }
+
+    /** A matched trip update with its service date and, for scheduled trips, its updated trip times. */
+    private static class PreparedTripUpdate {
+        final TripUpdate tripUpdate;
+        final ServiceDate serviceDate;
+        final TripDescriptor.ScheduleRelationship relationship;
+        /** The hash of the trip update if it is part of a full dataset. */
+        final long hash;
+        /** The pattern of a scheduled trip, null if no pattern was found. */
+        TripPattern pattern;
+        /** The updated trip times of a scheduled trip, null if they could not be created. */
+        TripTimes updatedTripTimes;
+
+        PreparedTripUpdate(final TripUpdate tripUpdate, final ServiceDate serviceDate,
+                final TripDescriptor.ScheduleRelationship relationship, final long hash) {
+            this.tripUpdate = tripUpdate;
+            this.serviceDate = serviceDate;
+            this.relationship = relationship;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Apply a full dataset of a feed, replacing all its previous updates.
+     *
+     * When the previous message of the feed was also a full dataset, only the trip updates whose content changed since
+     * then are applied, and the trips that are no longer in the dataset are restored to their scheduled times. Most
+     * trips of a feed are unchanged from one poll to the next, so this avoids rebuilding their trip times every time.
+     * Otherwise, the feed is cleared and all trip updates are applied. This is also the case when an ADDED or MODIFIED
+     * trip has changed or disappeared, as the trips and patterns they created are only removed by clearing the feed.
+     */
+    private void applyFullDataset(final Graph graph, final List<PreparedTripUpdate> tripUpdates,
+            final String feedId) {
+        final Map<T2<String, ServiceDate>, AppliedTripUpdate> previous = appliedTripUpdates.remove(feedId);
+        boolean incremental = previous != null;
+
+        // Identify the trip updates by trip id and service date, and hash their contents
+        final List<T2<String, ServiceDate>> keys = new ArrayList<>(tripUpdates.size());
+        final Map<T2<String, ServiceDate>, Long> hashForKey = new HashMap<>();
+        for (final PreparedTripUpdate update : tripUpdates) {
+            final TripDescriptor trip = update.tripUpdate.getTrip();
+            final T2<String, ServiceDate> key = trip.hasTripId() ? new T2<>(trip.getTripId(), update.serviceDate) : null;
+            keys.add(key);
+            if (key != null && hashForKey.put(key, update.hash) != null) {
+                // Several updates of the same trip, their combined effect is not worth tracking
+                incremental = false;
+            }
+        }
+
+        if (incremental) {
+            for (final Map.Entry<T2<String, ServiceDate>, AppliedTripUpdate> entry : previous.entrySet()) {
+                final Long hash = hashForKey.get(entry.getKey());
+                if (entry.getValue().createsTrip() && (hash == null || hash != entry.getValue().hash)) {
+                    incremental = false;
+                    break;
+                }
+            }
+        }
+
+        if (incremental) {
+            for (final T2<String, ServiceDate> key : previous.keySet()) {
+                if (!hashForKey.containsKey(key)) {
+                    restoreScheduledTrip(feedId, key.first, key.second);
+                }
+            }
+        } else {
+            // Remove all updates from the buffer
+            buffer.clear(feedId);
+        }
+
+        final Map<T2<String, ServiceDate>, AppliedTripUpdate> applied = new HashMap<>();
+        int skipped = 0;
+        for (int i = 0; i < tripUpdates.size(); i++) {
+            final PreparedTripUpdate update = tripUpdates.get(i);
+            final T2<String, ServiceDate> key = keys.get(i);
+            final AppliedTripUpdate before = incremental && key != null ? previous.get(key) : null;
+            if (before != null && before.hash == update.hash) {
+                // Unchanged since the previous dataset, still in the buffer
+                applied.put(key, before);
+                skipped++;
+                continue;
+            }
+
+            if (applyTripUpdate(graph, update, feedId)) {
+                if (key != null) {
+                    applied.put(key, new AppliedTripUpdate(update.hash, update.relationship));
+                }
+            } else if (before != null) {
+                // The previous update of this trip would have been cleared
+                restoreScheduledTrip(feedId, key.first, key.second);
+            }
+        }
+        appliedTripUpdates.put(feedId, applied);
+        LOG.debug("Skipped {} unchanged trip updates of full dataset", skipped);
+    }
+
+    /**
+     * Apply one trip update to the buffer.
+     *
+     * @return true iff the update was applied
+     */
+    private boolean applyTripUpdate(final Graph graph, final PreparedTripUpdate update, final String feedId) {
+        final TripUpdate tripUpdate = update.tripUpdate;
+        final ServiceDate serviceDate = update.serviceDate;
+        LOG.debug("trip update ({} updates) :", tripUpdate.getStopTimeUpdateCount());
+        LOG.trace("{}", tripUpdate);
+
+        // Determine what kind of trip update this is
+        boolean applied = false;
+        switch (update.relationship) {
+            case SCHEDULED:
+                applied = handleScheduledTrip(update, feedId);
+                break;
+            case ADDED:
+                applied = validateAndHandleAddedTrip(graph, tripUpdate, feedId, serviceDate);
+                break;
+            case UNSCHEDULED:
+                applied = handleUnscheduledTrip(tripUpdate, feedId, serviceDate);
+                break;
+            case CANCELED:
+                applied = handleCanceledTrip(tripUpdate, feedId, serviceDate);
+                break;
+            case MODIFIED:
+                applied = validateAndHandleModifiedTrip(graph, tripUpdate, feedId, serviceDate);
+                break;
+        }
+
+        if (applied) {
+            appliedBlockCount++;
+        } else {
+            LOG.warn("Failed to apply TripUpdate.");
+            LOG.trace(" Contents: {}", tripUpdate);
+        }
+
+        if (appliedBlockCount % logFrequency == 0) {
+            LOG.info("Applied {} trip updates.", appliedBlockCount);
+        }
+        return applied;
+    }
+
+    /**
+     * @return a hash of the parts of a trip update used to update the trip: its trip descriptor and stop time updates.
+     * The timestamp and vehicle are left out, as some feeds change them on every message.
+     */
+    private static long hashTripUpdate(final TripUpdate tripUpdate) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        final byte[] trip = tripUpdate.getTrip().toByteArray();
+        hasher.putInt(trip.length).putBytes(trip);
+        for (final StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+            final byte[] bytes = stopTimeUpdate.toByteArray();
+            hasher.putInt(bytes.length).putBytes(bytes);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /** The content hash and kind of a trip update of a full dataset that was applied to the buffer. */
+    private static class AppliedTripUpdate {
+        final long hash;
+        final TripDescriptor.ScheduleRelationship relationship;
+
+        AppliedTripUpdate(final long hash, final TripDescriptor.ScheduleRelationship relationship) {
+            this.hash = hash;
+            this.relationship = relationship;
+        }
+
+        /** @return whether applying this update created a new trip, which cannot be simply reverted. */
+        boolean createsTrip() {
+            return relationship == TripDescriptor.ScheduleRelationship.ADDED ||
+                    relationship == TripDescriptor.ScheduleRelationship.MODIFIED;
+        }
+    }
+
     /**
      * Determine how the trip update should be handled.
      *
@@ -323,7 +555,12 @@ public class TimetableSnapshotSource {
         return tripScheduleRelationship;
     }
 
-    private boolean handleScheduledTrip(final TripUpdate tripUpdate, final String feedId, final ServiceDate serviceDate) {
+    /**
+     * Find the pattern of a scheduled trip and apply the update on its *scheduled* time table. This only reads the
+     * graph, the updated trip times are set in the buffer by handleScheduledTrip.
+     */
+    private void prepareScheduledTrip(final PreparedTripUpdate update, final String feedId) {
+        final TripUpdate tripUpdate = update.tripUpdate;
         final TripDescriptor tripDescriptor = tripUpdate.getTrip();
         // This does not include Agency ID or feed ID, trips are feed-unique and we currently assume a single static feed.
         final String tripId = tripDescriptor.getTripId();
@@ -331,26 +568,36 @@ public class TimetableSnapshotSource {
 
         if (pattern == null) {
             LOG.warn("No pattern found for tripId {}, skipping TripUpdate.", tripId);
-            return false;
+            return;
         }
 
         if (tripUpdate.getStopTimeUpdateCount() < 1) {
             LOG.warn("TripUpdate contains no updates, skipping.");
-            return false;
+            return;
         }
 
-        // Apply update on the *scheduled* time table and set the updated trip times in the buffer
+        // Apply update on the *scheduled* time table
         final TripTimes updatedTripTimes = pattern.scheduledTimetable.createUpdatedTripTimes(tripUpdate,
-                timeZone, serviceDate);
+                timeZone, update.serviceDate);
 
         if (updatedTripTimes == null) {
-            return false;
+            return;
         }
 
         // Make sure that updated trip times have the correct real time state
         updatedTripTimes.setRealTimeState(RealTimeState.UDPATED);
 
-        final boolean success = buffer.update(feedId, pattern, updatedTripTimes, serviceDate);
+        update.pattern = pattern;
+        update.updatedTripTimes = updatedTripTimes;
+    }
+
+    private boolean handleScheduledTrip(final PreparedTripUpdate update, final String feedId) {
+        if (update.updatedTripTimes == null) {
+            return false;
+        }
+
+        // Set the trip times prepared from the scheduled time table in the buffer
+        final boolean success = buffer.update(feedId, update.pattern, update.updatedTripTimes, update.serviceDate);
         return success;
     }
 
@@ -760,6 +1007,28 @@ public class TimetableSnapshotSource {
         return success;
     }
 
+    /**
+     * Put back the scheduled trip times of a trip in the buffer, undoing a previous update or cancellation of that trip
+     * on the given service date.
+     *
+     * @param tripId trip id without agency id
+     * @param serviceDate service date
+     * @return true if the scheduled trip was restored
+     */
+    private boolean restoreScheduledTrip(final String feedId, final String tripId, final ServiceDate serviceDate) {
+        final TripPattern pattern = getPatternForTripId(feedId, tripId);
+        if (pattern == null) {
+            return false;
+        }
+        final Timetable timetable = pattern.scheduledTimetable;
+        final int tripIndex = timetable.getTripIndex(tripId);
+        if (tripIndex == -1) {
+            LOG.warn("Could not restore scheduled trip {}", tripId);
+            return false;
+        }
+        return buffer.update(feedId, pattern, timetable.getTripTimes(tripIndex), serviceDate);
+    }
+
     /**
      * Cancel previously added trip from buffer if there is a previously added trip with given trip
      * id (without agency id) on service date
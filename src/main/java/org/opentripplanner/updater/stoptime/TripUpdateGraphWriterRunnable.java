@@ -13,42 +13,33 @@
 
 package org.opentripplanner.updater.stoptime;
 
-import java.util.List;
-
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.updater.GraphWriterRunnable;
-import org.opentripplanner.updater.stoptime.TimetableSnapshotSource;
+import org.opentripplanner.updater.stoptime.TimetableSnapshotSource.PreparedTripUpdates;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate;
 
+/**
+ * Applies trip updates to the graph. The updates are decoded and matched against the scheduled data by
+ * TimetableSnapshotSource.prepareTripUpdates before this runnable is created, in the thread of the updater, so the
+ * graph writer thread only swaps the prepared trip times into the snapshot buffer.
+ */
 public class TripUpdateGraphWriterRunnable implements GraphWriterRunnable {
     private static Logger LOG = LoggerFactory.getLogger(TripUpdateGraphWriterRunnable.class);
 
     /**
-     * True iff the list with updates represent all updates that are active right now, i.e. all
-     * previous updates should be disregarded
-     */
-    private final boolean fullDataset;
-    
-    /**
-     * The list with updates to apply to the graph
+     * The prepared updates to apply to the graph
      */
-    private final List<TripUpdate> updates;
+    private final PreparedTripUpdates updates;
 
-    private final String feedId;
-
-    public TripUpdateGraphWriterRunnable(final boolean fullDataset, final List<TripUpdate> updates, final String feedId) {
+    public TripUpdateGraphWriterRunnable(final PreparedTripUpdates updates) {
         // Preconditions
         Preconditions.checkNotNull(updates);
-        Preconditions.checkNotNull(feedId);
-        
+
         // Set fields
-        this.fullDataset = fullDataset;
         this.updates = updates;
-        this.feedId = feedId;
     }
 
     @Override
@@ -56,10 +47,10 @@ public class TripUpdateGraphWriterRunnable implements GraphWriterRunnable {
         // Apply updates to graph using realtime snapshot source
         TimetableSnapshotSource snapshotSource = graph.timetableSnapshotSource;
         if (snapshotSource != null) {
-            snapshotSource.applyTripUpdates(graph, fullDataset, updates, feedId);
+            snapshotSource.applyTripUpdates(graph, updates);
         } else {
             LOG.error("Could not find realtime data snapshot source in graph."
-                    + " The following updates are not applied: {}", updates);
+                    + " {} updates of feed {} are not applied.", updates.size(), updates.getFeedId());
         }
     }
 }
@@ -81,6 +81,11 @@ public class WebsocketGtfsRealtimeUpdater implements GraphUpdater {
      */
     private int reconnectPeriodSec;
 
+    /**
+     * The realtime data snapshot source of the graph, used to prepare the updates before they are applied
+     */
+    private TimetableSnapshotSource snapshotSource;
+
     @Override
     public void setGraphUpdaterManager(GraphUpdaterManager updaterManager) {
         this.updaterManager = updaterManager;
@@ -105,6 +110,7 @@ public class WebsocketGtfsRealtimeUpdater implements GraphUpdater {
                     // Add snapshot source to graph
                     graph.timetableSnapshotSource = (snapshotSource);
                 }
+                WebsocketGtfsRealtimeUpdater.this.snapshotSource = graph.timetableSnapshotSource;
             }
         });
     }
@@ -199,9 +205,9 @@ public class WebsocketGtfsRealtimeUpdater implements GraphUpdater {
             }
 
             if (updates != null) {
-                // Handle trip updates via graph writer runnable
+                // Match the updates in this thread, the graph writer runnable only applies them
                 TripUpdateGraphWriterRunnable runnable = new TripUpdateGraphWriterRunnable(
-                        fullDataset, updates, feedId);
+                        snapshotSource.prepareTripUpdates(fullDataset, updates, feedId));
                 updaterManager.execute(runnable);
             }
         }
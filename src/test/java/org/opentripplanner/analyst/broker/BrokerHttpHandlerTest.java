@@ -0,0 +1,59 @@
+package org.opentripplanner.analyst.broker;
+
+import junit.framework.TestCase;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Make sure worker long polls asking for a malformed number of tasks are answered rather than left suspended.
+ */
+public class BrokerHttpHandlerTest extends TestCase {
+
+    private static Request dequeueRequest (String maxTasks) {
+        Request request = mock(Request.class, RETURNS_DEEP_STUBS);
+        when(request.getMethod()).thenReturn(Method.POST);
+        when(request.getPathInfo()).thenReturn("/dequeue/graph");
+        when(request.getParameter("maxTasks")).thenReturn(maxTasks);
+        return request;
+    }
+
+    @Test
+    public void testBadMaxTasks () throws Exception {
+        for (String maxTasks : new String[] { "many", "", "-1" }) {
+            Broker broker = mock(Broker.class);
+            Response response = mock(Response.class);
+            new BrokerHttpHandler(broker).service(dequeueRequest(maxTasks), response);
+            verify(response).setStatus(HttpStatus.BAD_REQUEST_400);
+            verify(response, never()).suspend();
+            verify(broker, never()).registerSuspendedResponse(anyString(), any(Response.class), anyInt());
+        }
+    }
+
+    @Test
+    public void testMaxTasks () throws Exception {
+        Broker broker = mock(Broker.class);
+        Response response = mock(Response.class);
+        new BrokerHttpHandler(broker).service(dequeueRequest("3"), response);
+        verify(response).suspend();
+        verify(broker).registerSuspendedResponse("graph", response, 3);
+
+        broker = mock(Broker.class);
+        response = mock(Response.class);
+        new BrokerHttpHandler(broker).service(dequeueRequest(null), response);
+        verify(response).suspend();
+        verify(broker).registerSuspendedResponse("graph", response, 0);
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.opentripplanner.analyst.broker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import junit.framework.TestCase;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.Test;
+import org.opentripplanner.analyst.cluster.AnalystClusterRequest;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Make sure the lock-free dispatch of a graph queue delivers every task exactly once while producers add tasks and
+ * worker long polls are registered, time out and are registered again, all concurrently.
+ */
+public class GraphQueueTest extends TestCase {
+
+    private static final int N_PRODUCERS = 4;
+    private static final int N_CONSUMERS = 4;
+    private static final int N_JOBS = 3;
+    private static final int N_BATCHES = 250;
+    private static final int BATCH_SIZE = 8;
+    private static final int N_TASKS = N_PRODUCERS * N_BATCHES * BATCH_SIZE;
+
+    /** A suspended long poll, whose connection is always open, recording when it is resumed. */
+    private static class TestResponse extends Response {
+        final Request request;
+        final CountDownLatch resumed = new CountDownLatch(1);
+        /** Counts the responses resumed after their long poll was removed, whose tasks are lost. */
+        final AtomicInteger nResumedAfterRemoval;
+        volatile boolean removed = false;
+
+        TestResponse (Request request, AtomicInteger nResumedAfterRemoval) {
+            this.request = request;
+            this.nResumedAfterRemoval = nResumedAfterRemoval;
+        }
+
+        @Override
+        public Request getRequest () {
+            return request;
+        }
+
+        @Override
+        public void setStatus (HttpStatus status) {
+        }
+
+        @Override
+        public OutputStream getOutputStream () {
+            return null;
+        }
+
+        @Override
+        public void resume () {
+            if (removed) nResumedAfterRemoval.incrementAndGet();
+            resumed.countDown();
+        }
+    }
+
+    /** Long polls wait until tasks are delivered to them, so a dispatch signal that is lost leaves tasks behind. */
+    @Test
+    public void testConcurrentDispatch () throws Exception {
+        dispatch(false);
+    }
+
+    /** Long polls time out and are removed, then registered again, racing with the delivery of tasks to them. */
+    @Test
+    public void testConcurrentDispatchWithReregistration () throws Exception {
+        dispatch(true);
+    }
+
+    private void dispatch (boolean timeOut) throws Exception {
+        Map<Integer, AtomicInteger> deliveries = new ConcurrentHashMap<>();
+        AtomicInteger nDelivered = new AtomicInteger();
+        AtomicInteger nResumedAfterRemoval = new AtomicInteger();
+        // record the tasks written to each response instead of serializing them
+        ObjectMapper mapper = new ObjectMapper() {
+            @Override
+            public void writeValue (OutputStream out, Object value) {
+                for (Object task : (List<?>) value) {
+                    deliveries.computeIfAbsent(((AnalystClusterRequest) task).taskId, id -> new AtomicInteger())
+                            .incrementAndGet();
+                    nDelivered.incrementAndGet();
+                }
+            }
+        };
+        GraphQueue queue = new GraphQueue("graph", mapper, new BrokerMetrics());
+        Request request = mock(Request.class, RETURNS_DEEP_STUBS);
+        when(request.getRequest().getConnection().isOpen()).thenReturn(true);
+        Job[] jobs = new Job[N_JOBS];
+        for (int j = 0; j < N_JOBS; j++) jobs[j] = new Job("job" + j);
+
+        ExecutorService executor = Executors.newFixedThreadPool(N_PRODUCERS + N_CONSUMERS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < N_PRODUCERS; p++) {
+            final int producer = p;
+            futures.add(executor.submit(() -> {
+                for (int b = 0; b < N_BATCHES; b++) {
+                    List<AnalystClusterRequest> tasks = new ArrayList<>();
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        AnalystClusterRequest task = new AnalystClusterRequest();
+                        task.taskId = (producer * N_BATCHES + b) * BATCH_SIZE + i;
+                        tasks.add(task);
+                    }
+                    // the first producer sends high priority tasks, the others spread their tasks over the jobs
+                    if (producer == 0) {
+                        queue.addPriorityTasks(tasks);
+                    } else {
+                        Job job = jobs[(producer + b) % N_JOBS];
+                        for (AnalystClusterRequest task : tasks) task.jobId = job.jobId;
+                        queue.addTasks(job, tasks);
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < N_CONSUMERS; c++) {
+            final Random random = new Random(c);
+            futures.add(executor.submit(() -> {
+                while (nDelivered.get() < N_TASKS) {
+                    TestResponse response = new TestResponse(request, nResumedAfterRemoval);
+                    queue.addConsumer(response, 1 + random.nextInt(10));
+                    while (!response.resumed.await(random.nextInt(200), TimeUnit.MICROSECONDS)) {
+                        if (timeOut) {
+                            // the long poll times out and is registered again, unless tasks are being delivered to it
+                            if (queue.removeConsumer(response)) {
+                                response.removed = true;
+                                break;
+                            }
+                        } else if (nDelivered.get() == N_TASKS) {
+                            // all tasks were delivered to other consumers
+                            return null;
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) future.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(N_TASKS, nDelivered.get());
+        assertEquals("tasks were delivered to removed long polls", 0, nResumedAfterRemoval.get());
+        for (int taskId = 0; taskId < N_TASKS; taskId++) {
+            AtomicInteger count = deliveries.get(taskId);
+            assertNotNull("task " + taskId + " was not delivered", count);
+            assertEquals("task " + taskId + " was delivered more than once", 1, count.get());
+        }
+        assertEquals(0, queue.getUndeliveredTaskCount());
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.opentripplanner.analyst.broker;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.opentripplanner.analyst.cluster.AnalystClusterRequest;
+
+import java.util.List;
+
+/**
+ * Make sure a delivered task is either completed or redelivered, never both.
+ */
+public class JobTest extends TestCase {
+
+    private static AnalystClusterRequest task (int taskId) {
+        AnalystClusterRequest task = new AnalystClusterRequest();
+        task.jobId = "job";
+        task.taskId = taskId;
+        return task;
+    }
+
+    @Test
+    public void testCompleteAndRedeliver () {
+        Job job = new Job("job");
+        AnalystClusterRequest early = task(0), late = task(1), pending = task(2);
+        job.addTask(early);
+        job.addTask(late);
+        job.addTask(pending);
+        assertTrue(job.containsTask(2));
+        assertFalse(job.containsTask(3));
+
+        // tasks that were never delivered cannot be completed
+        assertFalse(job.markTaskCompleted(pending.taskId));
+
+        job.markTaskDelivered(early, 1000);
+        job.markTaskDelivered(late, 1000);
+        job.markTaskDelivered(pending, 5000);
+        assertTrue(job.markTaskCompleted(early.taskId));
+        assertTrue(job.redeliver(999).isEmpty());
+
+        List<AnalystClusterRequest> redelivered = job.redeliver(2000);
+        assertEquals(1, redelivered.size());
+        assertSame(late, redelivered.get(0));
+        // the completion message of the first delivery arrives after the redelivery
+        assertFalse(job.markTaskCompleted(late.taskId));
+        assertTrue(job.redeliver(2000).isEmpty());
+
+        job.markTaskDelivered(late, 3000);
+        assertTrue(job.markTaskCompleted(late.taskId));
+        assertTrue(job.markTaskCompleted(pending.taskId));
+        assertEquals(3, job.getCompletedTaskCount());
+        assertTrue(job.isComplete());
+        assertTrue(job.redeliver(10000).isEmpty());
+    }
+
+}
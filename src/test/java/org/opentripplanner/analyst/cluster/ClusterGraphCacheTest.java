@@ -0,0 +1,67 @@
+package org.opentripplanner.analyst.cluster;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Make sure built graphs are cached in memory and on disk, and evicted in least recently used order.
+ */
+public class ClusterGraphCacheTest extends TestCase {
+
+    private static Graph build () {
+        try {
+            Graph gg = buildGraphNoTransit();
+            addTransit(gg);
+            link(gg);
+            gg.index(new DefaultStreetVertexIndexFactory());
+            return gg;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Graph mustNotBuild () {
+        throw new AssertionError("Graph should not be built again.");
+    }
+
+    @Test
+    public void testCache () throws Exception {
+        File cacheDir = Files.createTempDirectory("graphs").toFile();
+        try {
+            ClusterGraphCache cache = new ClusterGraphCache(cacheDir, null, null, 2, 1);
+            Graph a = cache.getGraph("a", ClusterGraphCacheTest::build);
+            assertEquals("a", a.routerId);
+            assertTrue(ClusterGraphCache.estimateRetainedBytes(a) > 0);
+            assertSame(a, cache.getGraph("a", ClusterGraphCacheTest::mustNotBuild));
+
+            cache.getGraph("b", ClusterGraphCacheTest::build);
+            // touch a so that b is the least recently used graph
+            cache.getGraph("a", ClusterGraphCacheTest::mustNotBuild);
+            cache.getGraph("c", ClusterGraphCacheTest::build);
+            assertEquals(2, cache.getGraphIds().size());
+            assertTrue(cache.getGraphIds().contains("a"));
+            assertFalse(cache.getGraphIds().contains("b"));
+
+            // evicted and new caches load the serialized graphs instead of building them
+            Graph b = cache.getGraph("b", ClusterGraphCacheTest::mustNotBuild);
+            assertEquals(a.countEdges(), b.countEdges());
+            assertNotNull(b.index);
+
+            ClusterGraphCache other = new ClusterGraphCache(cacheDir, null, null, 1, 1);
+            assertEquals(a.countEdges(), other.getGraph("a", ClusterGraphCacheTest::mustNotBuild).countEdges());
+            other.getGraph("c", ClusterGraphCacheTest::mustNotBuild);
+            assertEquals(1, other.getGraphIds().size());
+        } finally {
+            for (File file : cacheDir.listFiles()) file.delete();
+            cacheDir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.opentripplanner.analyst.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.opentripplanner.analyst.Histogram;
+import org.opentripplanner.analyst.ResultSet;
+import org.opentripplanner.analyst.core.IsochroneData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Make sure result envelopes survive a round trip through the binary format, gzipped or not.
+ */
+public class ResultEnvelopeFormatTest extends TestCase {
+
+    private static ResultSet resultSet (Random random, int nTargets) {
+        ResultSet resultSet = new ResultSet();
+        resultSet.id = "pointset_surface";
+        resultSet.times = new int[nTargets];
+        for (int i = 0; i < nTargets; i++) {
+            resultSet.times[i] = random.nextInt(10) == 0 ? Integer.MAX_VALUE : random.nextInt(7200);
+        }
+        Histogram histogram = new Histogram();
+        histogram.counts = new int[] { 0, 3, 10, 2 };
+        histogram.sums = new int[] { 0, 300, 1500, -20 };
+        resultSet.histograms.put("jobs", histogram);
+        resultSet.histograms.put("nothing", new Histogram());
+        return resultSet;
+    }
+
+    private static ResultEnvelope roundTrip (ResultEnvelope envelope, boolean gzip) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultEnvelopeFormat.write(envelope, out, gzip);
+        return ResultEnvelopeFormat.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static void assertResultSetEquals (ResultSet expected, ResultSet actual) {
+        assertEquals(expected.id, actual.id);
+        assertTrue(Arrays.equals(expected.times, actual.times));
+        assertEquals(expected.histograms.keySet(), actual.histograms.keySet());
+        for (String key : expected.histograms.keySet()) {
+            assertTrue(Arrays.equals(expected.histograms.get(key).counts, actual.histograms.get(key).counts));
+            assertTrue(Arrays.equals(expected.histograms.get(key).sums, actual.histograms.get(key).sums));
+        }
+    }
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        Random random = new Random(42);
+        ResultEnvelope envelope = new ResultEnvelope();
+        envelope.profile = true;
+        envelope.jobId = "job";
+        envelope.id = "origin";
+        envelope.bestCase = resultSet(random, 1000);
+        envelope.worstCase = resultSet(random, 1000);
+        envelope.avgCase = resultSet(random, 1000);
+
+        GeometryFactory gf = new GeometryFactory();
+        envelope.avgCase.isochrones = new IsochroneData[] {
+                new IsochroneData(600, gf.createPoint(new Coordinate(-83.0, 39.9)).buffer(0.01))
+        };
+
+        for (boolean gzip : new boolean[] { false, true }) {
+            ResultEnvelope read = roundTrip(envelope, gzip);
+            assertTrue(read.profile);
+            assertEquals("job", read.jobId);
+            assertEquals("origin", read.id);
+            assertNull(read.destinationPointsetId);
+            assertNull(read.pointEstimate);
+            assertNull(read.spread);
+            assertResultSetEquals(envelope.bestCase, read.bestCase);
+            assertResultSetEquals(envelope.worstCase, read.worstCase);
+            assertResultSetEquals(envelope.avgCase, read.avgCase);
+            assertNull(read.bestCase.isochrones);
+            assertEquals(1, read.avgCase.isochrones.length);
+            assertEquals(600, read.avgCase.isochrones[0].cutoffSec);
+            assertTrue(envelope.avgCase.isochrones[0].geometry.equalsExact(read.avgCase.isochrones[0].geometry));
+        }
+    }
+
+    @Test
+    public void testSmallerThanJson () throws Exception {
+        ResultEnvelope envelope = new ResultEnvelope();
+        envelope.pointEstimate = resultSet(new Random(1), 10000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultEnvelopeFormat.write(envelope, out, false);
+        byte[] json = new ObjectMapper().writeValueAsBytes(envelope);
+        assertTrue(out.size() < json.length / 2);
+    }
+
+    @Test
+    public void testNotAnEnvelope () throws Exception {
+        try {
+            ResultEnvelopeFormat.read(new ByteArrayInputStream("{\"id\":\"origin\"}".getBytes()));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.opentripplanner.analyst.cluster;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Make sure single point tasks do not wait for batch tasks, and that batch tasks are requested according to free capacity.
+ */
+public class WorkerTaskSchedulerTest extends TestCase {
+
+    private static AnalystClusterRequest task (String id) {
+        AnalystClusterRequest task = new AnalystClusterRequest();
+        task.id = id;
+        return task;
+    }
+
+    /** A handler blocking on the latch registered for a task id, and recording the order in which tasks end. */
+    private static class BlockingHandler implements Consumer<AnalystClusterRequest> {
+        final Map<String, CountDownLatch> started = new ConcurrentHashMap<>();
+        final Map<String, CountDownLatch> release = new ConcurrentHashMap<>();
+        final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done;
+
+        BlockingHandler (int nTasks, String... blockingIds) {
+            done = new CountDownLatch(nTasks);
+            for (String id : blockingIds) {
+                started.put(id, new CountDownLatch(1));
+                release.put(id, new CountDownLatch(1));
+            }
+        }
+
+        @Override
+        public void accept (AnalystClusterRequest t) {
+            if (started.containsKey(t.id)) {
+                started.get(t.id).countDown();
+                try {
+                    release.get(t.id).await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            handled.add(t.id);
+            done.countDown();
+        }
+
+        boolean awaitStart (String id) throws InterruptedException {
+            return started.get(id).await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPriority () throws Exception {
+        BlockingHandler handler = new BlockingHandler(4, "first", "single point");
+        WorkerTaskScheduler scheduler = new WorkerTaskScheduler(1, handler);
+
+        // before anything is measured, two batch tasks per thread are requested
+        assertEquals(2, scheduler.awaitBatchCapacity());
+
+        scheduler.submitBatch(task("first"));
+        assertTrue(handler.awaitStart("first"));
+        scheduler.submitBatch(task("second"));
+        scheduler.submitBatch(task("third"));
+        scheduler.submitPriority(task("single point"));
+        // the single point task starts while the only thread is still busy with a batch task
+        assertTrue(handler.awaitStart("single point"));
+
+        // the queued batch tasks wait for the single point task, so that one task per core runs
+        handler.release.get("first").countDown();
+        Thread.sleep(200);
+        assertEquals(Arrays.asList("first"), handler.handled);
+        handler.release.get("single point").countDown();
+
+        assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "single point", "second", "third"), handler.handled);
+    }
+
+    /** Single point tasks start at once, even when every thread is running a batch task. */
+    @Test
+    public void testPriorityWhileBusy () throws Exception {
+        BlockingHandler handler = new BlockingHandler(5, "batch 1", "batch 2");
+        WorkerTaskScheduler scheduler = new WorkerTaskScheduler(2, handler);
+        scheduler.submitBatch(task("batch 1"));
+        scheduler.submitBatch(task("batch 2"));
+        assertTrue(handler.awaitStart("batch 1"));
+        assertTrue(handler.awaitStart("batch 2"));
+        scheduler.submitBatch(task("batch 3"));
+
+        scheduler.submitPriority(task("single point 1"));
+        scheduler.submitPriority(task("single point 2"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handler.handled.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(new HashSet<>(Arrays.asList("single point 1", "single point 2")), new HashSet<>(handler.handled));
+
+        // the queued batch task still runs once a thread is free
+        handler.release.get("batch 1").countDown();
+        handler.release.get("batch 2").countDown();
+        assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        assertTrue(handler.handled.contains("batch 3"));
+    }
+
+    @Test
+    public void testTarget () throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        WorkerTaskScheduler scheduler = new WorkerTaskScheduler(2, t -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            done.countDown();
+        });
+        scheduler.submitBatch(task("batch"));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // the task duration is recorded once the handler has returned
+        Thread.sleep(200);
+
+        // fetching takes about as long as computing a task, so each thread needs one task in the buffer
+        scheduler.recordFetch(50);
+        int target = scheduler.getTargetBatchTasks();
+        assertTrue(target >= 3 && target <= 5);
+
+        // fetching is very slow, the buffer is capped
+        for (int i = 0; i < 100; i++) scheduler.recordFetch(1000000);
+        assertEquals(2 + 2 * 4, scheduler.getTargetBatchTasks());
+    }
+
+}
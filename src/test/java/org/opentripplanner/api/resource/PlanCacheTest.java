@@ -0,0 +1,68 @@
+package org.opentripplanner.api.resource;
+
+import org.junit.Test;
+import org.opentripplanner.api.model.TripPlan;
+import org.opentripplanner.routing.alertpatch.AlertPatch;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.SimpleConcreteEdge;
+import org.opentripplanner.routing.graph.SimpleConcreteVertex;
+import org.opentripplanner.routing.graph.Vertex;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PlanCacheTest {
+
+    private static MultivaluedMap<String, String> parameters(String time, String mode) {
+        MultivaluedMap<String, String> parameters = new MultivaluedHashMap<>();
+        parameters.putSingle("fromPlace", "45.5,-122.6");
+        parameters.putSingle("toPlace", "45.6,-122.7");
+        parameters.putSingle("time", time);
+        parameters.putSingle("mode", mode);
+        return parameters;
+    }
+
+    private static RoutingRequest request(long dateTime) {
+        RoutingRequest request = new RoutingRequest();
+        request.dateTime = dateTime;
+        return request;
+    }
+
+    @Test
+    public void testPlanCache() {
+        Graph graph = new Graph();
+        PlanCache cache = new PlanCache(graph, 10, 60);
+        TripPlan plan = new TripPlan();
+
+        PlanCache.Key key = cache.key(parameters("8:00:10am", "TRANSIT,WALK"), request(1200));
+        assertNull(cache.get(key));
+        cache.put(key, plan);
+
+        // the same request later in the same time bucket
+        assertSame(plan, cache.get(cache.key(parameters("8:00:50am", "TRANSIT,WALK"), request(1250))));
+        // the next time bucket, and other parameters
+        assertNull(cache.get(cache.key(parameters("8:01:00am", "TRANSIT,WALK"), request(1260))));
+        assertNull(cache.get(cache.key(parameters("8:00:10am", "WALK"), request(1200))));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        // a changed alert invalidates the plan
+        Vertex vertex0 = new SimpleConcreteVertex(graph, "Vertex 0", 0, 0);
+        Vertex vertex1 = new SimpleConcreteVertex(graph, "Vertex 1", 0, 180);
+        Edge edge = new SimpleConcreteEdge(vertex0, vertex1);
+        graph.addAlertPatch(edge, new AlertPatch());
+        assertNull(cache.get(cache.key(parameters("8:00:10am", "TRANSIT,WALK"), request(1200))));
+        assertEquals(0, cache.size());
+
+        // bike rental availability is not versioned
+        RoutingRequest bikeRental = request(1200);
+        bikeRental.allowBikeRental = true;
+        assertNull(cache.key(parameters("8:00:10am", "BICYCLE_RENT"), bikeRental));
+    }
+}
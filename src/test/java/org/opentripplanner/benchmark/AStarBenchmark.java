@@ -0,0 +1,137 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.routing.vertextype.TransitStop;
+import org.opentripplanner.util.TestUtils;
+
+/**
+ * Point to point searches with AStar.getShortestPathTree: street searches on the Columbus OSM graph in each street
+ * mode, and transit searches between the stops of the Portland GTFS graph. Each invocation runs the next search of
+ * a fixed list of origin-destination pairs. Routing contexts are built during setup, so that only the search itself
+ * is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AStarBenchmark {
+
+    private static final int N_PAIRS = 16;
+
+    @State(Scope.Thread)
+    public static class StreetSearch {
+
+        @Param({ "WALK", "BICYCLE", "CAR" })
+        public TraverseMode mode;
+
+        RoutingRequest[] requests;
+
+        AStar aStar = new AStar();
+
+        int next = 0;
+
+        @Setup
+        public void setup() {
+            Graph graph = BenchmarkGraphs.getColumbus();
+            List<StreetVertex> vertices =
+                    BenchmarkGraphs.randomStreetVertices(graph, 2 * N_PAIRS, BenchmarkGraphs.SEED);
+            requests = new RoutingRequest[N_PAIRS];
+            for (int i = 0; i < N_PAIRS; i++) {
+                RoutingRequest options = new RoutingRequest(mode);
+                options.setRoutingContext(graph, vertices.get(2 * i), vertices.get(2 * i + 1));
+                requests[i] = options;
+            }
+        }
+
+        RoutingRequest nextRequest() {
+            RoutingRequest options = requests[next];
+            next = (next + 1) % requests.length;
+            return options;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TransitSearch {
+
+        RoutingRequest[] requests;
+
+        AStar aStar = new AStar();
+
+        int next = 0;
+
+        @Setup
+        public void setup() {
+            Graph graph = BenchmarkGraphs.getPortland();
+            List<TransitStop> stops = new ArrayList<TransitStop>(graph.index.stopVertexForStop.values());
+            Collections.sort(stops, new Comparator<TransitStop>() {
+                @Override
+                public int compare(TransitStop a, TransitStop b) {
+                    return a.getLabel().compareTo(b.getLabel());
+                }
+            });
+            Random random = new Random(BenchmarkGraphs.SEED);
+            requests = new RoutingRequest[N_PAIRS];
+            for (int i = 0; i < N_PAIRS; i++) {
+                RoutingRequest options = new RoutingRequest();
+                options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 11, 1, 8 + i % 10, 0, 0);
+                options.setRoutingContext(graph, stops.get(random.nextInt(stops.size())),
+                        stops.get(random.nextInt(stops.size())));
+                requests[i] = options;
+            }
+        }
+
+        RoutingRequest nextRequest() {
+            RoutingRequest options = requests[next];
+            next = (next + 1) % requests.length;
+            return options;
+        }
+    }
+
+    @Benchmark
+    public ShortestPathTree streetSearch(StreetSearch state) {
+        return state.aStar.getShortestPathTree(state.nextRequest());
+    }
+
+    @Benchmark
+    public ShortestPathTree transitSearch(TransitSearch state) {
+        return state.aStar.getShortestPathTree(state.nextRequest());
+    }
+
+}
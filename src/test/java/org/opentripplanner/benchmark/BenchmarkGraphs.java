@@ -0,0 +1,97 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.graph_builder.module.FakeGraph;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+/**
+ * The graphs shared by the benchmarks, built once per JVM from the test fixtures. Every benchmark fork is a new JVM,
+ * so the graphs are rebuilt in each fork, but they are always built from the same data in the same way, and the
+ * vertices and coordinates used by the benchmarks are drawn with fixed seeds so that successive runs are comparable.
+ */
+final class BenchmarkGraphs {
+
+    /** The seed of all the random choices made by the benchmarks. */
+    static final long SEED = 42;
+
+    private static Graph columbus;
+
+    private static Graph portland;
+
+    private BenchmarkGraphs() {
+    }
+
+    /**
+     * @return the Columbus OSM street graph, with a regular grid of stops and many short transit lines (the same
+     *         graph as InitialStopsTest).
+     */
+    static synchronized Graph getColumbus() {
+        if (columbus == null) {
+            try {
+                Graph graph = FakeGraph.buildGraphNoTransit();
+                FakeGraph.addRegularStopGrid(graph);
+                FakeGraph.addTransitMultipleLines(graph);
+                FakeGraph.link(graph);
+                graph.index(new DefaultStreetVertexIndexFactory());
+                columbus = graph;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return columbus;
+    }
+
+    /** @return the Portland transit graph of ConstantsForTests, indexed. */
+    static synchronized Graph getPortland() {
+        if (portland == null) {
+            Graph graph = ConstantsForTests.getInstance().getPortlandGraph();
+            graph.index(new DefaultStreetVertexIndexFactory());
+            portland = graph;
+        }
+        return portland;
+    }
+
+    /** @return the given number of street vertices of the graph, drawn at random with the given seed. */
+    static List<StreetVertex> randomStreetVertices(Graph graph, int n, long seed) {
+        List<StreetVertex> vertices = new ArrayList<StreetVertex>();
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof StreetVertex) vertices.add((StreetVertex) v);
+        }
+        // the iteration order of the graph vertices is not stable from one run to the next
+        Collections.sort(vertices, new Comparator<Vertex>() {
+            @Override
+            public int compare(Vertex a, Vertex b) {
+                return a.getLabel().compareTo(b.getLabel());
+            }
+        });
+        Random random = new Random(seed);
+        List<StreetVertex> chosen = new ArrayList<StreetVertex>(n);
+        for (int i = 0; i < n; i++) {
+            chosen.add(vertices.get(random.nextInt(vertices.size())));
+        }
+        return chosen;
+    }
+
+}
@@ -0,0 +1,87 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraversalRequirements;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.CandidateEdgeBundle;
+import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Linking of locations to the street network with StreetVertexIndexServiceImpl.getClosestEdges, at random locations
+ * within the extent of the Columbus OSM graph.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ClosestEdgesBenchmark {
+
+    private static final int N_LOCATIONS = 1024;
+
+    @Param({ "WALK", "CAR" })
+    public TraverseMode mode;
+
+    private StreetVertexIndexServiceImpl index;
+
+    private TraversalRequirements requirements;
+
+    private GenericLocation[] locations;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Graph graph = BenchmarkGraphs.getColumbus();
+        index = (StreetVertexIndexServiceImpl) graph.streetIndex;
+        requirements = new TraversalRequirements(new RoutingRequest(mode));
+        Envelope extent = graph.getExtent();
+        Random random = new Random(BenchmarkGraphs.SEED);
+        locations = new GenericLocation[N_LOCATIONS];
+        for (int i = 0; i < N_LOCATIONS; i++) {
+            double lat = extent.getMinY() + random.nextDouble() * extent.getHeight();
+            double lon = extent.getMinX() + random.nextDouble() * extent.getWidth();
+            locations[i] = new GenericLocation(lat, lon);
+        }
+    }
+
+    @Benchmark
+    public CandidateEdgeBundle getClosestEdges() {
+        GenericLocation location = locations[next];
+        next = (next + 1) % N_LOCATIONS;
+        return index.getClosestEdges(location, requirements, null, null, false);
+    }
+
+}
@@ -0,0 +1,104 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.Timetable;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.trippattern.TripTimes;
+import org.opentripplanner.routing.vertextype.TransitStop;
+import org.opentripplanner.util.TestUtils;
+
+/**
+ * Boarding and alighting searches with Timetable.getNextTrip, on the scheduled timetable of the Portland trip pattern
+ * having the most trips, at its middle stop and at times spread over the whole service day.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TimetableBenchmark {
+
+    /** Interval between the times of the searches, in seconds. */
+    private static final int STEP = 7 * 60;
+
+    private Timetable timetable;
+
+    private ServiceDay serviceDay;
+
+    private int stopIndex;
+
+    private State[] states;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Graph graph = BenchmarkGraphs.getPortland();
+        TripPattern pattern = null;
+        for (TripPattern p : graph.index.patternForId.values()) {
+            int nTrips = p.scheduledTimetable.tripTimes.size();
+            if (pattern == null || nTrips > pattern.scheduledTimetable.tripTimes.size()
+                    || (nTrips == pattern.scheduledTimetable.tripTimes.size() && p.code.compareTo(pattern.code) < 0)) {
+                pattern = p;
+            }
+        }
+        timetable = pattern.scheduledTimetable;
+        stopIndex = pattern.stopPattern.size / 2;
+        TransitStop stop = graph.index.stopVertexForStop.get(pattern.getStop(stopIndex));
+
+        long midnight = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 11, 1, 0, 0, 0);
+        RoutingRequest options = new RoutingRequest();
+        options.dateTime = midnight;
+        options.setRoutingContext(graph, stop, stop);
+        serviceDay = new ServiceDay(graph, midnight, graph.getCalendarService(), pattern.route.getAgency().getId());
+        states = new State[24 * 3600 / STEP];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new State(stop, midnight + i * STEP, options);
+        }
+    }
+
+    private State nextState() {
+        State s0 = states[next];
+        next = (next + 1) % states.length;
+        return s0;
+    }
+
+    @Benchmark
+    public TripTimes nextDeparture() {
+        return timetable.getNextTrip(nextState(), serviceDay, stopIndex, true);
+    }
+
+    @Benchmark
+    public TripTimes previousArrival() {
+        return timetable.getNextTrip(nextState(), serviceDay, stopIndex, false);
+    }
+
+}
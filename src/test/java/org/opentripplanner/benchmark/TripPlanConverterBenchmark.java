@@ -0,0 +1,102 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentripplanner.api.model.TripPlan;
+import org.opentripplanner.api.resource.GraphPathToTripPlanConverter;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.GraphPathFinder;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.standalone.Router;
+import org.opentripplanner.util.TestUtils;
+
+/**
+ * Conversion of the paths found by GraphPathFinder to an API TripPlan with
+ * GraphPathToTripPlanConverter.generatePlan, for transit trips between random stops of the Portland GTFS graph. The
+ * paths are found once during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TripPlanConverterBenchmark {
+
+    private static final int N_PLANS = 16;
+
+    private List<RoutingRequest> requests = new ArrayList<RoutingRequest>();
+
+    private List<List<GraphPath>> paths = new ArrayList<List<GraphPath>>();
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Graph graph = BenchmarkGraphs.getPortland();
+        Router router = new Router("benchmark", graph);
+        String feedId = graph.getFeedIds().iterator().next();
+        List<Stop> stops = new ArrayList<Stop>(graph.index.stopVertexForStop.keySet());
+        Collections.sort(stops, new Comparator<Stop>() {
+            @Override
+            public int compare(Stop a, Stop b) {
+                return a.getId().getId().compareTo(b.getId().getId());
+            }
+        });
+        Random random = new Random(BenchmarkGraphs.SEED);
+        // some random pairs of stops are not connected at the chosen time, skip those
+        for (int attempt = 0; paths.size() < N_PLANS && attempt < 10 * N_PLANS; attempt++) {
+            RoutingRequest options = new RoutingRequest();
+            options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 11, 1, 8 + attempt % 10, 0, 0);
+            options.from = new GenericLocation(null, feedId + ":" + stops.get(random.nextInt(stops.size())).getId().getId());
+            options.to = new GenericLocation(null, feedId + ":" + stops.get(random.nextInt(stops.size())).getId().getId());
+            options.setNumItineraries(3);
+            options.setRoutingContext(graph);
+            List<GraphPath> found = new GraphPathFinder(router).getPaths(options);
+            if (found != null && !found.isEmpty()) {
+                requests.add(options);
+                paths.add(found);
+            }
+        }
+        if (paths.isEmpty()) throw new IllegalStateException("No paths found between the benchmark stops.");
+    }
+
+    @Benchmark
+    public TripPlan generatePlan() {
+        int i = next;
+        next = (next + 1) % paths.size();
+        return GraphPathToTripPlanConverter.generatePlan(paths.get(i), requests.get(i));
+    }
+
+}
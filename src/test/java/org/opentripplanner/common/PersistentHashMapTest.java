@@ -0,0 +1,100 @@
+package org.opentripplanner.common;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Make sure persistent maps behave like hash maps, and are not affected by later changes to the transient they came
+ * from.
+ */
+public class PersistentHashMapTest extends TestCase {
+
+    /** A key with few distinct hash codes, to exercise hash collisions. */
+    private static class Key {
+        final int id;
+
+        Key (int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode () {
+            return id % 97;
+        }
+
+        @Override
+        public boolean equals (Object other) {
+            return other instanceof Key && ((Key) other).id == id;
+        }
+    }
+
+    private static <K, V> void assertSameContents (Map<K, V> expected, PersistentHashMap<K, V> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<K, V> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+        Map<K, V> contents = new HashMap<>();
+        actual.forEach(contents::put);
+        assertEquals(expected, contents);
+    }
+
+    @Test
+    public void testRandomUpdates () {
+        Random random = new Random(1);
+        for (int range : new int[] { 50, 100000 }) {
+            PersistentHashMap.Transient<Integer, Integer> map = PersistentHashMap.<Integer, Integer>empty().asTransient();
+            Map<Integer, Integer> expected = new HashMap<>();
+            Map<Integer, Integer> committed = new HashMap<>();
+            PersistentHashMap<Integer, Integer> snapshot = map.persistent();
+            for (int i = 0; i < 20000; i++) {
+                int key = random.nextInt(range);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else {
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                }
+                assertEquals(expected.size(), map.size());
+                if (i % 1000 == 0) {
+                    // the previous snapshot has not been changed by the updates made since it was taken
+                    assertSameContents(committed, snapshot);
+                    snapshot = map.persistent();
+                    committed = new HashMap<>(expected);
+                }
+            }
+            assertSameContents(expected, map.persistent());
+            assertSameContents(committed, snapshot);
+        }
+    }
+
+    @Test
+    public void testCollisions () {
+        PersistentHashMap<Key, String> map = PersistentHashMap.empty();
+        Map<Key, String> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map = map.plus(new Key(i), "v" + i);
+            expected.put(new Key(i), "v" + i);
+        }
+        PersistentHashMap<Key, String> full = map;
+        for (int i = 0; i < 1000; i += 3) {
+            map = map.minus(new Key(i));
+            expected.remove(new Key(i));
+        }
+        assertSameContents(expected, map);
+        assertEquals(1000, full.size());
+        assertEquals("v3", full.get(new Key(3)));
+        assertNull(map.get(new Key(3)));
+
+        PersistentHashMap.Transient<Key, String> editable = map.asTransient();
+        assertTrue(editable.removeIf((k, v) -> k.id % 2 == 0));
+        assertFalse(editable.removeIf((k, v) -> k.id % 2 == 0));
+        expected.keySet().removeIf(k -> k.id % 2 == 0);
+        assertSameContents(expected, editable.persistent());
+        // the map the transient was made from is unchanged
+        assertEquals(666, map.size());
+    }
+
+}
@@ -25,7 +25,7 @@ import junit.framework.TestCase;
 public class TestPQueues extends TestCase { 
     private static final int N = 50000;
 
-    public void doQueue(BinHeap<Integer> q,
+    public void doQueue(OTPPriorityQueue<Integer> q,
                         List<Integer> input, List<Integer> expected) {
         List<Integer> result = new ArrayList<Integer>(N);
         int expectedSum = 0;
@@ -58,7 +58,7 @@ public class TestPQueues extends TestCase {
         assertTrue(sum == expectedSum);
     }
     
-    public void fillQueue(BinHeap<Integer> q, List<Integer> input) {
+    public void fillQueue(OTPPriorityQueue<Integer> q, List<Integer> input) {
         for (Integer i : input) {
             q.insert(i, i * 0.5);
         }
@@ -90,6 +90,55 @@ public class TestPQueues extends TestCase {
         }
         doQueue(new BinHeap<Integer>(), input, expected);
         fillQueue(new BinHeap<Integer>(), input);
+        doQueue(new IndexedFourAryHeap<Integer>(), input, expected);
+        fillQueue(new IndexedFourAryHeap<Integer>(), input);
+    }
+
+    /*
+     * Check that replacing the element indexed under a key moves it correctly in both directions,
+     * and that unkeyed duplicates of a key are unaffected.
+     */
+    public void testIndexedUpdate() {
+        final int N = 5000;
+        IndexedFourAryHeap<Integer> h = new IndexedFourAryHeap<Integer>(20, 0);
+        for (int i = 1; i < N; i++) {
+            h.insert(i, i, Math.random() * 10000);
+        }
+        h.insert(0, 0, 100000);
+        h.insert(-1, 0, 100000); // supersedes the element indexed under key 0, which stays queued
+        assertEquals(Integer.valueOf(-1), h.get(0));
+        for (int i = 0; i < N; i++) {
+            // an order-preserving function of the key, reached by a mix of increases and decreases
+            h.update(i, i, i * 2.0D + 10);
+        }
+        assertEquals(N + 1, h.size());
+        List<Integer> result = new ArrayList<Integer>(N + 1);
+        while (!h.empty()) {
+            result.add(h.extract_min());
+        }
+        for (int i = 0; i < N; i++) {
+            assertEquals(Integer.valueOf(i), result.get(i));
+        }
+        assertEquals(Integer.valueOf(0), result.get(N));
+        assertNull(h.get(N - 1));
+    }
+
+    public void testPooledHeap() {
+        IndexedFourAryHeap<Integer> h = IndexedFourAryHeap.acquire(10, 100);
+        assertTrue(h.isPooled());
+        // a nested search on the same thread must not share the pooled heap
+        IndexedFourAryHeap<Integer> nested = IndexedFourAryHeap.acquire(10, 100);
+        assertNotSame(h, nested);
+        assertFalse(nested.isPooled());
+        h.insert(5, 5, 5.0);
+        h.insert(7, 7, 7.0);
+        h.release();
+        IndexedFourAryHeap<Integer> again = IndexedFourAryHeap.acquire(10, 100);
+        assertSame(h, again);
+        assertTrue(again.empty());
+        assertNull(again.get(5));
+        assertNull(again.get(7));
+        again.release();
     }
 
     /*
@@ -180,8 +180,8 @@ public class LinkingTest {
     public static Map<String, int[]> cacheByLabel (StopTreeCache c) {
         Map<String, int[]> ret = Maps.newHashMap();
 
-        for (Entry<TransitStop, int[]> e : c.distancesForStop.entrySet()) {
-            ret.put(e.getKey().getLabel(), e.getValue());
+        for (TransitStop stop : c.getStops()) {
+            ret.put(stop.getLabel(), c.getDistancesForStop(stop));
         }
 
         return ret;
@@ -5,6 +5,9 @@ import org.junit.Test;
 import org.opentripplanner.graph_builder.module.FakeGraph;
 import org.opentripplanner.routing.graph.Graph;
 
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * Test the propagated times store.
  */
@@ -66,4 +69,76 @@ public class PropagatedTimesStoreTest extends TestCase {
         // 1000 should not be included in average
         assertEquals(1, pts.avgs[0]);
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that accumulating iterations one at a time gives the same results as passing them all to setFromArray.
+     */
+    @Test
+    public static void testAccumulation () {
+        ProfileRequest pr = new ProfileRequest();
+        Graph g = new Graph();
+        Random random = new Random(42);
+        int nTargets = 50;
+        int[][] times = new int[30][nTargets];
+        boolean[] includeInAverages = new boolean[times.length];
+        for (int i = 0; i < times.length; i++) {
+            includeInAverages[i] = i % 4 != 0;
+            for (int target = 0; target < nTargets; target++) {
+                // some targets are never reached, some only part of the time
+                boolean reached = target % 10 != 0 && random.nextInt(target % 7 + 1) != 0;
+                times[i][target] = reached ? random.nextInt(7200) : RaptorWorker.UNREACHED;
+            }
+        }
+
+        for (PropagatedTimesStore.ConfidenceCalculationMethod method : new PropagatedTimesStore.ConfidenceCalculationMethod[] {
+                PropagatedTimesStore.ConfidenceCalculationMethod.MIN_MAX,
+                PropagatedTimesStore.ConfidenceCalculationMethod.NONE }) {
+            PropagatedTimesStore fromArray = new PropagatedTimesStore(g, pr, nTargets);
+            fromArray.setFromArray(times, includeInAverages, method);
+            PropagatedTimesStore accumulated = new PropagatedTimesStore(g, pr, nTargets);
+            accumulated.startAccumulating(method);
+            for (int i = 0; i < times.length; i++) {
+                accumulated.accumulate(times[i], includeInAverages[i]);
+            }
+            accumulated.finishAccumulating();
+            assertTrue(Arrays.equals(fromArray.mins, accumulated.mins));
+            assertTrue(Arrays.equals(fromArray.maxs, accumulated.maxs));
+            assertTrue(Arrays.equals(fromArray.avgs, accumulated.avgs));
+        }
+    }
+
+    /**
+     * Test that the streaming percentiles are close to the exact percentiles computed by setFromArray.
+     */
+    @Test
+    public static void testAccumulatedPercentiles () {
+        ProfileRequest pr = new ProfileRequest();
+        Graph g = new Graph();
+        Random random = new Random(42);
+        int[][] times = new int[2000][1];
+        boolean[] includeInAverages = new boolean[times.length];
+        Arrays.fill(includeInAverages, true);
+        PropagatedTimesStore accumulated = new PropagatedTimesStore(g, pr, 1);
+        accumulated.startAccumulating(PropagatedTimesStore.ConfidenceCalculationMethod.PERCENTILE);
+        for (int i = 0; i < times.length; i++) {
+            // roughly normal, centered on 40 minutes
+            times[i][0] = (int) (2400 + random.nextGaussian() * 600);
+            accumulated.accumulate(times[i], true);
+        }
+        accumulated.finishAccumulating();
+        PropagatedTimesStore fromArray = new PropagatedTimesStore(g, pr, 1);
+        fromArray.setFromArray(times, includeInAverages, PropagatedTimesStore.ConfidenceCalculationMethod.PERCENTILE);
+
+        // within a minute of the exact percentiles, which are about 40 minutes apart
+        assertEquals(fromArray.mins[0], accumulated.mins[0], 60);
+        assertEquals(fromArray.maxs[0], accumulated.maxs[0], 60);
+        assertEquals(fromArray.avgs[0], accumulated.avgs[0]);
+
+        // exact with few times
+        StreamingQuantiles quantiles = new StreamingQuantiles(1, 0.5);
+        quantiles.add(0, 30);
+        quantiles.add(0, 10);
+        quantiles.add(0, 20);
+        assertEquals(20, quantiles.get(0));
+    }
+}
@@ -0,0 +1,80 @@
+package org.opentripplanner.profile;
+
+import gnu.trove.list.array.TIntArrayList;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Make sure propagating through tiles gives the same times as propagating from each stop to its list of targets.
+ */
+public class PropagationTilesTest extends TestCase {
+
+    @Test
+    public void testPropagate () {
+        Random random = new Random(42);
+        int nTargets = PropagationTiles.TILE_SIZE * 3 + 17;
+        int nStops = 200;
+
+        // stops reach runs of targets crossing tile boundaries, and scattered targets
+        List<int[]> targetsForStop = new ArrayList<>();
+        for (int s = 0; s < nStops; s++) {
+            TIntArrayList targets = new TIntArrayList();
+            if (s % 10 != 9) {
+                int first = random.nextInt(nTargets - 300);
+                for (int t = first; t < first + 1 + random.nextInt(300); t++) {
+                    targets.add(t);
+                    targets.add(random.nextInt(1200));
+                }
+                for (int i = 0; i < 20; i++) {
+                    targets.add(random.nextInt(nTargets));
+                    targets.add(random.nextInt(1200));
+                }
+            }
+            // shuffle the pairs, as the targets of sample sets are not sorted
+            int[] pairs = targets.toArray();
+            for (int i = pairs.length / 2 - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int target = pairs[2 * i], time = pairs[2 * i + 1];
+                pairs[2 * i] = pairs[2 * j];
+                pairs[2 * i + 1] = pairs[2 * j + 1];
+                pairs[2 * j] = target;
+                pairs[2 * j + 1] = time;
+            }
+            targetsForStop.add(pairs);
+        }
+
+        PropagationTiles tiles = new PropagationTiles(targetsForStop, nTargets);
+
+        int[] timesAtStops = new int[nStops];
+        BitSet touched = new BitSet(nStops);
+        for (int s = 0; s < nStops; s++) {
+            timesAtStops[s] = s % 7 == 0 ? RaptorWorker.UNREACHED : 25000 + random.nextInt(3600);
+            if (random.nextInt(4) != 0) touched.set(s);
+        }
+
+        int[] expected = new int[nTargets];
+        int[] actual = new int[nTargets];
+        Arrays.fill(expected, RaptorWorker.UNREACHED);
+        expected[5] = 20000;
+        System.arraycopy(expected, 0, actual, 0, nTargets);
+
+        for (int s = touched.nextSetBit(0); s >= 0; s = touched.nextSetBit(s + 1)) {
+            if (timesAtStops[s] == RaptorWorker.UNREACHED) continue;
+            int[] targets = targetsForStop.get(s);
+            for (int i = 0; i < targets.length; i += 2) {
+                expected[targets[i]] = Math.min(expected[targets[i]], timesAtStops[s] + targets[i + 1]);
+            }
+        }
+        tiles.propagate(timesAtStops, touched, actual);
+
+        assertTrue(Arrays.equals(expected, actual));
+        assertEquals(20000, actual[5]);
+    }
+
+}
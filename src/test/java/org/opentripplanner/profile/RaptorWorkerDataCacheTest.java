@@ -0,0 +1,99 @@
+package org.opentripplanner.profile;
+
+import junit.framework.TestCase;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.opentripplanner.analyst.cluster.TaskStatistics;
+import org.opentripplanner.analyst.scenario.RemoveTrip;
+import org.opentripplanner.analyst.scenario.Scenario;
+import org.opentripplanner.api.parameter.QualifiedModeSet;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+
+import java.util.Arrays;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Make sure RAPTOR data is reused across requests and that scenario variants share unmodified timetables.
+ */
+public class RaptorWorkerDataCacheTest extends TestCase {
+
+    private static ProfileRequest request () {
+        ProfileRequest pr = new ProfileRequest();
+        pr.date = new LocalDate(2015, 6, 10);
+        pr.fromTime = 7 * 3600;
+        pr.toTime = 9 * 3600;
+        pr.fromLat = pr.toLat = 39.9621;
+        pr.fromLon = pr.toLon = -83.0007;
+        pr.walkSpeed = 1.3f;
+        pr.maxWalkTime = 20;
+        pr.accessModes = pr.egressModes = pr.directModes = new QualifiedModeSet("WALK");
+        pr.transitModes = new TraverseModeSet("TRANSIT");
+        return pr;
+    }
+
+    private static Scenario removeRoute (int id, String routeId) {
+        RemoveTrip rt = new RemoveTrip();
+        rt.agencyId = "agency";
+        rt.routeId = Arrays.asList(routeId);
+        Scenario scenario = new Scenario(id);
+        scenario.modifications = Arrays.asList(rt);
+        return scenario;
+    }
+
+    @Test
+    public void testCache () throws Exception {
+        Graph gg = buildGraphNoTransit();
+        addTransitMultipleLines(gg);
+        link(gg);
+        gg.index(new DefaultStreetVertexIndexFactory());
+
+        RaptorWorkerDataCache cache = new RaptorWorkerDataCache(100);
+
+        RaptorWorkerData base = cache.get("graph", request(), gg, null, new TaskStatistics());
+        assertTrue(base.nPatterns > 0);
+        assertSame(base, cache.get("graph", request(), gg, null, new TaskStatistics()));
+
+        // a different time window is not the same data
+        ProfileRequest later = request();
+        later.fromTime += 3600;
+        assertNotSame(base, cache.get("graph", later, gg, null, new TaskStatistics()));
+
+        // a scenario not touching any pattern shares all the timetables of the base data
+        ProfileRequest unaffected = request();
+        unaffected.scenario = removeRoute(1, "some other route");
+        RaptorWorkerData variant = cache.get("graph", unaffected, gg, null, new TaskStatistics());
+        assertNotSame(base, variant);
+        assertEquals(base.nPatterns, variant.nPatterns);
+        for (int p = 0; p < base.nPatterns; p++) {
+            RaptorWorkerTimetable baseTimetable = base.timetablesForPattern.get(p);
+            RaptorWorkerTimetable variantTimetable = variant.timetablesForPattern.get(p);
+            assertSame(baseTimetable.timesPerTrip, variantTimetable.timesPerTrip);
+            assertSame(variant, variantTimetable.raptorData);
+            assertTrue(Arrays.equals(baseTimetable.stopIndices, variantTimetable.stopIndices));
+        }
+        assertSame(variant, cache.get("graph", unaffected, gg, null, new TaskStatistics()));
+
+        // the same modifications under another scenario ID share the cached data
+        ProfileRequest renamed = request();
+        renamed.scenario = removeRoute(3, "some other route");
+        assertSame(variant, cache.get("graph", renamed, gg, null, new TaskStatistics()));
+
+        // a scenario removing the only route leaves no patterns, and is not cached under the other scenario's ID
+        ProfileRequest removed = request();
+        removed.scenario = removeRoute(2, "route");
+        assertEquals(0, cache.get("graph", removed, gg, null, new TaskStatistics()).nPatterns);
+
+        // scenario IDs are chosen by clients, other modifications reusing an ID are not served the cached data
+        ProfileRequest reused = request();
+        reused.scenario = removeRoute(1, "route");
+        assertEquals(0, cache.get("graph", reused, gg, null, new TaskStatistics()).nPatterns);
+
+        // derived data is not cached
+        assertNotSame(cache.derive("graph", unaffected, gg, null, new TaskStatistics()),
+                cache.derive("graph", unaffected, gg, null, new TaskStatistics()));
+    }
+
+}
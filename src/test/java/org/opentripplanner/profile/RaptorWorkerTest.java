@@ -0,0 +1,89 @@
+package org.opentripplanner.profile;
+
+import com.vividsolutions.jts.geom.Envelope;
+import gnu.trove.map.TIntIntMap;
+import junit.framework.TestCase;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.opentripplanner.analyst.PointSet;
+import org.opentripplanner.analyst.SampleSet;
+import org.opentripplanner.analyst.cluster.TaskStatistics;
+import org.opentripplanner.analyst.scenario.ConvertToFrequency;
+import org.opentripplanner.analyst.scenario.Scenario;
+import org.opentripplanner.api.parameter.QualifiedModeSet;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+
+import java.util.Arrays;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Make sure running the Monte Carlo draws of a frequency-based search in parallel gives the same results as running
+ * them one after the other with the same random seed.
+ */
+public class RaptorWorkerTest extends TestCase {
+
+    private static ProfileRequest request () {
+        ProfileRequest pr = new ProfileRequest();
+        pr.date = new LocalDate(2015, 6, 10);
+        pr.fromTime = 7 * 3600;
+        pr.toTime = 8 * 3600;
+        pr.fromLat = pr.toLat = 39.9621;
+        pr.fromLon = pr.toLon = -83.0007;
+        pr.walkSpeed = 1.3f;
+        pr.maxWalkTime = 20;
+        pr.accessModes = pr.egressModes = pr.directModes = new QualifiedModeSet("WALK");
+        pr.transitModes = new TraverseModeSet("TRANSIT");
+
+        ConvertToFrequency ctf = new ConvertToFrequency();
+        ctf.groupBy = ConvertToFrequency.ConversionGroup.ROUTE_DIRECTION;
+        ctf.routeId = new String [] { "route" };
+        ctf.windowStart = 5 * 3600;
+        ctf.windowEnd = 10 * 3600;
+
+        pr.scenario = new Scenario(0);
+        pr.scenario.modifications = Arrays.asList(ctf);
+        return pr;
+    }
+
+    @Test
+    public void testParallelDraws () throws Exception {
+        Graph gg = buildGraphNoTransit();
+        addTransit(gg);
+        link(gg);
+        gg.index(new DefaultStreetVertexIndexFactory());
+
+        PointSet destinations = PointSet.regularGrid(new Envelope(-83.01, -82.99, 39.955, 39.97), 500);
+        SampleSet sampleSet = destinations.getOrCreateSampleSet(gg);
+
+        RaptorWorkerData data = RepeatedRaptorProfileRouter.getRaptorWorkerData(request(), gg, sampleSet,
+                new TaskStatistics());
+        assertTrue(data.hasFrequencies);
+
+        RepeatedRaptorProfileRouter router = new RepeatedRaptorProfileRouter(gg, request(), sampleSet);
+        TIntIntMap accessTimes = router.findInitialStops(false, data);
+        assertFalse(accessTimes.isEmpty());
+
+        // leave the targets unreached without transit, so that every time compared comes from the draws
+        int[] nonTransitTimes = new int[data.nTargets];
+        Arrays.fill(nonTransitTimes, RaptorWorker.UNREACHED);
+
+        RaptorWorker sequential = new RaptorWorker(data, request());
+        sequential.parallelDraws = false;
+        sequential.randomSeed = 42;
+        PropagatedTimesStore expected = sequential.runRaptor(gg, accessTimes, nonTransitTimes, new TaskStatistics());
+
+        RaptorWorker parallel = new RaptorWorker(data, request());
+        parallel.parallelDraws = true;
+        parallel.randomSeed = 42;
+        PropagatedTimesStore actual = parallel.runRaptor(gg, accessTimes, nonTransitTimes, new TaskStatistics());
+
+        assertTrue(Arrays.stream(expected.mins).anyMatch(t -> t != RaptorWorker.UNREACHED));
+        assertTrue(Arrays.equals(expected.mins, actual.mins));
+        assertTrue(Arrays.equals(expected.avgs, actual.avgs));
+        assertTrue(Arrays.equals(expected.maxs, actual.maxs));
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.opentripplanner.profile;
+
+import com.vividsolutions.jts.geom.Envelope;
+import junit.framework.TestCase;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.opentripplanner.analyst.PointSet;
+import org.opentripplanner.analyst.SampleSet;
+import org.opentripplanner.analyst.cluster.ResultEnvelope;
+import org.opentripplanner.analyst.cluster.TaskStatistics;
+import org.opentripplanner.api.parameter.QualifiedModeSet;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Make sure routing a batch of origins with shared data and reused workers gives the same results as routing each
+ * origin on its own.
+ */
+public class RepeatedRaptorBatchTest extends TestCase {
+
+    private static ProfileRequest request () {
+        ProfileRequest pr = new ProfileRequest();
+        pr.date = new LocalDate(2015, 6, 10);
+        pr.fromTime = 7 * 3600;
+        pr.toTime = 8 * 3600;
+        pr.fromLat = pr.toLat = 39.9621;
+        pr.fromLon = pr.toLon = -83.0007;
+        pr.walkSpeed = 1.3f;
+        pr.maxWalkTime = 20;
+        pr.accessModes = pr.egressModes = pr.directModes = new QualifiedModeSet("WALK");
+        pr.transitModes = new TraverseModeSet("TRANSIT");
+        return pr;
+    }
+
+    @Test
+    public void testBatch () throws Exception {
+        Graph gg = buildGraphNoTransit();
+        addTransit(gg);
+        link(gg);
+        gg.index(new DefaultStreetVertexIndexFactory());
+
+        PointSet destinations = PointSet.regularGrid(new Envelope(-83.01, -82.99, 39.955, 39.97), 500);
+        SampleSet sampleSet = destinations.getOrCreateSampleSet(gg);
+        PointSet origins = destinations.slice(0, 4);
+
+        RaptorWorkerData data = RepeatedRaptorProfileRouter.getRaptorWorkerData(request(), gg, sampleSet,
+                new TaskStatistics());
+
+        RepeatedRaptorProfileRouter batchRouter = new RepeatedRaptorProfileRouter(gg, request(), sampleSet);
+        batchRouter.raptorWorkerData = data;
+        batchRouter.includeTimes = true;
+        List<ResultEnvelope> batch = batchRouter.routeBatch(origins);
+        assertEquals(origins.featureCount(), batch.size());
+
+        for (int i = 0; i < origins.featureCount(); i++) {
+            ProfileRequest single = request();
+            single.fromLat = single.toLat = origins.getLat(i);
+            single.fromLon = single.toLon = origins.getLon(i);
+            RepeatedRaptorProfileRouter router = new RepeatedRaptorProfileRouter(gg, single, sampleSet);
+            router.raptorWorkerData = data;
+            router.includeTimes = true;
+            ResultEnvelope expected = router.route();
+
+            for (ResultEnvelope.Which which : new ResultEnvelope.Which[] {
+                    ResultEnvelope.Which.BEST_CASE, ResultEnvelope.Which.AVERAGE, ResultEnvelope.Which.WORST_CASE }) {
+                assertNotNull(batch.get(i).get(which).times);
+                assertTrue(Arrays.equals(expected.get(which).times, batch.get(i).get(which).times));
+            }
+        }
+    }
+
+}
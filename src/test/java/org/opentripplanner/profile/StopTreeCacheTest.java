@@ -0,0 +1,81 @@
+package org.opentripplanner.profile;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.GraphIndex;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.opentripplanner.routing.vertextype.TransitStop;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Make sure the compact stop tree cache survives a round trip through a mapped file and propagates correctly.
+ */
+public class StopTreeCacheTest extends TestCase {
+
+    @Test
+    public void testSaveAndMap () throws Exception {
+        Graph gg = buildGraphNoTransit();
+        addTransit(gg);
+        link(gg);
+        gg.index(new DefaultStreetVertexIndexFactory());
+
+        StopTreeCache stc = new StopTreeCache(gg, GraphIndex.MAX_WALK_METERS);
+        assertEquals(1, stc.distanceUnit);
+        assertFalse(stc.getStops().isEmpty());
+
+        File file = File.createTempFile("stops", ".stc");
+        try {
+            stc.save(file, 42L);
+            StopTreeCache mapped = StopTreeCache.map(gg, file, 42L);
+            assertEquals(stc.getStops(), mapped.getStops());
+            for (TransitStop stop : stc.getStops()) {
+                int[] distances = stc.getDistancesForStop(stop);
+                assertTrue(distances.length > 0);
+                assertTrue(Arrays.equals(distances, mapped.getDistancesForStop(stop)));
+                for (int i = 2; i < distances.length; i += 2) {
+                    assertTrue("vertices of a built cache are sorted", distances[i - 2] < distances[i]);
+                }
+            }
+            // a file saved for another serialized graph must not be mapped
+            try {
+                StopTreeCache.map(gg, file, 43L);
+                fail("Mapped a stop tree cache saved for another graph.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPropagate () throws Exception {
+        Graph gg = buildGraphNoTransit();
+        addTransit(gg);
+        link(gg);
+        gg.index(new DefaultStreetVertexIndexFactory());
+
+        StopTreeCache stc = new StopTreeCache(gg, GraphIndex.MAX_WALK_METERS);
+        double walkSpeed = 1.3;
+        int[] times = new int[Vertex.getMaxIndex()];
+        int[] expected = new int[Vertex.getMaxIndex()];
+        int base = 1000;
+        for (TransitStop stop : stc.getStops()) {
+            stc.propagateStop(stop, base, walkSpeed, times);
+            int[] distances = stc.getDistancesForStop(stop);
+            for (int i = 0; i < distances.length; i += 2) {
+                int time = base + (int) (distances[i + 1] / walkSpeed);
+                if (expected[distances[i]] == 0 || expected[distances[i]] > time) expected[distances[i]] = time;
+            }
+            base += 100;
+        }
+        assertTrue(Arrays.equals(expected, times));
+    }
+
+}
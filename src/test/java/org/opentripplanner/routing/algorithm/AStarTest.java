@@ -23,6 +23,7 @@ import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.opentripplanner.common.pqueue.PriorityQueueType;
 import org.opentripplanner.routing.algorithm.strategies.MultiTargetTerminationStrategy;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
 import org.opentripplanner.routing.core.State;
@@ -33,6 +34,7 @@ import org.opentripplanner.routing.graph.SimpleConcreteVertex;
 import org.opentripplanner.routing.graph.TemporaryConcreteEdge;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.location.TemporaryStreetLocation;
+import org.opentripplanner.routing.spt.ArrayShortestPathTree;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 
@@ -116,6 +118,30 @@ public class AStarTest {
         assertEquals("leary_20th", states.get(6).getVertex().getLabel());
     }
 
+    @Test
+    public void testForwardArrayShortestPathTree() {
+        RoutingRequest options = new RoutingRequest();
+        options.walkSpeed = 1.0;
+        options.batch = true;
+        options.setRoutingContext(_graph, _graph.getVertex("56th_24th"), _graph.getVertex("leary_20th"));
+        ShortestPathTree mapTree = new AStar().getShortestPathTree(options);
+
+        options.arrayShortestPathTree = true;
+        options.queueType = PriorityQueueType.POOLED_INDEXED_HEAP;
+        ShortestPathTree arrayTree = new AStar().getShortestPathTree(options);
+        assertTrue(arrayTree instanceof ArrayShortestPathTree);
+
+        assertEquals(mapTree.getVertexCount(), arrayTree.getVertexCount());
+        assertEquals(mapTree.getVertices(), arrayTree.getVertices());
+        for (Vertex v : mapTree.getVertices()) {
+            assertEquals(mapTree.getState(v).getWeight(), arrayTree.getState(v).getWeight(), 0.0);
+        }
+
+        GraphPath path = arrayTree.getPath(_graph.getVertex("leary_20th"), false);
+        assertEquals(7, path.states.size());
+        assertEquals("market_leary", path.states.get(4).getVertex().getLabel());
+    }
+
     @Test
     public void testBack() {
 
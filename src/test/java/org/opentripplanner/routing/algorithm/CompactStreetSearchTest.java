@@ -0,0 +1,218 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.TurnRestrictionType;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.core.ConstantIntersectionTraversalCostModel;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.CompactStreetGraph;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+public class CompactStreetSearchTest {
+
+    private static final int N = 4;
+
+    private Graph graph;
+
+    private StreetVertex[][] grid;
+
+    private RoutingRequest proto;
+
+    @Before
+    public void before() {
+        graph = new Graph();
+        // a small grid of two-way streets, the east-west ones drivable, the north-south ones footpaths
+        grid = new StreetVertex[N][N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                grid[i][j] = new IntersectionVertex(graph, "v_" + i + "_" + j, 7.0 + j * 0.001, 45.0 + i * 0.001);
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N - 1; j++) {
+                edge(grid[i][j], grid[i][j + 1], StreetTraversalPermission.ALL);
+                edge(grid[i][j + 1], grid[i][j], StreetTraversalPermission.ALL);
+                edge(grid[j][i], grid[j + 1][i], StreetTraversalPermission.PEDESTRIAN);
+                edge(grid[j + 1][i], grid[j][i], StreetTraversalPermission.PEDESTRIAN);
+            }
+        }
+        proto = new RoutingRequest();
+        proto.traversalCostModel = new ConstantIntersectionTraversalCostModel(0.0);
+    }
+
+    @Test
+    public void testCompactGraph() {
+        CompactStreetGraph csg = graph.getCompactStreetGraph();
+        assertEquals(N * N, csg.getVertexCount());
+        assertEquals(4 * N * (N - 1), csg.getEdgeCount());
+        for (int v = 0; v < csg.getVertexCount(); v++) {
+            assertEquals(v, csg.getCompactIndex(csg.getVertex(v)));
+            for (int e = csg.firstOutgoing(v); e < csg.firstOutgoing(v + 1); e++) {
+                StreetEdge se = csg.getEdge(e);
+                assertSame(csg.getVertex(v), se.getFromVertex());
+                assertSame(se.getToVertex(), csg.getVertex(csg.getToVertex(e)));
+                assertEquals(Math.round(se.getDistance() * 1000), csg.getLengthMm(e));
+            }
+            for (int p = csg.firstIncoming(v); p < csg.firstIncoming(v + 1); p++) {
+                assertSame(csg.getVertex(v), csg.getEdge(csg.incomingEdge(p)).getToVertex());
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndMap() throws Exception {
+        CompactStreetGraph csg = graph.getCompactStreetGraph();
+        File file = File.createTempFile("compact", ".csr");
+        try {
+            csg.save(file, 42L);
+            graph.rebuildVertexAndEdgeIndices();
+            CompactStreetGraph mapped = CompactStreetGraph.map(graph, file, 42L);
+            assertEquals(csg.getVertexCount(), mapped.getVertexCount());
+            assertEquals(csg.getEdgeCount(), mapped.getEdgeCount());
+            for (int v = 0; v < csg.getVertexCount(); v++) {
+                assertSame(csg.getVertex(v), mapped.getVertex(v));
+                assertEquals(v, mapped.getCompactIndex(csg.getVertex(v)));
+                assertEquals(csg.getLat(v), mapped.getLat(v), 0.0);
+                assertEquals(csg.firstOutgoing(v), mapped.firstOutgoing(v));
+                assertEquals(csg.firstIncoming(v), mapped.firstIncoming(v));
+            }
+            for (int e = 0; e < csg.getEdgeCount(); e++) {
+                assertSame(csg.getEdge(e), mapped.getEdge(e));
+                assertEquals(csg.getToVertex(e), mapped.getToVertex(e));
+                assertEquals(csg.incomingEdge(e), mapped.incomingEdge(e));
+                assertEquals(csg.getLengthMm(e), mapped.getLengthMm(e));
+                assertEquals(csg.getCarSpeed(e), mapped.getCarSpeed(e), 0.0f);
+                assertEquals(csg.allows(e, CompactStreetGraph.PERMISSION_CAR),
+                        mapped.allows(e, CompactStreetGraph.PERMISSION_CAR));
+                assertEquals(csg.getInAngle(e), mapped.getInAngle(e));
+            }
+            assertEquals(csg.getMaxCarSpeed(), mapped.getMaxCarSpeed(), 0.0f);
+
+            RoutingRequest options = proto.clone();
+            options.setModes(new TraverseModeSet(TraverseMode.WALK));
+            options.setRoutingContext(graph, grid[0][0], grid[N - 1][N - 1]);
+            GraphPath heapPath = new CompactStreetSearch(csg).getPath(options);
+            GraphPath mappedPath = new CompactStreetSearch(mapped).getPath(options);
+            assertEquals(heapPath.getWeight(), mappedPath.getWeight(), 0.0);
+
+            // a file saved for another serialized graph must not be mapped
+            try {
+                CompactStreetGraph.map(graph, file, 43L);
+                fail("Mapped a compact street graph saved for another graph.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWalkMatchesAStar() {
+        checkMatchesAStar(new TraverseModeSet(TraverseMode.WALK), false);
+        checkMatchesAStar(new TraverseModeSet(TraverseMode.WALK), true);
+    }
+
+    @Test
+    public void testCarMatchesAStar() {
+        // cars must use the only street between the two rows, v_0_3 to v_3_3 is not possible
+        RoutingRequest options = proto.clone();
+        options.setModes(new TraverseModeSet(TraverseMode.CAR));
+        options.setRoutingContext(graph, grid[0][0], grid[0][N - 1]);
+        assertTrue(CompactStreetSearch.canHandle(options));
+        GraphPath path = new CompactStreetSearch(graph.getCompactStreetGraph()).getPath(options);
+        assertNotNull(path);
+        assertEquals(N, path.states.size());
+
+        options = proto.clone();
+        options.setModes(new TraverseModeSet(TraverseMode.CAR));
+        options.setRoutingContext(graph, grid[0][0], grid[N - 1][N - 1]);
+        assertNull(new CompactStreetSearch(graph.getCompactStreetGraph()).getPath(options));
+    }
+
+    @Test
+    public void testTurnRestrictionFallsBack() {
+        // forbid the only turn a car could take out of the first row
+        StreetEdge from = null, to = null;
+        for (StreetEdge e : graph.getStreetEdges()) {
+            if (e.getFromVertex() == grid[0][0] && e.getToVertex() == grid[0][1]) from = e;
+            if (e.getFromVertex() == grid[0][1] && e.getToVertex() == grid[0][2]) to = e;
+        }
+        graph.addTurnRestriction(from, new TurnRestriction(from, to, TurnRestrictionType.NO_TURN,
+                new TraverseModeSet(TraverseMode.CAR)));
+        RoutingRequest options = proto.clone();
+        options.setModes(new TraverseModeSet(TraverseMode.CAR));
+        options.setRoutingContext(graph, grid[0][0], grid[0][N - 1]);
+        assertNull(new CompactStreetSearch(graph.getCompactStreetGraph()).getPath(options));
+    }
+
+    @Test
+    public void testCanHandle() {
+        RoutingRequest options = proto.clone();
+        options.setRoutingContext(graph, grid[0][0], grid[N - 1][N - 1]);
+        assertFalse(CompactStreetSearch.canHandle(options)); // WALK,TRANSIT by default
+        options = proto.clone();
+        options.setModes(new TraverseModeSet(TraverseMode.BICYCLE));
+        options.optimize = org.opentripplanner.routing.core.OptimizeType.TRIANGLE;
+        options.setRoutingContext(graph, grid[0][0], grid[N - 1][N - 1]);
+        assertFalse(CompactStreetSearch.canHandle(options));
+    }
+
+    private void checkMatchesAStar(TraverseModeSet modes, boolean arriveBy) {
+        RoutingRequest options = proto.clone();
+        options.setModes(modes);
+        options.setArriveBy(arriveBy);
+        options.setRoutingContext(graph, grid[0][0], grid[N - 1][N - 1]);
+        assertTrue(CompactStreetSearch.canHandle(options));
+        GraphPath compact = new CompactStreetSearch(graph.getCompactStreetGraph()).getPath(options);
+        assertNotNull(compact);
+        assertSame(grid[0][0], compact.states.getFirst().getVertex());
+        assertSame(grid[N - 1][N - 1], compact.states.getLast().getVertex());
+
+        ShortestPathTree spt = new AStar().getShortestPathTree(options);
+        GraphPath reference = spt.getPath(arriveBy ? grid[0][0] : grid[N - 1][N - 1], false);
+        assertEquals(reference.getWeight(), compact.getWeight(), 1e-6);
+        assertEquals(reference.getDuration(), compact.getDuration());
+    }
+
+    private StreetEdge edge(StreetVertex a, StreetVertex b, StreetTraversalPermission permission) {
+        Coordinate[] coords = new Coordinate[] { a.getCoordinate(), b.getCoordinate() };
+        LineString geom = GeometryUtils.getGeometryFactory().createLineString(coords);
+        double length = SphericalDistanceLibrary.distance(a.getCoordinate(), b.getCoordinate());
+        StreetEdge e = new StreetEdge(a, b, geom, a.getLabel() + "_" + b.getLabel(), length, permission, false);
+        e.setCarSpeed(10.0f);
+        return e;
+    }
+
+}
@@ -0,0 +1,135 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.strategies.BidirectionalHeuristicCache.DestinationTable;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.util.TestUtils;
+
+/**
+ * Test the cache of the destination tables of the bidirectional heuristic between stops of the Portland graph.
+ */
+public class BidirectionalHeuristicCacheTest {
+
+    private Graph graph;
+    private Vertex start;
+    private Vertex end;
+
+    @Before
+    public void setUp() {
+        graph = ConstantsForTests.getInstance().getPortlandGraph();
+        String feedId = graph.getFeedIds().iterator().next();
+        start = graph.getVertex(feedId + ":8371");
+        end = graph.getVertex(feedId + ":8374");
+    }
+
+    private RoutingRequest request(Vertex target) {
+        RoutingRequest options = new RoutingRequest();
+        options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 11, 1, 12, 34, 25);
+        options.setRoutingContext(graph, target == start ? end : start, target);
+        return options;
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        BidirectionalHeuristicCache cache = new BidirectionalHeuristicCache(graph, 4);
+        DestinationTable table = cache.getTable(request(end), Long.MAX_VALUE);
+        assertNotNull(table);
+        assertTrue(table.size() > 0);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        assertSame(table, cache.getTable(request(end), Long.MAX_VALUE));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNotSame(table, cache.getTable(request(end), Long.MAX_VALUE));
+        assertEquals(2, cache.getMisses());
+    }
+
+    /** Walk speeds are rounded up to a bucket, and the banned trips are ignored when computing the tables. */
+    @Test
+    public void testSharedKeys() {
+        BidirectionalHeuristicCache cache = new BidirectionalHeuristicCache(graph, 4);
+        RoutingRequest options = request(end);
+        options.walkSpeed = 1.31;
+        DestinationTable table = cache.getTable(options, Long.MAX_VALUE);
+
+        options = request(end);
+        options.walkSpeed = 1.35;
+        options.banTrip(new AgencyAndId(graph.getFeedIds().iterator().next(), "trip"));
+        assertSame(table, cache.getTable(options, Long.MAX_VALUE));
+
+        options = request(end);
+        options.walkSpeed = 1.45;
+        assertNotSame(table, cache.getTable(options, Long.MAX_VALUE));
+
+        options = request(end);
+        options.walkSpeed = 1.31;
+        options.walkReluctance *= 2;
+        assertNotSame(table, cache.getTable(options, Long.MAX_VALUE));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        BidirectionalHeuristicCache cache = new BidirectionalHeuristicCache(graph, 1);
+        DestinationTable table = cache.getTable(request(end), Long.MAX_VALUE);
+        cache.getTable(request(start), Long.MAX_VALUE);
+        assertEquals(1, cache.size());
+        assertNotSame(table, cache.getTable(request(end), Long.MAX_VALUE));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testTimeout() {
+        BidirectionalHeuristicCache cache = new BidirectionalHeuristicCache(graph, 4);
+        // an abort time in the past
+        assertEquals(null, cache.getTable(request(end), 1));
+        assertEquals(0, cache.size());
+    }
+
+    /** The weights of a table never exceed the weight of the best path to its destination. */
+    @Test
+    public void testAdmissible() {
+        BidirectionalHeuristicCache cache = new BidirectionalHeuristicCache(graph, 4);
+        RoutingRequest options = request(end);
+        DestinationTable table = cache.getTable(options, Long.MAX_VALUE);
+
+        options.rctx.remainingWeightHeuristic = new TrivialRemainingWeightHeuristic();
+        GraphPath path = new AStar().getShortestPathTree(options).getPath(end, true);
+        assertNotNull(path);
+        assertTrue(table.getWeight(start) <= path.getWeight());
+    }
+
+}
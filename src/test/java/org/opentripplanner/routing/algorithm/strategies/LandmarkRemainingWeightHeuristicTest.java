@@ -0,0 +1,95 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.ElevatorHopEdge;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.LandmarkTable;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.vertextype.ElevatorOffboardVertex;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+public class LandmarkRemainingWeightHeuristicTest {
+
+    /**
+     * Two street vertices next to each other, joined by a long street detour and by an elevator. The landmark bound
+     * must account for the elevator, otherwise the heuristic estimates the length of the detour and the search
+     * returns it instead of the elevator.
+     */
+    @Test
+    public void testElevatorShortcut() {
+        Graph graph = new Graph();
+        StreetVertex a = new IntersectionVertex(graph, "a", 7.0, 45.0);
+        StreetVertex b = new IntersectionVertex(graph, "b", 7.0001, 45.0);
+        StreetVertex detour = new IntersectionVertex(graph, "detour", 7.0, 45.01);
+        edge(a, detour);
+        edge(detour, a);
+        edge(detour, b);
+        edge(b, detour);
+        Vertex lower = new ElevatorOffboardVertex(graph, "lower", 7.0, 45.0, "lower");
+        Vertex upper = new ElevatorOffboardVertex(graph, "upper", 7.0001, 45.0, "upper");
+        new FreeEdge(a, lower);
+        new FreeEdge(lower, a);
+        new ElevatorHopEdge(lower, upper, StreetTraversalPermission.ALL);
+        new ElevatorHopEdge(upper, lower, StreetTraversalPermission.ALL);
+        new FreeEdge(upper, b);
+        new FreeEdge(b, upper);
+        LandmarkTable table = LandmarkTable.build(graph, 2);
+
+        for (Vertex origin : graph.getVertices()) {
+            for (Vertex target : graph.getVertices()) {
+                if (origin == target) continue;
+                RoutingRequest options = new RoutingRequest(TraverseMode.WALK);
+                options.setRoutingContext(graph, origin, target);
+                // the true cost, found without goal direction
+                options.rctx.remainingWeightHeuristic = new TrivialRemainingWeightHeuristic();
+                GraphPath path = new AStar().getShortestPathTree(options).getPath(target, false);
+                assertNotNull(path);
+
+                LandmarkRemainingWeightHeuristic heuristic = new LandmarkRemainingWeightHeuristic(table);
+                heuristic.initialize(options, Long.MAX_VALUE);
+                double estimate = heuristic.estimateRemainingWeight(new State(origin, options));
+                assertTrue(origin + " to " + target + ": estimate " + estimate + " exceeds cost " + path.getWeight(),
+                        estimate <= path.getWeight() + 1e-6);
+                options.rctx.destroy();
+            }
+        }
+    }
+
+    private static void edge(StreetVertex a, StreetVertex b) {
+        Coordinate[] coords = new Coordinate[] { a.getCoordinate(), b.getCoordinate() };
+        LineString geom = GeometryUtils.getGeometryFactory().createLineString(coords);
+        double length = SphericalDistanceLibrary.distance(a.getCoordinate(), b.getCoordinate());
+        new StreetEdge(a, b, geom, a.getLabel() + "_" + b.getLabel(), length, StreetTraversalPermission.ALL, false);
+    }
+
+}
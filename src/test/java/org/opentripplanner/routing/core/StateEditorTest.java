@@ -14,8 +14,16 @@
 package org.opentripplanner.routing.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.SimpleConcreteEdge;
+import org.opentripplanner.routing.graph.SimpleConcreteVertex;
+import org.opentripplanner.routing.graph.Vertex;
 
 public class StateEditorTest {
     @Test
@@ -28,4 +36,63 @@ public class StateEditorTest {
 
         assertEquals(999999999, stateEditor.child.getTimeSeconds());
     }
+
+    @Test
+    public final void testStateDataSharedUntilChanged() {
+        Graph graph = new Graph();
+        Vertex a = new SimpleConcreteVertex(graph, "a", 45.0, 7.0);
+        Vertex b = new SimpleConcreteVertex(graph, "b", 45.001, 7.0);
+        SimpleConcreteEdge ab = new SimpleConcreteEdge(a, b);
+        RoutingRequest routingRequest = new RoutingRequest();
+        AgencyAndId tripId = new AgencyAndId("agency", "trip");
+        StateEditor parentEditor = new StateEditor(routingRequest, a);
+        parentEditor.setTripId(tripId);
+        State parent = parentEditor.makeState();
+
+        // setting unchanged values keeps the state data shared with the parent
+        StateEditor editor = parent.edit(ab);
+        editor.setTripId(tripId);
+        editor.setEverBoarded(false);
+        editor.setBikeRenting(false);
+        State child = editor.makeState();
+        assertSame(parent.stateData, child.stateData);
+
+        // changing a value copies the state data, leaving the parent untouched
+        editor = parent.edit(ab);
+        editor.setTripId(null);
+        editor.setEnteredNoThroughTrafficArea();
+        child = editor.makeState();
+        assertNotSame(parent.stateData, child.stateData);
+        assertSame(tripId, parent.getTripId());
+        assertNull(child.getTripId());
+        assertEquals(false, parent.hasEnteredNoThruTrafficArea());
+        assertEquals(true, child.hasEnteredNoThruTrafficArea());
+    }
+
+    @Test
+    public final void testArenaReusesStates() {
+        Graph graph = new Graph();
+        Vertex a = new SimpleConcreteVertex(graph, "a", 45.0, 7.0);
+        Vertex b = new SimpleConcreteVertex(graph, "b", 45.001, 7.0);
+        SimpleConcreteEdge ab = new SimpleConcreteEdge(a, b);
+        State parent = new State(a, new RoutingRequest());
+        State rejected = ab.traverse(parent);
+
+        StateArena arena = new StateArena(4);
+        arena.recycle(rejected);
+        assertNull(rejected.getBackState());
+        arena.activate();
+        try {
+            State reused = ab.traverse(parent);
+            assertSame(rejected, reused);
+            assertSame(parent, reused.getBackState());
+            assertSame(b, reused.getVertex());
+            assertSame(parent.stateData, reused.stateData);
+            // the arena is empty again
+            assertNotSame(reused, ab.traverse(parent));
+        } finally {
+            arena.deactivate();
+        }
+        assertEquals(1, arena.getReusedCount());
+    }
 }
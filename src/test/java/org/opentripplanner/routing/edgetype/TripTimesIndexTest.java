@@ -0,0 +1,219 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.model.StopPattern;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.trippattern.Deduplicator;
+import org.opentripplanner.routing.trippattern.FrequencyEntry;
+import org.opentripplanner.routing.trippattern.TripTimes;
+
+public class TripTimesIndexTest {
+
+    private static final int N_STOPS = 3;
+
+    /** Make a trip departing the first stop at the given time, with the given running time between stops. */
+    private static TripTimes trip(String id, int serviceCode, int departure, int runningTime) {
+        Trip trip = new Trip();
+        trip.setId(new AgencyAndId("agency", id));
+        TripTimes tt = new TripTimes(trip, stopTimes(departure, runningTime), new Deduplicator());
+        tt.serviceCode = serviceCode;
+        return tt;
+    }
+
+    private static List<StopTime> stopTimes(int departure, int runningTime) {
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+        for (int i = 0; i < N_STOPS; i++) {
+            StopTime stopTime = new StopTime();
+            Stop stop = new Stop();
+            stop.setId(new AgencyAndId("agency", "S" + i));
+            stopTime.setStop(stop);
+            stopTime.setArrivalTime(departure + i * runningTime);
+            stopTime.setDepartureTime(departure + i * runningTime);
+            stopTime.setStopSequence(i);
+            stopTimes.add(stopTime);
+        }
+        return stopTimes;
+    }
+
+    private static List<TripTimes> trips() {
+        List<TripTimes> trips = new ArrayList<TripTimes>();
+        trips.add(trip("t0", 1, 3600, 600));
+        trips.add(trip("t1", 0, 1800, 600));
+        trips.add(trip("t2", 1, 1800, 1800)); // overtaken by t0 at the last stop
+        trips.add(trip("t3", 0, 1800, 600)); // same times as t1
+        trips.add(trip("t4", 1, 7200, 600));
+        return trips;
+    }
+
+    @Test
+    public void testBuild() {
+        TripTimesIndex index = TripTimesIndex.build(trips(), N_STOPS);
+        assertEquals(5, index.nTrips);
+        assertArrayEquals(new int[] { 0, 1 }, index.serviceCodes);
+        assertArrayEquals(new int[] { 0, 2, 5 }, index.blockStart);
+
+        // departures are sorted on time then trip index within each service block
+        assertArrayEquals(new int[] { 1, 3, 2, 0, 4 }, index.departureTrips[0]);
+        assertArrayEquals(new int[] { 1800, 1800, 1800, 3600, 7200 }, index.departureTimes[0]);
+        assertArrayEquals(new int[] { 1, 3, 0, 2, 4 }, index.departureTrips[2]);
+        assertArrayEquals(new int[] { 3000, 3000, 4800, 5400, 8400 }, index.departureTimes[2]);
+
+        // tied arrivals are sorted on descending trip index, so a backward scan meets the lowest index first
+        assertArrayEquals(new int[] { 3, 1, 2, 0, 4 }, index.arrivalTrips[0]);
+    }
+
+    @Test
+    public void testSearch() {
+        int[] times = new int[] { 100, 200, 200, 300, 50, 60 };
+        assertEquals(0, TripTimesIndex.firstAtOrAfter(times, 0, 4, 0));
+        assertEquals(1, TripTimesIndex.firstAtOrAfter(times, 0, 4, 150));
+        assertEquals(1, TripTimesIndex.firstAtOrAfter(times, 0, 4, 200));
+        assertEquals(4, TripTimesIndex.firstAtOrAfter(times, 0, 4, 301));
+        assertEquals(-1, TripTimesIndex.lastAtOrBefore(times, 0, 4, 99));
+        assertEquals(2, TripTimesIndex.lastAtOrBefore(times, 0, 4, 200));
+        assertEquals(3, TripTimesIndex.lastAtOrBefore(times, 0, 4, 1000));
+        assertEquals(5, TripTimesIndex.lastAtOrBefore(times, 4, 6, 70));
+    }
+
+    @Test
+    public void testUpdate() {
+        List<TripTimes> trips = trips();
+        TripTimesIndex scheduled = TripTimesIndex.build(trips, N_STOPS);
+        TripTimesIndex updated = scheduled.sharedCopy();
+
+        // delay t1 by an hour, it now runs after t3 in its block
+        TripTimes delayed = new TripTimes(trips.get(1));
+        for (int i = 0; i < N_STOPS; i++) {
+            delayed.updateArrivalDelay(i, 3600);
+            delayed.updateDepartureDelay(i, 3600);
+        }
+        assertTrue(updated.update(1, delayed));
+        trips.set(1, delayed);
+        assertArrayEquals(new int[] { 3, 1, 2, 0, 4 }, updated.departureTrips[0]);
+        assertArrayEquals(new int[] { 1800, 5400, 1800, 3600, 7200 }, updated.departureTimes[0]);
+        assertArrayEquals(new int[] { 3, 1, 2, 0, 4 }, updated.arrivalTrips[0]);
+
+        // the original index is untouched
+        assertNotSame(scheduled.departureTrips, updated.departureTrips);
+        assertArrayEquals(new int[] { 1, 3, 2, 0, 4 }, scheduled.departureTrips[0]);
+
+        // an incrementally updated index is identical to one rebuilt from scratch
+        TripTimesIndex rebuilt = TripTimesIndex.build(trips, N_STOPS);
+        for (int s = 0; s < N_STOPS; s++) {
+            assertArrayEquals(rebuilt.departureTrips[s], updated.departureTrips[s]);
+            assertArrayEquals(rebuilt.departureTimes[s], updated.departureTimes[s]);
+            assertArrayEquals(rebuilt.arrivalTrips[s], updated.arrivalTrips[s]);
+            assertArrayEquals(rebuilt.arrivalTimes[s], updated.arrivalTimes[s]);
+        }
+
+        // a trip moving to another service block cannot be updated in place
+        TripTimes moved = new TripTimes(trips.get(0));
+        moved.serviceCode = 0;
+        assertFalse(updated.update(0, moved));
+    }
+
+    /**
+     * On random timetables, the indexed search must find the same trip at the same time as the linear search, on any
+     * service day and whatever the frequency entries competing with the scheduled trips.
+     */
+    @Test
+    public void testIndexedSearchMatchesLinearSearch() {
+        Random random = new Random(42);
+        Agency agency = new Agency();
+        agency.setId("agency");
+        Route route = new Route();
+        route.setId(new AgencyAndId("agency", "route"));
+        route.setAgency(agency);
+        route.setType(3);
+        TripPattern pattern = new TripPattern(route, new StopPattern(stopTimes(0, 600)));
+        RoutingRequest options = new RoutingRequest();
+
+        for (int r = 0; r < 200; r++) {
+            Timetable indexed = new Timetable(pattern);
+            Timetable linear = new Timetable(pattern);
+            int nTrips = 1 + random.nextInt(3 * Timetable.MIN_INDEXED_TRIPS);
+            for (int t = 0; t < nTrips; t++) {
+                // whole minutes to get ties, running past midnight, with overtaking trips
+                TripTimes tt = trip("t" + t, random.nextInt(4), random.nextInt(30 * 60) * 60,
+                        60 * (1 + random.nextInt(20)));
+                if (random.nextInt(10) == 0) tt.cancel();
+                indexed.addTripTimes(tt);
+                linear.addTripTimes(tt);
+            }
+            int nFrequencies = random.nextInt(3);
+            for (int f = 0; f < nFrequencies; f++) {
+                TripTimes tt = trip("f" + f, random.nextInt(4), 0, 60 * (1 + random.nextInt(20)));
+                int start = random.nextInt(24 * 60) * 60;
+                FrequencyEntry freq = new FrequencyEntry(start, start + random.nextInt(6 * 60) * 60,
+                        60 * (5 + random.nextInt(30)), random.nextBoolean(), tt);
+                indexed.addFrequencyEntry(freq);
+                linear.addFrequencyEntry(freq);
+            }
+            indexed.finish(0);
+            linear.finish(Integer.MAX_VALUE);
+
+            // today or yesterday, running a random subset of the services
+            long midnight = random.nextBoolean() ? 0 : -24 * 3600;
+            BitSet running = new BitSet();
+            for (int c = 0; c < 4; c++) running.set(c, random.nextBoolean());
+            ServiceDay serviceDay = mock(ServiceDay.class);
+            when(serviceDay.serviceRunning(anyInt())).thenAnswer(
+                    invocation -> running.get((Integer) invocation.getArguments()[0]));
+            when(serviceDay.secondsSinceMidnight(anyLong())).thenAnswer(
+                    invocation -> (int) ((Long) invocation.getArguments()[0] - midnight));
+
+            for (int q = 0; q < 50; q++) {
+                State s0 = new State(null, random.nextInt(32 * 3600) - 3600, options);
+                int stopIndex = random.nextInt(N_STOPS);
+                boolean boarding = random.nextBoolean();
+                TripTimes expected = linear.getNextTrip(s0, serviceDay, stopIndex, boarding);
+                TripTimes actual = indexed.getNextTrip(s0, serviceDay, stopIndex, boarding);
+                if (expected == null) {
+                    assertNull(actual);
+                } else {
+                    assertEquals(expected.trip, actual.trip);
+                    assertEquals(expected.getDepartureTime(stopIndex), actual.getDepartureTime(stopIndex));
+                    assertEquals(expected.getArrivalTime(stopIndex), actual.getArrivalTime(stopIndex));
+                }
+            }
+        }
+    }
+
+}
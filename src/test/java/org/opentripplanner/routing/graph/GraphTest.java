@@ -19,7 +19,11 @@ import static org.junit.Assert.assertTrue;
 import static org.opentripplanner.util.ArrayUtils.contains;
 
 import org.junit.Test;
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.TurnRestrictionType;
 import org.opentripplanner.routing.alertpatch.AlertPatch;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
 
 public class GraphTest {
     @Test
@@ -124,4 +128,33 @@ public class GraphTest {
         assertFalse(contains (alertPatches[9], alertPatch2));
         assertFalse(contains (alertPatches[9], alertPatch3));
     }
+
+    @Test
+    public final void testTurnRestriction() {
+        Graph graph = new Graph();
+        Vertex vertex0 = new SimpleConcreteVertex(graph, "Vertex 0", 0, 0);
+        Vertex vertex1 = new SimpleConcreteVertex(graph, "Vertex 1", 0, 180);
+        Edge edge0 = new SimpleConcreteEdge(vertex0, vertex1);
+        Edge edge1 = new SimpleConcreteEdge(vertex1, vertex0);
+        TurnRestriction restriction0 = new TurnRestriction(edge0, edge1, TurnRestrictionType.NO_TURN,
+                new TraverseModeSet(TraverseMode.CAR));
+        TurnRestriction restriction1 = new TurnRestriction(edge0, edge1, TurnRestrictionType.NO_TURN,
+                new TraverseModeSet(TraverseMode.BICYCLE));
+
+        assertFalse(graph.hasTurnRestrictions(null));
+        assertFalse(graph.hasTurnRestrictions(edge0));
+        assertTrue(graph.getTurnRestrictions(edge0).isEmpty());
+
+        graph.addTurnRestriction(edge0, restriction0);
+        graph.addTurnRestriction(edge0, restriction1);
+        assertTrue(graph.hasTurnRestrictions(edge0));
+        assertFalse(graph.hasTurnRestrictions(edge1));
+        assertEquals(2, graph.getTurnRestrictions(edge0).size());
+
+        graph.removeTurnRestriction(edge0, restriction0);
+        assertTrue(graph.hasTurnRestrictions(edge0));
+        graph.removeTurnRestriction(edge0, restriction1);
+        assertFalse(graph.hasTurnRestrictions(edge0));
+        assertTrue(graph.getTurnRestrictions(edge0).isEmpty());
+    }
 }
@@ -0,0 +1,141 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.edgetype.ElevatorHopEdge;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.vertextype.ElevatorOffboardVertex;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+public class LandmarkTableTest {
+
+    private static final int N = 5;
+
+    @Test
+    public void testLowerBounds() {
+        Graph graph = new Graph();
+        // a grid of two-way streets with the middle row one-way eastbound
+        StreetVertex[][] grid = new StreetVertex[N][N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                grid[i][j] = new IntersectionVertex(graph, "v_" + i + "_" + j, 7.0 + j * 0.001, 45.0 + i * 0.001);
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N - 1; j++) {
+                edge(grid[i][j], grid[i][j + 1]);
+                if (i != N / 2) edge(grid[i][j + 1], grid[i][j]);
+                edge(grid[j][i], grid[j + 1][i]);
+                edge(grid[j + 1][i], grid[j][i]);
+            }
+        }
+        LandmarkTable table = LandmarkTable.build(graph, 3);
+        assertEquals(3, table.getLandmarkCount());
+        assertBoundsAdmissible(graph, table, true);
+        assertEquals(-1, table.getRow(new IntersectionVertex(new Graph(), "elsewhere", 0, 0)));
+    }
+
+    /**
+     * An elevator between the two ends of a long street must be taken into account, otherwise the bounds between
+     * them are the length of the street rather than zero.
+     */
+    @Test
+    public void testElevatorShortcut() {
+        Graph graph = new Graph();
+        StreetVertex a = new IntersectionVertex(graph, "a", 7.0, 45.0);
+        StreetVertex b = new IntersectionVertex(graph, "b", 7.0001, 45.0);
+        StreetVertex detour = new IntersectionVertex(graph, "detour", 7.0, 45.01);
+        edge(a, detour);
+        edge(detour, a);
+        edge(detour, b);
+        edge(b, detour);
+        Vertex lower = new ElevatorOffboardVertex(graph, "lower", 7.0, 45.0, "lower");
+        Vertex upper = new ElevatorOffboardVertex(graph, "upper", 7.0001, 45.0, "upper");
+        new FreeEdge(a, lower);
+        new FreeEdge(lower, a);
+        new ElevatorHopEdge(lower, upper, StreetTraversalPermission.ALL);
+        new ElevatorHopEdge(upper, lower, StreetTraversalPermission.ALL);
+        new FreeEdge(upper, b);
+        new FreeEdge(b, upper);
+
+        LandmarkTable table = LandmarkTable.build(graph, 2);
+        assertEquals(0, table.lowerBound(table.getRow(a), table.getRow(b)), 0.0);
+        assertEquals(0, table.lowerBound(table.getRow(b), table.getRow(a)), 0.0);
+        assertTrue(table.getRow(lower) >= 0);
+        assertBoundsAdmissible(graph, table, false);
+    }
+
+    /**
+     * Check the bounds between every pair of vertices of the graph against the exact distances, computed by
+     * Floyd-Warshall over all the edges of the graph, street edges counting for their length and others for zero.
+     */
+    private static void assertBoundsAdmissible(Graph graph, LandmarkTable table, boolean expectTight) {
+        List<Vertex> vertices = new ArrayList<Vertex>(graph.getVertices());
+        int n = vertices.size();
+        double[][] exact = new double[n][n];
+        for (int v = 0; v < n; v++) {
+            Arrays.fill(exact[v], Double.POSITIVE_INFINITY);
+            exact[v][v] = 0;
+        }
+        for (int v = 0; v < n; v++) {
+            for (Edge e : vertices.get(v).getOutgoing()) {
+                int w = vertices.indexOf(e.getToVertex());
+                double length = e instanceof StreetEdge ? e.getDistance() : 0;
+                exact[v][w] = Math.min(exact[v][w], length);
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            for (int v = 0; v < n; v++) {
+                for (int w = 0; w < n; w++) {
+                    exact[v][w] = Math.min(exact[v][w], exact[v][k] + exact[k][w]);
+                }
+            }
+        }
+        boolean anyTight = false;
+        for (int v = 0; v < n; v++) {
+            int row = table.getRow(vertices.get(v));
+            for (int w = 0; w < n; w++) {
+                double bound = table.lowerBound(row, table.getRow(vertices.get(w)));
+                assertTrue(bound <= exact[v][w] + 0.01);
+                if (v != w && exact[v][w] > 0 && bound >= exact[v][w] - 0.01) anyTight = true;
+            }
+        }
+        // bounds from or to a landmark are exact
+        if (expectTight) assertTrue(anyTight);
+    }
+
+    private static void edge(StreetVertex a, StreetVertex b) {
+        Coordinate[] coords = new Coordinate[] { a.getCoordinate(), b.getCoordinate() };
+        LineString geom = GeometryUtils.getGeometryFactory().createLineString(coords);
+        double length = SphericalDistanceLibrary.distance(a.getCoordinate(), b.getCoordinate());
+        new StreetEdge(a, b, geom, a.getLabel() + "_" + b.getLabel(), length, StreetTraversalPermission.ALL, false);
+    }
+
+}
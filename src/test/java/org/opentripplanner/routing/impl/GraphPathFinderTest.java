@@ -0,0 +1,210 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
+import org.opentripplanner.routing.core.RoutingContext;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.standalone.Router;
+import org.opentripplanner.util.TestUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the concurrent search for alternative itineraries (parallelItineraries) against the sequential one, between
+ * two stops of the Portland graph served by several MAX lines.
+ */
+public class GraphPathFinderTest {
+
+    private Graph graph;
+    private Router router;
+    private Vertex start;
+    private Vertex end;
+
+    @Before
+    public void setUp() {
+        graph = ConstantsForTests.getInstance().getPortlandGraph();
+        router = new Router("TEST", graph);
+        String feedId = graph.getFeedIds().iterator().next();
+        start = graph.getVertex(feedId + ":8371");
+        end = graph.getVertex(feedId + ":8374");
+    }
+
+    private RoutingRequest request(int numItineraries, boolean parallel) {
+        RoutingRequest options = new RoutingRequest();
+        options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 11, 1, 12, 34, 25);
+        options.numItineraries = numItineraries;
+        options.parallelItineraries = parallel;
+        options.setRoutingContext(graph, start, end);
+        return options;
+    }
+
+    private static List<List<AgencyAndId>> trips(List<GraphPath> paths) {
+        List<List<AgencyAndId>> trips = new ArrayList<>();
+        for (GraphPath path : paths) {
+            trips.add(path.getTrips());
+        }
+        return trips;
+    }
+
+    /** The concurrent searches find the first itinerary of the sequential search, and distinct alternatives. */
+    @Test
+    public void testParallelItineraries() {
+        List<List<AgencyAndId>> first = trips(new GraphPathFinder(router).getPaths(request(1, false)));
+        assertFalse(first.isEmpty());
+
+        List<GraphPath> paths = new GraphPathFinder(router).getPaths(request(3, true));
+        List<List<AgencyAndId>> trips = trips(paths);
+        assertTrue(paths.size() > 1);
+        assertTrue(trips.containsAll(first));
+        assertEquals("itineraries using the same trips were not merged",
+                trips.size(), new HashSet<>(trips).size());
+
+        // the results do not depend on the order in which the concurrent searches finish
+        for (int i = 0; i < 5; i++) {
+            assertEquals(trips, trips(new GraphPathFinder(router).getPaths(request(3, true))));
+        }
+    }
+
+    @Test
+    public void testNumItinerariesCap() {
+        for (int numItineraries = 2; numItineraries <= 5; numItineraries++) {
+            List<GraphPath> paths = new GraphPathFinder(router).getPaths(request(numItineraries, true));
+            assertFalse(paths.isEmpty());
+            assertTrue(paths.size() <= numItineraries);
+        }
+    }
+
+    /** When the follow-up timeout has already expired, only the first itinerary is returned. */
+    @Test
+    public void testFollowUpTimeout() {
+        List<List<AgencyAndId>> first = trips(new GraphPathFinder(router).getPaths(request(1, false)));
+        // a timeout that has expired before the search starts, regardless of the speed of the machine
+        router.timeouts = new double[] { 60, -1 };
+        RoutingRequest options = request(3, true);
+        assertEquals(first, trips(new GraphPathFinder(router).getPaths(options)));
+        assertFalse(options.rctx.aborted);
+    }
+
+    /** When the first search times out, no itinerary is returned and the search is marked as aborted. */
+    @Test
+    public void testFirstSearchTimeout() {
+        router.timeouts = new double[] { -1 };
+        RoutingRequest options = request(3, true);
+        assertTrue(new GraphPathFinder(router).getPaths(options).isEmpty());
+        assertTrue(options.rctx.aborted);
+    }
+
+    /** A search run in an interrupted thread is aborted, and the thread keeps its interrupt status. */
+    @Test
+    public void testInterrupted() {
+        RoutingRequest options = request(3, true);
+        Thread.currentThread().interrupt();
+        List<GraphPath> paths;
+        try {
+            paths = new GraphPathFinder(router).getPaths(options);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertTrue(paths.isEmpty());
+        assertTrue(options.rctx.aborted);
+    }
+
+    @Test
+    public void testCopyForSearch() {
+        RoutingRequest options = request(3, true);
+        RoutingContext rctx = options.rctx;
+        rctx.aborted = true;
+        RoutingRequest other = options.clone();
+        TrivialRemainingWeightHeuristic heuristic = new TrivialRemainingWeightHeuristic();
+
+        RoutingContext copy = rctx.copyForSearch(other, heuristic);
+        assertSame(rctx.graph, copy.graph);
+        assertSame(rctx.origin, copy.origin);
+        assertSame(rctx.target, copy.target);
+        assertSame(rctx.serviceDays, copy.serviceDays);
+        assertSame(other, copy.opt);
+        assertSame(heuristic, copy.remainingWeightHeuristic);
+        assertNotSame(rctx.debugOutput, copy.debugOutput);
+        assertFalse(copy.aborted);
+
+        // aborting one search does not abort the other
+        rctx.aborted = false;
+        copy.aborted = true;
+        assertFalse(rctx.aborted);
+        assertSame(options, rctx.opt);
+    }
+
+    @Test
+    public void testItineraryExecutor() throws Exception {
+        router.itineraryThreads = 2;
+        ExecutorService executor = router.getItineraryExecutor();
+        assertSame(executor, router.getItineraryExecutor());
+        assertEquals(2, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+
+        // occupy both threads and fill the queue, the next search runs in the submitting thread
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        for (int i = 0; i < 2 + 2 * 4; i++) {
+            executor.submit(blocked);
+        }
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertTrue(future.isDone());
+        assertSame(Thread.currentThread(), ranOn.get());
+        release.countDown();
+
+        router.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        ExecutorService restarted = router.getItineraryExecutor();
+        assertNotSame(executor, restarted);
+        router.shutdown();
+    }
+
+}
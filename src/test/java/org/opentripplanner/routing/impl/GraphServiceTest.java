@@ -27,6 +27,7 @@ import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
 import org.opentripplanner.routing.error.GraphNotFoundException;
 import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.vertextype.IntersectionVertex;
 import org.opentripplanner.routing.vertextype.StreetVertex;
@@ -244,4 +245,31 @@ public class GraphServiceTest extends TestCase {
         assertEquals("A", graphService.getRouter("A").graph.routerId);
 
     }
+
+    @Test
+    public final void testBinaryGraphFormat() throws Exception {
+
+        // Save the small graph in both formats and check that they are detected when loaded
+        File javaFile = new File(basePath, "java.obj");
+        File binaryFile = new File(basePath, "binary.obj");
+        smallGraph.save(javaFile, Graph.SerializationFormat.JAVA);
+        smallGraph.save(binaryFile, Graph.SerializationFormat.BINARY);
+
+        for (File file : new File[] { javaFile, binaryFile }) {
+            Graph graph = Graph.load(file, LoadLevel.FULL);
+            assertEquals(2, graph.countVertices());
+            assertEquals(1, graph.countEdges());
+            assertNotNull(graph.getVertex("v1"));
+            assertEquals(11000.0, graph.getEdges().iterator().next().getDistance(), 0.0);
+        }
+
+        // A binary graph is also loaded transparently by the graph sources
+        File routerDir = new File(basePath, "B");
+        routerDir.mkdir();
+        smallGraph.save(new File(routerDir, InputStreamGraphSource.GRAPH_FILENAME),
+                Graph.SerializationFormat.BINARY);
+        GraphService graphService = new GraphService();
+        graphService.registerGraph("B", InputStreamGraphSource.newFileGraphSource("B", routerDir, LoadLevel.FULL));
+        assertEquals(2, graphService.getRouter("B").graph.countVertices());
+    }
 }
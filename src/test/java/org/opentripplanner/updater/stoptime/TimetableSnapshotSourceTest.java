@@ -24,6 +24,7 @@ import java.io.File;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
@@ -216,6 +217,55 @@ public class TimetableSnapshotSourceTest {
         assertEquals(RealTimeState.SCHEDULED, forToday.getTripTimes(tripIndex2).getRealTimeState());
     }
 
+    @Test
+    public void testApplyChangedTripUpdatesOfFullDataset() {
+        final AgencyAndId tripId = new AgencyAndId(feedId, "1.1");
+        final Trip trip = graph.index.tripForId.get(tripId);
+        final TripPattern pattern = graph.index.patternForTrip.get(trip);
+        final int tripIndex = pattern.scheduledTimetable.getTripIndex(tripId);
+
+        updater.maxSnapshotFrequency = (-1);
+
+        updater.applyTripUpdates(graph, true, Arrays.asList(delayedTripUpdate("1.1", 1)), feedId);
+        final TimetableSnapshot snapshot = updater.getTimetableSnapshot();
+        assertEquals(1, snapshot.resolve(pattern, serviceDate).getTripTimes(tripIndex).getDepartureDelay(1));
+
+        // An unchanged dataset leaves the buffer untouched, so the snapshot is kept
+        updater.applyTripUpdates(graph, true, Arrays.asList(delayedTripUpdate("1.1", 1)), feedId);
+        assertSame(snapshot, updater.getTimetableSnapshot());
+
+        updater.applyTripUpdates(graph, true, Arrays.asList(delayedTripUpdate("1.1", 2)), feedId);
+        final TimetableSnapshot changedSnapshot = updater.getTimetableSnapshot();
+        assertNotSame(snapshot, changedSnapshot);
+        assertEquals(2, changedSnapshot.resolve(pattern, serviceDate).getTripTimes(tripIndex).getDepartureDelay(1));
+
+        // A trip missing from the next dataset is back to its scheduled times
+        updater.applyTripUpdates(graph, true, Collections.<TripUpdate>emptyList(), feedId);
+        final TripTimes tripTimes = updater.getTimetableSnapshot().resolve(pattern, serviceDate).getTripTimes(tripIndex);
+        assertEquals(0, tripTimes.getDepartureDelay(1));
+        assertEquals(RealTimeState.SCHEDULED, tripTimes.getRealTimeState());
+    }
+
+    private static TripUpdate delayedTripUpdate(final String tripId, final int delay) {
+        final TripDescriptor.Builder tripDescriptorBuilder = TripDescriptor.newBuilder();
+
+        tripDescriptorBuilder.setTripId(tripId);
+        tripDescriptorBuilder.setScheduleRelationship(TripDescriptor.ScheduleRelationship.SCHEDULED);
+
+        final TripUpdate.Builder tripUpdateBuilder = TripUpdate.newBuilder();
+
+        tripUpdateBuilder.setTrip(tripDescriptorBuilder);
+
+        final StopTimeUpdate.Builder stopTimeUpdateBuilder = tripUpdateBuilder.addStopTimeUpdateBuilder();
+
+        stopTimeUpdateBuilder.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SCHEDULED);
+        stopTimeUpdateBuilder.setStopSequence(2);
+        stopTimeUpdateBuilder.getArrivalBuilder().setDelay(delay);
+        stopTimeUpdateBuilder.getDepartureBuilder().setDelay(delay);
+
+        return tripUpdateBuilder.build();
+    }
+
     @Test
     public void testHandleAddedTrip() throws ParseException {
         // GIVEN
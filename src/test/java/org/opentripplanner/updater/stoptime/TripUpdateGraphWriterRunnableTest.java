@@ -15,23 +15,17 @@ package org.opentripplanner.updater.stoptime;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
-import java.util.Collections;
-import java.util.List;
 
 import org.junit.Test;
 import org.opentripplanner.routing.graph.Graph;
-
-import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import org.opentripplanner.updater.stoptime.TimetableSnapshotSource.PreparedTripUpdates;
 
 public class TripUpdateGraphWriterRunnableTest {
     @Test
     public void testTripUpdateGraphWriterRunnable() {
-        final boolean fullDataset = false;
-        final String agencyId = "Agency ID";
-        final List<TripUpdate> updates =
-                Collections.singletonList(TripUpdate.newBuilder().buildPartial());
+        final PreparedTripUpdates updates = mock(PreparedTripUpdates.class);
         final TripUpdateGraphWriterRunnable tripUpdateGraphWriterRunnable =
-                new TripUpdateGraphWriterRunnable(fullDataset, updates, agencyId);
+                new TripUpdateGraphWriterRunnable(updates);
 
         Graph graph = mock(Graph.class);
         TimetableSnapshotSource timetableSnapshotSource = mock(TimetableSnapshotSource.class);
@@ -40,6 +34,6 @@ public class TripUpdateGraphWriterRunnableTest {
 
         tripUpdateGraphWriterRunnable.run(graph);
 
-        verify(timetableSnapshotSource).applyTripUpdates(graph, fullDataset, updates, agencyId);
+        verify(timetableSnapshotSource).applyTripUpdates(graph, updates);
     }
 }